@@ -0,0 +1,22 @@
+package com.optofluidics;
+
+import javax.swing.ImageIcon;
+
+/**
+ * The icons and logos of the Optofluidics GUIs. They are kept out of
+ * {@link Main} so that the command-line runner does not load Swing.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class Icons
+{
+
+	public static final ImageIcon OPTOFLUIDICS_ICON = new ImageIcon( Icons.class.getResource( "OptofluidicsLogo_16.png" ) );
+
+	public static final ImageIcon OPTOFLUIDICS_LARGE_ICON = new ImageIcon( Icons.class.getResource( "OptofluidicsLogo_512.png" ) );
+
+	public static final ImageIcon OPTOFLUIDICS_ORANGE_LOGO = new ImageIcon( Icons.class.getResource( "OptofluidicsOrangeLogo.jpg" ) );
+
+	private Icons()
+	{}
+}
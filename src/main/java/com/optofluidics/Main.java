@@ -1,20 +1,338 @@
 package com.optofluidics;
 
-import javax.swing.ImageIcon;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import com.optofluidics.app.BatchJob;
+import com.optofluidics.app.BatchProcessor;
+import com.optofluidics.app.BatchServer;
+import com.optofluidics.app.BatchWatcher;
+import com.optofluidics.app.JsonProgress;
+import com.optofluidics.util.LogRecorder;
+import com.optofluidics.util.PrintStreamLogger;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Library constants, and the command-line runner. The runner never opens a
+ * window, and can be launched with Fiji as:
+ *
+ * <pre>
+ * ImageJ-linux64 --headless --main-class com.optofluidics.Main batch /path/to/data --output /path/to/results
+ * </pre>
+ *
+ * The batch reports its progress as JSON events on the standard output, one
+ * per line, and its log on the standard error. Batches can also be submitted
+ * to a resident {@link BatchServer}, to save the start-up of a new JVM for
+ * each of them. The exit code is one of
+ * {@link #EXIT_OK}, {@link #EXIT_FAILED_FILES}, {@link #EXIT_USAGE} and
+ * {@link #EXIT_ERROR}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ * @see JsonProgress
+ */
 public class Main
 {
 
-	public static final ImageIcon OPTOFLUIDICS_ICON = new ImageIcon( Main.class.getResource( "OptofluidicsLogo_16.png" ) );
+	public static final String OPTOFLUIDICS_LIB_VERSION = "v0.0.19-SNAPSHOT";
 
-	public static final ImageIcon OPTOFLUIDICS_LARGE_ICON = new ImageIcon( Main.class.getResource( "OptofluidicsLogo_512.png" ) );
+	/**
+	 * Exit code: all the files were processed.
+	 */
+	public static final int EXIT_OK = 0;
 
-	public static final ImageIcon OPTOFLUIDICS_ORANGE_LOGO = new ImageIcon( Main.class.getResource( "OptofluidicsOrangeLogo.jpg" ) );
+	/**
+	 * Exit code: the batch ran, but some files failed.
+	 */
+	public static final int EXIT_FAILED_FILES = 1;
 
-	public static final String OPTOFLUIDICS_LIB_VERSION = "v0.0.19-SNAPSHOT";
+	/**
+	 * Exit code: the command line is invalid.
+	 */
+	public static final int EXIT_USAGE = 2;
+
+	/**
+	 * Exit code: the batch could not run, because of its folders or of an
+	 * unexpected error.
+	 */
+	public static final int EXIT_ERROR = 3;
+
+	private static final String USAGE = "Optofluidics " + OPTOFLUIDICS_LIB_VERSION + "\n"
+			+ "Usage: com.optofluidics.Main <command> [options]\n"
+			+ "Commands:\n"
+			+ "  batch <folder> [--output <folder>] [--parameters <name>] [--quiet]\n"
+			+ "      Process the tif files and folders of tif files found in a folder.\n"
+			+ "      Progress is printed as JSON events on the standard output, the log\n"
+			+ "      on the standard error, unless --quiet is set.\n"
+			+ "  watch <folder> [--output <folder>] [--parameters <name>] [--settle <s>] [--marker <ext>] [--quiet]\n"
+			+ "      Process each acquisition written to a folder as soon as it is complete:\n"
+			+ "      when a marker file named after it with the marker extension (default\n"
+			+ "      " + BatchWatcher.DEFAULT_MARKER_EXTENSION + ") appears, or when it has not changed for the settle time\n"
+			+ "      (default " + BatchWatcher.DEFAULT_SETTLE_TIME + " s, 0 to only use markers). Runs until interrupted.\n"
+			+ "  serve [--port <port>]\n"
+			+ "      Start a resident batch server, listening on the local port " + BatchServer.DEFAULT_PORT + ",\n"
+			+ "      or on the specified one.\n"
+			+ "  submit <folder> [--output <folder>] [--parameters <name>] [--port <port>]\n"
+			+ "      Run a batch on a resident server. Its progress events are printed on\n"
+			+ "      the standard output, followed by a job event with its latency.\n"
+			+ "  stop [--port <port>]\n"
+			+ "      Stop a resident server, once its queued batches are done.\n"
+			+ "  parameters [--parameters <name>]\n"
+			+ "      Print a parameter set.\n"
+			+ "  version\n"
+			+ "      Print the library version.\n"
+			+ "  help\n"
+			+ "      Print this message.\n"
+			+ "Exit codes: " + EXIT_OK + " success, " + EXIT_FAILED_FILES + " some files failed, "
+			+ EXIT_USAGE + " invalid command line, " + EXIT_ERROR + " the batch could not run.\n";
 
 	private Main()
 	{}
 
+	/*
+	 * MAIN METHOD
+	 */
+
+	public static void main( final String[] args )
+	{
+		System.exit( run( args ) );
+	}
+
+	/**
+	 * Runs the specified command.
+	 *
+	 * @param args
+	 *            the command and its arguments.
+	 * @return the exit code.
+	 */
+	public static int run( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		if ( args.length == 0 )
+		{
+			System.err.print( USAGE );
+			return EXIT_USAGE;
+		}
+
+		final Map< String, String > options = new HashMap< String, String >();
+		String argument = null;
+		for ( int i = 1; i < args.length; i++ )
+		{
+			final String arg = args[ i ];
+			if ( arg.equals( "--quiet" ) )
+			{
+				options.put( "quiet", "true" );
+			}
+			else if ( ( arg.equals( "--output" ) || arg.equals( "--parameters" ) || arg.equals( "--port" )
+					|| arg.equals( "--settle" ) || arg.equals( "--marker" ) ) && i + 1 < args.length )
+			{
+				final String option = arg.substring( 2 );
+				final String value = args[ ++i ];
+				if ( !isValid( option, value ) )
+				{
+					System.err.print( "Invalid value for " + arg + ": " + value + "\n" + USAGE );
+					return EXIT_USAGE;
+				}
+				options.put( option, value );
+			}
+			else if ( null == argument && !arg.startsWith( "--" ) )
+			{
+				argument = arg;
+			}
+			else
+			{
+				System.err.print( "Unexpected argument: " + arg + "\n" + USAGE );
+				return EXIT_USAGE;
+			}
+		}
+
+		final String command = args[ 0 ];
+		try
+		{
+			if ( command.equals( "batch" ) )
+			{
+				if ( null == argument )
+				{
+					System.err.print( "Missing data folder.\n" + USAGE );
+					return EXIT_USAGE;
+				}
+				return batch( new File( argument ), options );
+			}
+			else if ( command.equals( "watch" ) )
+			{
+				if ( null == argument )
+				{
+					System.err.print( "Missing data folder.\n" + USAGE );
+					return EXIT_USAGE;
+				}
+				return watch( new File( argument ), options );
+			}
+			else if ( command.equals( "serve" ) )
+			{
+				final Logger logger = new PrintStreamLogger( System.err );
+				BatchProcessor.setParallelism( new OptofluidicsParameters( logger, null ), logger );
+				final BatchServer server = new BatchServer( port( options ), logger );
+				server.serve();
+				return EXIT_OK;
+			}
+			else if ( command.equals( "submit" ) )
+			{
+				if ( null == argument )
+				{
+					System.err.print( "Missing data folder.\n" + USAGE );
+					return EXIT_USAGE;
+				}
+				final List< String > request = new ArrayList< String >();
+				request.add( BatchServer.REQUEST_BATCH );
+				request.add( new File( argument ).getAbsolutePath() );
+				if ( options.containsKey( "output" ) )
+				{
+					request.add( BatchServer.KEY_OUTPUT );
+					request.add( new File( options.get( "output" ) ).getAbsolutePath() );
+				}
+				if ( options.containsKey( "parameters" ) )
+				{
+					request.add( BatchServer.KEY_PARAMETERS );
+					request.add( options.get( "parameters" ) );
+				}
+				return send( port( options ), request );
+			}
+			else if ( command.equals( "stop" ) )
+			{
+				final List< String > request = new ArrayList< String >();
+				request.add( BatchServer.REQUEST_SHUTDOWN );
+				return send( port( options ), request );
+			}
+			else if ( command.equals( "parameters" ) )
+			{
+				final OptofluidicsParameters parameters = new OptofluidicsParameters( new PrintStreamLogger( System.err ), options.get( "parameters" ) );
+				System.out.print( parameters.toString() );
+				return EXIT_OK;
+			}
+			else if ( command.equals( "version" ) )
+			{
+				System.out.println( OPTOFLUIDICS_LIB_VERSION );
+				return EXIT_OK;
+			}
+			else if ( command.equals( "help" ) )
+			{
+				System.out.print( USAGE );
+				return EXIT_OK;
+			}
+			System.err.print( "Unknown command: " + command + "\n" + USAGE );
+			return EXIT_USAGE;
+		}
+		catch ( final Throwable t )
+		{
+			t.printStackTrace();
+			return EXIT_ERROR;
+		}
+	}
+
+	private static int batch( final File dataFolder, final Map< String, String > options )
+	{
+		final String output = options.get( "output" );
+		final File outputFolder = null == output ? dataFolder : new File( output );
+
+		// Keep the standard output for the progress events only.
+		final PrintStream events = System.out;
+		System.setOut( System.err );
+
+		final Logger sink = options.containsKey( "quiet" ) ? Logger.VOID_LOGGER : new PrintStreamLogger( System.err );
+		final BatchProcessor processor = new BatchProcessor( new LogRecorder( sink ) );
+		processor.setListener( new JsonProgress( events ) );
+		return exitCode( processor.exec( dataFolder, outputFolder, options.get( "parameters" ) ) );
+	}
+
+	private static int watch( final File dataFolder, final Map< String, String > options ) throws IOException
+	{
+		final String output = options.get( "output" );
+		final File outputFolder = null == output ? dataFolder : new File( output );
+
+		final PrintStream events = System.out;
+		System.setOut( System.err );
+
+		final Logger sink = options.containsKey( "quiet" ) ? Logger.VOID_LOGGER : new PrintStreamLogger( System.err );
+		final OptofluidicsParameters parameters = new OptofluidicsParameters( sink, options.get( "parameters" ) );
+		BatchProcessor.setParallelism( parameters, sink );
+		final BatchWatcher watcher = new BatchWatcher( dataFolder, outputFolder, parameters, sink );
+		watcher.setListener( new JsonProgress( events ) );
+		if ( options.containsKey( "settle" ) )
+		{
+			watcher.setSettleTime( Double.parseDouble( options.get( "settle" ) ) );
+		}
+		if ( options.containsKey( "marker" ) )
+		{
+			watcher.setMarkerExtension( options.get( "marker" ) );
+		}
+		return watcher.watch() ? EXIT_OK : EXIT_FAILED_FILES;
+	}
+
+	private static int send( final int port, final List< String > request )
+	{
+		try
+		{
+			return BatchServer.send( port, request, System.out );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not reach the batch server on port " + port + ": " + e.getMessage() );
+			return EXIT_ERROR;
+		}
+	}
+
+	/**
+	 * Checks the value of a numeric option, so that a malformed value is a
+	 * usage error rather than a failure of the command.
+	 */
+	private static boolean isValid( final String option, final String value )
+	{
+		try
+		{
+			if ( option.equals( "port" ) )
+			{
+				final int port = Integer.parseInt( value );
+				return port > 0 && port <= 0xffff;
+			}
+			if ( option.equals( "settle" ) )
+			{
+				final double settle = Double.parseDouble( value );
+				return settle >= 0 && !Double.isInfinite( settle );
+			}
+			return true;
+		}
+		catch ( final NumberFormatException e )
+		{
+			return false;
+		}
+	}
+
+	private static int port( final Map< String, String > options )
+	{
+		final String port = options.get( "port" );
+		return null == port ? BatchServer.DEFAULT_PORT : Integer.parseInt( port );
+	}
 
+	/**
+	 * Returns the exit code of a batch.
+	 *
+	 * @param jobs
+	 *            the jobs processed, or <code>null</code> if the batch could
+	 *            not run.
+	 * @return the exit code.
+	 */
+	public static int exitCode( final List< BatchJob > jobs )
+	{
+		if ( null == jobs ) { return EXIT_ERROR; }
+		for ( final BatchJob job : jobs )
+		{
+			if ( job.isFailed() ) { return EXIT_FAILED_FILES; }
+		}
+		return EXIT_OK;
+	}
 }
@@ -8,13 +8,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 import com.optofluidics.plugin.StillSubtractor_.Method;
+import com.optofluidics.trackmate.action.HmmSegmenter;
+import com.optofluidics.trackmate.action.MotionSegmenter;
+import com.optofluidics.trackmate.action.PeltSegmenter;
+import com.optofluidics.trackmate.action.ThresholdSegmenter;
 
 import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
 import fiji.plugin.trackmate.tracking.SpotTrackerFactory;
 import fiji.plugin.trackmate.tracking.TrackerKeys;
 import fiji.plugin.trackmate.tracking.kalman.KalmanTrackerFactory;
@@ -76,6 +87,21 @@ public class OptofluidicsParameters
 
 	private static final int DEFAULT_SMOOTHING_WINDOW = 20;
 
+	private static final String KEY_MOTION_SEGMENTER = "motion_segmenter";
+
+	private static final String THRESHOLD_SEGMENTER_KEY = "threshold";
+
+	private static final String HMM_SEGMENTER_KEY = "hmm";
+
+	private static final String PELT_SEGMENTER_KEY = "pelt";
+
+	private static final String DEFAULT_MOTION_SEGMENTER = THRESHOLD_SEGMENTER_KEY;
+
+	/**
+	 * Penalty factor for adding a changepoint in the PELT segmenter.
+	 */
+	private static final double PELT_PENALTY_FACTOR = 2d;
+
 	private static final String KEY_TRACKER = "tracker";
 
 	private static final String LAP_TRACKER_KEY = "lap_tracker";
@@ -92,6 +118,69 @@ public class OptofluidicsParameters
 
 	private static final double DEFAULT_FILTER_TRACK_DISPLACEMENT = 5.0;
 
+	private static final String KEY_TRACK_INTENSITY_FEATURES = "track_intensity_features";
+
+	/**
+	 * Comma-separated spot feature keys, the first one feeds the track
+	 * intensity features.
+	 */
+	private static final String DEFAULT_TRACK_INTENSITY_FEATURES = SpotIntensityAnalyzerFactory.TOTAL_INTENSITY;
+
+	private static final String KEY_NUM_THREADS = "num_threads";
+
+	/**
+	 * 0 means: use all the available processors.
+	 */
+	private static final int DEFAULT_NUM_THREADS = 0;
+
+	private static final String KEY_EXPORT_COLUMNS = "export_columns";
+
+	private static final boolean DEFAULT_EXPORT_COLUMNS = false;
+
+	private static final String KEY_MODEL_FORMAT = "model_format";
+
+	private static final String SNAPSHOT_FORMAT_KEY = "snapshot";
+
+	private static final String XML_FORMAT_KEY = "xml";
+
+	private static final String BOTH_FORMATS_KEY = "both";
+
+	private static final String DEFAULT_MODEL_FORMAT = XML_FORMAT_KEY;
+
+	private static final String KEY_COMPRESS_XML = "compress_xml";
+
+	private static final boolean DEFAULT_COMPRESS_XML = false;
+
+	private static final String KEY_PIPELINE_LOADERS = "pipeline_loaders";
+
+	private static final int DEFAULT_PIPELINE_LOADERS = 1;
+
+	private static final String KEY_PIPELINE_TRACKERS = "pipeline_trackers";
+
+	/**
+	 * 0 means: one tracker per thread, as many running as the memory allows.
+	 */
+	private static final int DEFAULT_PIPELINE_TRACKERS = 0;
+
+	private static final String KEY_PIPELINE_WRITERS = "pipeline_writers";
+
+	private static final int DEFAULT_PIPELINE_WRITERS = 1;
+
+	private static final String KEY_PIPELINE_QUEUE_SIZE = "pipeline_queue_size";
+
+	/**
+	 * 0 means: derive the queue size from the free heap.
+	 */
+	private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 0;
+
+	private static final String KEY_CHECKPOINTS = "checkpoints";
+
+	private static final boolean DEFAULT_CHECKPOINTS = false;
+
+	private static final String KEY_SHARED_QUEUE = "shared_queue";
+
+	private static final boolean DEFAULT_SHARED_QUEUE = false;
+
 	private static final String[] FIELDS = new String[] {
 			"stillSubtractionMethod",
 			"particleDiameter",
@@ -105,6 +194,33 @@ public class OptofluidicsParameters
 			"smoothingWindow",
 			"velocityThreshold",
 			"minConsecutiveFrames",
+			"segmenterChoice",
+			"trackIntensityFeatures",
+			"numThreads",
+			"exportColumns",
+			"modelFormat",
+			"compressXml",
+			"pipelineLoaders",
+			"pipelineTrackers",
+			"pipelineWriters",
+			"pipelineQueueSize",
+			"checkpoints",
+			"sharedQueue",
+			"comments"
+			};
+
+	/**
+	 * The fields that only tune how the processing is executed, and do not
+	 * change its results.
+	 */
+	private static final String[] EXECUTION_FIELDS = new String[] {
+			"numThreads",
+			"pipelineLoaders",
+			"pipelineTrackers",
+			"pipelineWriters",
+			"pipelineQueueSize",
+			"checkpoints",
+			"sharedQueue",
 			"comments"
 			};
 
@@ -133,6 +249,26 @@ public class OptofluidicsParameters
 		DEFAULT_PARAMETERS.setProperty( KEY_MIN_CONSECUTIVE_FRAMES, "" + DEFAULT_MIN_CONSECUTIVE_FRAMES );
 		DEFAULT_PARAMETERS.setProperty( KEY_SMOOTHING_WINDOW, "" + DEFAULT_SMOOTHING_WINDOW );
 		DEFAULT_PARAMETERS.setProperty( KEY_VELOCITY_THRESHOLD, "" + DEFAULT_VELOCITY_THRESHOLD );
+		DEFAULT_PARAMETERS.setProperty( KEY_MOTION_SEGMENTER, DEFAULT_MOTION_SEGMENTER );
+
+		// Track intensity.
+		DEFAULT_PARAMETERS.setProperty( KEY_TRACK_INTENSITY_FEATURES, DEFAULT_TRACK_INTENSITY_FEATURES );
+
+		// Computation.
+		DEFAULT_PARAMETERS.setProperty( KEY_NUM_THREADS, "" + DEFAULT_NUM_THREADS );
+
+		// Batch export.
+		DEFAULT_PARAMETERS.setProperty( KEY_EXPORT_COLUMNS, "" + DEFAULT_EXPORT_COLUMNS );
+		DEFAULT_PARAMETERS.setProperty( KEY_MODEL_FORMAT, DEFAULT_MODEL_FORMAT );
+		DEFAULT_PARAMETERS.setProperty( KEY_COMPRESS_XML, "" + DEFAULT_COMPRESS_XML );
+
+		// Pipeline.
+		DEFAULT_PARAMETERS.setProperty( KEY_PIPELINE_LOADERS, "" + DEFAULT_PIPELINE_LOADERS );
+		DEFAULT_PARAMETERS.setProperty( KEY_PIPELINE_TRACKERS, "" + DEFAULT_PIPELINE_TRACKERS );
+		DEFAULT_PARAMETERS.setProperty( KEY_PIPELINE_WRITERS, "" + DEFAULT_PIPELINE_WRITERS );
+		DEFAULT_PARAMETERS.setProperty( KEY_PIPELINE_QUEUE_SIZE, "" + DEFAULT_PIPELINE_QUEUE_SIZE );
+		DEFAULT_PARAMETERS.setProperty( KEY_CHECKPOINTS, "" + DEFAULT_CHECKPOINTS );
+		DEFAULT_PARAMETERS.setProperty( KEY_SHARED_QUEUE, "" + DEFAULT_SHARED_QUEUE );
 	}
 
 	protected final Properties parameters;
@@ -155,14 +291,40 @@ public class OptofluidicsParameters
 
 	private int smoothingWindow;
 
+	private SegmenterChoice segmenterChoice;
+
 	private TrackerChoice trackerChoice;
 
 	private int filterMinNSpots;
 
 	private double filterTrackDisplacement;
 
+	private String trackIntensityFeatures;
+
+	private int numThreads;
+
+	private boolean exportColumns;
+
+	private ModelFormat modelFormat;
+
+	private boolean compressXml;
+
+	private int pipelineLoaders;
+
+	private int pipelineTrackers;
+
+	private int pipelineWriters;
+
+	private int pipelineQueueSize;
+
+	private boolean checkpoints;
+
+	private boolean sharedQueue;
+
 	private final String parametersSetName;
 
+	private File file;
+
 	private String comments;
 
 	private Method stillSubtractionMethod;
@@ -194,6 +356,7 @@ public class OptofluidicsParameters
 	{
 		final String fijiDir = IJ.getDirectory( "imagej" );
 		File file = new File( fijiDir, parametersSetName );
+		this.file = file;
 
 		try
 		{
@@ -204,6 +367,7 @@ public class OptofluidicsParameters
 			}
 			final InputStream stream = new FileInputStream( file );
 			parameters.load( stream );
+			this.file = file;
 			logger.log( "Loaded parameters from file " + file + ".\n" );
 		}
 		catch ( final Exception e )
@@ -237,6 +401,26 @@ public class OptofluidicsParameters
 		this.velocityThreshold = readDouble( KEY_VELOCITY_THRESHOLD, DEFAULT_VELOCITY_THRESHOLD );
 		this.minConsecutiveFrames = readInt( KEY_MIN_CONSECUTIVE_FRAMES, DEFAULT_MIN_CONSECUTIVE_FRAMES );
 		this.smoothingWindow = readInt( KEY_SMOOTHING_WINDOW, DEFAULT_SMOOTHING_WINDOW );
+		this.segmenterChoice = SegmenterChoice.fromName( parameters.getProperty( KEY_MOTION_SEGMENTER ) );
+
+		// Track intensity
+		this.trackIntensityFeatures = parameters.getProperty( KEY_TRACK_INTENSITY_FEATURES ).trim();
+
+		// Computation
+		this.numThreads = readInt( KEY_NUM_THREADS, DEFAULT_NUM_THREADS );
+
+		// Batch export
+		this.exportColumns = Boolean.parseBoolean( parameters.getProperty( KEY_EXPORT_COLUMNS ).trim() );
+		this.modelFormat = readModelFormat();
+		this.compressXml = Boolean.parseBoolean( parameters.getProperty( KEY_COMPRESS_XML ).trim() );
+
+		// Pipeline
+		this.pipelineLoaders = readInt( KEY_PIPELINE_LOADERS, DEFAULT_PIPELINE_LOADERS );
+		this.pipelineTrackers = readInt( KEY_PIPELINE_TRACKERS, DEFAULT_PIPELINE_TRACKERS );
+		this.pipelineWriters = readInt( KEY_PIPELINE_WRITERS, DEFAULT_PIPELINE_WRITERS );
+		this.pipelineQueueSize = readInt( KEY_PIPELINE_QUEUE_SIZE, DEFAULT_PIPELINE_QUEUE_SIZE );
+		this.checkpoints = Boolean.parseBoolean( parameters.getProperty( KEY_CHECKPOINTS ).trim() );
+		this.sharedQueue = Boolean.parseBoolean( parameters.getProperty( KEY_SHARED_QUEUE ).trim() );
 	}
 
 	public void write()
@@ -277,6 +461,26 @@ public class OptofluidicsParameters
 			parameters.setProperty( KEY_VELOCITY_THRESHOLD, "" + velocityThreshold );
 			parameters.setProperty( KEY_MIN_CONSECUTIVE_FRAMES, "" + minConsecutiveFrames );
 			parameters.setProperty( KEY_SMOOTHING_WINDOW, "" + smoothingWindow );
+			parameters.setProperty( KEY_MOTION_SEGMENTER, segmenterChoice.toString() );
+
+			// Track intensity.
+			parameters.setProperty( KEY_TRACK_INTENSITY_FEATURES, trackIntensityFeatures );
+
+			// Computation.
+			parameters.setProperty( KEY_NUM_THREADS, "" + numThreads );
+
+			// Batch export.
+			parameters.setProperty( KEY_EXPORT_COLUMNS, "" + exportColumns );
+			parameters.setProperty( KEY_MODEL_FORMAT, modelFormat.toString() );
+			parameters.setProperty( KEY_COMPRESS_XML, "" + compressXml );
+
+			// Pipeline.
+			parameters.setProperty( KEY_PIPELINE_LOADERS, "" + pipelineLoaders );
+			parameters.setProperty( KEY_PIPELINE_TRACKERS, "" + pipelineTrackers );
+			parameters.setProperty( KEY_PIPELINE_WRITERS, "" + pipelineWriters );
+			parameters.setProperty( KEY_PIPELINE_QUEUE_SIZE, "" + pipelineQueueSize );
+			parameters.setProperty( KEY_CHECKPOINTS, "" + checkpoints );
+			parameters.setProperty( KEY_SHARED_QUEUE, "" + sharedQueue );
 
 			// Save properties to project root folder.
 			parameters.store( output, HEADER );
@@ -311,32 +515,76 @@ public class OptofluidicsParameters
 		str.append( "Optofluidics parameters " + super.toString() + ":\n" );
 		for ( final String name : FIELDS )
 		{
-			Field field;
-			try
-			{
-				field = this.getClass().getDeclaredField( name );
-				field.setAccessible( true );
-				final Object value = field.get( this );
-				str.append( String.format( "  - %1$-25s = %2$-15s\n", name, value ) );
-			}
-			catch ( final SecurityException e1 )
-			{
-				e1.printStackTrace();
-			}
-			catch ( final NoSuchFieldException e1 )
-			{
-				e1.printStackTrace();
-			}
-			catch ( final IllegalArgumentException e )
+			str.append( String.format( "  - %1$-25s = %2$-15s\n", name, getFieldValue( name ) ) );
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Returns a hash of the parameters that change the results of the
+	 * processing. The number of threads, the pipeline settings and the
+	 * comments are not included, so that two runs with the same hash are
+	 * expected to produce the same results.
+	 *
+	 * @return the hash, as a hexadecimal string.
+	 */
+	public String getResultsHash()
+	{
+		final List< String > excluded = Arrays.asList( EXECUTION_FIELDS );
+		final StringBuilder str = new StringBuilder();
+		for ( final String name : FIELDS )
+		{
+			if ( excluded.contains( name ) )
 			{
-				e.printStackTrace();
+				continue;
 			}
-			catch ( final IllegalAccessException e )
+			str.append( name ).append( '=' ).append( getFieldValue( name ) ).append( '\n' );
+		}
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( str.toString().getBytes( "UTF-8" ) );
+			final StringBuilder hex = new StringBuilder( 2 * digest.length );
+			for ( final byte b : digest )
 			{
-				e.printStackTrace();
+				hex.append( String.format( "%02x", b & 0xff ) );
 			}
+			return hex.toString();
 		}
-		return str.toString();
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	private Object getFieldValue( final String name )
+	{
+		try
+		{
+			final Field field = this.getClass().getDeclaredField( name );
+			field.setAccessible( true );
+			return field.get( this );
+		}
+		catch ( final SecurityException e1 )
+		{
+			e1.printStackTrace();
+		}
+		catch ( final NoSuchFieldException e1 )
+		{
+			e1.printStackTrace();
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			e.printStackTrace();
+		}
+		catch ( final IllegalAccessException e )
+		{
+			e.printStackTrace();
+		}
+		return null;
 	}
 
 	private double readDouble( final String key, final double defaultValue )
@@ -359,6 +607,17 @@ public class OptofluidicsParameters
 		}
 	}
 
+	private ModelFormat readModelFormat()
+	{
+		final String val = parameters.getProperty( KEY_MODEL_FORMAT );
+		final ModelFormat modelFormat = ModelFormat.fromName( val );
+		if ( null == val || !modelFormat.toString().equalsIgnoreCase( val.trim() ) )
+		{
+			logger.error( "Unknown value " + val + " for the " + KEY_MODEL_FORMAT + " parameter. Using default value = " + modelFormat + ".\n" );
+		}
+		return modelFormat;
+	}
+
 	private int readInt( final String key, final int defaultValue )
 	{
 		final String val = parameters.getProperty( key );
@@ -504,6 +763,242 @@ public class OptofluidicsParameters
 		this.smoothingWindow = smoothingWindow;
 	}
 
+	/**
+	 * Returns the method used to segment tracks in pauses and runs.
+	 *
+	 * @return the segmenter choice.
+	 * @see SegmenterChoice#createSegmenter(OptofluidicsParameters)
+	 */
+	public SegmenterChoice getSegmenterChoice()
+	{
+		return segmenterChoice;
+	}
+
+	public void setSegmenterChoice( final SegmenterChoice segmenterChoice )
+	{
+		this.segmenterChoice = segmenterChoice;
+	}
+
+	/*
+	 * Track intensity.
+	 */
+
+	/**
+	 * Returns the keys of the spot features averaged over tracks by the
+	 * {@link com.optofluidics.trackmate.features.track.TrackSpotIntensityAnalyzer}.
+	 *
+	 * @return the spot feature keys.
+	 */
+	public String[] getTrackIntensityFeatures()
+	{
+		final String[] tokens = trackIntensityFeatures.split( "," );
+		final List< String > keys = new ArrayList< String >( tokens.length );
+		for ( final String token : tokens )
+		{
+			if ( !token.trim().isEmpty() )
+			{
+				keys.add( token.trim() );
+			}
+		}
+		if ( keys.isEmpty() )
+		{
+			keys.add( DEFAULT_TRACK_INTENSITY_FEATURES );
+		}
+		return keys.toArray( new String[ keys.size() ] );
+	}
+
+	public void setTrackIntensityFeatures( final String... spotFeatures )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( int i = 0; i < spotFeatures.length; i++ )
+		{
+			if ( i > 0 )
+			{
+				str.append( ',' );
+			}
+			str.append( spotFeatures[ i ] );
+		}
+		this.trackIntensityFeatures = str.toString();
+	}
+
+	/*
+	 * Computation.
+	 */
+
+	/**
+	 * Returns the number of threads of the shared executor.
+	 *
+	 * @return the number of threads. 0 means all the available processors.
+	 * @see com.optofluidics.util.SharedExecutor
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/*
+	 * Batch export.
+	 */
+
+	/**
+	 * Returns whether the batch processor also exports the spot, edge and
+	 * track features as NumPy columns.
+	 *
+	 * @return <code>true</code> to export columns.
+	 * @see com.optofluidics.trackmate.action.ColumnarExporter
+	 */
+	public boolean isExportColumns()
+	{
+		return exportColumns;
+	}
+
+	public void setExportColumns( final boolean exportColumns )
+	{
+		this.exportColumns = exportColumns;
+	}
+
+	/**
+	 * Returns the format in which the batch processor saves the model.
+	 *
+	 * @return the model format.
+	 * @see com.optofluidics.io.SnapshotWriter
+	 */
+	public ModelFormat getModelFormat()
+	{
+		return modelFormat;
+	}
+
+	public void setModelFormat( final ModelFormat modelFormat )
+	{
+		this.modelFormat = modelFormat;
+	}
+
+	/**
+	 * Returns whether the batch processor compresses the TrackMate XML file
+	 * it saves with gzip. Compressed files can be read by the
+	 * {@link com.optofluidics.io.LazyXmlReader}, but not directly by
+	 * TrackMate.
+	 *
+	 * @return <code>true</code> to save <code>.xml.gz</code> files,
+	 *         <code>false</code> to save plain <code>.xml</code> files.
+	 */
+	public boolean isCompressXml()
+	{
+		return compressXml;
+	}
+
+	public void setCompressXml( final boolean compressXml )
+	{
+		this.compressXml = compressXml;
+	}
+
+	/*
+	 * Pipeline.
+	 */
+
+	/**
+	 * Returns the number of threads that open and convert images in the batch
+	 * pipeline.
+	 *
+	 * @return the number of loader threads.
+	 * @see com.optofluidics.app.BatchPipeline
+	 */
+	public int getPipelineLoaders()
+	{
+		return pipelineLoaders;
+	}
+
+	public void setPipelineLoaders( final int pipelineLoaders )
+	{
+		this.pipelineLoaders = pipelineLoaders;
+	}
+
+	/**
+	 * Returns the number of images tracked at once in the batch pipeline. The
+	 * threads of the shared executor are split between them.
+	 *
+	 * @return the number of tracker threads.
+	 */
+	public int getPipelineTrackers()
+	{
+		return pipelineTrackers;
+	}
+
+	public void setPipelineTrackers( final int pipelineTrackers )
+	{
+		this.pipelineTrackers = pipelineTrackers;
+	}
+
+	/**
+	 * Returns the number of threads that export results in the batch
+	 * pipeline.
+	 *
+	 * @return the number of writer threads.
+	 */
+	public int getPipelineWriters()
+	{
+		return pipelineWriters;
+	}
+
+	public void setPipelineWriters( final int pipelineWriters )
+	{
+		this.pipelineWriters = pipelineWriters;
+	}
+
+	/**
+	 * Returns the capacity of the queues between the stages of the batch
+	 * pipeline.
+	 *
+	 * @return the queue size. 0 means it is derived from the free heap.
+	 */
+	public int getPipelineQueueSize()
+	{
+		return pipelineQueueSize;
+	}
+
+	public void setPipelineQueueSize( final int pipelineQueueSize )
+	{
+		this.pipelineQueueSize = pipelineQueueSize;
+	}
+
+	/**
+	 * Returns whether the batch pipeline saves the progress of each file
+	 * after each stage, so that an interrupted batch can resume.
+	 *
+	 * @return whether checkpoints are saved.
+	 */
+	public boolean isCheckpoints()
+	{
+		return checkpoints;
+	}
+
+	public void setCheckpoints( final boolean checkpoints )
+	{
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * Returns whether the batch cooperates with other batch processes
+	 * writing to the same output folder, claiming each file with a lease so
+	 * that it is processed only once.
+	 *
+	 * @return whether files are claimed before being processed.
+	 */
+	public boolean isSharedQueue()
+	{
+		return sharedQueue;
+	}
+
+	public void setSharedQueue( final boolean sharedQueue )
+	{
+		this.sharedQueue = sharedQueue;
+	}
+
 	public String getComments()
 	{
 		return comments;
@@ -519,6 +1014,17 @@ public class OptofluidicsParameters
 		return parametersSetName;
 	}
 
+	/**
+	 * Returns the properties file these parameters were loaded from. If it
+	 * could not be found, returns where it was first looked for.
+	 *
+	 * @return the properties file, which may not exist.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
 	public Method getStillSubtractionMethod()
 	{
 		return stillSubtractionMethod;
@@ -603,6 +1109,115 @@ public class OptofluidicsParameters
 		}
 	}
 
+	public static enum SegmenterChoice
+	{
+		THRESHOLD( OptofluidicsParameters.THRESHOLD_SEGMENTER_KEY ),
+		HMM( OptofluidicsParameters.HMM_SEGMENTER_KEY ),
+		PELT( OptofluidicsParameters.PELT_SEGMENTER_KEY );
+
+		private String name;
+
+		private SegmenterChoice( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+
+		public static SegmenterChoice fromName( final String name )
+		{
+			for ( final SegmenterChoice el : values() )
+			{
+				if ( el.toString().equalsIgnoreCase( null == name ? null : name.trim() ) ) { return el; }
+			}
+			return THRESHOLD;
+		}
+
+		/**
+		 * Creates a new segmenter of this kind. The PELT segmenter uses the
+		 * min number of consecutive frames as min segment length. The HMM
+		 * segmenter ignores both parameters and learns everything from the
+		 * data.
+		 *
+		 * @param velocityThreshold
+		 *            the velocity threshold.
+		 * @param minConsecutiveFrames
+		 *            the min number of consecutive frames in a section.
+		 * @return a new segmenter.
+		 */
+		public MotionSegmenter createSegmenter( final double velocityThreshold, final int minConsecutiveFrames )
+		{
+			switch ( this )
+			{
+			case HMM:
+				return new HmmSegmenter();
+			case PELT:
+				return new PeltSegmenter( PELT_PENALTY_FACTOR, minConsecutiveFrames, velocityThreshold );
+			default:
+			case THRESHOLD:
+				return new ThresholdSegmenter( velocityThreshold, minConsecutiveFrames );
+			}
+		}
+
+		public MotionSegmenter createSegmenter( final OptofluidicsParameters parameters )
+		{
+			return createSegmenter( parameters.getVelocityThreshold(), parameters.getMinConsecutiveFrames() );
+		}
+	}
+
+	public static enum ModelFormat
+	{
+		SNAPSHOT( OptofluidicsParameters.SNAPSHOT_FORMAT_KEY ),
+		XML( OptofluidicsParameters.XML_FORMAT_KEY ),
+		BOTH( OptofluidicsParameters.BOTH_FORMATS_KEY );
+
+		private String name;
+
+		private ModelFormat( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+
+		public static ModelFormat fromName( final String name )
+		{
+			for ( final ModelFormat el : values() )
+			{
+				if ( el.toString().equalsIgnoreCase( null == name ? null : name.trim() ) ) { return el; }
+			}
+			return XML;
+		}
+
+		/**
+		 * Returns whether the model is saved as a binary snapshot.
+		 *
+		 * @return <code>true</code> for {@link #SNAPSHOT} and {@link #BOTH}.
+		 */
+		public boolean writesSnapshot()
+		{
+			return this != XML;
+		}
+
+		/**
+		 * Returns whether the model is saved as a TrackMate XML file.
+		 *
+		 * @return <code>true</code> for {@link #XML} and {@link #BOTH}.
+		 */
+		public boolean writesXml()
+		{
+			return this != SNAPSHOT;
+		}
+	}
+
 	/*
 	 * MAIN METHOD.
 	 */
@@ -0,0 +1,330 @@
+package com.optofluidics.app;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import com.optofluidics.io.SnapshotReader;
+import com.optofluidics.io.SnapshotWriter;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * The durable progress of the processing of one acquisition, so that a batch
+ * run that was interrupted can resume each file from the last stage it
+ * completed.
+ * <p>
+ * Checkpoints are stored in a sub-folder of the output folder, one folder per
+ * input, named like its lease so that inputs with the same name in different
+ * folders do not share a checkpoint. The subtracted image is saved after the still subtraction, and the
+ * model is saved as a snapshot after the detection, the tracking and the
+ * velocity analysis. A state file records the last stage completed, with the
+ * fingerprint of the input and the hash of the parameters: checkpoints made
+ * from another version of the input or with other parameters are discarded.
+ * <p>
+ * Each file is written under a temporary name and then moved over the previous
+ * one in a single step, and the state file is updated last, so that a crash
+ * leaves the previous checkpoint usable.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchCheckpoint
+{
+
+	/**
+	 * The folder, in the output folder, where checkpoints are stored.
+	 */
+	public static final String FOLDER_NAME = "checkpoints";
+
+	private static final String STATE_FILE = "checkpoint.properties";
+
+	private static final String SUBTRACTED_FILE = "subtracted.tif";
+
+	private static final String KEY_FINGERPRINT = "fingerprint";
+
+	private static final String KEY_PARAMETERS = "parameters";
+
+	private static final String KEY_VERSION = "version";
+
+	private static final String KEY_STAGE = "stage";
+
+	/**
+	 * The processing stages, in order.
+	 */
+	public static enum Stage
+	{
+		NONE, SUBTRACTION, DETECTION, TRACKING, ANALYSIS;
+
+		public boolean isDone( final Stage stage )
+		{
+			return compareTo( stage ) >= 0;
+		}
+	}
+
+	private final File folder;
+
+	private final String fingerprint;
+
+	private final String parametersHash;
+
+	private final String version;
+
+	private Stage stage = Stage.NONE;
+
+	/**
+	 * Opens the checkpoint of the specified input. The fingerprint of the
+	 * input is taken now, so this must be called before the input is
+	 * converted or moved.
+	 *
+	 * @param outputFolder
+	 *            the folder results are written to.
+	 * @param input
+	 *            the tif file or folder processed.
+	 * @param parametersHash
+	 *            the hash of the parameters of this run.
+	 * @param version
+	 *            the library version of this run.
+	 */
+	public BatchCheckpoint( final File outputFolder, final File input, final String parametersHash, final String version )
+	{
+		this.folder = new File( new File( outputFolder, FOLDER_NAME ), BatchLeases.uniqueName( input ) );
+		this.fingerprint = BatchManifest.fingerprint( input );
+		this.parametersHash = parametersHash;
+		this.version = version;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reads the state of this checkpoint. If it does not match the input and
+	 * the parameters of this run, or cannot be read, the checkpoint is
+	 * cleared and processing starts over.
+	 *
+	 * @return the last stage completed.
+	 */
+	public Stage load()
+	{
+		stage = Stage.NONE;
+		final File stateFile = new File( folder, STATE_FILE );
+		if ( !stateFile.exists() ) { return stage; }
+
+		final Properties state = new Properties();
+		try
+		{
+			final InputStream stream = new FileInputStream( stateFile );
+			try
+			{
+				state.load( stream );
+			}
+			finally
+			{
+				stream.close();
+			}
+			final String name = state.getProperty( KEY_STAGE );
+			if ( null != name
+					&& fingerprint.equals( state.getProperty( KEY_FINGERPRINT ) )
+					&& parametersHash.equals( state.getProperty( KEY_PARAMETERS ) )
+					&& version.equals( state.getProperty( KEY_VERSION ) ) )
+			{
+				stage = Stage.valueOf( name );
+				return stage;
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Start over.
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			// Unknown stage: start over.
+		}
+		clear();
+		return stage;
+	}
+
+	/**
+	 * Returns the last stage completed.
+	 *
+	 * @return the stage.
+	 */
+	public Stage getStage()
+	{
+		return stage;
+	}
+
+	/**
+	 * Saves the image after the still subtraction. The image itself is not
+	 * modified.
+	 *
+	 * @param imp
+	 *            the subtracted image.
+	 * @throws IOException
+	 *             if the image cannot be saved.
+	 */
+	public void saveSubtraction( final ImagePlus imp ) throws IOException
+	{
+		mkdirs();
+		final File tmp = new File( folder, SUBTRACTED_FILE + ".tmp" );
+		final ImagePlus copy = new ImagePlus( imp.getTitle(), imp.getStack() );
+		copy.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		if ( !new FileSaver( copy ).saveAsTiff( tmp.getAbsolutePath() ) ) { throw new IOException( "Could not save " + tmp + "." ); }
+		replace( tmp, new File( folder, SUBTRACTED_FILE ) );
+		setStage( Stage.SUBTRACTION );
+	}
+
+	/**
+	 * Replaces the stack of the specified image with the saved subtracted
+	 * image, which must have the same dimensions and type. The stack is
+	 * replaced rather than written to, since the source image may be backed
+	 * by a read-only virtual stack.
+	 *
+	 * @param imp
+	 *            the source image, as loaded before subtraction.
+	 * @throws IOException
+	 *             if the subtracted image cannot be read or does not match.
+	 */
+	public void restoreSubtraction( final ImagePlus imp ) throws IOException
+	{
+		final File file = new File( folder, SUBTRACTED_FILE );
+		final ImagePlus saved = IJ.openImage( file.getAbsolutePath() );
+		if ( null == saved ) { throw new IOException( "Could not read " + file + "." ); }
+		final ImageStack source = saved.getStack();
+		final ImageStack target = imp.getStack();
+		if ( source.getSize() != target.getSize() || source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight() || saved.getBitDepth() != imp.getBitDepth() ) { throw new IOException( "Subtracted image " + file + " does not match the source image." ); }
+		final int nChannels = imp.getNChannels();
+		final int nSlices = imp.getNSlices();
+		final int nFrames = imp.getNFrames();
+		imp.setStack( source );
+		imp.setDimensions( nChannels, nSlices, nFrames );
+	}
+
+	/**
+	 * Saves the model at the end of the specified stage.
+	 *
+	 * @param done
+	 *            the stage just completed: detection, tracking or analysis.
+	 * @param model
+	 *            the model.
+	 * @throws IOException
+	 *             if the model cannot be saved.
+	 */
+	public void saveModel( final Stage done, final Model model ) throws IOException
+	{
+		mkdirs();
+		final File tmp = new File( folder, modelFileName( done ) + ".tmp" );
+		new SnapshotWriter( tmp ).write( model, null, null );
+		replace( tmp, new File( folder, modelFileName( done ) ) );
+		final Stage previous = stage;
+		setStage( done );
+		// The data of the previous stage is not needed anymore.
+		if ( previous.isDone( Stage.DETECTION ) && previous != done )
+		{
+			new File( folder, modelFileName( previous ) ).delete();
+		}
+		new File( folder, SUBTRACTED_FILE ).delete();
+	}
+
+	/**
+	 * Reads the model saved at the end of the last stage completed.
+	 *
+	 * @return a new model.
+	 * @throws IOException
+	 *             if no model was saved, or if it cannot be read.
+	 */
+	public Model readModel() throws IOException
+	{
+		if ( !stage.isDone( Stage.DETECTION ) ) { throw new IOException( "No model saved for " + folder.getName() + "." ); }
+		final SnapshotReader reader = new SnapshotReader( new File( folder, modelFileName( stage ) ) );
+		try
+		{
+			return reader.readModel();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Deletes this checkpoint, once the results of the input are written.
+	 */
+	public void clear()
+	{
+		stage = Stage.NONE;
+		final File[] files = folder.listFiles();
+		if ( null == files ) { return; }
+		for ( final File file : files )
+		{
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	@Override
+	public String toString()
+	{
+		return folder.getName() + " - " + stage;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void setStage( final Stage done ) throws IOException
+	{
+		final Properties state = new Properties();
+		state.setProperty( KEY_FINGERPRINT, fingerprint );
+		state.setProperty( KEY_PARAMETERS, parametersHash );
+		state.setProperty( KEY_VERSION, version );
+		state.setProperty( KEY_STAGE, done.name() );
+
+		final File tmp = new File( folder, STATE_FILE + ".tmp" );
+		final OutputStream output = new FileOutputStream( tmp );
+		try
+		{
+			state.store( output, "Optofluidics batch checkpoint." );
+		}
+		finally
+		{
+			output.close();
+		}
+		replace( tmp, new File( folder, STATE_FILE ) );
+		stage = done;
+	}
+
+	private void mkdirs() throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() ) { throw new IOException( "Could not create checkpoint folder " + folder + "." ); }
+	}
+
+	private static String modelFileName( final Stage stage )
+	{
+		return stage.name().toLowerCase() + SnapshotWriter.EXTENSION;
+	}
+
+	private static void replace( final File source, final File target ) throws IOException
+	{
+		try
+		{
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+}
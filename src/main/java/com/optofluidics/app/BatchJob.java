@@ -0,0 +1,476 @@
+package com.optofluidics.app;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.SelectionModel;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.OptofluidicsParameters.ModelFormat;
+import com.optofluidics.app.BatchCheckpoint.Stage;
+import com.optofluidics.io.SnapshotWriter;
+import com.optofluidics.io.StreamingXmlWriter;
+import com.optofluidics.plugin.StillSubtractor_.Method;
+import com.optofluidics.trackmate.action.ColumnarExporter;
+import com.optofluidics.trackmate.action.MotionSegmenter;
+import com.optofluidics.trackmate.action.TrackVelocityThresholder;
+import com.optofluidics.trackmate.action.VelocityAnalysisExporter;
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.util.CsvWriter;
+import com.optofluidics.util.LogRecorder;
+
+/**
+ * The processing of one acquisition by the batch processor, split in the three
+ * stages of the {@link BatchPipeline}: loading the image, computing the model
+ * and exporting the results. Each job records its own log, so that jobs
+ * processed concurrently do not mix their logs in the saved files.
+ * <p>
+ * A stage that fails marks the job as failed, and the next stages skip it. A
+ * job is also marked as failed if one of its results could not be written.
+ * <p>
+ * If a {@link BatchCheckpoint} is set, the computation resumes from the last
+ * stage saved in it, and saves its progress to it.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchJob
+{
+
+	private final File file;
+
+	private final LogRecorder recorder;
+
+	private boolean failed;
+
+	private ImagePlus imp;
+
+	private Model model;
+
+	private Settings settings;
+
+	private String baseName;
+
+	private long footprint;
+
+	private int nFrames;
+
+	private final List< File > outputs = new ArrayList< File >();
+
+	private BatchCheckpoint checkpoint;
+
+	/**
+	 * Creates a job for the specified acquisition.
+	 *
+	 * @param file
+	 *            the tif file or the folder of tif files to process.
+	 * @param logger
+	 *            the logger to forward the job log to.
+	 */
+	public BatchJob( final File file, final Logger logger )
+	{
+		this.file = file;
+		this.recorder = new LogRecorder( logger );
+	}
+
+	/*
+	 * STAGES
+	 */
+
+	/**
+	 * Opens the image, converting tif folders to a single file if needed.
+	 * If no still subtraction is made, the image is not modified, and tif
+	 * files are mapped instead of being read.
+	 *
+	 * @param outputFolder
+	 *            the folder to save converted files to.
+	 * @param parameters
+	 *            the parameters the image will be processed with.
+	 * @return <code>true</code> if the image could be opened.
+	 */
+	public boolean load( final File outputFolder, final OptofluidicsParameters parameters )
+	{
+		final TiffFolderOpenerConverter opener = new TiffFolderOpenerConverter( outputFolder, recorder );
+		opener.setVirtual( parameters.getStillSubtractionMethod() == Method.NONE );
+		imp = opener.open( file, true );
+		if ( null == imp )
+		{
+			recorder.log( "Problem encountered. Skipping.\n" );
+			failed = true;
+			return false;
+		}
+		final String title = imp.getTitle();
+		baseName = title.substring( 0, title.length() - 4 );
+		nFrames = imp.getNFrames();
+		return true;
+	}
+
+	/**
+	 * Runs the tracker and the velocity analysis.
+	 *
+	 * @param parameters
+	 *            the parameters to use.
+	 * @param numThreads
+	 *            the number of threads the tracker can use.
+	 * @return <code>true</code> if the model could be computed.
+	 */
+	public boolean compute( final OptofluidicsParameters parameters, final int numThreads )
+	{
+		final OptofluidicsTrackerProcess tracker = new OptofluidicsTrackerProcess( imp, parameters, recorder );
+		tracker.setNumThreads( numThreads );
+		tracker.setCheckpoint( checkpoint );
+		if ( !tracker.checkInput() || !tracker.process() )
+		{
+			recorder.log( "Problem encountered during tracking process:\n" + tracker.getErrorMessage() );
+			failed = true;
+			return false;
+		}
+		model = tracker.getModel();
+		settings = tracker.getSettings();
+
+		/*
+		 * Velocity macro analysis.
+		 */
+
+		if ( null != checkpoint && checkpoint.getStage().isDone( Stage.ANALYSIS ) )
+		{
+			recorder.log( "Velocity analysis restored from checkpoint.\n" );
+			return true;
+		}
+
+		recorder.log( "Performing velocity analysis.\n" );
+		final MotionSegmenter segmenter = parameters.getSegmenterChoice().createSegmenter( parameters );
+		final int smoothingWindow = parameters.getSmoothingWindow();
+
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, segmenter, smoothingWindow );
+		thresholder.setLogger( recorder );
+		if ( !thresholder.checkInput() || !thresholder.process() )
+		{
+			recorder.error( thresholder.getErrorMessage() );
+			failed = true;
+			return false;
+		}
+
+		recorder.log( "Velocity analysis done.\n" );
+		if ( null != checkpoint )
+		{
+			try
+			{
+				checkpoint.saveModel( Stage.ANALYSIS, model );
+			}
+			catch ( final IOException e )
+			{
+				recorder.error( "Could not save checkpoint after the velocity analysis: " + e.getMessage() + ".\n" );
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Exports the statistics and saves the model. Files that were written are
+	 * added to the outputs of this job.
+	 *
+	 * @param outputFolder
+	 *            the folder to write to.
+	 * @param parameters
+	 *            the parameters to use.
+	 * @param viewKey
+	 *            the key of the view to store in the XML file.
+	 */
+	public void write( final File outputFolder, final OptofluidicsParameters parameters, final String viewKey )
+	{
+		/*
+		 * Spots in track analysis.
+		 */
+
+		recorder.log( "Generating spots statistics.\n" );
+		final File spotStatsFile = new File( outputFolder, baseName + "_SpotsStats.csv" );
+		try
+		{
+			final long nSpots = writeSpotsInTracksStatistics( model, spotStatsFile );
+			recorder.log( "Exporting statistics of " + nSpots + " spots to " + spotStatsFile.getAbsolutePath() + " done.\n" );
+			outputs.add( spotStatsFile );
+		}
+		catch ( final IOException e2 )
+		{
+			failed = true;
+			recorder.error( "Could not export spots statistics to file " + spotStatsFile.getAbsolutePath() + ".\n" );
+			e2.printStackTrace();
+		}
+
+		/*
+		 * Export velocity analysis.
+		 */
+
+		final VelocityAnalysisExporter exporter = new VelocityAnalysisExporter( model, new SelectionModel( model ) );
+		exporter.setLogger( recorder );
+		final String velocityAnalysisFilePath = new File( outputFolder, baseName + "_VelocityStats.csv" ).getAbsolutePath();
+		try
+		{
+			exporter.exportToCsv( new File( velocityAnalysisFilePath ) );
+			recorder.log( "Exporting velocity analysis results to " + velocityAnalysisFilePath + " done.\n" );
+			outputs.add( new File( velocityAnalysisFilePath ) );
+		}
+		catch ( final IOException e1 )
+		{
+			failed = true;
+			recorder.error( "Could not export velocity analysis results to file " + velocityAnalysisFilePath + ".\n" );
+		}
+
+		/*
+		 * Export NumPy columns.
+		 */
+
+		if ( parameters.isExportColumns() )
+		{
+			final File columnsFolder = new File( outputFolder, baseName + "_columns" );
+			try
+			{
+				final int nFiles = new ColumnarExporter( model ).export( columnsFolder );
+				recorder.log( "Exporting " + nFiles + " feature columns to " + columnsFolder + " done.\n" );
+				outputs.add( columnsFolder );
+			}
+			catch ( final IOException e1 )
+			{
+				failed = true;
+				recorder.error( "Could not export feature columns to " + columnsFolder + ": " + e1.getMessage() + ".\n" );
+			}
+		}
+
+		/*
+		 * Save the model.
+		 */
+
+		final ModelFormat modelFormat = parameters.getModelFormat();
+		if ( modelFormat.writesSnapshot() )
+		{
+			final File snapshotFile = new File( outputFolder, baseName + SnapshotWriter.EXTENSION );
+			try
+			{
+				new SnapshotWriter( snapshotFile ).write( model, settings, recorder.toString() );
+				recorder.log( "Writing to " + snapshotFile + " done.\n" );
+				outputs.add( snapshotFile );
+			}
+			catch ( final IOException e )
+			{
+				failed = true;
+				recorder.error( "Could not write to " + snapshotFile + ": " + e.getMessage() + ".\n" );
+				e.printStackTrace();
+			}
+		}
+
+		if ( modelFormat.writesXml() )
+		{
+			final boolean compressXml = parameters.isCompressXml();
+			final File targetFile = new File( outputFolder, baseName + StreamingXmlWriter.EXTENSION + ( compressXml ? StreamingXmlWriter.GZIP_EXTENSION : "" ) );
+			final StreamingXmlWriter writer = new StreamingXmlWriter( targetFile, recorder );
+			writer.setCompress( compressXml );
+			writer.setViewKey( viewKey );
+			try
+			{
+				writer.write( model, settings, recorder.toString() );
+				recorder.log( "Writing to " + targetFile + " done.\n" );
+				outputs.add( targetFile );
+			}
+			catch ( final IOException e )
+			{
+				failed = true;
+				recorder.error( "Could not write to " + targetFile + ": " + e.getMessage() + ".\n" );
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Logs the end of the job and releases the image and the model. The
+	 * checkpoint of a job that succeeded is deleted.
+	 */
+	public void finish()
+	{
+		if ( !failed && null != checkpoint )
+		{
+			checkpoint.clear();
+		}
+		recorder.log( "Done with " + file.getName() + " - " + new Date() + ".\n" );
+		imp = null;
+		model = null;
+		settings = null;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public boolean isFailed()
+	{
+		return failed;
+	}
+
+	/**
+	 * Sets the checkpoint of this job, and reads how far a previous run went.
+	 * Must be called before the job is loaded, since tif folders are moved
+	 * once converted.
+	 *
+	 * @param checkpoint
+	 *            the checkpoint of this job.
+	 */
+	public void setCheckpoint( final BatchCheckpoint checkpoint )
+	{
+		this.checkpoint = checkpoint;
+		final Stage stage = checkpoint.load();
+		if ( stage != Stage.NONE )
+		{
+			recorder.log( "Found a checkpoint after the " + stage.name().toLowerCase() + " stage.\n" );
+		}
+	}
+
+	/**
+	 * Returns the number of frames of the image of this job.
+	 *
+	 * @return the number of frames, or 0 if the image was not loaded.
+	 */
+	public int getNFrames()
+	{
+		return nFrames;
+	}
+
+	/**
+	 * Returns the result files written by this job.
+	 *
+	 * @return the output files and folders.
+	 */
+	public List< File > getOutputs()
+	{
+		return outputs;
+	}
+
+	/**
+	 * Returns the memory this job was projected to use, as reserved in the
+	 * {@link MemoryBudget} of the pipeline.
+	 *
+	 * @return the footprint, in bytes.
+	 */
+	public long getFootprint()
+	{
+		return footprint;
+	}
+
+	public void setFootprint( final long footprint )
+	{
+		this.footprint = footprint;
+	}
+
+	/**
+	 * Marks the job as failed because of an unexpected exception, and logs it.
+	 *
+	 * @param stage
+	 *            the stage that failed.
+	 * @param t
+	 *            the exception.
+	 */
+	public void fail( final String stage, final Throwable t )
+	{
+		failed = true;
+		recorder.error( "Unexpected error while " + stage + " " + file.getName() + ": " + t + ".\n" );
+		t.printStackTrace();
+	}
+
+	/**
+	 * Returns the logger of this job.
+	 *
+	 * @return the job logger.
+	 */
+	public LogRecorder getLogger()
+	{
+		return recorder;
+	}
+
+	@Override
+	public String toString()
+	{
+		return file.getName();
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Writes the features of all the spots in visible tracks to a CSV file,
+	 * one row per spot, track by track, in frame order. Rows are streamed to
+	 * the file so that memory does not grow with the number of spots. Missing
+	 * values are written as empty cells, <code>NaN</code> values as
+	 * <code>NaN</code>, like in the track CSV file.
+	 *
+	 * @return the number of spots written.
+	 */
+	static long writeSpotsInTracksStatistics( final Model model, final File file ) throws IOException
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
+		final TrackIndex trackIndex = TrackIndex.get( model );
+
+		// Column layout.
+		final String[] features = fm.getSpotFeatures().toArray( new String[ 0 ] );
+		final boolean[] isInt = new boolean[ features.length ];
+		final String[] header = new String[ features.length + 3 ];
+		header[ 0 ] = "Label";
+		header[ 1 ] = "ID";
+		header[ 2 ] = "TRACK_ID";
+		for ( int i = 0; i < features.length; i++ )
+		{
+			isInt[ i ] = Boolean.TRUE.equals( fm.getSpotFeatureIsInt().get( features[ i ] ) );
+			header[ i + 3 ] = features[ i ];
+		}
+
+		final CsvWriter csv = new CsvWriter( file );
+		try
+		{
+			csv.header( header );
+			for ( final Integer trackID : trackIDs )
+			{
+				final int id = trackID.intValue();
+				for ( final Spot spot : trackIndex.getTrack( trackID ).spots )
+				{
+					csv.value( spot.getName() ).value( spot.ID() ).value( id );
+					for ( int i = 0; i < features.length; i++ )
+					{
+						final Double val = spot.getFeature( features[ i ] );
+						if ( null == val )
+						{
+							csv.empty();
+						}
+						else if ( isInt[ i ] && !Double.isNaN( val.doubleValue() ) )
+						{
+							csv.value( val.longValue() );
+						}
+						else
+						{
+							csv.value( val.doubleValue() );
+						}
+					}
+					csv.endRow();
+				}
+			}
+		}
+		finally
+		{
+			csv.close();
+		}
+		return csv.getNRows();
+	}
+}
@@ -0,0 +1,314 @@
+package com.optofluidics.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Claims the inputs of a batch shared by several processes, possibly on
+ * different machines, so that each input is processed by only one of them.
+ * Processes cooperate through lease files in a sub-folder of the shared output
+ * folder, and need no other service.
+ * <p>
+ * A process claims an input by creating its lease file, which fails if the
+ * file already exists. Lease files are named after the absolute path of their
+ * input, so the processes must see the inputs under the same path. While it holds the lease, it touches the file at
+ * regular intervals. A lease that was not touched for longer than the timeout
+ * belongs to a process that died: it is recovered by renaming it to a name
+ * unique to the recovering process, so that only one process can recover it.
+ * The input is then processed again, resuming from its checkpoint if any.
+ * <p>
+ * The timeout must be much longer than the heartbeat, and than the clock
+ * difference between the machines, since lease dates are compared to the
+ * local clock.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchLeases
+{
+
+	/**
+	 * The folder, in the output folder, where leases are stored.
+	 */
+	public static final String FOLDER_NAME = "leases";
+
+	/**
+	 * The default interval at which held leases are touched, in milliseconds.
+	 */
+	public static final long DEFAULT_HEARTBEAT = 15000;
+
+	/**
+	 * The default time after which a lease that was not touched is stale, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_TIMEOUT = 120000;
+
+	private static final String EXTENSION = ".lease";
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final File folder;
+
+	private final Logger logger;
+
+	private final long timeout;
+
+	/**
+	 * Identifies this process in the lease files: its process id and host,
+	 * and a random part in case several batches run in the same process.
+	 */
+	private final String owner;
+
+	/**
+	 * The leases held, with the token written in them.
+	 */
+	private final Map< File, String > held = new HashMap< File, String >();
+
+	private final Timer heartbeat;
+
+	private int nClaims = 0;
+
+	/**
+	 * Creates the leases of the specified output folder, with the default
+	 * heartbeat and timeout.
+	 *
+	 * @param outputFolder
+	 *            the output folder shared by the processes.
+	 * @param logger
+	 *            the logger to report recovered and lost leases to.
+	 */
+	public BatchLeases( final File outputFolder, final Logger logger )
+	{
+		this( outputFolder, logger, DEFAULT_HEARTBEAT, DEFAULT_TIMEOUT );
+	}
+
+	/**
+	 * Creates the leases of the specified output folder.
+	 *
+	 * @param outputFolder
+	 *            the output folder shared by the processes.
+	 * @param logger
+	 *            the logger to report recovered and lost leases to.
+	 * @param heartbeatInterval
+	 *            the interval at which held leases are touched, in
+	 *            milliseconds.
+	 * @param timeout
+	 *            the time after which a lease that was not touched is stale,
+	 *            in milliseconds.
+	 */
+	public BatchLeases( final File outputFolder, final Logger logger, final long heartbeatInterval, final long timeout )
+	{
+		this.folder = new File( outputFolder, FOLDER_NAME );
+		this.logger = logger;
+		this.timeout = timeout;
+		this.owner = ManagementFactory.getRuntimeMXBean().getName() + '-' + UUID.randomUUID().toString().substring( 0, 8 );
+		this.heartbeat = new Timer( "Optofluidics lease heartbeat", true );
+		heartbeat.schedule( new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				touch();
+			}
+		}, heartbeatInterval, heartbeatInterval );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Tries to claim the specified input.
+	 *
+	 * @param input
+	 *            the tif file or folder.
+	 * @return <code>true</code> if this process now holds the lease of the
+	 *         input, <code>false</code> if another process holds it.
+	 * @throws IOException
+	 *             if the lease folder cannot be written.
+	 */
+	public synchronized boolean claim( final File input ) throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory() ) { throw new IOException( "Could not create lease folder " + folder + "." ); }
+
+		final File lease = leaseFile( input );
+		if ( create( lease ) ) { return true; }
+
+		/*
+		 * Recover the lease if it is stale.
+		 */
+
+		final String stale = read( lease );
+		if ( null == stale || !isStale( lease ) ) { return false; }
+
+		final File recovered = new File( folder, lease.getName() + '.' + owner + ".stale" );
+		if ( !lease.renameTo( recovered ) ) { return false; }
+		if ( !stale.equals( read( recovered ) ) || !isStale( recovered ) )
+		{
+			// Another process recovered it first, and its new lease was moved.
+			if ( !recovered.renameTo( lease ) )
+			{
+				recovered.delete();
+			}
+			return false;
+		}
+		recovered.delete();
+		logger.log( "Recovered the stale lease of " + input.getName() + ", held by " + stale + ".\n" );
+		return create( lease );
+	}
+
+	/**
+	 * Releases the lease of an input, once it is processed, or if it failed.
+	 *
+	 * @param input
+	 *            the tif file or folder.
+	 */
+	public synchronized void release( final File input )
+	{
+		final File lease = leaseFile( input );
+		final String token = held.remove( lease );
+		if ( null == token ) { return; }
+		if ( token.equals( read( lease ) ) )
+		{
+			lease.delete();
+		}
+	}
+
+	/**
+	 * Stops the heartbeat and releases all the leases held.
+	 */
+	public synchronized void close()
+	{
+		heartbeat.cancel();
+		for ( final File lease : new ArrayList< File >( held.keySet() ) )
+		{
+			if ( held.get( lease ).equals( read( lease ) ) )
+			{
+				lease.delete();
+			}
+		}
+		held.clear();
+	}
+
+	public String getOwner()
+	{
+		return owner;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Creates a lease file, if it does not exist.
+	 */
+	private boolean create( final File lease ) throws IOException
+	{
+		final String token = owner + ' ' + ( ++nClaims );
+		try
+		{
+			Files.write( lease.toPath(), token.getBytes( UTF8 ), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+		}
+		catch ( final FileAlreadyExistsException e )
+		{
+			return false;
+		}
+		held.put( lease, token );
+		return true;
+	}
+
+	/**
+	 * Touches the leases held. A lease that was recovered by another process
+	 * is lost: the input will be processed twice.
+	 */
+	private synchronized void touch()
+	{
+		final long now = System.currentTimeMillis();
+		for ( final File lease : new ArrayList< File >( held.keySet() ) )
+		{
+			if ( !held.get( lease ).equals( read( lease ) ) )
+			{
+				logger.error( "Lost the lease " + lease.getName() + " to another process.\n" );
+				held.remove( lease );
+				continue;
+			}
+			lease.setLastModified( now );
+		}
+	}
+
+	private boolean isStale( final File lease )
+	{
+		final long lastModified = lease.lastModified();
+		return lastModified > 0 && System.currentTimeMillis() - lastModified > timeout;
+	}
+
+	/**
+	 * Returns the token of a lease, or <code>null</code> if it does not
+	 * exist.
+	 */
+	private static String read( final File lease )
+	{
+		try
+		{
+			return new String( Files.readAllBytes( lease.toPath() ), UTF8 );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the lease file of an input. Inputs with the same name in
+	 * different folders have different leases.
+	 */
+	private File leaseFile( final File input )
+	{
+		return new File( folder, uniqueName( input ) + EXTENSION );
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns a file name identifying an input: its name followed by a hash
+	 * of its absolute path, so that inputs with the same name in different
+	 * folders get different names.
+	 *
+	 * @param input
+	 *            the input.
+	 * @return the name.
+	 */
+	static String uniqueName( final File input )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( input.getAbsolutePath().getBytes( UTF8 ) );
+			final StringBuilder hex = new StringBuilder( 16 );
+			for ( int i = 0; i < 8; i++ )
+			{
+				hex.append( String.format( "%02x", digest[ i ] & 0xff ) );
+			}
+			return input.getName() + '-' + hex;
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
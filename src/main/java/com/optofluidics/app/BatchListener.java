@@ -0,0 +1,62 @@
+package com.optofluidics.app;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Interface for listeners notified of the progress of a batch. Jobs are
+ * processed concurrently, so methods can be called from several threads at
+ * once.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public interface BatchListener
+{
+
+	/**
+	 * Called before the first job starts.
+	 *
+	 * @param toProcess
+	 *            the inputs that will be processed.
+	 * @param nSkipped
+	 *            the number of inputs skipped because they are up to date.
+	 */
+	public void batchStarted( List< File > toProcess, int nSkipped );
+
+	/**
+	 * Called when a job starts loading.
+	 *
+	 * @param job
+	 *            the job.
+	 */
+	public void jobStarted( BatchJob job );
+
+	/**
+	 * Called when a stage of a job completes successfully.
+	 *
+	 * @param job
+	 *            the job.
+	 * @param stage
+	 *            the stage: <code>loading</code>, <code>tracking</code> or
+	 *            <code>writing</code>.
+	 * @param seconds
+	 *            the time the stage took.
+	 */
+	public void stageDone( BatchJob job, String stage, double seconds );
+
+	/**
+	 * Called when a job is done, whether it succeeded or failed.
+	 *
+	 * @param job
+	 *            the job.
+	 */
+	public void jobDone( BatchJob job );
+
+	/**
+	 * Called when all the jobs are done.
+	 *
+	 * @param jobs
+	 *            the jobs processed.
+	 */
+	public void batchDone( List< BatchJob > jobs );
+}
@@ -0,0 +1,328 @@
+package com.optofluidics.app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The record of the acquisitions already processed in an output folder, so
+ * that a batch run can skip them and only process new or changed inputs.
+ * <p>
+ * The manifest is a tab-separated text file, with one line per input: its
+ * path, its fingerprint, the hash of the parameters used, the library version
+ * and the result files. An input is up to date if all of these still match and
+ * its results still exist. The fingerprint is made of the size and date of the
+ * input, so that inputs do not have to be read to be checked.
+ * <p>
+ * Several batch processes can record to the same manifest: each record
+ * re-reads the manifest and saves it while holding a lock on a lock file.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchManifest
+{
+
+	/**
+	 * The name of the manifest file in the output folder.
+	 */
+	public static final String FILE_NAME = "optofluidics-manifest.tsv";
+
+	private static final String HEADER = "# Optofluidics batch manifest.\n"
+			+ "# input\tfingerprint\tparameters\tversion\toutputs...\n";
+
+	private final File outputFolder;
+
+	private final File file;
+
+	private final String parametersHash;
+
+	private final String version;
+
+	private final Map< String, Entry > entries = new LinkedHashMap< String, Entry >();
+
+	/**
+	 * Fingerprints of the inputs to process, taken before they are processed,
+	 * since folders are moved once converted.
+	 */
+	private final Map< String, String > fingerprints = new HashMap< String, String >();
+
+	/**
+	 * Creates the manifest of an output folder.
+	 *
+	 * @param outputFolder
+	 *            the folder results are written to.
+	 * @param parametersHash
+	 *            the hash of the parameters of this run.
+	 * @param version
+	 *            the library version of this run.
+	 */
+	public BatchManifest( final File outputFolder, final String parametersHash, final String version )
+	{
+		this.outputFolder = outputFolder;
+		this.file = new File( outputFolder, FILE_NAME );
+		this.parametersHash = parametersHash;
+		this.version = version;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reads the entries recorded by previous runs, if any. Malformed lines are
+	 * ignored.
+	 *
+	 * @throws IOException
+	 *             if the manifest exists but cannot be read.
+	 */
+	public synchronized void load() throws IOException
+	{
+		entries.clear();
+		if ( !file.exists() ) { return; }
+
+		final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+		try
+		{
+			String line;
+			while ( ( line = reader.readLine() ) != null )
+			{
+				if ( line.isEmpty() || line.startsWith( "#" ) )
+				{
+					continue;
+				}
+				final String[] tokens = line.split( "\t" );
+				if ( tokens.length < 4 )
+				{
+					continue;
+				}
+				final List< String > outputs = Arrays.asList( tokens ).subList( 4, tokens.length );
+				entries.put( tokens[ 0 ], new Entry( tokens[ 1 ], tokens[ 2 ], tokens[ 3 ], outputs ) );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the inputs that are not up to date, in the same order.
+	 *
+	 * @param inputs
+	 *            the tif files and folders of the batch.
+	 * @return the inputs to process.
+	 */
+	public synchronized List< File > filter( final List< File > inputs )
+	{
+		final List< File > toProcess = new ArrayList< File >( inputs.size() );
+		for ( final File input : inputs )
+		{
+			final String key = input.getAbsolutePath();
+			final String fingerprint = fingerprint( input );
+			final Entry entry = entries.get( key );
+			if ( null == entry || !entry.isUpToDate( fingerprint ) )
+			{
+				fingerprints.put( key, fingerprint );
+				toProcess.add( input );
+			}
+		}
+		return toProcess;
+	}
+
+	/**
+	 * Records that the specified job was processed successfully, and saves the
+	 * manifest.
+	 *
+	 * @param job
+	 *            the job, once its results are written.
+	 * @throws IOException
+	 *             if the manifest cannot be saved.
+	 */
+	public synchronized void record( final BatchJob job ) throws IOException
+	{
+		final String key = job.getFile().getAbsolutePath();
+		String fingerprint = fingerprints.remove( key );
+		if ( null == fingerprint )
+		{
+			fingerprint = fingerprint( job.getFile() );
+		}
+		final List< String > outputs = new ArrayList< String >( job.getOutputs().size() );
+		for ( final File output : job.getOutputs() )
+		{
+			outputs.add( output.getName() );
+		}
+		final Entry entry = new Entry( fingerprint, parametersHash, version, outputs );
+
+		// Merge with the records of other processes.
+		final RandomAccessFile lockFile = new RandomAccessFile( new File( outputFolder, FILE_NAME + ".lock" ), "rw" );
+		try
+		{
+			final FileChannel channel = lockFile.getChannel();
+			final FileLock lock = channel.lock();
+			try
+			{
+				load();
+				entries.put( key, entry );
+				save();
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Returns whether the specified input was processed with the same
+	 * parameters, possibly by another process. The manifest is read again
+	 * from disk.
+	 *
+	 * @param input
+	 *            the tif file or folder.
+	 * @return <code>true</code> if the input is up to date.
+	 * @throws IOException
+	 *             if the manifest cannot be read.
+	 */
+	public synchronized boolean isUpToDate( final File input ) throws IOException
+	{
+		load();
+		final Entry entry = entries.get( input.getAbsolutePath() );
+		return null != entry && entry.isUpToDate( fingerprint( input ) );
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Writes the manifest to a temporary file and then replaces the previous
+	 * one, so that an interrupted run does not leave a truncated manifest.
+	 */
+	private void save() throws IOException
+	{
+		final File tmp = new File( outputFolder, FILE_NAME + ".tmp" );
+		final BufferedWriter writer = new BufferedWriter( new FileWriter( tmp ) );
+		try
+		{
+			writer.write( HEADER );
+			for ( final String key : entries.keySet() )
+			{
+				final Entry entry = entries.get( key );
+				writer.write( key );
+				writer.write( '\t' );
+				writer.write( entry.fingerprint );
+				writer.write( '\t' );
+				writer.write( entry.parametersHash );
+				writer.write( '\t' );
+				writer.write( entry.version );
+				for ( final String output : entry.outputs )
+				{
+					writer.write( '\t' );
+					writer.write( output );
+				}
+				writer.write( '\n' );
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns the fingerprint of an input: its size and modification date, or
+	 * for a folder, the number, total size and latest date of its tif files.
+	 *
+	 * @param input
+	 *            the tif file or folder.
+	 * @return the fingerprint.
+	 */
+	public static String fingerprint( final File input )
+	{
+		if ( !input.isDirectory() ) { return Long.toHexString( input.length() ) + '-' + Long.toHexString( input.lastModified() ); }
+
+		int n = 0;
+		long length = 0;
+		long lastModified = 0;
+		final File[] children = input.listFiles();
+		if ( null != children )
+		{
+			for ( final File child : children )
+			{
+				final String name = child.getName();
+				if ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) )
+				{
+					n++;
+					length += child.length();
+					lastModified = Math.max( lastModified, child.lastModified() );
+				}
+			}
+		}
+		return Integer.toHexString( n ) + '-' + Long.toHexString( length ) + '-' + Long.toHexString( lastModified );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private final class Entry
+	{
+		private final String fingerprint;
+
+		private final String parametersHash;
+
+		private final String version;
+
+		private final List< String > outputs;
+
+		private Entry( final String fingerprint, final String parametersHash, final String version, final List< String > outputs )
+		{
+			this.fingerprint = fingerprint;
+			this.parametersHash = parametersHash;
+			this.version = version;
+			this.outputs = outputs;
+		}
+
+		private boolean isUpToDate( final String currentFingerprint )
+		{
+			if ( !fingerprint.equals( currentFingerprint ) || !parametersHash.equals( BatchManifest.this.parametersHash ) || !version.equals( BatchManifest.this.version ) ) { return false; }
+			for ( final String output : outputs )
+			{
+				if ( !new File( outputFolder, output ).exists() ) { return false; }
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,618 @@
+package com.optofluidics.app;
+
+import fiji.plugin.trackmate.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.optofluidics.Main;
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.util.IndentLogger;
+import com.optofluidics.util.SharedExecutor;
+
+/**
+ * Runs the batch processing of a list of acquisitions as a pipeline of three
+ * stages, so that disks and CPUs are busy at the same time:
+ * <ol>
+ * <li>loaders open and convert the next acquisitions;
+ * <li>trackers run the tracking and the velocity analysis;
+ * <li>writers export the statistics and save the models.
+ * </ol>
+ * Each stage runs on its own threads, and stages are connected by bounded
+ * queues. When a queue is full, the upstream stage waits. By default, the queue
+ * size is derived from the free heap and the footprint of the largest input.
+ * <p>
+ * Several acquisitions can be tracked at once. Before loading an acquisition,
+ * its memory footprint is estimated from its tif header, and the loader waits
+ * until it fits in a {@link MemoryBudget} shared by all the jobs in flight.
+ * The threads of the shared pool are split equally between the tracker
+ * threads.
+ * <p>
+ * If checkpoints are enabled in the parameters, each job saves its progress
+ * after each processing stage, and resumes from it if the batch is run again
+ * after a crash. A job that fails does not stop the others.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchPipeline
+{
+
+	/**
+	 * Upper bound of the automatic queue size.
+	 */
+	private static final int MAX_AUTO_QUEUE_SIZE = 8;
+
+	/**
+	 * Marks the end of the jobs in a queue.
+	 */
+	private static final BatchJob END = new BatchJob( new File( "" ), Logger.VOID_LOGGER );
+
+	private final File outputFolder;
+
+	private final OptofluidicsParameters parameters;
+
+	private final Logger logger;
+
+	private final Logger jobLogger;
+
+	private final String viewKey;
+
+	private int nLoaders = 1;
+
+	private int nTrackers = 1;
+
+	private int nWriters = 1;
+
+	private int queueSize = 0;
+
+	private BatchManifest manifest;
+
+	private BatchListener listener;
+
+	private BatchLeases leases;
+
+	private MemoryBudget memoryBudget;
+
+	/**
+	 * Creates a pipeline.
+	 *
+	 * @param outputFolder
+	 *            the folder to write results to.
+	 * @param parameters
+	 *            the parameters to use.
+	 * @param viewKey
+	 *            the key of the view to store in the XML files.
+	 * @param logger
+	 *            the logger to report to. Job logs are forwarded to it,
+	 *            indented.
+	 */
+	public BatchPipeline( final File outputFolder, final OptofluidicsParameters parameters, final String viewKey, final Logger logger )
+	{
+		this.outputFolder = outputFolder;
+		this.parameters = parameters;
+		this.viewKey = viewKey;
+		this.logger = logger;
+		this.jobLogger = new IndentLogger( logger, 4 );
+	}
+
+	/*
+	 * SETTERS
+	 */
+
+	/**
+	 * Sets the number of threads of each stage.
+	 *
+	 * @param nLoaders
+	 *            the number of loader threads.
+	 * @param nTrackers
+	 *            the number of tracker threads. If 0 or negative, one per
+	 *            thread of the shared pool, the memory budget limiting how
+	 *            many run at once.
+	 * @param nWriters
+	 *            the number of writer threads.
+	 */
+	public void setStageThreads( final int nLoaders, final int nTrackers, final int nWriters )
+	{
+		this.nLoaders = Math.max( 1, nLoaders );
+		this.nTrackers = nTrackers;
+		this.nWriters = Math.max( 1, nWriters );
+	}
+
+	/**
+	 * Sets the capacity of the queues between stages.
+	 *
+	 * @param queueSize
+	 *            the queue capacity. If 0 or negative, it is derived from the
+	 *            free heap when the pipeline runs.
+	 */
+	public void setQueueSize( final int queueSize )
+	{
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Sets the manifest to record the jobs processed successfully in.
+	 *
+	 * @param manifest
+	 *            the manifest, or <code>null</code> not to record jobs.
+	 */
+	public void setManifest( final BatchManifest manifest )
+	{
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Sets the listener notified of the progress of each job.
+	 *
+	 * @param listener
+	 *            the listener, or <code>null</code>.
+	 */
+	public void setListener( final BatchListener listener )
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the leases to claim each input with before loading it, when the
+	 * inputs are shared with other batch processes. Inputs claimed by other
+	 * processes are skipped, and leases are released once the jobs are done.
+	 *
+	 * @param leases
+	 *            the leases, or <code>null</code> if the inputs are not
+	 *            shared.
+	 */
+	public void setLeases( final BatchLeases leases )
+	{
+		this.leases = leases;
+	}
+
+	/**
+	 * Sets the memory budget shared by the jobs in flight.
+	 *
+	 * @param memoryBudget
+	 *            the budget, or <code>null</code> to size it from the heap
+	 *            free when the pipeline runs.
+	 */
+	public void setMemoryBudget( final MemoryBudget memoryBudget )
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Processes the specified acquisitions, and returns when they are all
+	 * done.
+	 *
+	 * @param files
+	 *            the tif files or folders to process.
+	 * @return the jobs, in the order they were completed.
+	 */
+	public List< BatchJob > run( final List< File > files )
+	{
+		final int parallelism = SharedExecutor.getParallelism();
+		final int nTrackerThreads = this.nTrackers > 0 ? this.nTrackers : parallelism;
+		final int capacity = queueSize > 0 ? queueSize : autoQueueSize( files, nTrackerThreads );
+		// Sized now, from the heap free when the batch starts.
+		final MemoryBudget budget = null != memoryBudget ? memoryBudget : new MemoryBudget();
+		// Each tracker gets an equal share of the pool.
+		final int nThreads = Math.max( 1, parallelism / Math.max( 1, Math.min( nTrackerThreads, files.size() ) ) );
+		logger.log( "Running the pipeline with " + nLoaders + " loader(s), " + nTrackerThreads + " tracker(s) and " + nWriters + " writer(s), with queues of " + capacity + " jobs.\n" );
+		logger.log( String.format( "Memory budget for jobs in flight: %.1f MB.\n", budget.getBudget() / 1e6 ) );
+
+		final BlockingQueue< BatchJob > loaded = new ArrayBlockingQueue< BatchJob >( capacity );
+		final BlockingQueue< BatchJob > computed = new ArrayBlockingQueue< BatchJob >( capacity );
+		final List< BatchJob > done = new ArrayList< BatchJob >( files.size() );
+
+		final AtomicInteger next = new AtomicInteger( 0 );
+		final AtomicInteger activeLoaders = new AtomicInteger( nLoaders );
+		final AtomicInteger activeTrackers = new AtomicInteger( nTrackerThreads );
+		final String parametersHash = parameters.isCheckpoints() ? parameters.getResultsHash() : null;
+
+		final List< Thread > threads = new ArrayList< Thread >();
+		for ( int i = 0; i < nLoaders; i++ )
+		{
+			threads.add( new Thread( "Optofluidics loader " + ( i + 1 ) )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						int index;
+						while ( ( index = next.getAndIncrement() ) < files.size() )
+						{
+							final File file = files.get( index );
+							if ( null != leases && !claim( file ) )
+							{
+								continue;
+							}
+							loaded.put( load( file, budget, parametersHash ) );
+						}
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						if ( activeLoaders.decrementAndGet() == 0 )
+						{
+							endQueue( loaded, nTrackerThreads );
+						}
+					}
+				}
+			} );
+		}
+
+		for ( int i = 0; i < nTrackerThreads; i++ )
+		{
+			threads.add( new Thread( "Optofluidics tracker " + ( i + 1 ) )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						BatchJob job;
+						while ( ( job = loaded.take() ) != END )
+						{
+							if ( !job.isFailed() )
+							{
+								final long start = System.currentTimeMillis();
+								try
+								{
+									job.compute( parameters, nThreads );
+								}
+								catch ( final Throwable t )
+								{
+									job.fail( "tracking", t );
+								}
+								stageDone( job, "tracking", start );
+							}
+							computed.put( job );
+						}
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						if ( activeTrackers.decrementAndGet() == 0 )
+						{
+							endQueue( computed, nWriters );
+						}
+					}
+				}
+			} );
+		}
+
+		for ( int i = 0; i < nWriters; i++ )
+		{
+			threads.add( new Thread( "Optofluidics writer " + ( i + 1 ) )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						BatchJob job;
+						while ( ( job = computed.take() ) != END )
+						{
+							complete( job, budget );
+							synchronized ( done )
+							{
+								done.add( job );
+							}
+						}
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			} );
+		}
+
+		for ( final Thread thread : threads )
+		{
+			thread.start();
+		}
+		try
+		{
+			for ( final Thread thread : threads )
+			{
+				thread.join();
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			logger.error( "Batch pipeline interrupted.\n" );
+			for ( final Thread thread : threads )
+			{
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+		return done;
+	}
+
+	/**
+	 * Creates and loads the job processing the specified input. Any error
+	 * fails the job rather than the loader thread: the failed job still goes
+	 * down the pipeline, so that the writer releases the memory and the lease
+	 * it holds, and the trackers are never left waiting on it.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for memory. The lease of the
+	 *             input is then released.
+	 */
+	private BatchJob load( final File file, final MemoryBudget budget, final String parametersHash ) throws InterruptedException
+	{
+		long footprint = 0;
+		BatchJob job = null;
+		try
+		{
+			final long estimate = MemoryBudget.estimate( file );
+			budget.acquire( estimate );
+			footprint = estimate;
+			logger.log( "\nProcessing " + file + " - " + new Date() + ".\n" );
+			job = createJob( file );
+			job.setFootprint( footprint );
+			if ( null != parametersHash )
+			{
+				job.setCheckpoint( new BatchCheckpoint( outputFolder, file, parametersHash, Main.OPTOFLUIDICS_LIB_VERSION ) );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			if ( null != leases )
+			{
+				leases.release( file );
+			}
+			throw e;
+		}
+		catch ( final Throwable t )
+		{
+			if ( null == job )
+			{
+				job = new BatchJob( file, jobLogger );
+				job.setFootprint( footprint );
+			}
+			jobStarted( job );
+			job.fail( "preparing", t );
+			return job;
+		}
+
+		jobStarted( job );
+		final long start = System.currentTimeMillis();
+		try
+		{
+			job.load( outputFolder, parameters );
+		}
+		catch ( final Throwable t )
+		{
+			job.fail( "loading", t );
+		}
+		stageDone( job, "loading", start );
+		return job;
+	}
+
+	/**
+	 * Claims an input shared with other processes, and checks that it was not
+	 * processed by another process since the batch started.
+	 *
+	 * @return <code>true</code> if this process must process the input.
+	 */
+	private boolean claim( final File file )
+	{
+		try
+		{
+			if ( !leases.claim( file ) )
+			{
+				logger.log( "\nSkipping " + file + ", claimed by another process.\n" );
+				return false;
+			}
+			if ( !file.exists() || ( null != manifest && manifest.isUpToDate( file ) ) )
+			{
+				logger.log( "\nSkipping " + file + ", processed by another process.\n" );
+				leases.release( file );
+				return false;
+			}
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not claim " + file + ": " + e.getMessage() + ". Skipping it.\n" );
+			leases.release( file );
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the results of a job, records it in the manifest and releases
+	 * what it holds. Any error fails the job, so that the writer goes on
+	 * with the next ones and the trackers are never left waiting on it.
+	 */
+	private void complete( final BatchJob job, final MemoryBudget budget )
+	{
+		try
+		{
+			if ( !job.isFailed() )
+			{
+				final long start = System.currentTimeMillis();
+				try
+				{
+					job.write( outputFolder, parameters, viewKey );
+				}
+				catch ( final Throwable t )
+				{
+					job.fail( "writing", t );
+				}
+				stageDone( job, "writing", start );
+			}
+			if ( !job.isFailed() && null != manifest )
+			{
+				try
+				{
+					manifest.record( job );
+				}
+				catch ( final IOException e )
+				{
+					logger.error( "Could not update the manifest: " + e.getMessage() + ".\n" );
+				}
+			}
+		}
+		catch ( final Throwable t )
+		{
+			job.fail( "recording", t );
+		}
+
+		try
+		{
+			job.finish();
+		}
+		catch ( final Throwable t )
+		{
+			job.fail( "finishing", t );
+		}
+		if ( null != leases )
+		{
+			try
+			{
+				leases.release( job.getFile() );
+			}
+			catch ( final Throwable t )
+			{
+				job.fail( "releasing", t );
+			}
+		}
+		budget.release( job.getFootprint() );
+		jobDone( job );
+	}
+
+	/**
+	 * Creates the job processing the specified input.
+	 *
+	 * @param file
+	 *            the tif file or folder.
+	 * @return a new job.
+	 */
+	BatchJob createJob( final File file )
+	{
+		return new BatchJob( file, jobLogger );
+	}
+
+	/*
+	 * LISTENER NOTIFICATIONS
+	 *
+	 * A listener that throws must not stop the stage threads: its errors are
+	 * only logged.
+	 */
+
+	private void jobStarted( final BatchJob job )
+	{
+		if ( null == listener ) { return; }
+		try
+		{
+			listener.jobStarted( job );
+		}
+		catch ( final Throwable t )
+		{
+			listenerFailed( t );
+		}
+	}
+
+	/**
+	 * Notifies the listener that a stage of a job completed, unless it failed.
+	 */
+	private void stageDone( final BatchJob job, final String stage, final long start )
+	{
+		if ( null == listener || job.isFailed() ) { return; }
+		try
+		{
+			listener.stageDone( job, stage, ( System.currentTimeMillis() - start ) / 1000. );
+		}
+		catch ( final Throwable t )
+		{
+			listenerFailed( t );
+		}
+	}
+
+	private void jobDone( final BatchJob job )
+	{
+		if ( null == listener ) { return; }
+		try
+		{
+			listener.jobDone( job );
+		}
+		catch ( final Throwable t )
+		{
+			listenerFailed( t );
+		}
+	}
+
+	private void listenerFailed( final Throwable t )
+	{
+		logger.error( "Error in the batch listener: " + t + ".\n" );
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns how many jobs can wait between two stages: as many of the
+	 * largest input as fit in the free heap, once the jobs being tracked are
+	 * accounted for.
+	 *
+	 * @param files
+	 *            the inputs to process.
+	 * @param nTrackers
+	 *            the number of jobs tracked at once.
+	 * @return the queue capacity, at least 1.
+	 */
+	public static int autoQueueSize( final List< File > files, final int nTrackers )
+	{
+		long largest = 1;
+		for ( final File file : files )
+		{
+			largest = Math.max( largest, MemoryBudget.estimate( file ) );
+		}
+		final long n = MemoryBudget.freeHeap() / largest - nTrackers;
+		return ( int ) Math.max( 1, Math.min( MAX_AUTO_QUEUE_SIZE, n ) );
+	}
+
+	/**
+	 * Puts one end marker per consumer. If interrupted, the queue is cleared
+	 * to make room for the markers, since its jobs will not be processed.
+	 */
+	private static void endQueue( final BlockingQueue< BatchJob > queue, final int nConsumers )
+	{
+		try
+		{
+			for ( int i = 0; i < nConsumers; i++ )
+			{
+				queue.put( END );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			queue.clear();
+			for ( int i = 0; i < nConsumers; i++ )
+			{
+				queue.offer( END );
+			}
+			Thread.currentThread().interrupt();
+		}
+	}
+}
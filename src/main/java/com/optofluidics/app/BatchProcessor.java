@@ -0,0 +1,363 @@
+package com.optofluidics.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import com.optofluidics.Main;
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.trackmate.visualization.ProfileViewHorizontalFactory;
+import com.optofluidics.util.LogRecorder;
+import com.optofluidics.util.SharedExecutor;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Processes a folder of acquisitions in batch, without any user interface. It
+ * is used by the {@link OptofluidicsBatchProcessor_} plugin and by the
+ * command-line runner in {@link Main}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchProcessor
+{
+
+	/**
+	 * The key of the view to store in the XML files. It is a compile-time
+	 * constant, so the view classes are not loaded by the batch.
+	 */
+	private static final String VIEW_KEY = ProfileViewHorizontalFactory.KEY;
+
+	private final LogRecorder logger;
+
+	private BatchListener listener;
+
+	/**
+	 * Creates a batch processor.
+	 *
+	 * @param logger
+	 *            the logger to report to. Its content is saved in a log file
+	 *            in the output folder at the end of the batch.
+	 */
+	public BatchProcessor( final LogRecorder logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the listener notified of the progress of the batch.
+	 *
+	 * @param listener
+	 *            the listener, or <code>null</code>.
+	 */
+	public void setListener( final BatchListener listener )
+	{
+		this.listener = listener;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Processes all the tif files and folders of tif files found in the
+	 * specified folder.
+	 *
+	 * @param dataFolder
+	 *            the folder containing the data.
+	 * @param outputFolder
+	 *            the folder to write results to.
+	 * @param parameterSetName
+	 *            the name of the parameter set to use. If <code>null</code>,
+	 *            the default set is used.
+	 * @return the jobs processed, or <code>null</code> if the batch could not
+	 *         be run.
+	 */
+	public List< BatchJob > exec( final File dataFolder, final File outputFolder, final String parameterSetName )
+	{
+		logger.log( "Optofluidics batch processor " + Main.OPTOFLUIDICS_LIB_VERSION + " started on " + new Date() + ".\n" );
+
+		/*
+		 * Load parameters
+		 */
+
+		final OptofluidicsParameters parameters = new OptofluidicsParameters( logger, parameterSetName );
+		setParallelism( parameters, logger );
+		return exec( dataFolder, outputFolder, parameters );
+	}
+
+	/**
+	 * Sizes the shared thread pool from the <code>num_threads</code>
+	 * parameter. To call once at startup: the pool keeps its size once it is
+	 * used, and jobs running concurrently all share it.
+	 *
+	 * @param parameters
+	 *            the parameters to read the number of threads from.
+	 * @param logger
+	 *            the logger to report to if the pool already runs with
+	 *            another size.
+	 */
+	public static void setParallelism( final OptofluidicsParameters parameters, final Logger logger )
+	{
+		if ( !SharedExecutor.setParallelism( parameters.getNumThreads() ) )
+		{
+			logger.log( "The shared thread pool already runs with " + SharedExecutor.getParallelism() + " threads. Ignoring num_threads = " + parameters.getNumThreads() + ".\n" );
+		}
+	}
+
+	/**
+	 * Processes all the tif files and folders of tif files found in the
+	 * specified folder, with parameters already loaded.
+	 *
+	 * @param dataFolder
+	 *            the folder containing the data.
+	 * @param outputFolder
+	 *            the folder to write results to.
+	 * @param parameters
+	 *            the parameters to use.
+	 * @return the jobs processed, or <code>null</code> if the batch could not
+	 *         be run.
+	 */
+	public List< BatchJob > exec( final File dataFolder, final File outputFolder, final OptofluidicsParameters parameters )
+	{
+		logger.log( "Using tracking parameters:\n" + parameters.toString() );
+		logger.log( "\n" );
+
+		/*
+		 * Test folder.
+		 */
+
+		if ( !dataFolder.exists() )
+		{
+			logger.error( "Master folder " + dataFolder + " does not exist. Aborting.\n" );
+			return null;
+		}
+		if ( !dataFolder.canRead() )
+		{
+			logger.error( "Could not read the content of folder " + dataFolder + ". Aborting.\n" );
+			return null;
+		}
+		if ( !dataFolder.isDirectory() )
+		{
+			logger.error( "File " + dataFolder + " is not a folder. Aborting.\n" );
+			return null;
+		}
+
+		if ( !outputFolder.exists() )
+		{
+			logger.error( "Output folder " + outputFolder + " does not exist. Aborting.\n" );
+			return null;
+		}
+		if ( !outputFolder.isDirectory() )
+		{
+			logger.error( "Output file " + outputFolder + " is not a folder. Aborting.\n" );
+			return null;
+		}
+		if ( !outputFolder.canWrite() )
+		{
+			logger.error( "Output folder " + outputFolder + " cannot be written into. Aborting.\n" );
+			return null;
+		}
+
+		/*
+		 * Get master folder content.
+		 */
+
+		logger.log( "Inspecting master folder " + dataFolder + ".\n" );
+
+		final FilenameFilter fileFilter = new FilenameFilter()
+		{
+
+			@Override
+			public boolean accept( final File dir, final String name )
+			{
+				return isAcquisition( new File( dir, name ) );
+			}
+		};
+
+		final File[] content = dataFolder.listFiles( fileFilter );
+		final List< File > tifFiles = new ArrayList< File >();
+		final List< File > folders = new ArrayList< File >();
+		for ( final File file : content )
+		{
+			if ( file.isDirectory() )
+			{
+				folders.add( file );
+			}
+			else
+			{
+				tifFiles.add( file );
+			}
+		}
+
+		String str1;
+		switch ( folders.size() )
+		{
+		case 1:
+			str1 = "Found 1 folder and ";
+			break;
+		default:
+			str1 = "Found " + folders.size() + " folders and ";
+		}
+
+		String str2;
+		switch ( tifFiles.size() )
+		{
+		case 1:
+			str2 = "1 tiff file to process.\n";
+			break;
+		default:
+			str2 = tifFiles.size() + " files to process.\n";
+		}
+		logger.log( str1 + str2 );
+
+		if ( tifFiles.isEmpty() && folders.isEmpty() )
+		{
+			logger.log( "Master folder does not contain any elligible files. Aborting.\n" );
+			return null;
+		}
+
+		final List< File > inputs = new ArrayList< File >( folders );
+		inputs.addAll( tifFiles );
+		return process( inputs, outputFolder, parameters );
+	}
+
+	/**
+	 * Processes the specified acquisitions, and saves the log in the output
+	 * folder.
+	 *
+	 * @param inputs
+	 *            the tif files and folders of tif files to process.
+	 * @param outputFolder
+	 *            the folder to write results to. It must exist and be
+	 *            writable.
+	 * @param parameters
+	 *            the parameters to use.
+	 * @return the jobs processed.
+	 */
+	public List< BatchJob > process( final List< File > inputs, final File outputFolder, final OptofluidicsParameters parameters )
+	{
+		/*
+		 * Skip the inputs processed by previous runs with the same parameters.
+		 */
+
+		final BatchManifest manifest = new BatchManifest( outputFolder, parameters.getResultsHash(), Main.OPTOFLUIDICS_LIB_VERSION );
+		try
+		{
+			manifest.load();
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not read manifest " + manifest.getFile() + ": " + e.getMessage() + ". Processing all files.\n" );
+		}
+		final List< File > toProcess = manifest.filter( inputs );
+		if ( toProcess.size() < inputs.size() )
+		{
+			logger.log( "Skipping " + ( inputs.size() - toProcess.size() ) + " files already processed with the same parameters. "
+					+ "Delete " + manifest.getFile() + " to process them again.\n" );
+		}
+		if ( null != listener )
+		{
+			listener.batchStarted( toProcess, inputs.size() - toProcess.size() );
+		}
+
+		/*
+		 * Load, track and export in a pipeline. Tif folders are converted by
+		 * the loaders if needed.
+		 */
+
+		final List< BatchJob > jobs;
+		if ( toProcess.isEmpty() )
+		{
+			jobs = new ArrayList< BatchJob >();
+		}
+		else
+		{
+			final BatchPipeline pipeline = new BatchPipeline( outputFolder, parameters, VIEW_KEY, logger );
+			pipeline.setStageThreads( parameters.getPipelineLoaders(), parameters.getPipelineTrackers(), parameters.getPipelineWriters() );
+			pipeline.setQueueSize( parameters.getPipelineQueueSize() );
+			pipeline.setManifest( manifest );
+			pipeline.setListener( listener );
+			if ( parameters.isSharedQueue() )
+			{
+				final BatchLeases leases = new BatchLeases( outputFolder, logger );
+				logger.log( "Sharing the batch with other processes, as " + leases.getOwner() + ".\n" );
+				pipeline.setLeases( leases );
+				try
+				{
+					jobs = pipeline.run( toProcess );
+				}
+				finally
+				{
+					leases.close();
+				}
+			}
+			else
+			{
+				jobs = pipeline.run( toProcess );
+			}
+		}
+		if ( null != listener )
+		{
+			listener.batchDone( jobs );
+		}
+
+		logger.log( "\nAll files processed -  " + new Date() + ".\n" );
+
+		final Calendar cal = Calendar.getInstance();
+		cal.setTime( new Date() );
+		final String logName = String.format( "log-%1$tY-%1$tm-%1$td-%1$tk-%1$tS-%1$tp.txt", cal );
+		final File logFile = new File( outputFolder, logName );
+		try
+		{
+			writeLog( logger.toString(), logFile );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not write log file: " + e.getMessage() + ".\n" );
+			e.printStackTrace();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Returns whether the specified path is an acquisition the batch can
+	 * process: a tif file, or a folder that contains tif files.
+	 *
+	 * @param path
+	 *            the path to test.
+	 * @return <code>true</code> if the path can be processed.
+	 */
+	public static boolean isAcquisition( final File path )
+	{
+		if ( path.isDirectory() )
+		{
+			final String[] subFolderContent = path.list( new FilenameFilter()
+			{
+				@Override
+				public boolean accept( final File dir, final String name )
+				{
+					if ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) ) { return true; }
+					return false;
+				}
+			} );
+			return null != subFolderContent && subFolderContent.length > 0;
+		}
+		final String name = path.getName();
+		if ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) ) { return true; }
+		return false;
+	}
+
+	private void writeLog( final String string, final File logFile ) throws IOException
+	{
+		final BufferedWriter writer = new BufferedWriter( new FileWriter( logFile ) );
+		writer.write( string );
+		writer.close();
+	}
+}
@@ -0,0 +1,426 @@
+package com.optofluidics.app;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.optofluidics.Main;
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.util.LogRecorder;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * A resident batch processor, that accepts batch jobs from other processes on
+ * a local socket. Keeping the JVM alive between batches saves its start-up,
+ * the loading of the parameter sets, and the warm-up of the detection and
+ * tracking code, which matters when many small folders are submitted.
+ * <p>
+ * Each connection sends one request on one line, as tab-separated tokens:
+ *
+ * <pre>
+ * batch	&lt;data folder&gt;[	output	&lt;folder&gt;][	parameters	&lt;name&gt;]
+ * shutdown
+ * </pre>
+ *
+ * Batches are run one at a time, in the order they are received, by the same
+ * {@link BatchProcessor} as the plugin. The server answers with the progress
+ * events of {@link JsonProgress}, followed by a <code>job</code> event with
+ * the exit code of the batch, the time it waited in the queue, the time it
+ * ran, and the total latency of the request, in seconds.
+ * <p>
+ * Parameter sets are loaded when first used, and loaded again when their
+ * properties file was modified since. The server only listens on the loopback
+ * interface.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchServer
+{
+
+	/**
+	 * The default port the server listens on.
+	 */
+	public static final int DEFAULT_PORT = 7460;
+
+	public static final String REQUEST_BATCH = "batch";
+
+	public static final String REQUEST_SHUTDOWN = "shutdown";
+
+	public static final String KEY_OUTPUT = "output";
+
+	public static final String KEY_PARAMETERS = "parameters";
+
+	private static final String CHARSET = "UTF-8";
+
+	private final int port;
+
+	private final Logger logger;
+
+	/**
+	 * Parameter sets already loaded, by name. The default set is stored under
+	 * the empty name.
+	 */
+	private final Map< String, OptofluidicsParameters > parameterSets = new HashMap< String, OptofluidicsParameters >();
+
+	/**
+	 * The modification date of the file of each parameter set when it was
+	 * loaded.
+	 */
+	private final Map< String, Long > parameterDates = new HashMap< String, Long >();
+
+	/**
+	 * Runs the batches one at a time.
+	 */
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+	private ServerSocket serverSocket;
+
+	private int nJobs = 0;
+
+	/**
+	 * Creates a server.
+	 *
+	 * @param port
+	 *            the port to listen on.
+	 * @param logger
+	 *            the logger to report requests and their latency to. The log
+	 *            of each batch is also sent to it.
+	 */
+	public BatchServer( final int port, final Logger logger )
+	{
+		this.port = port;
+		this.logger = logger;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Listens for requests until a shutdown request is received. Each
+	 * connection is served by its own thread, and the batches are queued.
+	 *
+	 * @throws IOException
+	 *             if the server socket cannot be opened.
+	 */
+	public void serve() throws IOException
+	{
+		serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+		logger.log( "Optofluidics batch server " + Main.OPTOFLUIDICS_LIB_VERSION + " listening on port " + port + " since " + new Date() + ".\n" );
+		try
+		{
+			while ( !serverSocket.isClosed() )
+			{
+				final Socket socket;
+				try
+				{
+					socket = serverSocket.accept();
+				}
+				catch ( final IOException e )
+				{
+					if ( serverSocket.isClosed() )
+					{
+						break;
+					}
+					throw e;
+				}
+				final Thread handler = new Thread( "Optofluidics batch server connection" )
+				{
+					@Override
+					public void run()
+					{
+						handle( socket );
+					}
+				};
+				handler.setDaemon( true );
+				handler.start();
+			}
+		}
+		finally
+		{
+			serverSocket.close();
+			worker.shutdown();
+		}
+		logger.log( "Optofluidics batch server stopped after " + nJobs + " batches.\n" );
+	}
+
+	/**
+	 * Stops accepting requests. Batches already queued are still run.
+	 */
+	public void shutdown()
+	{
+		try
+		{
+			if ( null != serverSocket )
+			{
+				serverSocket.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Already closed.
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void handle( final Socket socket )
+	{
+		try
+		{
+			final BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), CHARSET ) );
+			final PrintStream out = new PrintStream( socket.getOutputStream(), true, CHARSET );
+			try
+			{
+				final String line = reader.readLine();
+				if ( null == line ) { return; }
+				final String[] tokens = line.split( "\t" );
+				if ( tokens[ 0 ].equals( REQUEST_SHUTDOWN ) )
+				{
+					logger.log( "Shutdown requested.\n" );
+					jobEvent( out, Main.EXIT_OK, 0, 0 );
+					shutdown();
+				}
+				else if ( tokens[ 0 ].equals( REQUEST_BATCH ) && tokens.length >= 2 && tokens.length % 2 == 0 )
+				{
+					final Map< String, String > options = new HashMap< String, String >();
+					for ( int i = 2; i < tokens.length; i += 2 )
+					{
+						options.put( tokens[ i ], tokens[ i + 1 ] );
+					}
+					submit( new File( tokens[ 1 ] ), options, out );
+				}
+				else
+				{
+					logger.error( "Invalid request: " + line + "\n" );
+					jobEvent( out, Main.EXIT_USAGE, 0, 0 );
+				}
+			}
+			finally
+			{
+				out.close();
+				reader.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Error while serving a request: " + e.getMessage() + "\n" );
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch ( final IOException e )
+			{
+				// Already closed.
+			}
+		}
+	}
+
+	/**
+	 * Queues a batch and waits for it to complete, streaming its progress to
+	 * the client.
+	 */
+	private void submit( final File dataFolder, final Map< String, String > options, final PrintStream out )
+	{
+		final long received = System.currentTimeMillis();
+		final String output = options.get( KEY_OUTPUT );
+		final File outputFolder = null == output ? dataFolder : new File( output );
+		final String parameterSetName = options.get( KEY_PARAMETERS );
+
+		final long[] started = new long[ 1 ];
+		final Future< Integer > future;
+		try
+		{
+			future = worker.submit( new Callable< Integer >()
+			{
+				@Override
+				public Integer call() throws Exception
+				{
+					started[ 0 ] = System.currentTimeMillis();
+					return runBatch( dataFolder, outputFolder, parameterSetName, out );
+				}
+			} );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			logger.error( "Batch on " + dataFolder + " rejected: the server is shutting down.\n" );
+			jobEvent( out, Main.EXIT_ERROR, 0, 0 );
+			return;
+		}
+
+		int exit;
+		try
+		{
+			exit = future.get().intValue();
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Batch on " + dataFolder + " failed: " + e.getCause() + "\n" );
+			exit = Main.EXIT_ERROR;
+		}
+		catch ( final InterruptedException e )
+		{
+			future.cancel( true );
+			exit = Main.EXIT_ERROR;
+		}
+
+		final long done = System.currentTimeMillis();
+		final long start = started[ 0 ] == 0 ? done : started[ 0 ];
+		final double waitSeconds = ( start - received ) / 1000.;
+		final double runSeconds = ( done - start ) / 1000.;
+		logger.log( String.format( Locale.ROOT, "Batch on %s done with exit code %d: waited %.3f s, ran %.3f s, latency %.3f s.\n",
+				dataFolder, exit, waitSeconds, runSeconds, waitSeconds + runSeconds ) );
+		jobEvent( out, exit, waitSeconds, runSeconds );
+	}
+
+	/**
+	 * Runs one batch, on the worker thread.
+	 */
+	private int runBatch( final File dataFolder, final File outputFolder, final String parameterSetName, final PrintStream out )
+	{
+		nJobs++;
+		final LogRecorder recorder = new LogRecorder( logger );
+		recorder.log( "Optofluidics batch processor " + Main.OPTOFLUIDICS_LIB_VERSION + " started on " + new Date() + ".\n" );
+
+		final OptofluidicsParameters parameters = getParameters( parameterSetName, recorder );
+		final BatchProcessor processor = new BatchProcessor( recorder );
+		processor.setListener( new JsonProgress( out ) );
+		return Main.exitCode( processor.exec( dataFolder, outputFolder, parameters ) );
+	}
+
+	/**
+	 * Returns the specified parameter set, loading it if it was not loaded
+	 * yet or if its file changed since.
+	 */
+	private OptofluidicsParameters getParameters( final String parameterSetName, final Logger recorder )
+	{
+		final String key = null == parameterSetName ? "" : parameterSetName;
+		final OptofluidicsParameters cached = parameterSets.get( key );
+		if ( null != cached && parameterDates.get( key ).longValue() == cached.getFile().lastModified() )
+		{
+			recorder.log( "Using the parameters loaded from " + cached.getFile() + ".\n" );
+			return cached;
+		}
+
+		final OptofluidicsParameters parameters = new OptofluidicsParameters( recorder, parameterSetName );
+		parameterSets.put( key, parameters );
+		parameterDates.put( key, Long.valueOf( parameters.getFile().lastModified() ) );
+		return parameters;
+	}
+
+	private static void jobEvent( final PrintStream out, final int exit, final double waitSeconds, final double runSeconds )
+	{
+		out.println( String.format( Locale.ROOT, "{\"event\":\"job\",\"exit\":%d,\"wait_s\":%.3f,\"run_s\":%.3f,\"latency_s\":%.3f}",
+				exit, waitSeconds, runSeconds, waitSeconds + runSeconds ) );
+		out.flush();
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Sends a request to a running server, and copies its answer to the
+	 * specified stream.
+	 *
+	 * @param port
+	 *            the port the server listens on.
+	 * @param request
+	 *            the tokens of the request.
+	 * @param out
+	 *            the stream to copy the progress events to.
+	 * @return the exit code reported by the server, or {@link Main#EXIT_ERROR}
+	 *         if it did not report one.
+	 * @throws IOException
+	 *             if the server cannot be reached.
+	 */
+	public static int send( final int port, final List< String > request, final PrintStream out ) throws IOException
+	{
+		final StringBuilder line = new StringBuilder();
+		for ( final String token : request )
+		{
+			if ( line.length() > 0 )
+			{
+				line.append( '\t' );
+			}
+			line.append( token );
+		}
+
+		final Socket socket = new Socket( InetAddress.getLoopbackAddress(), port );
+		try
+		{
+			final PrintWriter writer = new PrintWriter( new OutputStreamWriter( socket.getOutputStream(), CHARSET ) );
+			writer.print( line.toString() );
+			writer.print( '\n' );
+			writer.flush();
+
+			int exit = Main.EXIT_ERROR;
+			final BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(), CHARSET ) );
+			String answer;
+			while ( ( answer = reader.readLine() ) != null )
+			{
+				out.println( answer );
+				out.flush();
+				final int exitCode = parseExitCode( answer );
+				if ( exitCode >= 0 )
+				{
+					exit = exitCode;
+				}
+			}
+			return exit;
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Returns the exit code of a <code>job</code> event, or -1 if the
+	 * specified line is another event.
+	 */
+	private static int parseExitCode( final String event )
+	{
+		if ( !event.startsWith( "{\"event\":\"job\"," ) ) { return -1; }
+		final String key = "\"exit\":";
+		final int start = event.indexOf( key );
+		if ( start < 0 ) { return -1; }
+		int end = start + key.length();
+		while ( end < event.length() && Character.isDigit( event.charAt( end ) ) )
+		{
+			end++;
+		}
+		try
+		{
+			return Integer.parseInt( event.substring( start + key.length(), end ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package com.optofluidics.app;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.optofluidics.Main;
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.util.LogRecorder;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Watches a folder where acquisitions are written, and processes each of them
+ * as soon as it is complete, so that results are available minutes after the
+ * acquisition ends.
+ * <p>
+ * New tif files and folders of tif files are detected with a
+ * {@link WatchService}. An acquisition is complete when a marker file with the
+ * same name and the marker extension is found next to it, such as
+ * <code>run01.tif.done</code> or <code>run01.done</code> for the folder
+ * <code>run01</code>, or when its size and date have not changed for the
+ * settle time. Complete acquisitions are processed together by a
+ * {@link BatchProcessor}, and the ones completed meanwhile are processed in
+ * the next round. Acquisitions already processed with the same parameters are
+ * skipped, as in a normal batch.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class BatchWatcher
+{
+
+	/**
+	 * The default time an acquisition must stay unchanged to be considered
+	 * complete, in seconds.
+	 */
+	public static final double DEFAULT_SETTLE_TIME = 30.;
+
+	/**
+	 * The default extension of the marker files.
+	 */
+	public static final String DEFAULT_MARKER_EXTENSION = ".done";
+
+	/**
+	 * How often pending acquisitions are checked, in milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 1000;
+
+	private final File dataFolder;
+
+	private final File outputFolder;
+
+	private final OptofluidicsParameters parameters;
+
+	private final Logger logger;
+
+	private BatchListener listener;
+
+	private double settleTime = DEFAULT_SETTLE_TIME;
+
+	private String markerExtension = DEFAULT_MARKER_EXTENSION;
+
+	/**
+	 * The acquisitions not complete yet.
+	 */
+	private final Map< File, Pending > pending = new LinkedHashMap< File, Pending >();
+
+	/**
+	 * The tif files written in the data folder by the conversion of tif
+	 * folders, that must not be processed again.
+	 */
+	private final Set< File > converted = new HashSet< File >();
+
+	/**
+	 * The fingerprints of the acquisitions already processed, so that late
+	 * events on them or on their marker do not process them again.
+	 */
+	private final Map< File, String > processed = new HashMap< File, String >();
+
+	/**
+	 * The sub-folders watched, by key.
+	 */
+	private final Map< WatchKey, File > folders = new HashMap< WatchKey, File >();
+
+	private WatchService watchService;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a watcher.
+	 *
+	 * @param dataFolder
+	 *            the folder acquisitions are written to.
+	 * @param outputFolder
+	 *            the folder to write results to.
+	 * @param parameters
+	 *            the parameters to use.
+	 * @param logger
+	 *            the logger to report to. The log of each round is also saved
+	 *            in the output folder.
+	 */
+	public BatchWatcher( final File dataFolder, final File outputFolder, final OptofluidicsParameters parameters, final Logger logger )
+	{
+		this.dataFolder = dataFolder;
+		this.outputFolder = outputFolder;
+		this.parameters = parameters;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the listener notified of the progress of each round.
+	 *
+	 * @param listener
+	 *            the listener, or <code>null</code>.
+	 */
+	public void setListener( final BatchListener listener )
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the time an acquisition must stay unchanged to be considered
+	 * complete. If 0 or less, acquisitions are only processed once their
+	 * marker file is found.
+	 *
+	 * @param settleTime
+	 *            the time, in seconds.
+	 */
+	public void setSettleTime( final double settleTime )
+	{
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * Sets the extension of the marker files, that signal that an acquisition
+	 * is complete.
+	 *
+	 * @param markerExtension
+	 *            the extension, including its dot.
+	 */
+	public void setMarkerExtension( final String markerExtension )
+	{
+		this.markerExtension = markerExtension;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Watches the data folder until {@link #stop()} is called. Acquisitions
+	 * already in the folder are processed first.
+	 *
+	 * @return <code>true</code> if all the rounds were processed without
+	 *         failure.
+	 * @throws IOException
+	 *             if the folder cannot be watched.
+	 */
+	public boolean watch() throws IOException
+	{
+		if ( !dataFolder.isDirectory() ) { throw new IOException( "Master folder " + dataFolder + " is not a folder." ); }
+		if ( !outputFolder.isDirectory() || !outputFolder.canWrite() ) { throw new IOException( "Output folder " + outputFolder + " cannot be written into." ); }
+
+		watchService = FileSystems.getDefault().newWatchService();
+		boolean ok = true;
+		try
+		{
+			dataFolder.toPath().register( watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE );
+			logger.log( "Optofluidics batch watcher " + Main.OPTOFLUIDICS_LIB_VERSION + " watching " + dataFolder + " since " + new Date() + ".\n" );
+			scan();
+
+			while ( !stopped )
+			{
+				final WatchKey key = watchService.poll( POLL_INTERVAL, TimeUnit.MILLISECONDS );
+				if ( null != key )
+				{
+					handle( key );
+				}
+
+				final List< File > ready = ready();
+				if ( !ready.isEmpty() )
+				{
+					ok = process( ready ) && ok;
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ClosedWatchServiceException e )
+		{
+			// Stopped.
+		}
+		finally
+		{
+			watchService.close();
+		}
+		logger.log( "Optofluidics batch watcher stopped on " + new Date() + ".\n" );
+		return ok;
+	}
+
+	/**
+	 * Stops watching. The round being processed, if any, is completed first.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Adds all the acquisitions of the data folder to the pending ones. Used
+	 * at start, and when watch events were lost.
+	 */
+	private void scan()
+	{
+		final File[] content = dataFolder.listFiles();
+		if ( null == content ) { return; }
+		for ( final File file : content )
+		{
+			changed( file );
+		}
+	}
+
+	private void handle( final WatchKey key )
+	{
+		final File folder = folders.get( key );
+		for ( final WatchEvent< ? > event : key.pollEvents() )
+		{
+			if ( event.kind() == OVERFLOW )
+			{
+				scan();
+				continue;
+			}
+			final Path name = ( Path ) event.context();
+			if ( null != folder )
+			{
+				// A file in an acquisition folder.
+				changed( folder );
+			}
+			else if ( event.kind() == ENTRY_DELETE )
+			{
+				pending.remove( new File( dataFolder, name.toString() ) );
+			}
+			else
+			{
+				changed( new File( dataFolder, name.toString() ) );
+			}
+		}
+		if ( !key.reset() )
+		{
+			// The folder was deleted or moved.
+			folders.remove( key );
+		}
+	}
+
+	/**
+	 * Records a change to a file of the data folder.
+	 */
+	private void changed( final File file )
+	{
+		final String name = file.getName();
+		if ( name.endsWith( markerExtension ) )
+		{
+			// The acquisition of a marker is checked when it is complete.
+			final File acquisition = new File( dataFolder, name.substring( 0, name.length() - markerExtension.length() ) );
+			if ( acquisition.exists() && !pending.containsKey( acquisition ) && !converted.contains( acquisition ) && !isProcessed( acquisition ) )
+			{
+				pending.put( acquisition, new Pending( acquisition ) );
+			}
+			return;
+		}
+
+		if ( converted.contains( file ) || isProcessed( file ) ) { return; }
+		if ( file.isDirectory() && !folders.containsValue( file ) )
+		{
+			try
+			{
+				folders.put( file.toPath().register( watchService, ENTRY_CREATE, ENTRY_MODIFY ), file );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not watch folder " + file + ": " + e.getMessage() + ". Relying on the settle time.\n" );
+			}
+		}
+
+		final Pending acquisition = pending.get( file );
+		if ( null == acquisition )
+		{
+			pending.put( file, new Pending( file ) );
+		}
+		else
+		{
+			acquisition.update();
+		}
+	}
+
+	/**
+	 * Returns whether the specified acquisition was processed and did not
+	 * change since. An acquisition written again is processed again.
+	 */
+	private boolean isProcessed( final File file )
+	{
+		final String fingerprint = processed.get( file );
+		if ( null == fingerprint ) { return false; }
+		if ( fingerprint.equals( BatchManifest.fingerprint( file ) ) ) { return true; }
+		processed.remove( file );
+		return false;
+	}
+
+	/**
+	 * Returns the pending acquisitions that are complete, and removes them
+	 * from the pending ones.
+	 */
+	private List< File > ready()
+	{
+		final List< File > ready = new ArrayList< File >();
+		final long now = System.currentTimeMillis();
+		for ( final Iterator< Pending > it = pending.values().iterator(); it.hasNext(); )
+		{
+			final Pending acquisition = it.next();
+			if ( !acquisition.file.exists() )
+			{
+				it.remove();
+				continue;
+			}
+			final boolean marked = new File( dataFolder, acquisition.file.getName() + markerExtension ).exists();
+			final boolean settled = settleTime > 0 && acquisition.update() && now - acquisition.lastChange >= 1000. * settleTime;
+			if ( marked || settled )
+			{
+				it.remove();
+				if ( BatchProcessor.isAcquisition( acquisition.file ) )
+				{
+					ready.add( acquisition.file );
+					processed.put( acquisition.file, BatchManifest.fingerprint( acquisition.file ) );
+				}
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Processes a round of complete acquisitions.
+	 */
+	private boolean process( final List< File > ready )
+	{
+		logger.log( "\nProcessing " + ready.size() + " complete acquisitions - " + new Date() + ".\n" );
+		final List< BatchJob > jobs = processRound( ready );
+
+		boolean ok = true;
+		for ( final BatchJob job : jobs )
+		{
+			ok = ok && !job.isFailed();
+			final File file = job.getFile();
+			if ( file.isDirectory() || !file.exists() )
+			{
+				// Converted folders are saved as a tif file named after them.
+				converted.add( new File( dataFolder, file.getName() + ".tif" ) );
+			}
+			folders.values().remove( file );
+		}
+		return ok;
+	}
+
+	/**
+	 * Runs the batch processor on a round of complete acquisitions.
+	 *
+	 * @param ready
+	 *            the acquisitions.
+	 * @return the jobs processed.
+	 */
+	List< BatchJob > processRound( final List< File > ready )
+	{
+		final BatchProcessor processor = new BatchProcessor( new LogRecorder( logger ) );
+		processor.setListener( listener );
+		return processor.process( ready, outputFolder, parameters );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * An acquisition that may still be written.
+	 */
+	private static final class Pending
+	{
+		private final File file;
+
+		private String fingerprint;
+
+		private long lastChange;
+
+		private Pending( final File file )
+		{
+			this.file = file;
+			this.fingerprint = BatchManifest.fingerprint( file );
+			this.lastChange = System.currentTimeMillis();
+		}
+
+		/**
+		 * Takes the fingerprint of the acquisition again.
+		 *
+		 * @return <code>true</code> if it did not change.
+		 */
+		private boolean update()
+		{
+			final String current = BatchManifest.fingerprint( file );
+			if ( current.equals( fingerprint ) ) { return true; }
+			fingerprint = current;
+			lastChange = System.currentTimeMillis();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.optofluidics.app;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reports the progress of a batch as JSON events, one object per line, so
+ * that it can be monitored by a scheduler. Events are:
+ * <ul>
+ * <li><code>start</code>: the number of files to process and skipped;
+ * <li><code>started</code>: a file starts loading;
+ * <li><code>stage</code>: a stage of a file completed, with its duration and
+ * the number of frames processed per second;
+ * <li><code>file</code>: a file is done or failed, with the overall throughput
+ * and the estimated time to finish the batch;
+ * <li><code>end</code>: the batch is done.
+ * </ul>
+ * Durations are in seconds.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class JsonProgress implements BatchListener
+{
+
+	private final PrintStream out;
+
+	private long start;
+
+	private int total;
+
+	private int nDone;
+
+	private int nFailed;
+
+	private long nFrames;
+
+	public JsonProgress( final PrintStream out )
+	{
+		this.out = out;
+	}
+
+	@Override
+	public synchronized void batchStarted( final List< File > toProcess, final int nSkipped )
+	{
+		// Listeners can be reused across batches, as by the watch mode.
+		start = System.currentTimeMillis();
+		total = toProcess.size();
+		nDone = 0;
+		nFailed = 0;
+		nFrames = 0;
+		event( "start" ).field( "files", total ).field( "skipped", nSkipped ).end();
+	}
+
+	@Override
+	public synchronized void jobStarted( final BatchJob job )
+	{
+		event( "started" ).field( "file", job.getFile().getName() ).end();
+	}
+
+	@Override
+	public synchronized void stageDone( final BatchJob job, final String stage, final double seconds )
+	{
+		event( "stage" )
+				.field( "file", job.getFile().getName() )
+				.field( "stage", stage )
+				.field( "seconds", seconds )
+				.field( "frames", job.getNFrames() )
+				.field( "frames_per_s", job.getNFrames() / seconds )
+				.end();
+	}
+
+	@Override
+	public synchronized void jobDone( final BatchJob job )
+	{
+		nDone++;
+		if ( job.isFailed() )
+		{
+			nFailed++;
+		}
+		else
+		{
+			nFrames += job.getNFrames();
+		}
+		final double elapsed = elapsed();
+		event( "file" )
+				.field( "file", job.getFile().getName() )
+				.field( "status", job.isFailed() ? "failed" : "done" )
+				.field( "done", nDone )
+				.field( "failed", nFailed )
+				.field( "total", total )
+				.field( "frames_per_s", nFrames / elapsed )
+				.field( "eta_s", elapsed / nDone * ( total - nDone ) )
+				.end();
+	}
+
+	@Override
+	public synchronized void batchDone( final List< BatchJob > jobs )
+	{
+		final double elapsed = elapsed();
+		event( "end" )
+				.field( "files", total )
+				.field( "failed", nFailed )
+				.field( "seconds", elapsed )
+				.field( "frames_per_s", nFrames / elapsed )
+				.end();
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private double elapsed()
+	{
+		return ( System.currentTimeMillis() - start ) / 1000.;
+	}
+
+	private Event event( final String name )
+	{
+		return new Event( name );
+	}
+
+	/**
+	 * Builds one JSON object, and prints it on one line.
+	 */
+	private final class Event
+	{
+		private final StringBuilder str = new StringBuilder( "{" );
+
+		private Event( final String name )
+		{
+			key( "event" );
+			string( name );
+		}
+
+		private Event field( final String key, final String value )
+		{
+			str.append( ',' );
+			key( key );
+			string( value );
+			return this;
+		}
+
+		private Event field( final String key, final long value )
+		{
+			str.append( ',' );
+			key( key );
+			str.append( value );
+			return this;
+		}
+
+		private Event field( final String key, final double value )
+		{
+			str.append( ',' );
+			key( key );
+			if ( Double.isNaN( value ) || Double.isInfinite( value ) )
+			{
+				str.append( "null" );
+			}
+			else
+			{
+				str.append( String.format( Locale.ROOT, "%.3f", value ) );
+			}
+			return this;
+		}
+
+		private void end()
+		{
+			str.append( '}' );
+			out.println( str.toString() );
+			out.flush();
+		}
+
+		private void key( final String key )
+		{
+			string( key );
+			str.append( ':' );
+		}
+
+		private void string( final String value )
+		{
+			str.append( '"' );
+			for ( int i = 0; i < value.length(); i++ )
+			{
+				final char c = value.charAt( i );
+				switch ( c )
+				{
+				case '"':
+					str.append( "\\\"" );
+					break;
+				case '\\':
+					str.append( "\\\\" );
+					break;
+				case '\n':
+					str.append( "\\n" );
+					break;
+				case '\r':
+					str.append( "\\r" );
+					break;
+				case '\t':
+					str.append( "\\t" );
+					break;
+				default:
+					if ( c < 0x20 )
+					{
+						str.append( String.format( "\\u%04x", ( int ) c ) );
+					}
+					else
+					{
+						str.append( c );
+					}
+				}
+			}
+			str.append( '"' );
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.optofluidics.app;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+/**
+ * Admits batch jobs while their projected memory footprint fits in the heap.
+ * The footprint of an acquisition is estimated from its tif header before it
+ * is opened, so that several acquisitions can be processed at once without
+ * running out of memory.
+ * <p>
+ * A job larger than the whole budget is still admitted when no other job is
+ * running, so that the batch cannot stall.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class MemoryBudget
+{
+
+	/**
+	 * Memory needed per job, as a multiple of its pixel data: the image, plus
+	 * the detection buffers and the model built from it.
+	 */
+	private static final double MODEL_OVERHEAD = 2.;
+
+	/**
+	 * Fraction of the free heap jobs can use. The rest is left to the
+	 * application and to the garbage collector.
+	 */
+	private static final double HEAP_FRACTION = 0.8;
+
+	private final long budget;
+
+	private long used = 0;
+
+	private int nJobs = 0;
+
+	/**
+	 * Creates a budget of the specified size.
+	 *
+	 * @param budget
+	 *            the number of bytes jobs can use together.
+	 */
+	public MemoryBudget( final long budget )
+	{
+		this.budget = Math.max( 1, budget );
+	}
+
+	/**
+	 * Creates a budget sized from the heap currently free.
+	 */
+	public MemoryBudget()
+	{
+		this( ( long ) ( HEAP_FRACTION * freeHeap() ) );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Waits until a job of the specified footprint fits in the budget, and
+	 * reserves it.
+	 *
+	 * @param footprint
+	 *            the projected footprint of the job, in bytes.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire( final long footprint ) throws InterruptedException
+	{
+		while ( nJobs > 0 && used + footprint > budget )
+		{
+			wait();
+		}
+		used += footprint;
+		nJobs++;
+	}
+
+	/**
+	 * Releases the footprint of a job that is done.
+	 *
+	 * @param footprint
+	 *            the footprint the job acquired, in bytes.
+	 */
+	public synchronized void release( final long footprint )
+	{
+		used -= footprint;
+		nJobs--;
+		notifyAll();
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns the heap that can still be allocated, in bytes.
+	 *
+	 * @return the free heap.
+	 */
+	public static long freeHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+	}
+
+	/**
+	 * Estimates the memory needed to process the specified acquisition, from
+	 * its dimensions and bit depth as read in the tif header. For a folder,
+	 * the header of its first tif file is read, and all the files are assumed
+	 * to have the same size. If the header cannot be read, the size on disk
+	 * is used instead.
+	 *
+	 * @param file
+	 *            the tif file or the folder of tif files.
+	 * @return the projected footprint, in bytes.
+	 */
+	public static long estimate( final File file )
+	{
+		long bytes;
+		if ( file.isDirectory() )
+		{
+			final File[] tifs = listTifs( file );
+			bytes = tifs.length == 0 ? 0 : tifs.length * pixelBytes( tifs[ 0 ] );
+		}
+		else
+		{
+			bytes = pixelBytes( file );
+		}
+		return ( long ) ( MODEL_OVERHEAD * bytes );
+	}
+
+	/**
+	 * Returns the size of the pixel data of a tif file.
+	 */
+	private static long pixelBytes( final File file )
+	{
+		try
+		{
+			final FileInfo[] infos = new TiffDecoder( file.getParent() + File.separator, file.getName() ).getTiffInfo();
+			if ( null != infos && infos.length > 0 )
+			{
+				final FileInfo info = infos[ 0 ];
+				// ImageJ stacks have a single IFD describing all the planes.
+				final long nPlanes = infos.length == 1 ? Math.max( 1, info.nImages ) : infos.length;
+				return nPlanes * info.width * info.height * info.getBytesPerPixel();
+			}
+		}
+		catch ( final IOException e )
+		{
+			// Fall back on the file size.
+		}
+		return file.length();
+	}
+
+	private static File[] listTifs( final File folder )
+	{
+		final File[] tifs = folder.listFiles( new FilenameFilter()
+		{
+			@Override
+			public boolean accept( final File dir, final String name )
+			{
+				return name.endsWith( ".tif" ) || name.endsWith( ".tiff" );
+			}
+		} );
+		return null == tifs ? new File[ 0 ] : tifs;
+	}
+}
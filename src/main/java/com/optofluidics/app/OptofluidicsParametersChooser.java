@@ -18,6 +18,7 @@ import java.util.Vector;
 
 import javax.swing.SwingUtilities;
 
+import com.optofluidics.Icons;
 import com.optofluidics.Main;
 import com.optofluidics.util.OptofluidicsUtil;
 
@@ -42,7 +43,7 @@ public class OptofluidicsParametersChooser
 	{
 		OptofluidicsUtil.setSystemLookAndFeel();
 
-		dialog.addImage( Main.OPTOFLUIDICS_ORANGE_LOGO );
+		dialog.addImage( Icons.OPTOFLUIDICS_ORANGE_LOGO );
 
 		final String[] availableParameters = OFAppUtils.getParameterSetList();
 		if ( availableParameters != null && availableParameters.length > 0 )
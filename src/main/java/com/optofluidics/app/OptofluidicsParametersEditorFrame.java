@@ -27,8 +27,10 @@ import javax.swing.border.LineBorder;
 
 import org.eclipse.wb.swing.FocusTraversalOnArray;
 
+import com.optofluidics.Icons;
 import com.optofluidics.Main;
 import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.OptofluidicsParameters.SegmenterChoice;
 import com.optofluidics.OptofluidicsParameters.TrackerChoice;
 import com.optofluidics.plugin.StillSubtractor_;
 import com.optofluidics.plugin.StillSubtractor_.Method;
@@ -78,6 +80,8 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 
 	private JFormattedTextField tftSmoothingWindow;
 
+	private JComboBox comboBoxSegmenter;
+
 	private OptofluidicsParameters parameters;
 
 	private JTextArea commentsTextArea;
@@ -94,7 +98,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 	public OptofluidicsParametersEditorFrame()
 	{
 		OptofluidicsUtil.setSystemLookAndFeel();
-		setIconImage( Main.OPTOFLUIDICS_LARGE_ICON.getImage() );
+		setIconImage( Icons.OPTOFLUIDICS_LARGE_ICON.getImage() );
 		setTitle( "Optofluidics parameters editor " + Main.OPTOFLUIDICS_LIB_VERSION );
 		setupGUI();
 	}
@@ -126,6 +130,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		parameters.setSmoothingWindow( ( ( Number ) tftSmoothingWindow.getValue() ).intValue() );
 		parameters.setVelocityThreshold( ( ( Number ) tftVelocityThreshold.getValue() ).doubleValue() );
 		parameters.setMinConsecutiveFrames( ( ( Number ) tftMinConsFrames.getValue() ).intValue() );
+		parameters.setSegmenterChoice( ( SegmenterChoice ) comboBoxSegmenter.getSelectedItem() );
 
 		// Write this.
 		parameters.write();
@@ -161,6 +166,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		tftSmoothingWindow.setValue( Integer.valueOf( parameters.getSmoothingWindow() ) );
 		tftVelocityThreshold.setValue( Double.valueOf( parameters.getVelocityThreshold() ) );
 		tftMinConsFrames.setValue( Integer.valueOf( parameters.getMinConsecutiveFrames() ) );
+		comboBoxSegmenter.setSelectedItem( parameters.getSegmenterChoice() );
 
 	}
 
@@ -169,7 +175,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		final PropertyChangeListener positiveChecker = new PositiveCheckPropertyListener();
 
 		setDefaultCloseOperation( JFrame.DISPOSE_ON_CLOSE );
-		setBounds( 100, 100, 597, 431 );
+		setBounds( 100, 100, 597, 456 );
 		setResizable( false );
 
 		final JPanel mainPanel = new JPanel();
@@ -179,7 +185,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		setContentPane( mainPanel );
 
 		final JButton btnReloadFromFile = new JButton( "Reload from file", RELOAD_ICON );
-		btnReloadFromFile.setBounds( 11, 359, 127, 32 );
+		btnReloadFromFile.setBounds( 11, 384, 127, 32 );
 		btnReloadFromFile.addActionListener( new ActionListener()
 		{
 			@Override
@@ -190,7 +196,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		} );
 
 		final JButton btnSaveToFile = new JButton( "Save to file", SAVE_ICON );
-		btnSaveToFile.setBounds( 466, 359, 107, 32 );
+		btnSaveToFile.setBounds( 466, 384, 107, 32 );
 		btnSaveToFile.addActionListener( new ActionListener()
 		{
 			@Override
@@ -201,7 +207,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		} );
 
 		final JButton btnCancel = new JButton( "Cancel", CANCEL_ICON );
-		btnCancel.setBounds( 361, 359, 95, 32 );
+		btnCancel.setBounds( 361, 384, 95, 32 );
 		btnCancel.addActionListener( new ActionListener()
 		{
 			@Override
@@ -366,7 +372,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 
 		final JPanel panelVelocityAnalysis = new JPanel();
 		panelVelocityAnalysis.setBorder( new LineBorder( new Color( 0, 0, 0 ) ) );
-		panelVelocityAnalysis.setBounds( 11, 240, 276, 109 );
+		panelVelocityAnalysis.setBounds( 11, 240, 276, 134 );
 		mainPanel.add( panelVelocityAnalysis );
 		panelVelocityAnalysis.setLayout( null );
 
@@ -408,6 +414,16 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 		tftSmoothingWindow.setBounds( 126, 30, 60, 16 );
 		panelVelocityAnalysis.add( tftSmoothingWindow );
 
+		final JLabel lblSegmenter = new JLabel( "Segmenter:" );
+		lblSegmenter.setFont( MAIN_FONT );
+		lblSegmenter.setBounds( 6, 108, 106, 14 );
+		panelVelocityAnalysis.add( lblSegmenter );
+
+		comboBoxSegmenter = new JComboBox( SegmenterChoice.values() );
+		comboBoxSegmenter.setFont( MAIN_FONT );
+		comboBoxSegmenter.setBounds( 100, 101, 160, 26 );
+		panelVelocityAnalysis.add( comboBoxSegmenter );
+
 		/*
 		 * Parameters and comments.
 		 */
@@ -456,7 +472,7 @@ public class OptofluidicsParametersEditorFrame extends JFrame implements PlugIn
 				comboBoxStillSub, ftfParticleSize, ftfQualityThreshold,
 				comboBoxTracker, tftInitialRadius, tftSearchRadius, tftMaxFrameGap,
 				tftFilterNSpots, tftFilterTrackDisplacement,
-				tftSmoothingWindow, tftVelocityThreshold, tftMinConsFrames,
+				tftSmoothingWindow, tftVelocityThreshold, tftMinConsFrames, comboBoxSegmenter,
 				btnReloadFromFile, btnCancel, btnSaveToFile } ) );
 	}
 
@@ -17,6 +17,7 @@ import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
 import fiji.plugin.trackmate.features.track.TrackSpeedStatisticsAnalyzer;
 import ij.ImagePlus;
 
+import java.io.IOException;
 import java.util.Map;
 
 import net.imglib2.algorithm.Algorithm;
@@ -24,12 +25,18 @@ import net.imglib2.algorithm.MultiThreaded;
 
 import com.optofluidics.OptofluidicsParameters;
 import com.optofluidics.OptofluidicsParameters.TrackerChoice;
+import com.optofluidics.app.BatchCheckpoint.Stage;
 import com.optofluidics.plugin.StillSubtractor_;
+import com.optofluidics.plugin.StillSubtractor_.Method;
+import com.optofluidics.trackmate.features.TrackIndex;
 import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
 import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
 import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+import com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackMsdAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackSpotIntensityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer;
 
 public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 {
@@ -50,6 +57,8 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 
 	private String errorMessage;
 
+	private BatchCheckpoint checkpoint;
+
 	public OptofluidicsTrackerProcess( final ImagePlus imp, final OptofluidicsParameters parameters, final Logger logger )
 	{
 		this.imp = imp;
@@ -64,22 +73,77 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 	{
 		logger.log( "Source image " + imp.getTitle() + ", " + imp.getWidth() + 'x' + imp.getHeight() + " with " + imp.getNFrames() + " frames.\n" );
 
+		/*
+		 * 0. Resume from the last checkpoint.
+		 */
+
+		Stage done = Stage.NONE;
+		Model restored = null;
+		if ( null != checkpoint )
+		{
+			done = checkpoint.getStage();
+			if ( done.isDone( Stage.DETECTION ) )
+			{
+				try
+				{
+					restored = checkpoint.readModel();
+					logger.log( "Resuming after the " + done.name().toLowerCase() + " stage.\n" );
+				}
+				catch ( final IOException e )
+				{
+					logger.error( "Could not read checkpoint: " + e.getMessage() + ". Starting over.\n" );
+					checkpoint.clear();
+					done = Stage.NONE;
+				}
+			}
+		}
+
 		/*
 		 * 1. Still defects subtraction.
 		 */
 
-		logger.log( "Still defects subtraction with " + parameters.getStillSubtractionMethod() + " method.\n" );
-		final long sStart = System.currentTimeMillis();
-		StillSubtractor_.subtract( imp, parameters.getStillSubtractionMethod() );
-		final long sEnd = System.currentTimeMillis();
-		logger.log( "Still defects subtraction done in " + ( sEnd - sStart ) / 1000 + " s.\n" );
+		if ( done == Stage.SUBTRACTION )
+		{
+			try
+			{
+				checkpoint.restoreSubtraction( imp );
+				logger.log( "Restored the subtracted image from checkpoint.\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not read checkpoint: " + e.getMessage() + ". Starting over.\n" );
+				checkpoint.clear();
+				done = Stage.NONE;
+			}
+		}
+		if ( !done.isDone( Stage.SUBTRACTION ) )
+		{
+			logger.log( "Still defects subtraction with " + parameters.getStillSubtractionMethod() + " method.\n" );
+			final long sStart = System.currentTimeMillis();
+			StillSubtractor_.subtract( imp, parameters.getStillSubtractionMethod() );
+			final long sEnd = System.currentTimeMillis();
+			logger.log( "Still defects subtraction done in " + ( sEnd - sStart ) / 1000 + " s.\n" );
+			// Without subtraction, the image is the input: nothing to save.
+			if ( parameters.getStillSubtractionMethod() != Method.NONE )
+			{
+				saveCheckpoint( Stage.SUBTRACTION );
+			}
+		}
 
 		/*
 		 * 2. Instantiate main classes.
 		 */
 
 		settings = createSettings( imp );
-		model = createModel();
+		if ( null == restored )
+		{
+			model = createModel();
+		}
+		else
+		{
+			model = restored;
+			TrackIndex.get( model );
+		}
 		trackmate = createTrackMate();
 
 		model.setLogger( logger );
@@ -101,6 +165,28 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 		detectionSettings.put( DetectorKeys.KEY_THRESHOLD, parameters.getQualityThreshold() );
 		settings.detectorSettings = detectionSettings;
 
+		final TrackerChoice trackerChoice = parameters.getTrackerChoice();
+		settings.trackerFactory = trackerChoice.getFactory();
+		settings.trackerSettings = trackerChoice.getTrackerSettingsFrom( parameters );
+
+		if ( done.isDone( Stage.TRACKING ) ) { return true; }
+
+		if ( !done.isDone( Stage.DETECTION ) )
+		{
+			if ( !detect() ) { return false; }
+			saveCheckpoint( Stage.DETECTION );
+		}
+
+		if ( !track() ) { return false; }
+		saveCheckpoint( Stage.TRACKING );
+		return true;
+	}
+
+	/**
+	 * Detects spots and computes their features.
+	 */
+	private boolean detect()
+	{
 		final long detectionTStart = System.currentTimeMillis();
 		final boolean detectionOK = trackmate.execDetection();
 		if ( !detectionOK )
@@ -118,15 +204,18 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 
 		trackmate.computeSpotFeatures( true );
 		model.getSpots().setVisible( true );
+		return true;
+	}
 
+	/**
+	 * Builds tracks, computes their features and filters them.
+	 */
+	private boolean track()
+	{
 		/*
 		 * 5. Tracking.
 		 */
 
-		final TrackerChoice trackerChoice = parameters.getTrackerChoice();
-		settings.trackerFactory = trackerChoice.getFactory();
-		settings.trackerSettings = trackerChoice.getTrackerSettingsFrom( parameters );
-
 		final long trackingTStart = System.currentTimeMillis();
 		final boolean trackingOK = trackmate.execTracking();
 		if ( !trackingOK )
@@ -156,6 +245,46 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 		return true;
 	}
 
+	/**
+	 * Saves the progress of this process at the end of a stage. A checkpoint
+	 * that cannot be saved is not an error: the process goes on, and will
+	 * start over if interrupted.
+	 *
+	 * @param done
+	 *            the stage just completed.
+	 */
+	private void saveCheckpoint( final Stage done )
+	{
+		if ( null == checkpoint ) { return; }
+		try
+		{
+			if ( done == Stage.SUBTRACTION )
+			{
+				checkpoint.saveSubtraction( imp );
+			}
+			else
+			{
+				checkpoint.saveModel( done, model );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not save checkpoint after the " + done.name().toLowerCase() + " stage: " + e.getMessage() + ".\n" );
+		}
+	}
+
+	/**
+	 * Sets the checkpoint to resume from and to save progress to.
+	 *
+	 * @param checkpoint
+	 *            the checkpoint, already loaded, or <code>null</code> not to
+	 *            use checkpoints.
+	 */
+	public void setCheckpoint( final BatchCheckpoint checkpoint )
+	{
+		this.checkpoint = checkpoint;
+	}
+
 	public Model getModel()
 	{
 		return model;
@@ -176,7 +305,11 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 
 	protected Model createModel()
 	{
-		return new Model();
+		final Model model = new Model();
+		// Register the track index first, so that it is up to date for
+		// listeners that recompute features.
+		TrackIndex.get( model );
+		return model;
 	}
 
 	/**
@@ -215,8 +348,11 @@ public class OptofluidicsTrackerProcess implements MultiThreaded, Algorithm
 		settings.addTrackAnalyzer( new TrackSpeedStatisticsAnalyzer() );
 		settings.addTrackAnalyzer( new TrackDurationAnalyzer() );
 		settings.addTrackAnalyzer( new TrackLinearVelocityAnalyzer() );
-		settings.addTrackAnalyzer( new TrackSpotIntensityAnalyzer() );
+		settings.addTrackAnalyzer( new TrackMsdAnalyzer() );
+		settings.addTrackAnalyzer( new TrackVelocitySpectrumAnalyzer() );
+		settings.addTrackAnalyzer( new TrackSpotIntensityAnalyzer( parameters.getTrackIntensityFeatures() ) );
 		settings.addTrackAnalyzer( new TrackPausingAnalyzer() );
+		settings.addTrackAnalyzer( new TrackSegmentAnalyzer() );
 
 		/*
 		 * Track filtering.
@@ -6,6 +6,11 @@ import ij.measure.Calibration;
 import ij.plugin.FolderOpener;
 
 import java.io.File;
+import java.io.IOException;
+
+import com.optofluidics.io.MappedTiffStack;
+import com.optofluidics.io.TiffFolderReader;
+import com.optofluidics.plugin.ColumnProjector_;
 
 import fiji.plugin.trackmate.Logger;
 
@@ -17,12 +22,42 @@ public class TiffFolderOpenerConverter
 
 	private final File outputFolder;
 
+	private boolean columnSum = false;
+
+	private boolean virtual = false;
+
 	public TiffFolderOpenerConverter( final File outputFolder, final Logger logger )
 	{
 		this.outputFolder = outputFolder;
 		this.logger = logger;
 	}
 
+	/**
+	 * Sets whether uncompressed 16-bit tif files are opened as read-only
+	 * stacks backed by the mapped file. Otherwise, their planes are copied
+	 * from the mapped file to the heap, so that they can be modified.
+	 *
+	 * @param virtual
+	 *            whether to open tif files as virtual stacks.
+	 */
+	public void setVirtual( final boolean virtual )
+	{
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Sets whether frames read from tif folders are reduced to the sum of
+	 * their columns, as with the {@link ColumnProjector_} plugin. Files are
+	 * read as they are.
+	 *
+	 * @param columnSum
+	 *            whether to sum the columns of tif folders.
+	 */
+	public void setColumnSum( final boolean columnSum )
+	{
+		this.columnSum = columnSum;
+	}
+
 	public ImagePlus open( final File file, final boolean convertAndSave )
 	{
 		if ( file.isDirectory() )
@@ -78,7 +113,24 @@ public class TiffFolderOpenerConverter
 
 	private ImagePlus readFile( final File sourceFile )
 	{
-		final ImagePlus imp = IJ.openImage( sourceFile.getAbsolutePath() );
+		ImagePlus imp = null;
+		try
+		{
+			final MappedTiffStack stack = MappedTiffStack.open( sourceFile );
+			if ( null != stack )
+			{
+				imp = stack.createImage( virtual );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not map " + sourceFile + ": " + e.getMessage() + ". Using the ImageJ opener.\n" );
+		}
+		if ( null == imp )
+		{
+			// Compressed, other bit depths, or scattered planes.
+			imp = IJ.openImage( sourceFile.getAbsolutePath() );
+		}
 		if ( null == imp )
 		{
 			logger.error( "Could not load from " + sourceFile + ".\n" );
@@ -90,7 +142,23 @@ public class TiffFolderOpenerConverter
 
 	private ImagePlus readFolder( final File sourceFolder )
 	{
-		final ImagePlus imp = FolderOpener.open( sourceFolder.getAbsolutePath() );
+		ImagePlus imp;
+		try
+		{
+			final TiffFolderReader reader = new TiffFolderReader( sourceFolder );
+			reader.setColumnSum( columnSum );
+			imp = reader.read();
+		}
+		catch ( final IOException e )
+		{
+			// Stacks per file, mixed sizes or unknown formats.
+			logger.log( e.getMessage() + " Using the ImageJ folder opener.\n" );
+			imp = FolderOpener.open( sourceFolder.getAbsolutePath() );
+			if ( null != imp && columnSum )
+			{
+				imp = ColumnProjector_.toColumnSum( imp );
+			}
+		}
 		if ( null == imp )
 		{
 			logger.error( "Could not load from " + sourceFolder + ".\n" );
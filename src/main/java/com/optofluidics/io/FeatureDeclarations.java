@@ -0,0 +1,61 @@
+package com.optofluidics.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+
+/**
+ * The feature declarations of one of the spot, edge or track feature
+ * categories, as read from a file, before they are declared in the feature
+ * model of a new model.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+final class FeatureDeclarations
+{
+
+	final List< String > features = new ArrayList< String >();
+
+	final Map< String, String > names = new HashMap< String, String >();
+
+	final Map< String, String > shortNames = new HashMap< String, String >();
+
+	final Map< String, Dimension > dimensions = new HashMap< String, Dimension >();
+
+	final Map< String, Boolean > isInt = new HashMap< String, Boolean >();
+
+	/**
+	 * Adds a feature declaration.
+	 *
+	 * @param dimension
+	 *            the dimension name. If <code>null</code>,
+	 *            {@link Dimension#NONE} is used.
+	 */
+	void add( final String feature, final String name, final String shortName, final String dimension, final boolean isIntFeature )
+	{
+		features.add( feature );
+		names.put( feature, name );
+		shortNames.put( feature, shortName );
+		dimensions.put( feature, null == dimension ? Dimension.NONE : Dimension.valueOf( dimension ) );
+		isInt.put( feature, Boolean.valueOf( isIntFeature ) );
+	}
+
+	void declareSpotFeatures( final FeatureModel fm )
+	{
+		fm.declareSpotFeatures( features, names, shortNames, dimensions, isInt );
+	}
+
+	void declareEdgeFeatures( final FeatureModel fm )
+	{
+		fm.declareEdgeFeatures( features, names, shortNames, dimensions, isInt );
+	}
+
+	void declareTrackFeatures( final FeatureModel fm )
+	{
+		fm.declareTrackFeatures( features, names, shortNames, dimensions, isInt );
+	}
+}
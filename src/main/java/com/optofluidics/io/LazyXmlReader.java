@@ -0,0 +1,771 @@
+package com.optofluidics.io;
+
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.EDGE_COST;
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.SPOT_SOURCE_ID;
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.SPOT_TARGET_ID;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_TEND_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_TSTART_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_XEND_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_XSTART_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_YEND_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_YSTART_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_ZEND_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.CROP_ZSTART_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.DETECTOR_SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ISINT_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTER_VALUE_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FILENAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_FOLDER_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_HEIGHT_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_NFRAMES_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_NSLICES_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_PIXEL_HEIGHT_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_PIXEL_WIDTH_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_TIME_INTERVAL_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_VOXEL_DEPTH_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.IMAGE_WIDTH_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.INITIAL_SPOT_FILTER_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.LOG_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACKER_SETTINGS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FILTER_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Element;
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import com.optofluidics.OptofluidicsParameters.TrackerChoice;
+import com.optofluidics.trackmate.features.TrackIndex;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import fiji.plugin.trackmate.tracking.SpotTrackerFactory;
+import fiji.plugin.trackmate.tracking.TrackerKeys;
+
+/**
+ * Reads TrackMate XML files, plain or gzip-compressed, in two stages.
+ * <p>
+ * Opening the reader streams through the file once, keeping only the feature
+ * declarations, the track list with the track features, the settings and the
+ * log. Spots are skipped, and of the edges only the IDs of the spots they link
+ * are kept. Spot and edge data are then loaded on demand, for some tracks with
+ * {@link #readTracks(Collection)} or for the whole model with
+ * {@link #readModel()}. Contrary to TrackMate's reader, the document is never
+ * built in memory.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class LazyXmlReader
+{
+
+	private final File file;
+
+	private String spaceUnits;
+
+	private String timeUnits;
+
+	private final FeatureDeclarations spotDeclarations = new FeatureDeclarations();
+
+	private final FeatureDeclarations edgeDeclarations = new FeatureDeclarations();
+
+	private final FeatureDeclarations trackDeclarations = new FeatureDeclarations();
+
+	/**
+	 * The tracks in file order.
+	 */
+	private final Map< Integer, TrackEntry > tracks = new LinkedHashMap< Integer, TrackEntry >();
+
+	/**
+	 * The IDs of the visible tracks, or <code>null</code> if the file does not
+	 * say, in which case all tracks are visible.
+	 */
+	private Set< Integer > visibleTrackIDs;
+
+	private Element settingsElement;
+
+	private String log;
+
+	/**
+	 * Opens the specified file and reads its feature declarations, track list,
+	 * settings and log.
+	 *
+	 * @param file
+	 *            the XML file to read, possibly compressed with gzip.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a TrackMate file.
+	 */
+	public LazyXmlReader( final File file ) throws IOException
+	{
+		this.file = file;
+		final InputStream in = TrackMateXml.open( file );
+		try
+		{
+			final XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader( in );
+			try
+			{
+				readIndex( xml );
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( "Could not parse XML file " + file + ": " + e.getMessage() );
+		}
+		finally
+		{
+			in.close();
+		}
+		if ( null == spaceUnits ) { throw new IOException( "File " + file + " does not contain a TrackMate model." ); }
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the IDs of all the tracks in the file, in file order.
+	 *
+	 * @return an unmodifiable set of track IDs.
+	 */
+	public Set< Integer > getTrackIDs()
+	{
+		return Collections.unmodifiableSet( tracks.keySet() );
+	}
+
+	/**
+	 * Returns the IDs of the visible tracks.
+	 *
+	 * @return an unmodifiable set of track IDs.
+	 */
+	public Set< Integer > getVisibleTrackIDs()
+	{
+		if ( null == visibleTrackIDs ) { return getTrackIDs(); }
+		return Collections.unmodifiableSet( visibleTrackIDs );
+	}
+
+	/**
+	 * Returns the name of the specified track.
+	 *
+	 * @param trackID
+	 *            the track ID.
+	 * @return the track name, or <code>null</code> if there is no such track.
+	 */
+	public String getTrackName( final Integer trackID )
+	{
+		final TrackEntry track = tracks.get( trackID );
+		return null == track ? null : track.name;
+	}
+
+	/**
+	 * Returns the value of a track feature, without loading the track.
+	 *
+	 * @param trackID
+	 *            the track ID.
+	 * @param feature
+	 *            the track feature key.
+	 * @return the feature value, or <code>null</code> if it is not stored.
+	 */
+	public Double getTrackFeature( final Integer trackID, final String feature )
+	{
+		final TrackEntry track = tracks.get( trackID );
+		return null == track ? null : track.features.get( feature );
+	}
+
+	/**
+	 * Returns the number of spots in the specified track, without loading it.
+	 *
+	 * @param trackID
+	 *            the track ID.
+	 * @return the number of spots, or 0 if there is no such track.
+	 */
+	public int getNSpots( final Integer trackID )
+	{
+		final TrackEntry track = tracks.get( trackID );
+		return null == track ? 0 : track.spotIDs.length;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	public String getTimeUnits()
+	{
+		return timeUnits;
+	}
+
+	public String getLog()
+	{
+		return log;
+	}
+
+	/**
+	 * Reads the settings. The detector and tracker settings are restored if
+	 * they are the ones used by the Optofluidics tracker. The source image is
+	 * opened if it can be found.
+	 *
+	 * @return new settings, or <code>null</code> if the file has none.
+	 */
+	public Settings readSettings()
+	{
+		if ( null == settingsElement ) { return null; }
+
+		final Settings settings = new Settings();
+		final Element imageElement = settingsElement.getChild( IMAGE_ELEMENT_KEY );
+		if ( null != imageElement )
+		{
+			settings.imageFileName = imageElement.getAttributeValue( IMAGE_FILENAME_ATTRIBUTE_NAME, "" );
+			settings.imageFolder = imageElement.getAttributeValue( IMAGE_FOLDER_ATTRIBUTE_NAME, "" );
+			settings.width = readInt( imageElement, IMAGE_WIDTH_ATTRIBUTE_NAME );
+			settings.height = readInt( imageElement, IMAGE_HEIGHT_ATTRIBUTE_NAME );
+			settings.nslices = readInt( imageElement, IMAGE_NSLICES_ATTRIBUTE_NAME );
+			settings.nframes = readInt( imageElement, IMAGE_NFRAMES_ATTRIBUTE_NAME );
+			settings.dx = readDouble( imageElement, IMAGE_PIXEL_WIDTH_ATTRIBUTE_NAME );
+			settings.dy = readDouble( imageElement, IMAGE_PIXEL_HEIGHT_ATTRIBUTE_NAME );
+			settings.dz = readDouble( imageElement, IMAGE_VOXEL_DEPTH_ATTRIBUTE_NAME );
+			settings.dt = readDouble( imageElement, IMAGE_TIME_INTERVAL_ATTRIBUTE_NAME );
+		}
+
+		final Element basicElement = settingsElement.getChild( CROP_ELEMENT_KEY );
+		if ( null != basicElement )
+		{
+			settings.xstart = readInt( basicElement, CROP_XSTART_ATTRIBUTE_NAME );
+			settings.xend = readInt( basicElement, CROP_XEND_ATTRIBUTE_NAME );
+			settings.ystart = readInt( basicElement, CROP_YSTART_ATTRIBUTE_NAME );
+			settings.yend = readInt( basicElement, CROP_YEND_ATTRIBUTE_NAME );
+			settings.zstart = readInt( basicElement, CROP_ZSTART_ATTRIBUTE_NAME );
+			settings.zend = readInt( basicElement, CROP_ZEND_ATTRIBUTE_NAME );
+			settings.tstart = readInt( basicElement, CROP_TSTART_ATTRIBUTE_NAME );
+			settings.tend = readInt( basicElement, CROP_TEND_ATTRIBUTE_NAME );
+		}
+
+		final Element filterElement = settingsElement.getChild( INITIAL_SPOT_FILTER_ELEMENT_KEY );
+		if ( null != filterElement )
+		{
+			settings.initialSpotFilterValue = readDouble( filterElement, FILTER_VALUE_ATTRIBUTE_NAME );
+		}
+
+		final Element detectorElement = settingsElement.getChild( DETECTOR_SETTINGS_ELEMENT_KEY );
+		final LogDetectorFactory< ? > detectorFactory = new LogDetectorFactory();
+		if ( null != detectorElement && detectorFactory.getKey().equals( detectorElement.getAttributeValue( DetectorKeys.XML_ATTRIBUTE_DETECTOR_NAME ) ) )
+		{
+			final Map< String, Object > detectorSettings = new HashMap< String, Object >();
+			if ( detectorFactory.unmarshall( detectorElement, detectorSettings ) )
+			{
+				settings.detectorFactory = detectorFactory;
+				settings.detectorSettings = detectorSettings;
+			}
+		}
+
+		final Element trackerElement = settingsElement.getChild( TRACKER_SETTINGS_ELEMENT_KEY );
+		if ( null != trackerElement )
+		{
+			final String trackerKey = trackerElement.getAttributeValue( TrackerKeys.XML_ATTRIBUTE_TRACKER_NAME );
+			for ( final TrackerChoice choice : TrackerChoice.values() )
+			{
+				final SpotTrackerFactory trackerFactory = choice.getFactory();
+				if ( !trackerFactory.getKey().equals( trackerKey ) )
+				{
+					continue;
+				}
+				final Map< String, Object > trackerSettings = new HashMap< String, Object >();
+				if ( trackerFactory.unmarshall( trackerElement, trackerSettings ) )
+				{
+					settings.trackerFactory = trackerFactory;
+					settings.trackerSettings = trackerSettings;
+				}
+			}
+		}
+
+		final File imageFile = new File( settings.imageFolder, settings.imageFileName );
+		if ( imageFile.isFile() )
+		{
+			final ImagePlus imp = IJ.openImage( imageFile.getAbsolutePath() );
+			if ( null != imp )
+			{
+				settings.imp = imp;
+			}
+		}
+		return settings;
+	}
+
+	/**
+	 * Reads the whole model, including the spots that do not belong to any
+	 * track.
+	 *
+	 * @return a new model.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public Model readModel() throws IOException
+	{
+		return read( tracks.keySet(), true );
+	}
+
+	/**
+	 * Reads only the specified tracks. The spots and edges of other tracks,
+	 * and the spots that do not belong to any track, are skipped.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks to read.
+	 * @return a new model, with only the specified tracks.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public Model readTracks( final Collection< Integer > trackIDs ) throws IOException
+	{
+		return read( trackIDs, false );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TrackMate XML file " + file + ", " + tracks.size() + " tracks.";
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * First pass: everything but the spots and the edge features.
+	 */
+	private void readIndex( final XMLStreamReader xml ) throws XMLStreamException
+	{
+		FeatureDeclarations declarations = null;
+		TrackEntry track = null;
+		int[] spotIDs = new int[ 64 ];
+		int nSpotIDs = 0;
+		while ( xml.hasNext() )
+		{
+			final int event = xml.next();
+			if ( event == XMLStreamConstants.END_ELEMENT )
+			{
+				if ( TRACK_ELEMENT_KEY.equals( xml.getLocalName() ) && null != track )
+				{
+					track.setSpotIDs( spotIDs, nSpotIDs );
+					track = null;
+				}
+				continue;
+			}
+			if ( event != XMLStreamConstants.START_ELEMENT )
+			{
+				continue;
+			}
+
+			final String name = xml.getLocalName();
+			if ( SPOT_ELEMENT_KEY.equals( name ) )
+			{
+				continue;
+			}
+			else if ( TRACK_EDGE_ELEMENT_KEY.equals( name ) )
+			{
+				if ( nSpotIDs + 2 > spotIDs.length )
+				{
+					spotIDs = Arrays.copyOf( spotIDs, 2 * spotIDs.length );
+				}
+				spotIDs[ nSpotIDs++ ] = Integer.parseInt( xml.getAttributeValue( null, SPOT_SOURCE_ID ) );
+				spotIDs[ nSpotIDs++ ] = Integer.parseInt( xml.getAttributeValue( null, SPOT_TARGET_ID ) );
+			}
+			else if ( TRACK_ELEMENT_KEY.equals( name ) )
+			{
+				track = new TrackEntry();
+				nSpotIDs = 0;
+				Integer trackID = null;
+				for ( int i = 0; i < xml.getAttributeCount(); i++ )
+				{
+					final String attribute = xml.getAttributeLocalName( i );
+					final String value = xml.getAttributeValue( i );
+					if ( TRACK_NAME_ATTRIBUTE_NAME.equals( attribute ) )
+					{
+						track.name = value;
+						continue;
+					}
+					final Double val = Double.valueOf( value );
+					if ( TRACK_ID_ATTRIBUTE_NAME.equals( attribute ) )
+					{
+						trackID = Integer.valueOf( val.intValue() );
+					}
+					track.features.put( attribute, val );
+				}
+				if ( null == trackID ) { throw new XMLStreamException( "Track without ID.", xml.getLocation() ); }
+				tracks.put( trackID, track );
+			}
+			else if ( TRACK_ID_ELEMENT_KEY.equals( name ) )
+			{
+				visibleTrackIDs.add( Integer.valueOf( xml.getAttributeValue( null, TRACK_ID_ATTRIBUTE_NAME ) ) );
+			}
+			else if ( TRACK_FILTER_COLLECTION_ELEMENT_KEY.equals( name ) )
+			{
+				visibleTrackIDs = new HashSet< Integer >();
+			}
+			else if ( FEATURE_ELEMENT_KEY.equals( name ) && null != declarations )
+			{
+				declarations.add( xml.getAttributeValue( null, FEATURE_ATTRIBUTE ),
+						xml.getAttributeValue( null, FEATURE_NAME_ATTRIBUTE ),
+						xml.getAttributeValue( null, FEATURE_SHORT_NAME_ATTRIBUTE ),
+						xml.getAttributeValue( null, FEATURE_DIMENSION_ATTRIBUTE ),
+						Boolean.parseBoolean( xml.getAttributeValue( null, FEATURE_ISINT_ATTRIBUTE ) ) );
+			}
+			else if ( SPOT_FEATURES_ELEMENT.equals( name ) )
+			{
+				declarations = spotDeclarations;
+			}
+			else if ( EDGE_FEATURES_ELEMENT.equals( name ) )
+			{
+				declarations = edgeDeclarations;
+			}
+			else if ( TRACK_FEATURES_ELEMENT.equals( name ) )
+			{
+				declarations = trackDeclarations;
+			}
+			else if ( MODEL_ELEMENT_KEY.equals( name ) )
+			{
+				spaceUnits = xml.getAttributeValue( null, SPATIAL_UNITS_ATTRIBUTE_NAME );
+				timeUnits = xml.getAttributeValue( null, TIME_UNITS_ATTRIBUTE_NAME );
+			}
+			else if ( SETTINGS_ELEMENT_KEY.equals( name ) )
+			{
+				// Small: built as a JDOM element, for the factories.
+				settingsElement = readElement( xml );
+			}
+			else if ( LOG_ELEMENT_KEY.equals( name ) )
+			{
+				log = xml.getElementText();
+			}
+		}
+	}
+
+	/**
+	 * Second pass: the spots and edges of the specified tracks.
+	 */
+	private Model read( final Collection< Integer > trackIDs, final boolean loneSpots ) throws IOException
+	{
+		/*
+		 * The spots to read.
+		 */
+
+		final Set< Integer > wantedTracks = new HashSet< Integer >( trackIDs );
+		final Set< Integer > wantedSpots = new HashSet< Integer >();
+		for ( final Integer trackID : wantedTracks )
+		{
+			final TrackEntry track = tracks.get( trackID );
+			if ( null == track )
+			{
+				continue;
+			}
+			for ( final int id : track.spotIDs )
+			{
+				wantedSpots.add( Integer.valueOf( id ) );
+			}
+		}
+
+		final String[] edgeKeys = edgeDeclarations.features.toArray( new String[ 0 ] );
+		final Map< String, Integer > edgeKeyIndex = new HashMap< String, Integer >( edgeKeys.length );
+		for ( int k = 0; k < edgeKeys.length; k++ )
+		{
+			edgeKeyIndex.put( edgeKeys[ k ], Integer.valueOf( k ) );
+		}
+
+		final SpotCollection spots = new SpotCollection();
+		final Map< Integer, Spot > spotsByID = new HashMap< Integer, Spot >( wantedSpots.size() );
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph< Spot, DefaultWeightedEdge >( DefaultWeightedEdge.class );
+		final Map< Integer, Set< DefaultWeightedEdge > > trackEdges = new HashMap< Integer, Set< DefaultWeightedEdge > >();
+		final Map< DefaultWeightedEdge, double[] > edgeValues = new HashMap< DefaultWeightedEdge, double[] >();
+
+		final InputStream in = TrackMateXml.open( file );
+		try
+		{
+			final XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader( in );
+			try
+			{
+				Integer frame = Integer.valueOf( 0 );
+				Set< DefaultWeightedEdge > edges = null;
+				parse: while ( xml.hasNext() )
+				{
+					final int event = xml.next();
+					if ( event == XMLStreamConstants.END_ELEMENT )
+					{
+						if ( TRACK_COLLECTION_ELEMENT_KEY.equals( xml.getLocalName() ) )
+						{
+							// Nothing we need after the tracks.
+							break parse;
+						}
+						continue;
+					}
+					if ( event != XMLStreamConstants.START_ELEMENT )
+					{
+						continue;
+					}
+
+					final String name = xml.getLocalName();
+					if ( SPOT_ELEMENT_KEY.equals( name ) )
+					{
+						final Integer id = Integer.valueOf( xml.getAttributeValue( null, SPOT_ID_ATTRIBUTE_NAME ) );
+						if ( !loneSpots && !wantedSpots.contains( id ) )
+						{
+							continue;
+						}
+						final Spot spot = new Spot( id.intValue() );
+						for ( int i = 0; i < xml.getAttributeCount(); i++ )
+						{
+							final String attribute = xml.getAttributeLocalName( i );
+							if ( SPOT_NAME_ATTRIBUTE_NAME.equals( attribute ) )
+							{
+								spot.setName( xml.getAttributeValue( i ) );
+							}
+							else if ( !SPOT_ID_ATTRIBUTE_NAME.equals( attribute ) )
+							{
+								spot.putFeature( attribute, Double.valueOf( xml.getAttributeValue( i ) ) );
+							}
+						}
+						spots.add( spot, frame );
+						spotsByID.put( id, spot );
+					}
+					else if ( TRACK_EDGE_ELEMENT_KEY.equals( name ) )
+					{
+						if ( null == edges )
+						{
+							continue;
+						}
+						final Spot source = spotsByID.get( Integer.valueOf( xml.getAttributeValue( null, SPOT_SOURCE_ID ) ) );
+						final Spot target = spotsByID.get( Integer.valueOf( xml.getAttributeValue( null, SPOT_TARGET_ID ) ) );
+						if ( null == source || null == target ) { throw new XMLStreamException( "Edge between unknown spots.", xml.getLocation() ); }
+						graph.addVertex( source );
+						graph.addVertex( target );
+						final DefaultWeightedEdge edge = graph.addEdge( source, target );
+						final String weight = xml.getAttributeValue( null, EDGE_COST );
+						if ( null != weight )
+						{
+							graph.setEdgeWeight( edge, Double.parseDouble( weight ) );
+						}
+						final double[] values = new double[ edgeKeys.length ];
+						Arrays.fill( values, Double.NaN );
+						for ( int i = 0; i < xml.getAttributeCount(); i++ )
+						{
+							final Integer k = edgeKeyIndex.get( xml.getAttributeLocalName( i ) );
+							if ( null != k )
+							{
+								values[ k.intValue() ] = Double.parseDouble( xml.getAttributeValue( i ) );
+							}
+						}
+						edgeValues.put( edge, values );
+						edges.add( edge );
+					}
+					else if ( SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals( name ) )
+					{
+						frame = Integer.valueOf( xml.getAttributeValue( null, FRAME_ATTRIBUTE_NAME ) );
+					}
+					else if ( TRACK_ELEMENT_KEY.equals( name ) )
+					{
+						final Integer trackID = Integer.valueOf( ( int ) Double.parseDouble( xml.getAttributeValue( null, TRACK_ID_ATTRIBUTE_NAME ) ) );
+						if ( wantedTracks.contains( trackID ) )
+						{
+							edges = new HashSet< DefaultWeightedEdge >();
+							trackEdges.put( trackID, edges );
+						}
+						else
+						{
+							edges = null;
+						}
+					}
+				}
+			}
+			finally
+			{
+				xml.close();
+			}
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( "Could not parse XML file " + file + ": " + e.getMessage() );
+		}
+		finally
+		{
+			in.close();
+		}
+
+		/*
+		 * Build the model.
+		 */
+
+		final Map< Integer, Set< Spot > > trackSpots = new HashMap< Integer, Set< Spot > >( trackEdges.size() );
+		final Map< Integer, Boolean > trackVisibility = new HashMap< Integer, Boolean >( trackEdges.size() );
+		final Map< Integer, String > trackNames = new HashMap< Integer, String >( trackEdges.size() );
+		for ( final Integer trackID : trackEdges.keySet() )
+		{
+			final TrackEntry track = tracks.get( trackID );
+			final Set< Spot > set = new HashSet< Spot >( track.spotIDs.length );
+			for ( final int id : track.spotIDs )
+			{
+				set.add( spotsByID.get( Integer.valueOf( id ) ) );
+			}
+			trackSpots.put( trackID, set );
+			trackVisibility.put( trackID, Boolean.valueOf( null == visibleTrackIDs || visibleTrackIDs.contains( trackID ) ) );
+			trackNames.put( trackID, track.name );
+		}
+
+		final Model model = new Model();
+		// Register the track index before anything else listens to the model.
+		TrackIndex.get( model );
+		model.setPhysicalUnits( spaceUnits, timeUnits );
+		final FeatureModel fm = model.getFeatureModel();
+		spotDeclarations.declareSpotFeatures( fm );
+		edgeDeclarations.declareEdgeFeatures( fm );
+		trackDeclarations.declareTrackFeatures( fm );
+
+		model.beginUpdate();
+		try
+		{
+			model.setSpots( spots, false );
+			model.getTrackModel().from( graph, trackSpots, trackEdges, trackVisibility, trackNames );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		for ( final DefaultWeightedEdge edge : edgeValues.keySet() )
+		{
+			final double[] values = edgeValues.get( edge );
+			for ( int k = 0; k < edgeKeys.length; k++ )
+			{
+				if ( !Double.isNaN( values[ k ] ) )
+				{
+					fm.putEdgeFeature( edge, edgeKeys[ k ], Double.valueOf( values[ k ] ) );
+				}
+			}
+		}
+		for ( final Integer trackID : trackEdges.keySet() )
+		{
+			final Map< String, Double > features = tracks.get( trackID ).features;
+			for ( final String feature : features.keySet() )
+			{
+				fm.putTrackFeature( trackID, feature, features.get( feature ) );
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Builds the current element, its attributes and its child elements, and
+	 * leaves the stream on its end.
+	 */
+	private static Element readElement( final XMLStreamReader xml ) throws XMLStreamException
+	{
+		final Element element = new Element( xml.getLocalName() );
+		for ( int i = 0; i < xml.getAttributeCount(); i++ )
+		{
+			element.setAttribute( xml.getAttributeLocalName( i ), xml.getAttributeValue( i ) );
+		}
+		while ( xml.next() != XMLStreamConstants.END_ELEMENT )
+		{
+			if ( xml.getEventType() == XMLStreamConstants.START_ELEMENT )
+			{
+				element.addContent( readElement( xml ) );
+			}
+			else if ( xml.getEventType() == XMLStreamConstants.CHARACTERS && !xml.isWhiteSpace() )
+			{
+				element.addContent( xml.getText() );
+			}
+		}
+		return element;
+	}
+
+	private static int readInt( final Element element, final String attribute )
+	{
+		final String value = element.getAttributeValue( attribute );
+		return null == value ? 0 : Integer.parseInt( value );
+	}
+
+	private static double readDouble( final Element element, final String attribute )
+	{
+		final String value = element.getAttributeValue( attribute );
+		return null == value ? 0. : Double.parseDouble( value );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * What is kept of a track after the first pass.
+	 */
+	private static final class TrackEntry
+	{
+		private String name;
+
+		private final Map< String, Double > features = new HashMap< String, Double >();
+
+		/**
+		 * The sorted IDs of the spots of the track.
+		 */
+		private int[] spotIDs;
+
+		private void setSpotIDs( final int[] ids, final int n )
+		{
+			final int[] sorted = Arrays.copyOf( ids, n );
+			Arrays.sort( sorted );
+			int nUnique = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( nUnique == 0 || sorted[ i ] != sorted[ nUnique - 1 ] )
+				{
+					sorted[ nUnique++ ] = sorted[ i ];
+				}
+			}
+			this.spotIDs = Arrays.copyOf( sorted, nUnique );
+		}
+	}
+}
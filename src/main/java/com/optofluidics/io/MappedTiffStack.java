@@ -0,0 +1,289 @@
+package com.optofluidics.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+/**
+ * A stack backed by a memory-mapped multi-page tif file, as written when tif
+ * folders are converted. Opening the stack only reads the tif header: planes
+ * are decoded from the mapped file when they are accessed. Since the file is
+ * mapped and not read, its pages stay in the OS page cache, shared by all the
+ * processes that open the same file.
+ * <p>
+ * Only uncompressed 16-bit files whose planes are evenly spaced in the file
+ * can be mapped. Like other virtual stacks, the stack is read-only: changes
+ * made to the pixels of a plane are not kept. Use {@link #toHeap(int)} to get
+ * a stack that can be modified in place.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class MappedTiffStack extends VirtualStack
+{
+
+	/**
+	 * The largest region mapped at once. Larger files are mapped in several
+	 * regions, each holding a whole number of planes.
+	 */
+	private static final long MAX_REGION_SIZE = 1L << 30;
+
+	private final FileInfo info;
+
+	private final int nPlanes;
+
+	private final long planeSize;
+
+	private final long stride;
+
+	private final int planesPerRegion;
+
+	private final MappedByteBuffer[] regions;
+
+	private final ByteOrder order;
+
+	private MappedTiffStack( final FileInfo info, final int nPlanes, final long offset, final long stride, final FileChannel channel ) throws IOException
+	{
+		super( info.width, info.height, null, info.directory );
+		this.info = info;
+		this.nPlanes = nPlanes;
+		this.planeSize = 2L * info.width * info.height;
+		this.stride = stride;
+		this.order = info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		this.planesPerRegion = ( int ) Math.max( 1, Math.min( nPlanes, ( MAX_REGION_SIZE - planeSize ) / stride + 1 ) );
+
+		final int nRegions = ( nPlanes + planesPerRegion - 1 ) / planesPerRegion;
+		this.regions = new MappedByteBuffer[ nRegions ];
+		for ( int i = 0; i < nRegions; i++ )
+		{
+			final int first = i * planesPerRegion;
+			final int last = Math.min( nPlanes, first + planesPerRegion ) - 1;
+			final long start = offset + first * stride;
+			regions[ i ] = channel.map( MapMode.READ_ONLY, start, ( last - first ) * stride + planeSize );
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		return new ShortProcessor( getWidth(), getHeight(), getPixels( n ), null );
+	}
+
+	@Override
+	public short[] getPixels( final int n )
+	{
+		final short[] pixels = new short[ getWidth() * getHeight() ];
+		readPlane( n, pixels );
+		return pixels;
+	}
+
+	/**
+	 * Decodes a plane into the specified array.
+	 *
+	 * @param n
+	 *            the plane, 1-based.
+	 * @param pixels
+	 *            the array to decode to, at least as large as a plane.
+	 */
+	public void readPlane( final int n, final short[] pixels )
+	{
+		if ( n < 1 || n > nPlanes ) { throw new IllegalArgumentException( "Plane " + n + " out of range: 1-" + nPlanes ); }
+		final int index = n - 1;
+		// Duplicates have their own position, so planes can be read concurrently.
+		final ByteBuffer buffer = regions[ index / planesPerRegion ].duplicate();
+		buffer.position( ( int ) ( ( index % planesPerRegion ) * stride ) );
+		buffer.order( order );
+		buffer.asShortBuffer().get( pixels, 0, getWidth() * getHeight() );
+	}
+
+	/**
+	 * Copies all the planes to a regular stack, in parallel.
+	 *
+	 * @param numThreads
+	 *            the maximal number of threads to use.
+	 * @return a new stack, that can be modified.
+	 */
+	public ImageStack toHeap( final int numThreads )
+	{
+		final ImageStack stack = new ImageStack( getWidth(), getHeight(), nPlanes );
+		SharedExecutor.forEach( nPlanes, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int index )
+			{
+				stack.setPixels( getPixels( index + 1 ), index + 1 );
+				stack.setSliceLabel( getSliceLabel( index + 1 ), index + 1 );
+			}
+		} );
+		return stack;
+	}
+
+	/**
+	 * Creates an image from the planes of this file, with the dimensions and
+	 * calibration read in its header.
+	 *
+	 * @param virtual
+	 *            if <code>true</code>, the image is backed by this stack.
+	 *            Otherwise, the planes are copied to the heap.
+	 * @return a new image.
+	 */
+	public ImagePlus createImage( final boolean virtual )
+	{
+		final ImageStack stack = virtual ? this : toHeap( SharedExecutor.getParallelism() );
+		final ImagePlus imp = new ImagePlus( info.fileName, stack );
+		imp.setFileInfo( info );
+
+		double frameInterval = info.frameInterval;
+		final Properties props = new FileOpener( info ).decodeDescriptionString( info );
+		if ( null != props )
+		{
+			// ImageJ stores the frame interval in the description only.
+			if ( frameInterval <= 0 )
+			{
+				frameInterval = Double.parseDouble( props.getProperty( "finterval", "0" ) );
+			}
+			final int nChannels = Integer.parseInt( props.getProperty( "channels", "1" ) );
+			final int nSlices = Integer.parseInt( props.getProperty( "slices", "1" ) );
+			final int nFrames = Integer.parseInt( props.getProperty( "frames", "1" ) );
+			if ( nChannels * nSlices * nFrames == nPlanes )
+			{
+				imp.setDimensions( nChannels, nSlices, nFrames );
+			}
+		}
+
+		final Calibration calibration = imp.getCalibration();
+		if ( null != info.unit )
+		{
+			calibration.pixelWidth = info.pixelWidth;
+			calibration.pixelHeight = info.pixelHeight;
+			calibration.pixelDepth = info.pixelDepth;
+			calibration.setUnit( info.unit );
+		}
+		if ( frameInterval > 0 )
+		{
+			calibration.frameInterval = frameInterval;
+		}
+		return imp;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return nPlanes;
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		if ( null == info.sliceLabels || n > info.sliceLabels.length ) { return null; }
+		return info.sliceLabels[ n - 1 ];
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return 16;
+	}
+
+	@Override
+	public String getFileName( final int n )
+	{
+		return info.fileName;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Maps the specified tif file.
+	 *
+	 * @param file
+	 *            the tif file.
+	 * @return a new stack, or <code>null</code> if the file is not an
+	 *         uncompressed 16-bit file with evenly spaced planes.
+	 * @throws IOException
+	 *             if the file cannot be read or mapped.
+	 */
+	public static MappedTiffStack open( final File file ) throws IOException
+	{
+		final File path = file.getAbsoluteFile();
+		final FileInfo[] infos = new TiffDecoder( path.getParent() + File.separator, path.getName() ).getTiffInfo();
+		if ( null == infos || infos.length == 0 ) { return null; }
+
+		final FileInfo info = infos[ 0 ];
+		if ( info.fileType != FileInfo.GRAY16_UNSIGNED || info.compression != FileInfo.COMPRESSION_NONE ) { return null; }
+		final long planeSize = 2L * info.width * info.height;
+		if ( !isContiguous( info, planeSize ) ) { return null; }
+
+		final int nPlanes;
+		final long stride;
+		if ( infos.length == 1 )
+		{
+			// ImageJ stacks: one IFD describes all the planes.
+			nPlanes = Math.max( 1, info.nImages );
+			stride = planeSize + info.gapBetweenImages;
+		}
+		else
+		{
+			nPlanes = infos.length;
+			stride = infos[ 1 ].getOffset() - info.getOffset();
+			if ( stride < planeSize ) { return null; }
+			for ( int i = 1; i < infos.length; i++ )
+			{
+				final FileInfo fi = infos[ i ];
+				if ( fi.width != info.width || fi.height != info.height || fi.fileType != info.fileType || fi.compression != info.compression
+						|| fi.intelByteOrder != info.intelByteOrder || fi.getOffset() != info.getOffset() + i * stride || !isContiguous( fi, planeSize ) ) { return null; }
+			}
+		}
+
+		final FileChannel channel = FileChannel.open( path.toPath(), StandardOpenOption.READ );
+		try
+		{
+			if ( info.getOffset() + ( nPlanes - 1 ) * stride + planeSize > channel.size() ) { return null; }
+			// Mappings stay valid once the channel is closed.
+			return new MappedTiffStack( info, nPlanes, info.getOffset(), stride, channel );
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns whether the strips of a plane follow each other in the file.
+	 */
+	private static boolean isContiguous( final FileInfo fi, final long planeSize )
+	{
+		if ( null == fi.stripOffsets || fi.stripOffsets.length <= 1 ) { return true; }
+		long end = fi.getOffset();
+		for ( int i = 0; i < fi.stripOffsets.length; i++ )
+		{
+			if ( ( fi.stripOffsets[ i ] & 0xffffffffL ) != end ) { return false; }
+			end += fi.stripLengths[ i ] & 0xffffffffL;
+		}
+		return end - fi.getOffset() >= planeSize;
+	}
+}
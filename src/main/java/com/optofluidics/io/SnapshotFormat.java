@@ -0,0 +1,181 @@
+package com.optofluidics.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Constants and helpers shared by the {@link SnapshotWriter} and the
+ * {@link SnapshotReader}.
+ * <p>
+ * A snapshot file is laid out as follows:
+ * <ol>
+ * <li>a file header: {@link #MAGIC}, the format {@link #VERSION} and flags,
+ * for instance {@link #FLAG_DEFLATE};
+ * <li>a header block, with the physical units, the feature declarations, the
+ * settings and the log;
+ * <li>one block per track, with its spots and edges stored column by column,
+ * and its track features. Each column of feature values is preceded by a
+ * bitmap of the values that are present, so that missing values and
+ * <code>NaN</code> values can be told apart. Spots that do not belong to any
+ * track are stored in blocks with track ID {@link #NO_TRACK};
+ * <li>an index, giving the track ID, offset and length of each block;
+ * <li>a footer, with the offset of the index and {@link #END_MAGIC}.
+ * </ol>
+ * Each block is stored as its stored length, its raw length, then its
+ * content, deflated if the file was written with compression. Numbers are
+ * big-endian.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+final class SnapshotFormat
+{
+
+	static final byte[] MAGIC = new byte[] { 'O', 'F', 'S', 'N', 'A', 'P' };
+
+	static final byte[] END_MAGIC = new byte[] { 'O', 'F', 'S', 'E', 'N', 'D', '\r', '\n' };
+
+	static final int VERSION = 2;
+
+	/**
+	 * The first version with presence bitmaps. Before it, missing values were
+	 * stored as <code>NaN</code>.
+	 */
+	static final int PRESENCE_VERSION = 2;
+
+	/**
+	 * Blocks are compressed with a {@link java.util.zip.Deflater}.
+	 */
+	static final int FLAG_DEFLATE = 1;
+
+	/**
+	 * Magic, version and flags.
+	 */
+	static final int FILE_HEADER_LENGTH = MAGIC.length + 4 + 4;
+
+	/**
+	 * Index offset and end magic.
+	 */
+	static final int FOOTER_LENGTH = 8 + END_MAGIC.length;
+
+	/**
+	 * Stored length and raw length.
+	 */
+	static final int BLOCK_HEADER_LENGTH = 8;
+
+	/**
+	 * The track ID of blocks that store spots not in tracks.
+	 */
+	static final int NO_TRACK = -1;
+
+	/**
+	 * Maximal number of spots not in tracks per block.
+	 */
+	static final int LONE_SPOTS_PER_BLOCK = 1 << 16;
+
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private SnapshotFormat()
+	{}
+
+	/**
+	 * Writes a string of any length, as its UTF-8 byte count followed by its
+	 * bytes. <code>null</code> is written as a count of -1.
+	 */
+	static void writeString( final DataOutput out, final String str ) throws IOException
+	{
+		if ( null == str )
+		{
+			out.writeInt( -1 );
+			return;
+		}
+		final byte[] bytes = str.getBytes( UTF8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	static String readString( final DataInput in ) throws IOException
+	{
+		final int length = in.readInt();
+		if ( length < 0 ) { return null; }
+		final byte[] bytes = new byte[ length ];
+		in.readFully( bytes );
+		return new String( bytes, UTF8 );
+	}
+
+	/**
+	 * Writes a column of values, as a bitmap of the values that are not
+	 * <code>null</code>, followed by the values. Missing values are written
+	 * as <code>NaN</code>.
+	 */
+	static void writeColumn( final DataOutput out, final Double[] values, final int n ) throws IOException
+	{
+		int bits = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( null != values[ i ] )
+			{
+				bits |= 1 << ( i & 7 );
+			}
+			if ( ( i & 7 ) == 7 || i == n - 1 )
+			{
+				out.writeByte( bits );
+				bits = 0;
+			}
+		}
+		for ( int i = 0; i < n; i++ )
+		{
+			out.writeDouble( null == values[ i ] ? Double.NaN : values[ i ].doubleValue() );
+		}
+	}
+
+	/**
+	 * Reads a column of values written by
+	 * {@link #writeColumn(DataOutput, Double[], int)}, into the specified
+	 * arrays. For files written before {@link #PRESENCE_VERSION}, only
+	 * non-<code>NaN</code> values are present.
+	 */
+	static void readColumn( final DataInput in, final int version, final double[] values, final boolean[] present ) throws IOException
+	{
+		final int n = values.length;
+		if ( version >= PRESENCE_VERSION )
+		{
+			int bits = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( ( i & 7 ) == 0 )
+				{
+					bits = in.readUnsignedByte();
+				}
+				present[ i ] = ( bits & ( 1 << ( i & 7 ) ) ) != 0;
+			}
+		}
+		for ( int i = 0; i < n; i++ )
+		{
+			values[ i ] = in.readDouble();
+			if ( version < PRESENCE_VERSION )
+			{
+				present[ i ] = !Double.isNaN( values[ i ] );
+			}
+		}
+	}
+
+	/**
+	 * A {@link ByteArrayOutputStream} that exposes its buffer, so that blocks
+	 * can be compressed or written without being copied.
+	 */
+	static final class BlockOutputStream extends ByteArrayOutputStream
+	{
+		BlockOutputStream( final int size )
+		{
+			super( size );
+		}
+
+		byte[] buffer()
+		{
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,794 @@
+package com.optofluidics.io;
+
+import static com.optofluidics.io.SnapshotFormat.BLOCK_HEADER_LENGTH;
+import static com.optofluidics.io.SnapshotFormat.END_MAGIC;
+import static com.optofluidics.io.SnapshotFormat.FLAG_DEFLATE;
+import static com.optofluidics.io.SnapshotFormat.MAGIC;
+import static com.optofluidics.io.SnapshotFormat.NO_TRACK;
+import static com.optofluidics.io.SnapshotFormat.VERSION;
+import static com.optofluidics.io.SnapshotFormat.readColumn;
+import static com.optofluidics.io.SnapshotFormat.readString;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import com.optofluidics.OptofluidicsParameters.TrackerChoice;
+import com.optofluidics.trackmate.features.TrackIndex;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+
+/**
+ * Reads snapshot files written by the {@link SnapshotWriter}.
+ * <p>
+ * Opening a reader only reads the header block and the index: the feature
+ * declarations, the settings, the log and the list of tracks. Tracks are then
+ * read on demand, one block at a time, either individually with
+ * {@link #readTrack(int)}, or all together with {@link #readModel()}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class SnapshotReader implements Closeable
+{
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final int version;
+
+	private final boolean compressed;
+
+	private final Inflater inflater = new Inflater();
+
+	private final String spaceUnits;
+
+	private final String timeUnits;
+
+	private final FeatureDeclarations spotDeclarations;
+
+	private final String[] spotKeys;
+
+	private final FeatureDeclarations edgeDeclarations;
+
+	private final String[] edgeKeys;
+
+	private final FeatureDeclarations trackDeclarations;
+
+	private final String[] trackKeys;
+
+	private final Settings settings;
+
+	private final String detectorKey;
+
+	private final String trackerKey;
+
+	private final String log;
+
+	/**
+	 * Track ID, offset and length of each block, in file order.
+	 */
+	private final int[] blockTrackIDs;
+
+	private final long[] blockOffsets;
+
+	private final int[] blockLengths;
+
+	private final Map< Integer, Integer > blockOfTrack;
+
+	/**
+	 * Opens the specified snapshot file and reads its header and index.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a snapshot file.
+	 */
+	@SuppressWarnings( "resource" )
+	public SnapshotReader( final File file ) throws IOException
+	{
+		this.file = file;
+		this.channel = new FileInputStream( file ).getChannel();
+		boolean ok = false;
+		try
+		{
+			final ByteBuffer fileHeader = readFully( 0, SnapshotFormat.FILE_HEADER_LENGTH );
+			final byte[] magic = new byte[ MAGIC.length ];
+			fileHeader.get( magic );
+			if ( !Arrays.equals( MAGIC, magic ) ) { throw new IOException( "File " + file + " is not an Optofluidics snapshot file." ); }
+			this.version = fileHeader.getInt();
+			if ( version > VERSION ) { throw new IOException( "Unsupported snapshot version " + version + " in file " + file + "." ); }
+			this.compressed = ( fileHeader.getInt() & FLAG_DEFLATE ) != 0;
+
+			/*
+			 * Footer and index.
+			 */
+
+			final long size = channel.size();
+			final ByteBuffer footer = readFully( size - SnapshotFormat.FOOTER_LENGTH, SnapshotFormat.FOOTER_LENGTH );
+			final long indexOffset = footer.getLong();
+			final byte[] endMagic = new byte[ END_MAGIC.length ];
+			footer.get( endMagic );
+			if ( !Arrays.equals( END_MAGIC, endMagic ) ) { throw new IOException( "Snapshot file " + file + " is truncated." ); }
+
+			final ByteBuffer index = readFully( indexOffset, ( int ) ( size - SnapshotFormat.FOOTER_LENGTH - indexOffset ) );
+			final int nBlocks = index.getInt();
+			this.blockTrackIDs = new int[ nBlocks ];
+			this.blockOffsets = new long[ nBlocks ];
+			this.blockLengths = new int[ nBlocks ];
+			this.blockOfTrack = new LinkedHashMap< Integer, Integer >();
+			for ( int i = 0; i < nBlocks; i++ )
+			{
+				blockTrackIDs[ i ] = index.getInt();
+				blockOffsets[ i ] = index.getLong();
+				blockLengths[ i ] = index.getInt();
+				if ( blockTrackIDs[ i ] != NO_TRACK )
+				{
+					blockOfTrack.put( Integer.valueOf( blockTrackIDs[ i ] ), Integer.valueOf( i ) );
+				}
+			}
+
+			/*
+			 * Header block.
+			 */
+
+			final ByteBuffer headerLength = readFully( SnapshotFormat.FILE_HEADER_LENGTH, BLOCK_HEADER_LENGTH );
+			final int storedLength = headerLength.getInt();
+			final DataInputStream in = readBlock( SnapshotFormat.FILE_HEADER_LENGTH, BLOCK_HEADER_LENGTH + storedLength );
+			this.spaceUnits = readString( in );
+			this.timeUnits = readString( in );
+			this.spotDeclarations = readDeclarations( in );
+			this.spotKeys = readKeys( in );
+			this.edgeDeclarations = readDeclarations( in );
+			this.edgeKeys = readKeys( in );
+			this.trackDeclarations = readDeclarations( in );
+			this.trackKeys = readKeys( in );
+
+			if ( in.readBoolean() )
+			{
+				this.settings = new Settings();
+				settings.imageFileName = readString( in );
+				settings.imageFolder = readString( in );
+				settings.width = in.readInt();
+				settings.height = in.readInt();
+				settings.nslices = in.readInt();
+				settings.nframes = in.readInt();
+				settings.xstart = in.readInt();
+				settings.xend = in.readInt();
+				settings.ystart = in.readInt();
+				settings.yend = in.readInt();
+				settings.zstart = in.readInt();
+				settings.zend = in.readInt();
+				settings.tstart = in.readInt();
+				settings.tend = in.readInt();
+				settings.dx = in.readDouble();
+				settings.dy = in.readDouble();
+				settings.dz = in.readDouble();
+				settings.dt = in.readDouble();
+				settings.initialSpotFilterValue = in.readDouble();
+				this.detectorKey = readString( in );
+				settings.detectorSettings = readMap( in );
+				this.trackerKey = readString( in );
+				settings.trackerSettings = readMap( in );
+			}
+			else
+			{
+				this.settings = null;
+				this.detectorKey = null;
+				this.trackerKey = null;
+			}
+			this.log = readString( in );
+			ok = true;
+		}
+		finally
+		{
+			if ( !ok )
+			{
+				channel.close();
+			}
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the IDs of the tracks stored in the snapshot, in file order.
+	 *
+	 * @return an unmodifiable set of track IDs.
+	 */
+	public Set< Integer > getTrackIDs()
+	{
+		return Collections.unmodifiableSet( blockOfTrack.keySet() );
+	}
+
+	public String getLog()
+	{
+		return log;
+	}
+
+	public String getSpaceUnits()
+	{
+		return spaceUnits;
+	}
+
+	public String getTimeUnits()
+	{
+		return timeUnits;
+	}
+
+	/**
+	 * Returns the key of the detector factory of the stored settings.
+	 *
+	 * @return the detector key, or <code>null</code>.
+	 */
+	public String getDetectorKey()
+	{
+		return detectorKey;
+	}
+
+	/**
+	 * Returns the key of the tracker factory of the stored settings.
+	 *
+	 * @return the tracker key, or <code>null</code>.
+	 */
+	public String getTrackerKey()
+	{
+		return trackerKey;
+	}
+
+	/**
+	 * Reads the stored settings. The detector and tracker factories are
+	 * restored if they are the ones used by the Optofluidics tracker. The
+	 * source image is opened if it can be found.
+	 *
+	 * @return new settings, or <code>null</code> if the snapshot has none.
+	 */
+	public Settings readSettings()
+	{
+		if ( null == settings ) { return null; }
+
+		final Settings copy = new Settings();
+		copy.imageFileName = settings.imageFileName;
+		copy.imageFolder = settings.imageFolder;
+		copy.width = settings.width;
+		copy.height = settings.height;
+		copy.nslices = settings.nslices;
+		copy.nframes = settings.nframes;
+		copy.xstart = settings.xstart;
+		copy.xend = settings.xend;
+		copy.ystart = settings.ystart;
+		copy.yend = settings.yend;
+		copy.zstart = settings.zstart;
+		copy.zend = settings.zend;
+		copy.tstart = settings.tstart;
+		copy.tend = settings.tend;
+		copy.dx = settings.dx;
+		copy.dy = settings.dy;
+		copy.dz = settings.dz;
+		copy.dt = settings.dt;
+		copy.initialSpotFilterValue = settings.initialSpotFilterValue;
+		copy.detectorSettings = null == settings.detectorSettings ? null : new HashMap< String, Object >( settings.detectorSettings );
+		copy.trackerSettings = null == settings.trackerSettings ? null : new HashMap< String, Object >( settings.trackerSettings );
+
+		final LogDetectorFactory detectorFactory = new LogDetectorFactory();
+		if ( detectorFactory.getKey().equals( detectorKey ) )
+		{
+			copy.detectorFactory = detectorFactory;
+		}
+		for ( final TrackerChoice choice : TrackerChoice.values() )
+		{
+			if ( choice.getFactory().getKey().equals( trackerKey ) )
+			{
+				copy.trackerFactory = choice.getFactory();
+			}
+		}
+
+		final File imageFile = new File( copy.imageFolder, copy.imageFileName );
+		if ( imageFile.isFile() )
+		{
+			final ImagePlus imp = IJ.openImage( imageFile.getAbsolutePath() );
+			if ( null != imp )
+			{
+				copy.imp = imp;
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Reads a single track, without reading the rest of the file.
+	 *
+	 * @param trackID
+	 *            the ID of the track to read.
+	 * @return the track data, or <code>null</code> if there is no such track.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public TrackBlock readTrack( final int trackID ) throws IOException
+	{
+		final Integer block = blockOfTrack.get( Integer.valueOf( trackID ) );
+		if ( null == block ) { return null; }
+		return readTrackBlock( block.intValue() );
+	}
+
+	/**
+	 * Reads the whole model, one block at a time.
+	 *
+	 * @return a new model.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public Model readModel() throws IOException
+	{
+		final Model model = new Model();
+		// Register the track index before anything else listens to the model.
+		TrackIndex.get( model );
+		model.setPhysicalUnits( spaceUnits, timeUnits );
+		final FeatureModel fm = model.getFeatureModel();
+		spotDeclarations.declareSpotFeatures( fm );
+		edgeDeclarations.declareEdgeFeatures( fm );
+		trackDeclarations.declareTrackFeatures( fm );
+
+		final SpotCollection spots = new SpotCollection();
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph< Spot, DefaultWeightedEdge >( DefaultWeightedEdge.class );
+		final Map< Integer, Set< Spot > > trackSpots = new HashMap< Integer, Set< Spot > >();
+		final Map< Integer, Set< DefaultWeightedEdge > > trackEdges = new HashMap< Integer, Set< DefaultWeightedEdge > >();
+		final Map< Integer, Boolean > trackVisibility = new HashMap< Integer, Boolean >();
+		final Map< Integer, String > trackNames = new HashMap< Integer, String >();
+		final Map< DefaultWeightedEdge, double[] > edgeValues = new HashMap< DefaultWeightedEdge, double[] >();
+		final Map< DefaultWeightedEdge, boolean[] > edgePresent = new HashMap< DefaultWeightedEdge, boolean[] >();
+		final Map< Integer, double[] > trackValues = new HashMap< Integer, double[] >();
+		final Map< Integer, boolean[] > trackPresent = new HashMap< Integer, boolean[] >();
+
+		for ( int b = 0; b < blockTrackIDs.length; b++ )
+		{
+			final TrackBlock track = readTrackBlock( b );
+			final Spot[] blockSpots = track.createSpots();
+			for ( final Spot spot : blockSpots )
+			{
+				final Double frame = spot.getFeature( Spot.FRAME );
+				spots.add( spot, Integer.valueOf( null == frame ? 0 : frame.intValue() ) );
+			}
+			if ( track.trackID == NO_TRACK )
+			{
+				continue;
+			}
+
+			final Integer id = Integer.valueOf( track.trackID );
+			final Set< Spot > spotSet = new HashSet< Spot >( Arrays.asList( blockSpots ) );
+			final Set< DefaultWeightedEdge > edgeSet = new HashSet< DefaultWeightedEdge >( track.nEdges() );
+			for ( final Spot spot : blockSpots )
+			{
+				graph.addVertex( spot );
+			}
+			for ( int e = 0; e < track.nEdges(); e++ )
+			{
+				final DefaultWeightedEdge edge = graph.addEdge( blockSpots[ track.edgeSources[ e ] ], blockSpots[ track.edgeTargets[ e ] ] );
+				graph.setEdgeWeight( edge, track.edgeWeights[ e ] );
+				edgeSet.add( edge );
+				final double[] values = new double[ edgeKeys.length ];
+				final boolean[] present = new boolean[ edgeKeys.length ];
+				for ( int k = 0; k < edgeKeys.length; k++ )
+				{
+					values[ k ] = track.edgeFeatures[ k ][ e ];
+					present[ k ] = track.edgePresent[ k ][ e ];
+				}
+				edgeValues.put( edge, values );
+				edgePresent.put( edge, present );
+			}
+			trackSpots.put( id, spotSet );
+			trackEdges.put( id, edgeSet );
+			trackVisibility.put( id, Boolean.valueOf( track.visible ) );
+			trackNames.put( id, track.name );
+			trackValues.put( id, track.trackFeatures );
+			trackPresent.put( id, track.trackPresent );
+		}
+
+		model.beginUpdate();
+		try
+		{
+			model.setSpots( spots, false );
+			model.getTrackModel().from( graph, trackSpots, trackEdges, trackVisibility, trackNames );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		for ( final DefaultWeightedEdge edge : edgeValues.keySet() )
+		{
+			final double[] values = edgeValues.get( edge );
+			final boolean[] present = edgePresent.get( edge );
+			for ( int k = 0; k < edgeKeys.length; k++ )
+			{
+				if ( present[ k ] )
+				{
+					fm.putEdgeFeature( edge, edgeKeys[ k ], Double.valueOf( values[ k ] ) );
+				}
+			}
+		}
+		for ( final Integer id : trackValues.keySet() )
+		{
+			final double[] values = trackValues.get( id );
+			final boolean[] present = trackPresent.get( id );
+			for ( int k = 0; k < trackKeys.length; k++ )
+			{
+				if ( present[ k ] )
+				{
+					fm.putTrackFeature( id, trackKeys[ k ], Double.valueOf( values[ k ] ) );
+				}
+			}
+		}
+		return model;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		inflater.end();
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Optofluidics snapshot " + file + ", " + blockOfTrack.size() + " tracks" + ( compressed ? ", compressed." : "." );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private TrackBlock readTrackBlock( final int block ) throws IOException
+	{
+		final DataInputStream in = readBlock( blockOffsets[ block ], blockLengths[ block ] );
+		final int trackID = in.readInt();
+		final String name = readString( in );
+		final boolean visible = in.readBoolean();
+
+		final int nSpots = in.readInt();
+		final int[] spotIDs = new int[ nSpots ];
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			spotIDs[ i ] = in.readInt();
+		}
+		final String[] spotNames = new String[ nSpots ];
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			spotNames[ i ] = readString( in );
+		}
+		final double[][] spotFeatures = new double[ spotKeys.length ][ nSpots ];
+		final boolean[][] spotPresent = new boolean[ spotKeys.length ][ nSpots ];
+		readColumns( in, spotFeatures, spotPresent );
+
+		final int nEdges = in.readInt();
+		final int[] sources = new int[ nEdges ];
+		final int[] targets = new int[ nEdges ];
+		final double[] weights = new double[ nEdges ];
+		for ( int e = 0; e < nEdges; e++ )
+		{
+			sources[ e ] = in.readInt();
+		}
+		for ( int e = 0; e < nEdges; e++ )
+		{
+			targets[ e ] = in.readInt();
+		}
+		for ( int e = 0; e < nEdges; e++ )
+		{
+			weights[ e ] = in.readDouble();
+		}
+		final double[][] edgeFeatures;
+		final boolean[][] edgePresent;
+		final double[] trackFeatures;
+		final boolean[] trackPresent;
+		if ( trackID == NO_TRACK )
+		{
+			edgeFeatures = new double[ edgeKeys.length ][ 0 ];
+			edgePresent = new boolean[ edgeKeys.length ][ 0 ];
+			trackFeatures = new double[ 0 ];
+			trackPresent = new boolean[ 0 ];
+		}
+		else
+		{
+			edgeFeatures = new double[ edgeKeys.length ][ nEdges ];
+			edgePresent = new boolean[ edgeKeys.length ][ nEdges ];
+			readColumns( in, edgeFeatures, edgePresent );
+			trackFeatures = new double[ trackKeys.length ];
+			trackPresent = new boolean[ trackKeys.length ];
+			readColumn( in, version, trackFeatures, trackPresent );
+		}
+		return new TrackBlock( trackID, name, visible, spotIDs, spotNames, spotKeys, spotFeatures, spotPresent, sources, targets, weights, edgeKeys, edgeFeatures, edgePresent, trackKeys, trackFeatures, trackPresent );
+	}
+
+	private void readColumns( final DataInputStream in, final double[][] columns, final boolean[][] present ) throws IOException
+	{
+		for ( int c = 0; c < columns.length; c++ )
+		{
+			readColumn( in, version, columns[ c ], present[ c ] );
+		}
+	}
+
+	/**
+	 * Reads a block, including its header, and returns a stream over its
+	 * inflated content.
+	 */
+	private DataInputStream readBlock( final long offset, final int length ) throws IOException
+	{
+		final ByteBuffer buffer = readFully( offset, length );
+		final int storedLength = buffer.getInt();
+		final int rawLength = buffer.getInt();
+		final byte[] raw = new byte[ rawLength ];
+		if ( compressed )
+		{
+			final byte[] stored = new byte[ storedLength ];
+			buffer.get( stored );
+			synchronized ( inflater )
+			{
+				inflater.reset();
+				inflater.setInput( stored );
+				try
+				{
+					int n = 0;
+					while ( n < rawLength )
+					{
+						final int inflated = inflater.inflate( raw, n, rawLength - n );
+						if ( inflated == 0 )
+						{
+							// Finished, or missing input or dictionary: the block is shorter than declared.
+							throw new IOException( "Truncated block at offset " + offset + " in snapshot file " + file + ": inflated " + n + " bytes out of " + rawLength + "." );
+						}
+						n += inflated;
+					}
+				}
+				catch ( final DataFormatException e )
+				{
+					throw new IOException( "Corrupted block at offset " + offset + " in snapshot file " + file + ": " + e.getMessage() );
+				}
+			}
+		}
+		else
+		{
+			buffer.get( raw );
+		}
+		return new DataInputStream( new ByteArrayInputStream( raw ) );
+	}
+
+	private ByteBuffer readFully( final long position, final int length ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( length );
+		long pos = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, pos );
+			if ( n < 0 ) { throw new IOException( "Unexpected end of snapshot file " + file + "." ); }
+			pos += n;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static FeatureDeclarations readDeclarations( final DataInputStream in ) throws IOException
+	{
+		final FeatureDeclarations declarations = new FeatureDeclarations();
+		final int n = in.readInt();
+		for ( int i = 0; i < n; i++ )
+		{
+			declarations.add( readString( in ), readString( in ), readString( in ), readString( in ), in.readBoolean() );
+		}
+		return declarations;
+	}
+
+	private static String[] readKeys( final DataInputStream in ) throws IOException
+	{
+		final String[] keys = new String[ in.readInt() ];
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			keys[ i ] = readString( in );
+		}
+		return keys;
+	}
+
+	private static Map< String, Object > readMap( final DataInputStream in ) throws IOException
+	{
+		final int size = in.readInt();
+		if ( size < 0 ) { return null; }
+		final Map< String, Object > map = new HashMap< String, Object >( size );
+		for ( int i = 0; i < size; i++ )
+		{
+			final String key = readString( in );
+			final byte type = in.readByte();
+			switch ( type )
+			{
+			case 'I':
+				map.put( key, Integer.valueOf( in.readInt() ) );
+				break;
+			case 'L':
+				map.put( key, Long.valueOf( in.readLong() ) );
+				break;
+			case 'D':
+				map.put( key, Double.valueOf( in.readDouble() ) );
+				break;
+			case 'B':
+				map.put( key, Boolean.valueOf( in.readBoolean() ) );
+				break;
+			default:
+				map.put( key, readString( in ) );
+				break;
+			}
+		}
+		return map;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The content of a single block: the spots and edges of a track, stored
+	 * column by column, and its features. Edges refer to spots by their index
+	 * in the block.
+	 */
+	public static final class TrackBlock
+	{
+
+		public final int trackID;
+
+		public final String name;
+
+		public final boolean visible;
+
+		public final int[] spotIDs;
+
+		public final String[] spotNames;
+
+		public final String[] spotKeys;
+
+		/**
+		 * Spot feature values, <code>[feature][spot]</code>, in the order of
+		 * {@link #spotKeys}.
+		 */
+		public final double[][] spotFeatures;
+
+		/**
+		 * Whether each spot feature value is present, <code>[feature][spot]</code>.
+		 */
+		public final boolean[][] spotPresent;
+
+		public final int[] edgeSources;
+
+		public final int[] edgeTargets;
+
+		public final double[] edgeWeights;
+
+		public final String[] edgeKeys;
+
+		/**
+		 * Edge feature values, <code>[feature][edge]</code>, in the order of
+		 * {@link #edgeKeys}.
+		 */
+		public final double[][] edgeFeatures;
+
+		/**
+		 * Whether each edge feature value is present, <code>[feature][edge]</code>.
+		 */
+		public final boolean[][] edgePresent;
+
+		public final String[] trackKeys;
+
+		public final double[] trackFeatures;
+
+		public final boolean[] trackPresent;
+
+		private TrackBlock( final int trackID, final String name, final boolean visible, final int[] spotIDs, final String[] spotNames, final String[] spotKeys, final double[][] spotFeatures, final boolean[][] spotPresent, final int[] edgeSources, final int[] edgeTargets, final double[] edgeWeights, final String[] edgeKeys, final double[][] edgeFeatures, final boolean[][] edgePresent, final String[] trackKeys, final double[] trackFeatures, final boolean[] trackPresent )
+		{
+			this.trackID = trackID;
+			this.name = name;
+			this.visible = visible;
+			this.spotIDs = spotIDs;
+			this.spotNames = spotNames;
+			this.spotKeys = spotKeys;
+			this.spotFeatures = spotFeatures;
+			this.spotPresent = spotPresent;
+			this.edgeSources = edgeSources;
+			this.edgeTargets = edgeTargets;
+			this.edgeWeights = edgeWeights;
+			this.edgeKeys = edgeKeys;
+			this.edgeFeatures = edgeFeatures;
+			this.edgePresent = edgePresent;
+			this.trackKeys = trackKeys;
+			this.trackFeatures = trackFeatures;
+			this.trackPresent = trackPresent;
+		}
+
+		public int nSpots()
+		{
+			return spotIDs.length;
+		}
+
+		public int nEdges()
+		{
+			return edgeSources.length;
+		}
+
+		/**
+		 * Returns the values of the specified spot feature.
+		 *
+		 * @param key
+		 *            the feature key.
+		 * @return the values, one per spot, or <code>null</code> if the
+		 *         feature is not stored. Missing values are
+		 *         <code>NaN</code>.
+		 */
+		public double[] getSpotFeature( final String key )
+		{
+			final int k = Arrays.asList( spotKeys ).indexOf( key );
+			return k < 0 ? null : spotFeatures[ k ];
+		}
+
+		/**
+		 * Returns the values of the specified edge feature.
+		 *
+		 * @param key
+		 *            the feature key.
+		 * @return the values, one per edge, or <code>null</code> if the
+		 *         feature is not stored. Missing values are
+		 *         <code>NaN</code>.
+		 */
+		public double[] getEdgeFeature( final String key )
+		{
+			final int k = Arrays.asList( edgeKeys ).indexOf( key );
+			return k < 0 ? null : edgeFeatures[ k ];
+		}
+
+		/**
+		 * Creates new spots from this block, with their original IDs, names
+		 * and features.
+		 *
+		 * @return a new array of spots.
+		 */
+		public Spot[] createSpots()
+		{
+			final Spot[] spots = new Spot[ spotIDs.length ];
+			for ( int i = 0; i < spots.length; i++ )
+			{
+				final Spot spot = new Spot( spotIDs[ i ] );
+				spot.setName( spotNames[ i ] );
+				for ( int k = 0; k < spotKeys.length; k++ )
+				{
+					if ( spotPresent[ k ][ i ] )
+					{
+						spot.putFeature( spotKeys[ k ], Double.valueOf( spotFeatures[ k ][ i ] ) );
+					}
+				}
+				spots[ i ] = spot;
+			}
+			return spots;
+		}
+	}
+}
@@ -0,0 +1,457 @@
+package com.optofluidics.io;
+
+import static com.optofluidics.io.SnapshotFormat.BLOCK_HEADER_LENGTH;
+import static com.optofluidics.io.SnapshotFormat.END_MAGIC;
+import static com.optofluidics.io.SnapshotFormat.FLAG_DEFLATE;
+import static com.optofluidics.io.SnapshotFormat.LONE_SPOTS_PER_BLOCK;
+import static com.optofluidics.io.SnapshotFormat.MAGIC;
+import static com.optofluidics.io.SnapshotFormat.NO_TRACK;
+import static com.optofluidics.io.SnapshotFormat.VERSION;
+import static com.optofluidics.io.SnapshotFormat.writeColumn;
+import static com.optofluidics.io.SnapshotFormat.writeString;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import com.optofluidics.io.SnapshotFormat.BlockOutputStream;
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Writes a model, its settings and its log to a compact binary snapshot file,
+ * as an alternative to the TrackMate XML file. Tracks are written one block at
+ * a time, so that memory does not grow with the size of the model, and can be
+ * read back individually with the {@link SnapshotReader}.
+ * <p>
+ * Spot features are written for all the keys found in the spot feature maps,
+ * edge and track features for all the features declared in the feature
+ * model. Which values are present is stored along with them, so that missing
+ * values and <code>NaN</code> values are read back as they were.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ * @see SnapshotFormat
+ */
+public class SnapshotWriter
+{
+
+	/**
+	 * The extension of snapshot files.
+	 */
+	public static final String EXTENSION = ".ofs";
+
+	private final File file;
+
+	private boolean compress = true;
+
+	private FileChannel channel;
+
+	private final BlockOutputStream block = new BlockOutputStream( 1 << 16 );
+
+	private final DataOutputStream out = new DataOutputStream( block );
+
+	private final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+
+	private byte[] deflated = new byte[ 1 << 16 ];
+
+	private Double[] columnBuffer = new Double[ 1 << 10 ];
+
+	private final List< long[] > index = new ArrayList< long[] >();
+
+	public SnapshotWriter( final File file )
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Sets whether blocks are compressed. Compression is on by default.
+	 *
+	 * @param compress
+	 *            whether to compress blocks.
+	 */
+	public void setCompress( final boolean compress )
+	{
+		this.compress = compress;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the specified model, settings and log to the file. The file is
+	 * overwritten.
+	 *
+	 * @param model
+	 *            the model to write.
+	 * @param settings
+	 *            the settings to write. Can be <code>null</code>.
+	 * @param log
+	 *            the log to write. Can be <code>null</code>.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	@SuppressWarnings( "resource" )
+	public void write( final Model model, final Settings settings, final String log ) throws IOException
+	{
+		index.clear();
+		channel = new FileOutputStream( file ).getChannel();
+		try
+		{
+			final ByteBuffer fileHeader = ByteBuffer.allocate( SnapshotFormat.FILE_HEADER_LENGTH );
+			fileHeader.put( MAGIC );
+			fileHeader.putInt( VERSION );
+			fileHeader.putInt( compress ? FLAG_DEFLATE : 0 );
+			fileHeader.flip();
+			writeFully( fileHeader );
+
+			final FeatureModel fm = model.getFeatureModel();
+			final TrackModel trackModel = model.getTrackModel();
+			final String[] spotKeys = collectSpotKeys( model );
+			final String[] edgeKeys = fm.getEdgeFeatures().toArray( new String[ 0 ] );
+			final String[] trackKeys = fm.getTrackFeatures().toArray( new String[ 0 ] );
+
+			/*
+			 * Header block.
+			 */
+
+			block.reset();
+			writeString( out, model.getSpaceUnits() );
+			writeString( out, model.getTimeUnits() );
+			writeDeclarations( fm.getSpotFeatures(), fm.getSpotFeatureNames(), fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), fm.getSpotFeatureIsInt() );
+			writeKeys( spotKeys );
+			writeDeclarations( fm.getEdgeFeatures(), fm.getEdgeFeatureNames(), fm.getEdgeFeatureShortNames(), fm.getEdgeFeatureDimensions(), fm.getEdgeFeatureIsInt() );
+			writeKeys( edgeKeys );
+			writeDeclarations( fm.getTrackFeatures(), fm.getTrackFeatureNames(), fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), fm.getTrackFeatureIsInt() );
+			writeKeys( trackKeys );
+			writeSettings( settings );
+			writeString( out, log );
+			flushBlock( null );
+
+			/*
+			 * Tracks.
+			 */
+
+			final TrackIndex trackIndex = TrackIndex.get( model );
+			for ( final Integer trackID : trackModel.trackIDs( false ) )
+			{
+				final SortedTrack track = trackIndex.getTrack( trackID );
+				block.reset();
+				out.writeInt( trackID.intValue() );
+				writeString( out, trackModel.name( trackID ) );
+				out.writeBoolean( trackModel.isVisible( trackID ) );
+				writeSpots( track.spots, track.spots.length, spotKeys );
+
+				out.writeInt( track.nEdges() );
+				for ( int e = 0; e < track.nEdges(); e++ )
+				{
+					out.writeInt( track.sources[ e ] );
+				}
+				for ( int e = 0; e < track.nEdges(); e++ )
+				{
+					out.writeInt( track.targets[ e ] );
+				}
+				for ( int e = 0; e < track.nEdges(); e++ )
+				{
+					out.writeDouble( trackModel.getEdgeWeight( track.edges[ e ] ) );
+				}
+				final Double[] edgeValues = column( track.nEdges() );
+				for ( final String key : edgeKeys )
+				{
+					for ( int e = 0; e < track.nEdges(); e++ )
+					{
+						edgeValues[ e ] = fm.getEdgeFeature( track.edges[ e ], key );
+					}
+					writeColumn( out, edgeValues, track.nEdges() );
+				}
+
+				final Double[] trackValues = column( trackKeys.length );
+				for ( int k = 0; k < trackKeys.length; k++ )
+				{
+					trackValues[ k ] = fm.getTrackFeature( trackID, trackKeys[ k ] );
+				}
+				writeColumn( out, trackValues, trackKeys.length );
+				flushBlock( trackID );
+			}
+
+			/*
+			 * Spots not in tracks, by chunks.
+			 */
+
+			final Spot[] lone = new Spot[ LONE_SPOTS_PER_BLOCK ];
+			int nLone = 0;
+			for ( final Spot spot : model.getSpots().iterable( false ) )
+			{
+				if ( null != trackModel.trackIDOf( spot ) )
+				{
+					continue;
+				}
+				lone[ nLone++ ] = spot;
+				if ( nLone == lone.length )
+				{
+					writeLoneSpots( lone, nLone, spotKeys );
+					nLone = 0;
+				}
+			}
+			if ( nLone > 0 )
+			{
+				writeLoneSpots( lone, nLone, spotKeys );
+			}
+
+			/*
+			 * Index and footer.
+			 */
+
+			final long indexOffset = channel.position();
+			final ByteBuffer indexBuffer = ByteBuffer.allocate( 4 + index.size() * ( 4 + 8 + 4 ) );
+			indexBuffer.putInt( index.size() );
+			for ( final long[] entry : index )
+			{
+				indexBuffer.putInt( ( int ) entry[ 0 ] );
+				indexBuffer.putLong( entry[ 1 ] );
+				indexBuffer.putInt( ( int ) entry[ 2 ] );
+			}
+			indexBuffer.flip();
+			writeFully( indexBuffer );
+
+			final ByteBuffer footer = ByteBuffer.allocate( SnapshotFormat.FOOTER_LENGTH );
+			footer.putLong( indexOffset );
+			footer.put( END_MAGIC );
+			footer.flip();
+			writeFully( footer );
+		}
+		finally
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void writeLoneSpots( final Spot[] spots, final int nSpots, final String[] spotKeys ) throws IOException
+	{
+		block.reset();
+		out.writeInt( NO_TRACK );
+		writeString( out, null );
+		out.writeBoolean( true );
+		writeSpots( spots, nSpots, spotKeys );
+		out.writeInt( 0 );
+		flushBlock( Integer.valueOf( NO_TRACK ) );
+	}
+
+	private void writeSpots( final Spot[] spots, final int nSpots, final String[] spotKeys ) throws IOException
+	{
+		out.writeInt( nSpots );
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			out.writeInt( spots[ i ].ID() );
+		}
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			writeString( out, spots[ i ].getName() );
+		}
+		final Double[] values = column( nSpots );
+		for ( final String key : spotKeys )
+		{
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				values[ i ] = spots[ i ].getFeature( key );
+			}
+			writeColumn( out, values, nSpots );
+		}
+	}
+
+	private void writeDeclarations( final Collection< String > features, final Map< String, String > names, final Map< String, String > shortNames, final Map< String, Dimension > dimensions, final Map< String, Boolean > isInt ) throws IOException
+	{
+		out.writeInt( features.size() );
+		for ( final String feature : features )
+		{
+			final Dimension dimension = dimensions.get( feature );
+			final Boolean integer = isInt.get( feature );
+			writeString( out, feature );
+			writeString( out, names.get( feature ) );
+			writeString( out, shortNames.get( feature ) );
+			writeString( out, null == dimension ? null : dimension.name() );
+			out.writeBoolean( null != integer && integer.booleanValue() );
+		}
+	}
+
+	private void writeKeys( final String[] keys ) throws IOException
+	{
+		out.writeInt( keys.length );
+		for ( final String key : keys )
+		{
+			writeString( out, key );
+		}
+	}
+
+	private void writeSettings( final Settings settings ) throws IOException
+	{
+		out.writeBoolean( null != settings );
+		if ( null == settings ) { return; }
+
+		writeString( out, settings.imageFileName );
+		writeString( out, settings.imageFolder );
+		for ( final int val : new int[] { settings.width, settings.height, settings.nslices, settings.nframes,
+				settings.xstart, settings.xend, settings.ystart, settings.yend,
+				settings.zstart, settings.zend, settings.tstart, settings.tend } )
+		{
+			out.writeInt( val );
+		}
+		out.writeDouble( settings.dx );
+		out.writeDouble( settings.dy );
+		out.writeDouble( settings.dz );
+		out.writeDouble( settings.dt );
+		out.writeDouble( settings.initialSpotFilterValue );
+		writeString( out, null == settings.detectorFactory ? null : settings.detectorFactory.getKey() );
+		writeMap( settings.detectorSettings );
+		writeString( out, null == settings.trackerFactory ? null : settings.trackerFactory.getKey() );
+		writeMap( settings.trackerSettings );
+	}
+
+	/**
+	 * Writes a settings map. Numbers, booleans and strings are stored with
+	 * their type, other values are stored as strings.
+	 */
+	private void writeMap( final Map< String, Object > map ) throws IOException
+	{
+		if ( null == map )
+		{
+			out.writeInt( -1 );
+			return;
+		}
+		out.writeInt( map.size() );
+		for ( final String key : map.keySet() )
+		{
+			final Object val = map.get( key );
+			writeString( out, key );
+			if ( val instanceof Integer )
+			{
+				out.writeByte( 'I' );
+				out.writeInt( ( ( Integer ) val ).intValue() );
+			}
+			else if ( val instanceof Long )
+			{
+				out.writeByte( 'L' );
+				out.writeLong( ( ( Long ) val ).longValue() );
+			}
+			else if ( val instanceof Number )
+			{
+				out.writeByte( 'D' );
+				out.writeDouble( ( ( Number ) val ).doubleValue() );
+			}
+			else if ( val instanceof Boolean )
+			{
+				out.writeByte( 'B' );
+				out.writeBoolean( ( ( Boolean ) val ).booleanValue() );
+			}
+			else
+			{
+				out.writeByte( 'S' );
+				writeString( out, null == val ? null : val.toString() );
+			}
+		}
+	}
+
+	/**
+	 * Writes the current block to the file, compressed if needed, and records
+	 * it in the index, unless the track ID is <code>null</code>.
+	 */
+	private void flushBlock( final Integer trackID ) throws IOException
+	{
+		out.flush();
+		final int rawLength = block.size();
+		byte[] bytes = block.buffer();
+		int storedLength = rawLength;
+		if ( compress )
+		{
+			deflater.reset();
+			deflater.setInput( bytes, 0, rawLength );
+			deflater.finish();
+			storedLength = 0;
+			while ( !deflater.finished() )
+			{
+				if ( storedLength == deflated.length )
+				{
+					final byte[] larger = new byte[ 2 * deflated.length ];
+					System.arraycopy( deflated, 0, larger, 0, storedLength );
+					deflated = larger;
+				}
+				storedLength += deflater.deflate( deflated, storedLength, deflated.length - storedLength );
+			}
+			bytes = deflated;
+		}
+
+		final long offset = channel.position();
+		final ByteBuffer header = ByteBuffer.allocate( BLOCK_HEADER_LENGTH );
+		header.putInt( storedLength );
+		header.putInt( rawLength );
+		header.flip();
+		writeFully( header );
+		writeFully( ByteBuffer.wrap( bytes, 0, storedLength ) );
+
+		if ( null != trackID )
+		{
+			index.add( new long[] { trackID.longValue(), offset, BLOCK_HEADER_LENGTH + storedLength } );
+		}
+	}
+
+	private void writeFully( final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			channel.write( buffer );
+		}
+	}
+
+	/**
+	 * Returns the union of the feature keys of all spots, declared ones
+	 * first, so that undeclared values such as the visibility are kept.
+	 */
+	private static String[] collectSpotKeys( final Model model )
+	{
+		final Set< String > keys = new LinkedHashSet< String >( model.getFeatureModel().getSpotFeatures() );
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+		{
+			final Set< String > spotKeys = spot.getFeatures().keySet();
+			if ( !keys.containsAll( spotKeys ) )
+			{
+				keys.addAll( spotKeys );
+			}
+		}
+		return keys.toArray( new String[ keys.size() ] );
+	}
+
+	/**
+	 * Returns a buffer for a column of at least the specified size, reused
+	 * from one column to the next.
+	 */
+	private Double[] column( final int size )
+	{
+		if ( columnBuffer.length < size )
+		{
+			columnBuffer = new Double[ Math.max( size, 2 * columnBuffer.length ) ];
+		}
+		return columnBuffer;
+	}
+}
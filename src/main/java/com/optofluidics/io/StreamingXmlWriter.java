@@ -0,0 +1,441 @@
+package com.optofluidics.io;
+
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.EDGE_COST;
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.SPOT_SOURCE_ID;
+import static fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer.SPOT_TARGET_ID;
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DECLARATIONS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ISINT_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.GUI_STATE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.GUI_STATE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.GUI_VIEW_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.GUI_VIEW_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.PLUGIN_VERSION_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.ROOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FILTER_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.StAXStreamOutputter;
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.gui.descriptors.ConfigureViewsDescriptor;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+
+/**
+ * Writes a model, its settings and its log to a TrackMate XML file, without
+ * building the JDOM tree of the whole model first. Spots and tracks are
+ * streamed to the file as they are iterated, optionally through a gzip
+ * stream. Only the settings, which are small, are still built by TrackMate's
+ * {@link TmXmlWriter}.
+ * <p>
+ * Uncompressed files can be opened by TrackMate. Compressed files can be read
+ * by the {@link LazyXmlReader}, or by TrackMate once decompressed.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class StreamingXmlWriter
+{
+
+	/**
+	 * The extension of TrackMate XML files.
+	 */
+	public static final String EXTENSION = ".xml";
+
+	/**
+	 * The extension appended to compressed files.
+	 */
+	public static final String GZIP_EXTENSION = ".gz";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File file;
+
+	private final Logger logger;
+
+	private boolean compress = false;
+
+	private String viewKey;
+
+	private XMLStreamWriter xml;
+
+	private int depth;
+
+	/**
+	 * Creates a writer for the specified file.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param logger
+	 *            the logger to report the settings marshalling to.
+	 */
+	public StreamingXmlWriter( final File file, final Logger logger )
+	{
+		this.file = file;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets whether the file is compressed with gzip. Compression is off by
+	 * default, so that TrackMate can open the file.
+	 *
+	 * @param compress
+	 *            whether to compress the file.
+	 */
+	public void setCompress( final boolean compress )
+	{
+		this.compress = compress;
+	}
+
+	/**
+	 * Sets the key of the view TrackMate should open when the file is loaded
+	 * in its GUI.
+	 *
+	 * @param viewKey
+	 *            the view factory key. If <code>null</code>, no GUI state is
+	 *            written.
+	 */
+	public void setViewKey( final String viewKey )
+	{
+		this.viewKey = viewKey;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the specified model, settings and log to the file. The file is
+	 * overwritten.
+	 *
+	 * @param model
+	 *            the model to write.
+	 * @param settings
+	 *            the settings to write. Can be <code>null</code>.
+	 * @param log
+	 *            the log to write. Can be <code>null</code>.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write( final Model model, final Settings settings, final String log ) throws IOException
+	{
+		/*
+		 * Marshall the settings and log first, with TrackMate's writer.
+		 */
+
+		final SettingsMarshaller marshaller = new SettingsMarshaller( file, logger );
+		if ( null != settings )
+		{
+			marshaller.appendSettings( settings );
+		}
+		if ( null != log )
+		{
+			marshaller.appendLog( log );
+		}
+
+		OutputStream out = new BufferedOutputStream( new FileOutputStream( file ), BUFFER_SIZE );
+		boolean done = false;
+		try
+		{
+			if ( compress )
+			{
+				out = new GZIPOutputStream( out, BUFFER_SIZE );
+			}
+			xml = XMLOutputFactory.newInstance().createXMLStreamWriter( out, "UTF-8" );
+			depth = 0;
+			xml.writeStartDocument( "UTF-8", "1.0" );
+			startElement( ROOT_ELEMENT_KEY );
+			final String version = marshaller.getRoot().getAttributeValue( PLUGIN_VERSION_ATTRIBUTE_NAME );
+			if ( null != version )
+			{
+				xml.writeAttribute( PLUGIN_VERSION_ATTRIBUTE_NAME, version );
+			}
+
+			writeModel( model );
+
+			final StAXStreamOutputter outputter = new StAXStreamOutputter( Format.getPrettyFormat() );
+			for ( final Element element : marshaller.getRoot().getChildren() )
+			{
+				indent();
+				outputter.output( element, xml );
+			}
+
+			if ( null != viewKey )
+			{
+				startElement( GUI_STATE_ELEMENT_KEY );
+				xml.writeAttribute( GUI_STATE_ATTRIBUTE, ConfigureViewsDescriptor.KEY );
+				emptyElement( GUI_VIEW_ELEMENT_KEY );
+				xml.writeAttribute( GUI_VIEW_ATTRIBUTE, viewKey );
+				endElement();
+			}
+
+			endElement();
+			xml.writeEndDocument();
+			xml.close();
+			done = true;
+		}
+		catch ( final XMLStreamException e )
+		{
+			throw new IOException( "Could not write XML to " + file + ": " + e.getMessage() );
+		}
+		finally
+		{
+			xml = null;
+			if ( done )
+			{
+				out.close();
+			}
+			else
+			{
+				try
+				{
+					out.close();
+				}
+				catch ( final IOException e )
+				{
+					// Keep the original exception.
+				}
+			}
+		}
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void writeModel( final Model model ) throws XMLStreamException
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackModel trackModel = model.getTrackModel();
+
+		startElement( MODEL_ELEMENT_KEY );
+		xml.writeAttribute( SPATIAL_UNITS_ATTRIBUTE_NAME, model.getSpaceUnits() );
+		xml.writeAttribute( TIME_UNITS_ATTRIBUTE_NAME, model.getTimeUnits() );
+
+		/*
+		 * Feature declarations.
+		 */
+
+		startElement( FEATURE_DECLARATIONS_ELEMENT_KEY );
+		writeDeclarations( SPOT_FEATURES_ELEMENT, fm.getSpotFeatures(), fm.getSpotFeatureNames(), fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), fm.getSpotFeatureIsInt() );
+		writeDeclarations( EDGE_FEATURES_ELEMENT, fm.getEdgeFeatures(), fm.getEdgeFeatureNames(), fm.getEdgeFeatureShortNames(), fm.getEdgeFeatureDimensions(), fm.getEdgeFeatureIsInt() );
+		writeDeclarations( TRACK_FEATURES_ELEMENT, fm.getTrackFeatures(), fm.getTrackFeatureNames(), fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), fm.getTrackFeatureIsInt() );
+		endElement();
+
+		/*
+		 * Spots, frame by frame.
+		 */
+
+		final SpotCollection spots = model.getSpots();
+		final Map< String, Boolean > spotIsInt = fm.getSpotFeatureIsInt();
+		startElement( SPOT_COLLECTION_ELEMENT_KEY );
+		xml.writeAttribute( SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME, Integer.toString( spots.getNSpots( false ) ) );
+		for ( final Integer frame : spots.keySet() )
+		{
+			startElement( SPOT_FRAME_COLLECTION_ELEMENT_KEY );
+			xml.writeAttribute( FRAME_ATTRIBUTE_NAME, frame.toString() );
+			for ( final Spot spot : spots.iterable( frame.intValue(), false ) )
+			{
+				emptyElement( SPOT_ELEMENT_KEY );
+				xml.writeAttribute( SPOT_ID_ATTRIBUTE_NAME, Integer.toString( spot.ID() ) );
+				xml.writeAttribute( SPOT_NAME_ATTRIBUTE_NAME, null == spot.getName() ? "" : spot.getName() );
+				for ( final Map.Entry< String, Double > entry : spot.getFeatures().entrySet() )
+				{
+					if ( null == entry.getValue() )
+					{
+						continue;
+					}
+					xml.writeAttribute( entry.getKey(), toString( entry.getValue(), spotIsInt.get( entry.getKey() ) ) );
+				}
+			}
+			endElement();
+		}
+		endElement();
+
+		/*
+		 * Tracks and their edges.
+		 */
+
+		final Collection< String > edgeFeatures = fm.getEdgeFeatures();
+		final Map< String, Boolean > edgeIsInt = fm.getEdgeFeatureIsInt();
+		final Collection< String > trackFeatures = fm.getTrackFeatures();
+		final Map< String, Boolean > trackIsInt = fm.getTrackFeatureIsInt();
+		startElement( TRACK_COLLECTION_ELEMENT_KEY );
+		for ( final Integer trackID : trackModel.trackIDs( false ) )
+		{
+			startElement( TRACK_ELEMENT_KEY );
+			xml.writeAttribute( TRACK_NAME_ATTRIBUTE_NAME, trackModel.name( trackID ) );
+			xml.writeAttribute( TRACK_ID_ATTRIBUTE_NAME, trackID.toString() );
+			for ( final String feature : trackFeatures )
+			{
+				final Double val = fm.getTrackFeature( trackID, feature );
+				if ( null == val || TRACK_ID_ATTRIBUTE_NAME.equals( feature ) )
+				{
+					continue;
+				}
+				xml.writeAttribute( feature, toString( val, trackIsInt.get( feature ) ) );
+			}
+
+			for ( final DefaultWeightedEdge edge : trackModel.trackEdges( trackID ) )
+			{
+				emptyElement( TRACK_EDGE_ELEMENT_KEY );
+				xml.writeAttribute( SPOT_SOURCE_ID, Integer.toString( trackModel.getEdgeSource( edge ).ID() ) );
+				xml.writeAttribute( SPOT_TARGET_ID, Integer.toString( trackModel.getEdgeTarget( edge ).ID() ) );
+				xml.writeAttribute( EDGE_COST, Double.toString( trackModel.getEdgeWeight( edge ) ) );
+				for ( final String feature : edgeFeatures )
+				{
+					if ( SPOT_SOURCE_ID.equals( feature ) || SPOT_TARGET_ID.equals( feature ) || EDGE_COST.equals( feature ) )
+					{
+						continue;
+					}
+					final Double val = fm.getEdgeFeature( edge, feature );
+					if ( null == val )
+					{
+						continue;
+					}
+					xml.writeAttribute( feature, toString( val, edgeIsInt.get( feature ) ) );
+				}
+			}
+			endElement();
+		}
+		endElement();
+
+		/*
+		 * Visible tracks.
+		 */
+
+		startElement( TRACK_FILTER_COLLECTION_ELEMENT_KEY );
+		for ( final Integer trackID : trackModel.trackIDs( true ) )
+		{
+			emptyElement( TRACK_ID_ELEMENT_KEY );
+			xml.writeAttribute( TRACK_ID_ATTRIBUTE_NAME, trackID.toString() );
+		}
+		endElement();
+
+		endElement();
+	}
+
+	private void writeDeclarations( final String elementName, final Collection< String > features, final Map< String, String > names, final Map< String, String > shortNames, final Map< String, Dimension > dimensions, final Map< String, Boolean > isInt ) throws XMLStreamException
+	{
+		startElement( elementName );
+		for ( final String feature : features )
+		{
+			emptyElement( FEATURE_ELEMENT_KEY );
+			xml.writeAttribute( FEATURE_ATTRIBUTE, feature );
+			xml.writeAttribute( FEATURE_NAME_ATTRIBUTE, names.get( feature ) );
+			xml.writeAttribute( FEATURE_SHORT_NAME_ATTRIBUTE, shortNames.get( feature ) );
+			final Dimension dimension = dimensions.get( feature );
+			xml.writeAttribute( FEATURE_DIMENSION_ATTRIBUTE, ( null == dimension ? Dimension.NONE : dimension ).name() );
+			final Boolean b = isInt.get( feature );
+			xml.writeAttribute( FEATURE_ISINT_ATTRIBUTE, Boolean.toString( null != b && b.booleanValue() ) );
+		}
+		endElement();
+	}
+
+	private static String toString( final Double val, final Boolean isInt )
+	{
+		if ( null != isInt && isInt.booleanValue() ) { return Long.toString( val.longValue() ); }
+		return val.toString();
+	}
+
+	/*
+	 * Elements are indented with tabs, one element per line, as TrackMate
+	 * does.
+	 */
+
+	private void startElement( final String name ) throws XMLStreamException
+	{
+		indent();
+		xml.writeStartElement( name );
+		depth++;
+	}
+
+	private void emptyElement( final String name ) throws XMLStreamException
+	{
+		indent();
+		xml.writeEmptyElement( name );
+	}
+
+	private void endElement() throws XMLStreamException
+	{
+		depth--;
+		indent();
+		xml.writeEndElement();
+	}
+
+	private void indent() throws XMLStreamException
+	{
+		final char[] chars = new char[ depth + 1 ];
+		chars[ 0 ] = '\n';
+		for ( int i = 1; i < chars.length; i++ )
+		{
+			chars[ i ] = '\t';
+		}
+		xml.writeCharacters( chars, 0, chars.length );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Gives access to the JDOM root TrackMate's writer builds, without ever
+	 * writing it to the file.
+	 */
+	private static final class SettingsMarshaller extends TmXmlWriter
+	{
+		private SettingsMarshaller( final File file, final Logger logger )
+		{
+			super( file, logger );
+		}
+
+		private Element getRoot()
+		{
+			return root;
+		}
+	}
+}
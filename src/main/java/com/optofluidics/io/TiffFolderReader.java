@@ -0,0 +1,318 @@
+package com.optofluidics.io;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+/**
+ * Reads a folder of tif files, one frame per file, as written by the cameras,
+ * into a single stack.
+ * <p>
+ * The folder is listed once, and its files are sorted by the numbers in their
+ * names, so that <code>img_10.tif</code> comes after <code>img_9.tif</code>.
+ * The stack is allocated before reading, and the files are read and decoded
+ * in parallel on the {@link SharedExecutor} pool, each straight into its
+ * slice. Each file is read in one go with a {@link FileChannel}, and decoded
+ * from memory by the ImageJ tif decoder.
+ * <p>
+ * Optionally, each frame can be reduced to the sum of its columns as it is
+ * read, giving a stack of line profiles 1 pixel high, as made by the
+ * <code>ColumnProjector_</code> plugin, without ever holding the 2D frames.
+ * <p>
+ * All the files must hold a single plane, of the same size and type.
+ * Otherwise, an exception is thrown, so that the caller can fall back on the
+ * ImageJ folder opener.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class TiffFolderReader
+{
+
+	/**
+	 * Orders file names by the numbers they contain, compared as numbers, and
+	 * by the rest of their characters.
+	 */
+	public static final Comparator< String > NUMERIC_ORDER = new Comparator< String >()
+	{
+		@Override
+		public int compare( final String s1, final String s2 )
+		{
+			int i1 = 0;
+			int i2 = 0;
+			while ( i1 < s1.length() && i2 < s2.length() )
+			{
+				final char c1 = s1.charAt( i1 );
+				final char c2 = s2.charAt( i2 );
+				if ( Character.isDigit( c1 ) && Character.isDigit( c2 ) )
+				{
+					// Compare the two numbers, ignoring leading zeros.
+					int end1 = i1;
+					while ( end1 < s1.length() && Character.isDigit( s1.charAt( end1 ) ) )
+					{
+						end1++;
+					}
+					int end2 = i2;
+					while ( end2 < s2.length() && Character.isDigit( s2.charAt( end2 ) ) )
+					{
+						end2++;
+					}
+					int start1 = i1;
+					while ( start1 < end1 - 1 && s1.charAt( start1 ) == '0' )
+					{
+						start1++;
+					}
+					int start2 = i2;
+					while ( start2 < end2 - 1 && s2.charAt( start2 ) == '0' )
+					{
+						start2++;
+					}
+					final int length = ( end1 - start1 ) - ( end2 - start2 );
+					if ( length != 0 ) { return length; }
+					final int digits = s1.substring( start1, end1 ).compareTo( s2.substring( start2, end2 ) );
+					if ( digits != 0 ) { return digits; }
+					i1 = end1;
+					i2 = end2;
+				}
+				else
+				{
+					if ( c1 != c2 ) { return c1 - c2; }
+					i1++;
+					i2++;
+				}
+			}
+			final int remaining = ( s1.length() - i1 ) - ( s2.length() - i2 );
+			return remaining != 0 ? remaining : s1.compareTo( s2 );
+		}
+	};
+
+	private final File folder;
+
+	private boolean columnSum = false;
+
+	private int numThreads = SharedExecutor.getParallelism();
+
+	/**
+	 * Creates a reader for the specified folder.
+	 *
+	 * @param folder
+	 *            the folder of tif files.
+	 */
+	public TiffFolderReader( final File folder )
+	{
+		this.folder = folder;
+	}
+
+	/**
+	 * Sets whether each frame is reduced to the sum of its columns.
+	 *
+	 * @param columnSum
+	 *            if <code>true</code>, the stack read is made of 32-bit line
+	 *            profiles, 1 pixel high.
+	 */
+	public void setColumnSum( final boolean columnSum )
+	{
+		this.columnSum = columnSum;
+	}
+
+	/**
+	 * Sets the maximal number of files read at once.
+	 *
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reads the folder.
+	 *
+	 * @return a new image, with one slice per file, named after the folder.
+	 * @throws IOException
+	 *             if the folder holds no tif file, if a file cannot be read,
+	 *             or if the files do not all hold a single plane of the same
+	 *             size and type.
+	 */
+	public ImagePlus read() throws IOException
+	{
+		final File[] files = listFrames( folder );
+		if ( files.length == 0 ) { throw new IOException( "Folder " + folder + " does not contain tif files." ); }
+
+		final FileInfo first = decodeHeader( files[ 0 ], readBytes( files[ 0 ] ) );
+		final ImageStack stack = new ImageStack( first.width, columnSum ? 1 : first.height, files.length );
+
+		final AtomicReference< IOException > error = new AtomicReference< IOException >();
+		SharedExecutor.forEach( files.length, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int index )
+			{
+				if ( null != error.get() ) { return; }
+				final File file = files[ index ];
+				try
+				{
+					final byte[] bytes = readBytes( file );
+					final FileInfo fi = decodeHeader( file, bytes );
+					if ( fi.width != first.width || fi.height != first.height || fi.fileType != first.fileType ) { throw new IOException( "File " + file.getName() + " does not match the size or type of " + files[ 0 ].getName() + "." ); }
+					final Object pixels = new ImageReader( fi ).readPixels( new ByteArrayInputStream( bytes ) );
+					if ( null == pixels ) { throw new IOException( "Could not decode " + file.getName() + "." ); }
+					stack.setPixels( columnSum ? sumColumns( pixels, fi.width, fi.height ) : pixels, index + 1 );
+					stack.setSliceLabel( file.getName(), index + 1 );
+				}
+				catch ( final IOException e )
+				{
+					error.compareAndSet( null, e );
+				}
+			}
+		} );
+		if ( null != error.get() ) { throw error.get(); }
+
+		final ImagePlus imp = new ImagePlus( folder.getName(), stack );
+		final Calibration calibration = imp.getCalibration();
+		if ( null != first.unit )
+		{
+			calibration.pixelWidth = first.pixelWidth;
+			calibration.pixelHeight = columnSum ? 1. : first.pixelHeight;
+			calibration.setUnit( first.unit );
+		}
+		return imp;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Lists the tif files of a folder, sorted by the numbers in their names.
+	 *
+	 * @param folder
+	 *            the folder.
+	 * @return the tif files, in frame order.
+	 */
+	public static File[] listFrames( final File folder )
+	{
+		final File[] files = folder.listFiles( new FilenameFilter()
+		{
+			@Override
+			public boolean accept( final File dir, final String name )
+			{
+				return !name.startsWith( "." ) && ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) );
+			}
+		} );
+		if ( null == files ) { return new File[ 0 ]; }
+		Arrays.sort( files, new Comparator< File >()
+		{
+			@Override
+			public int compare( final File f1, final File f2 )
+			{
+				return NUMERIC_ORDER.compare( f1.getName(), f2.getName() );
+			}
+		} );
+		return files;
+	}
+
+	/**
+	 * Reads a whole file in memory.
+	 */
+	private static byte[] readBytes( final File file ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+		try
+		{
+			final long size = channel.size();
+			if ( size > Integer.MAX_VALUE ) { throw new IOException( "File " + file.getName() + " is too large to be a single frame." ); }
+			final ByteBuffer buffer = ByteBuffer.allocate( ( int ) size );
+			while ( buffer.hasRemaining() )
+			{
+				if ( channel.read( buffer ) < 0 )
+				{
+					break;
+				}
+			}
+			return buffer.array();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Decodes the header of a single-plane tif file held in memory.
+	 */
+	private static FileInfo decodeHeader( final File file, final byte[] bytes ) throws IOException
+	{
+		final FileInfo[] infos = new TiffDecoder( new ByteArrayInputStream( bytes ), file.getName() ).getTiffInfo();
+		if ( null == infos || infos.length == 0 ) { throw new IOException( "File " + file.getName() + " is not a tif file." ); }
+		if ( infos.length > 1 || infos[ 0 ].nImages > 1 ) { throw new IOException( "File " + file.getName() + " holds several planes." ); }
+		return infos[ 0 ];
+	}
+
+	/**
+	 * Returns the sum of each column of a plane.
+	 */
+	private static float[] sumColumns( final Object pixels, final int width, final int height ) throws IOException
+	{
+		final float[] sums = new float[ width ];
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] p = ( byte[] ) pixels;
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					sums[ x ] += p[ y * width + x ] & 0xff;
+				}
+			}
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] p = ( short[] ) pixels;
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					sums[ x ] += p[ y * width + x ] & 0xffff;
+				}
+			}
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] p = ( float[] ) pixels;
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					sums[ x ] += p[ y * width + x ];
+				}
+			}
+		}
+		else
+		{
+			throw new IOException( "Cannot sum the columns of color images." );
+		}
+		return sums;
+	}
+}
@@ -0,0 +1,39 @@
+package com.optofluidics.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Helpers shared by the {@link StreamingXmlWriter} and the
+ * {@link LazyXmlReader}. Element and attribute names are the ones of
+ * TrackMate's {@link fiji.plugin.trackmate.io.TmXmlKeys}, so that files can be
+ * exchanged with TrackMate.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+final class TrackMateXml
+{
+
+	private TrackMateXml()
+	{}
+
+	/**
+	 * Opens a buffered stream on the specified XML file, decompressing it if
+	 * it starts with the gzip magic number.
+	 */
+	@SuppressWarnings( "resource" )
+	static InputStream open( final File file ) throws IOException
+	{
+		final BufferedInputStream in = new BufferedInputStream( new FileInputStream( file ), 1 << 16 );
+		in.mark( 2 );
+		final int b0 = in.read();
+		final int b1 = in.read();
+		in.reset();
+		if ( b0 == ( GZIPInputStream.GZIP_MAGIC & 0xff ) && b1 == ( GZIPInputStream.GZIP_MAGIC >>> 8 ) ) { return new GZIPInputStream( in, 1 << 16 ); }
+		return in;
+	}
+}
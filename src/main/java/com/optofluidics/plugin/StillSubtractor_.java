@@ -13,6 +13,7 @@ import ij.process.ImageProcessor;
 import java.io.File;
 import java.util.Arrays;
 
+import com.optofluidics.Icons;
 import com.optofluidics.Main;
 import com.optofluidics.trackmate.visualization.KymographGenerator;
 
@@ -38,7 +39,7 @@ public class StillSubtractor_ implements PlugIn
 		}
 
 		final GenericDialogPlus dialog = new GenericDialogPlus( "Still defects subtractor " + Main.OPTOFLUIDICS_LIB_VERSION );
-		dialog.addImage( Main.OPTOFLUIDICS_ORANGE_LOGO );
+		dialog.addImage( Icons.OPTOFLUIDICS_ORANGE_LOGO );
 		dialog.addMessage( "Choose a still subtraction method." );
 		final String[] names = new String[ Method.values().length ];
 		for ( int i = 0; i < names.length; i++ )
@@ -1,6 +1,6 @@
 package com.optofluidics.spectrumplayer;
 
-import static com.optofluidics.Main.OPTOFLUIDICS_ICON;
+import static com.optofluidics.Icons.OPTOFLUIDICS_ICON;
 import static com.optofluidics.Main.OPTOFLUIDICS_LIB_VERSION;
 import fiji.tool.SliceListener;
 import fiji.tool.SliceObserver;
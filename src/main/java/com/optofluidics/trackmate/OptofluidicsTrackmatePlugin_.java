@@ -7,9 +7,11 @@ import ij.WindowManager;
 
 import java.util.Collection;
 
+import com.optofluidics.trackmate.features.TrackIndex;
 import com.optofluidics.trackmate.gui.descriptors.OptofluidicsSpotFeatureCalculationDescriptor;
 import com.optofluidics.trackmate.gui.descriptors.OptofluidicsStartDialogDescriptor;
 
+import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.TrackMatePlugIn_;
 import fiji.plugin.trackmate.gui.GuiUtils;
@@ -93,6 +95,16 @@ public class OptofluidicsTrackmatePlugin_ extends TrackMatePlugIn_
 		}
 	}
 
+	@Override
+	protected Model createModel()
+	{
+		final Model model = super.createModel();
+		// Register the track index first, so that it is up to date for
+		// listeners that recompute features.
+		TrackIndex.get( model );
+		return model;
+	}
+
 	/*
 	 * MAIN METHOD
 	 */
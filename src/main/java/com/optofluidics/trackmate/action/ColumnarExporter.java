@@ -0,0 +1,371 @@
+package com.optofluidics.trackmate.action;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import com.optofluidics.trackmate.action.TrackFeatureColumns.Column;
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer.VelocitySpectrum;
+import com.optofluidics.util.NpyWriter;
+import com.optofluidics.util.NpyWriter.DType;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Exports the spots, edges and tracks of a model as columns of NumPy
+ * <code>.npy</code> files, one file per feature, in a single folder. This is
+ * much faster to load from Python than the CSV tables, and each column can be
+ * memory-mapped.
+ * <p>
+ * Only the visible tracks are exported, in the order of
+ * {@link fiji.plugin.trackmate.TrackModel#trackIDs(boolean)}. Spots and edges
+ * are grouped by track and sorted by frame. The spots of track <i>i</i> are at
+ * rows <code>SPOT_OFFSET[i]</code> to <code>SPOT_OFFSET[i+1]</code> of the spot
+ * columns, and similarly for edges, so that a single track can be sliced
+ * without scanning the whole column:
+ *
+ * <pre>
+ * offsets = numpy.load( 'track_SPOT_OFFSET.npy' )
+ * x = numpy.load( 'spot_POSITION_X.npy', mmap_mode = 'r' )
+ * xi = x[ offsets[ i ] : offsets[ i + 1 ] ]
+ * </pre>
+ *
+ * Feature values are written as 64-bit floats, missing values as
+ * <code>NaN</code>. IDs are 32-bit integers and offsets 64-bit integers.
+ * Track features are resolved with {@link TrackFeatureColumns}, like the
+ * velocity analysis tables.
+ * <p>
+ * If the model has the {@link TrackVelocitySpectrumAnalyzer} features, the
+ * full velocity autocorrelation and power spectrum curves of each track are
+ * exported too, sliced the same way with the <code>track_VACF_OFFSET</code>
+ * and <code>track_PSD_OFFSET</code> columns: <code>vacf_LAG</code> and
+ * <code>vacf_VALUE</code>, <code>psd_FREQUENCY</code> and
+ * <code>psd_VALUE</code>. Tracks with less than 2 edges have empty curves.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class ColumnarExporter
+{
+
+	public static final String SPOT_PREFIX = "spot_";
+
+	public static final String EDGE_PREFIX = "edge_";
+
+	public static final String TRACK_PREFIX = "track_";
+
+	public static final String EXTENSION = ".npy";
+
+	public static final String ID = "ID";
+
+	public static final String TRACK_ID = "TRACK_ID";
+
+	public static final String SOURCE_ID = "SOURCE_ID";
+
+	public static final String TARGET_ID = "TARGET_ID";
+
+	public static final String SPOT_OFFSET = "SPOT_OFFSET";
+
+	public static final String EDGE_OFFSET = "EDGE_OFFSET";
+
+	public static final String VACF_PREFIX = "vacf_";
+
+	public static final String PSD_PREFIX = "psd_";
+
+	public static final String VACF_OFFSET = "VACF_OFFSET";
+
+	public static final String PSD_OFFSET = "PSD_OFFSET";
+
+	public static final String LAG = "LAG";
+
+	public static final String FREQUENCY = "FREQUENCY";
+
+	public static final String VALUE = "VALUE";
+
+	private final Model model;
+
+	public ColumnarExporter( final Model model )
+	{
+		this.model = model;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the columns to the specified folder, creating it if needed.
+	 * Existing files with the same names are overwritten.
+	 *
+	 * @param folder
+	 *            the folder to write to.
+	 * @return the number of files written.
+	 * @throws IOException
+	 *             if the folder cannot be created or a file cannot be
+	 *             written.
+	 */
+	public int export( final File folder ) throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() ) { throw new IOException( "Could not create folder " + folder + "." ); }
+
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
+		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
+		final int nTracks = trackIDs.size();
+		final Integer[] ids = trackIDs.toArray( new Integer[ nTracks ] );
+		final SortedTrack[] tracks = new SortedTrack[ nTracks ];
+		long nSpots = 0;
+		long nEdges = 0;
+		for ( int t = 0; t < nTracks; t++ )
+		{
+			tracks[ t ] = trackIndex.getTrack( ids[ t ] );
+			nSpots += tracks[ t ].nSpots();
+			nEdges += tracks[ t ].nEdges();
+		}
+
+		int nFiles = 0;
+		nFiles += exportTracks( folder, model, ids, tracks );
+		nFiles += exportSpots( folder, fm, ids, tracks, nSpots );
+		nFiles += exportEdges( folder, fm, ids, tracks, nEdges );
+		if ( fm.getTrackFeatures().contains( TrackVelocitySpectrumAnalyzer.TRACK_VACF_CORRELATION_TIME ) )
+		{
+			nFiles += exportSpectra( folder, model, ids );
+		}
+		return nFiles;
+	}
+
+	private static int exportTracks( final File folder, final Model model, final Integer[] ids, final SortedTrack[] tracks ) throws IOException
+	{
+		final int nTracks = ids.length;
+		final TrackFeatureColumns features = new TrackFeatureColumns( model, model.getFeatureModel().getTrackFeatures() );
+		final List< NpyWriter > writers = new ArrayList< NpyWriter >( features.size() + 3 );
+		boolean done = false;
+		try
+		{
+			final NpyWriter idWriter = open( writers, folder, TRACK_PREFIX + ID, DType.INT32, nTracks );
+			final NpyWriter spotOffsetWriter = open( writers, folder, TRACK_PREFIX + SPOT_OFFSET, DType.INT64, nTracks + 1 );
+			final NpyWriter edgeOffsetWriter = open( writers, folder, TRACK_PREFIX + EDGE_OFFSET, DType.INT64, nTracks + 1 );
+			long spotOffset = 0;
+			long edgeOffset = 0;
+			for ( int t = 0; t < nTracks; t++ )
+			{
+				idWriter.write( ids[ t ].longValue() );
+				spotOffsetWriter.write( spotOffset );
+				edgeOffsetWriter.write( edgeOffset );
+				spotOffset += tracks[ t ].nSpots();
+				edgeOffset += tracks[ t ].nEdges();
+			}
+			spotOffsetWriter.write( spotOffset );
+			edgeOffsetWriter.write( edgeOffset );
+
+			final double[][] values = features.read( ids, SharedExecutor.getParallelism() );
+			for ( int c = 0; c < features.size(); c++ )
+			{
+				final Column column = features.getColumns().get( c );
+				final NpyWriter writer = open( writers, folder, TRACK_PREFIX + column.feature, DType.FLOAT64, nTracks );
+				for ( int t = 0; t < nTracks; t++ )
+				{
+					writer.write( values[ c ][ t ] );
+				}
+			}
+			done = true;
+		}
+		finally
+		{
+			closeAll( writers, done );
+		}
+		return writers.size();
+	}
+
+	private static int exportSpots( final File folder, final FeatureModel fm, final Integer[] ids, final SortedTrack[] tracks, final long nSpots ) throws IOException
+	{
+		final String[] features = fm.getSpotFeatures().toArray( new String[ 0 ] );
+		final List< NpyWriter > writers = new ArrayList< NpyWriter >( features.length + 2 );
+		boolean done = false;
+		try
+		{
+			final NpyWriter idWriter = open( writers, folder, SPOT_PREFIX + ID, DType.INT32, nSpots );
+			final NpyWriter trackIDWriter = open( writers, folder, SPOT_PREFIX + TRACK_ID, DType.INT32, nSpots );
+			final NpyWriter[] featureWriters = new NpyWriter[ features.length ];
+			for ( int i = 0; i < features.length; i++ )
+			{
+				featureWriters[ i ] = open( writers, folder, SPOT_PREFIX + features[ i ], DType.FLOAT64, nSpots );
+			}
+
+			for ( int t = 0; t < tracks.length; t++ )
+			{
+				final long trackID = ids[ t ].longValue();
+				for ( final Spot spot : tracks[ t ].spots )
+				{
+					idWriter.write( spot.ID() );
+					trackIDWriter.write( trackID );
+					for ( int i = 0; i < features.length; i++ )
+					{
+						featureWriters[ i ].write( valueOf( spot.getFeature( features[ i ] ) ) );
+					}
+				}
+			}
+			done = true;
+		}
+		finally
+		{
+			closeAll( writers, done );
+		}
+		return writers.size();
+	}
+
+	private static int exportEdges( final File folder, final FeatureModel fm, final Integer[] ids, final SortedTrack[] tracks, final long nEdges ) throws IOException
+	{
+		final String[] features = fm.getEdgeFeatures().toArray( new String[ 0 ] );
+		final List< NpyWriter > writers = new ArrayList< NpyWriter >( features.length + 3 );
+		boolean done = false;
+		try
+		{
+			final NpyWriter sourceWriter = open( writers, folder, EDGE_PREFIX + SOURCE_ID, DType.INT32, nEdges );
+			final NpyWriter targetWriter = open( writers, folder, EDGE_PREFIX + TARGET_ID, DType.INT32, nEdges );
+			final NpyWriter trackIDWriter = open( writers, folder, EDGE_PREFIX + TRACK_ID, DType.INT32, nEdges );
+			final NpyWriter[] featureWriters = new NpyWriter[ features.length ];
+			for ( int i = 0; i < features.length; i++ )
+			{
+				featureWriters[ i ] = open( writers, folder, EDGE_PREFIX + features[ i ], DType.FLOAT64, nEdges );
+			}
+
+			for ( int t = 0; t < tracks.length; t++ )
+			{
+				final SortedTrack track = tracks[ t ];
+				final long trackID = ids[ t ].longValue();
+				for ( int e = 0; e < track.nEdges(); e++ )
+				{
+					final DefaultWeightedEdge edge = track.edges[ e ];
+					sourceWriter.write( track.spots[ track.sources[ e ] ].ID() );
+					targetWriter.write( track.spots[ track.targets[ e ] ].ID() );
+					trackIDWriter.write( trackID );
+					for ( int i = 0; i < features.length; i++ )
+					{
+						featureWriters[ i ].write( valueOf( fm.getEdgeFeature( edge, features[ i ] ) ) );
+					}
+				}
+			}
+			done = true;
+		}
+		finally
+		{
+			closeAll( writers, done );
+		}
+		return writers.size();
+	}
+
+	private static int exportSpectra( final File folder, final Model model, final Integer[] ids ) throws IOException
+	{
+		final int nTracks = ids.length;
+		final VelocitySpectrum[] spectra = new VelocitySpectrum[ nTracks ];
+		SharedExecutor.forEach( nTracks, SharedExecutor.getParallelism(), new IndexTask()
+		{
+			@Override
+			public void process( final int t )
+			{
+				spectra[ t ] = TrackVelocitySpectrumAnalyzer.spectrum( ids[ t ], model );
+			}
+		} );
+		long nLags = 0;
+		long nFrequencies = 0;
+		for ( final VelocitySpectrum spectrum : spectra )
+		{
+			if ( null != spectrum )
+			{
+				nLags += spectrum.lags.length;
+				nFrequencies += spectrum.frequencies.length;
+			}
+		}
+
+		final List< NpyWriter > writers = new ArrayList< NpyWriter >( 6 );
+		boolean done = false;
+		try
+		{
+			final NpyWriter vacfOffsetWriter = open( writers, folder, TRACK_PREFIX + VACF_OFFSET, DType.INT64, nTracks + 1 );
+			final NpyWriter psdOffsetWriter = open( writers, folder, TRACK_PREFIX + PSD_OFFSET, DType.INT64, nTracks + 1 );
+			final NpyWriter lagWriter = open( writers, folder, VACF_PREFIX + LAG, DType.FLOAT64, nLags );
+			final NpyWriter vacfWriter = open( writers, folder, VACF_PREFIX + VALUE, DType.FLOAT64, nLags );
+			final NpyWriter frequencyWriter = open( writers, folder, PSD_PREFIX + FREQUENCY, DType.FLOAT64, nFrequencies );
+			final NpyWriter psdWriter = open( writers, folder, PSD_PREFIX + VALUE, DType.FLOAT64, nFrequencies );
+			long vacfOffset = 0;
+			long psdOffset = 0;
+			for ( final VelocitySpectrum spectrum : spectra )
+			{
+				vacfOffsetWriter.write( vacfOffset );
+				psdOffsetWriter.write( psdOffset );
+				if ( null == spectrum )
+				{
+					continue;
+				}
+				for ( int i = 0; i < spectrum.lags.length; i++ )
+				{
+					lagWriter.write( spectrum.lags[ i ] );
+					vacfWriter.write( spectrum.vacf[ i ] );
+				}
+				for ( int i = 0; i < spectrum.frequencies.length; i++ )
+				{
+					frequencyWriter.write( spectrum.frequencies[ i ] );
+					psdWriter.write( spectrum.psd[ i ] );
+				}
+				vacfOffset += spectrum.lags.length;
+				psdOffset += spectrum.frequencies.length;
+			}
+			vacfOffsetWriter.write( vacfOffset );
+			psdOffsetWriter.write( psdOffset );
+			done = true;
+		}
+		finally
+		{
+			closeAll( writers, done );
+		}
+		return writers.size();
+	}
+
+	private static NpyWriter open( final List< NpyWriter > writers, final File folder, final String name, final DType dtype, final long length ) throws IOException
+	{
+		final NpyWriter writer = new NpyWriter( new File( folder, name + EXTENSION ), dtype, length );
+		writers.add( writer );
+		return writer;
+	}
+
+	/**
+	 * Closes all the writers. If the columns were complete, rethrows the first
+	 * exception, if any. Otherwise exceptions are ignored, so that they do not
+	 * hide the one that interrupted the export.
+	 */
+	private static void closeAll( final List< NpyWriter > writers, final boolean complete ) throws IOException
+	{
+		IOException exception = null;
+		for ( final NpyWriter writer : writers )
+		{
+			try
+			{
+				writer.close();
+			}
+			catch ( final IOException e )
+			{
+				if ( null == exception )
+				{
+					exception = e;
+				}
+			}
+		}
+		if ( complete && null != exception ) { throw exception; }
+	}
+
+	private static final double valueOf( final Double val )
+	{
+		return null == val ? Double.NaN : val.doubleValue();
+	}
+}
@@ -0,0 +1,592 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.algorithm.MultiThreaded;
+
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+/**
+ * Segments tracks with a two-state hidden Markov model, with Gaussian
+ * emissions on the smoothed velocity.
+ * <p>
+ * The model parameters are fitted once on all the tracks of a dataset with the
+ * Baum-Welch expectation-maximization algorithm. Each track is then decoded
+ * with the Viterbi algorithm, in a time linear with the track length. The
+ * expectation step runs on the tracks in parallel, on the
+ * {@link SharedExecutor}, and their statistics are summed afterwards. The
+ * state with the lowest mean velocity is the pausing state. There is no
+ * velocity threshold: the persistence of the motion type is controlled by the
+ * fitted transition probabilities.
+ * <p>
+ * Velocities that are not finite are considered to carry no information on
+ * the motion type.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class HmmSegmenter implements MotionSegmenter, MultiThreaded
+{
+
+	private static final int DEFAULT_MAX_ITERATIONS = 100;
+
+	private static final double DEFAULT_TOLERANCE = 1e-6;
+
+	/**
+	 * Floor for the emission densities, to avoid underflows for outliers.
+	 */
+	private static final double MIN_DENSITY = 1e-300;
+
+	private final int maxIterations;
+
+	private final double tolerance;
+
+	private String errorMessage;
+
+	private int numThreads;
+
+	/*
+	 * Fitted parameters. State 0 is pausing, state 1 is running.
+	 */
+
+	private final double[] mean = new double[ 2 ];
+
+	private final double[] variance = new double[ 2 ];
+
+	private final double[] start = new double[] { 0.5, 0.5 };
+
+	private final double[][] transition = new double[][] { { 0.9, 0.1 }, { 0.1, 0.9 } };
+
+	/**
+	 * Floor for the state variances, relative to the velocity range of the
+	 * dataset.
+	 */
+	private double minVariance = Double.MIN_NORMAL;
+
+	private int nIterations;
+
+	private double logLikelihood = Double.NaN;
+
+	/**
+	 * Creates a new HMM segmenter.
+	 *
+	 * @param maxIterations
+	 *            the maximal number of EM iterations.
+	 * @param tolerance
+	 *            the EM iterations stop when the relative change of the
+	 *            log-likelihood is below this value.
+	 */
+	public HmmSegmenter( final int maxIterations, final double tolerance )
+	{
+		this.maxIterations = maxIterations;
+		this.tolerance = tolerance;
+		setNumThreads();
+	}
+
+	public HmmSegmenter()
+	{
+		this( DEFAULT_MAX_ITERATIONS, DEFAULT_TOLERANCE );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( maxIterations <= 0 )
+		{
+			errorMessage = "Max number of iterations is negative or null.";
+			return false;
+		}
+		if ( tolerance < 0 )
+		{
+			errorMessage = "Tolerance is negative.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void fit( final List< double[] > velocities, final List< double[] > rawVelocities )
+	{
+		initialize( velocities );
+
+		double previous = Double.NEGATIVE_INFINITY;
+		for ( nIterations = 0; nIterations < maxIterations; nIterations++ )
+		{
+			logLikelihood = expectationMaximization( velocities );
+			if ( Math.abs( logLikelihood - previous ) <= tolerance * Math.abs( logLikelihood ) )
+			{
+				break;
+			}
+			previous = logLikelihood;
+		}
+
+		// State 0 must be the slowest.
+		if ( mean[ 0 ] > mean[ 1 ] )
+		{
+			swap( mean );
+			swap( variance );
+			swap( start );
+			swap( transition[ 0 ] );
+			swap( transition[ 1 ] );
+			final double[] tmp = transition[ 0 ];
+			transition[ 0 ] = transition[ 1 ];
+			transition[ 1 ] = tmp;
+		}
+	}
+
+	@Override
+	public boolean learnsFromData()
+	{
+		return true;
+	}
+
+	@Override
+	public PauseRunSegmentation segment( final double[] velocities )
+	{
+		final int n = velocities.length;
+		final boolean[] pausing = new boolean[ n ];
+		if ( n == 0 ) { return PauseRunSegmentation.fromMotionTypes( pausing ); }
+
+		final double[][] logA = new double[ 2 ][ 2 ];
+		for ( int i = 0; i < 2; i++ )
+		{
+			for ( int j = 0; j < 2; j++ )
+			{
+				logA[ i ][ j ] = Math.log( transition[ i ][ j ] );
+			}
+		}
+
+		// Best previous state, for each time and state.
+		final int[][] from = new int[ 2 ][ n ];
+		double d0 = Math.log( start[ 0 ] ) + Math.log( density( velocities[ 0 ], 0 ) );
+		double d1 = Math.log( start[ 1 ] ) + Math.log( density( velocities[ 0 ], 1 ) );
+		for ( int t = 1; t < n; t++ )
+		{
+			final double e0 = Math.log( density( velocities[ t ], 0 ) );
+			final double e1 = Math.log( density( velocities[ t ], 1 ) );
+
+			final double to00 = d0 + logA[ 0 ][ 0 ];
+			final double to10 = d1 + logA[ 1 ][ 0 ];
+			final double to01 = d0 + logA[ 0 ][ 1 ];
+			final double to11 = d1 + logA[ 1 ][ 1 ];
+
+			from[ 0 ][ t ] = to00 >= to10 ? 0 : 1;
+			from[ 1 ][ t ] = to01 >= to11 ? 0 : 1;
+			d0 = Math.max( to00, to10 ) + e0;
+			d1 = Math.max( to01, to11 ) + e1;
+		}
+
+		int state = d0 >= d1 ? 0 : 1;
+		for ( int t = n - 1; t >= 0; t-- )
+		{
+			pausing[ t ] = state == 0;
+			state = from[ state ][ t ];
+		}
+		return PauseRunSegmentation.fromMotionTypes( pausing );
+	}
+
+	@Override
+	public String getName()
+	{
+		return String.format( "HMM segmenter, pause velocity = %.3g +/- %.3g, run velocity = %.3g +/- %.3g, P(pause->run) = %.3g, P(run->pause) = %.3g, %d EM iterations",
+				mean[ 0 ], Math.sqrt( variance[ 0 ] ), mean[ 1 ], Math.sqrt( variance[ 1 ] ), transition[ 0 ][ 1 ], transition[ 1 ][ 0 ], nIterations );
+	}
+
+	/**
+	 * Returns the fitted mean velocity of the specified state.
+	 *
+	 * @param state
+	 *            0 for pausing, 1 for running.
+	 * @return the mean velocity.
+	 */
+	public double getMean( final int state )
+	{
+		return mean[ state ];
+	}
+
+	/**
+	 * Returns the fitted velocity variance of the specified state.
+	 *
+	 * @param state
+	 *            0 for pausing, 1 for running.
+	 * @return the variance.
+	 */
+	public double getVariance( final int state )
+	{
+		return variance[ state ];
+	}
+
+	/**
+	 * Returns the fitted probability to go from one state to another in one
+	 * frame.
+	 *
+	 * @param from
+	 *            the state at time <i>t</i>, 0 for pausing, 1 for running.
+	 * @param to
+	 *            the state at time <i>t+1</i>.
+	 * @return the transition probability.
+	 */
+	public double getTransitionProbability( final int from, final int to )
+	{
+		return transition[ from ][ to ];
+	}
+
+	/**
+	 * Returns the log-likelihood of the dataset after the last EM iteration.
+	 *
+	 * @return the log-likelihood.
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = SharedExecutor.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Initial guess: the states are the velocities below and above the
+	 * median.
+	 */
+	private void initialize( final List< double[] > velocities )
+	{
+		Arrays.fill( start, 0.5 );
+		transition[ 0 ][ 0 ] = 0.9;
+		transition[ 0 ][ 1 ] = 0.1;
+		transition[ 1 ][ 0 ] = 0.1;
+		transition[ 1 ][ 1 ] = 0.9;
+
+		int nFinite = 0;
+		for ( final double[] v : velocities )
+		{
+			for ( final double val : v )
+			{
+				if ( !Double.isInfinite( val ) && !Double.isNaN( val ) )
+				{
+					nFinite++;
+				}
+			}
+		}
+		final double[] pooled = new double[ nFinite ];
+		int k = 0;
+		for ( final double[] v : velocities )
+		{
+			for ( final double val : v )
+			{
+				if ( !Double.isInfinite( val ) && !Double.isNaN( val ) )
+				{
+					pooled[ k++ ] = val;
+				}
+			}
+		}
+		if ( nFinite == 0 )
+		{
+			Arrays.fill( mean, 0 );
+			Arrays.fill( variance, 1 );
+			return;
+		}
+		Arrays.sort( pooled );
+
+		final int half = Math.max( 1, nFinite / 2 );
+		moments( pooled, 0, half, 0 );
+		if ( half < nFinite )
+		{
+			moments( pooled, half, nFinite, 1 );
+		}
+		else
+		{
+			mean[ 1 ] = mean[ 0 ];
+			variance[ 1 ] = variance[ 0 ];
+		}
+
+		// Floor variances, for degenerate datasets.
+		final double span = pooled[ nFinite - 1 ] - pooled[ 0 ];
+		minVariance = Math.max( 1e-12 * span * span, Double.MIN_NORMAL );
+		variance[ 0 ] = Math.max( variance[ 0 ], minVariance );
+		variance[ 1 ] = Math.max( variance[ 1 ], minVariance );
+	}
+
+	private void moments( final double[] sorted, final int from, final int to, final int state )
+	{
+		double sum = 0;
+		for ( int i = from; i < to; i++ )
+		{
+			sum += sorted[ i ];
+		}
+		final double m = sum / ( to - from );
+		double sum2 = 0;
+		for ( int i = from; i < to; i++ )
+		{
+			sum2 += ( sorted[ i ] - m ) * ( sorted[ i ] - m );
+		}
+		mean[ state ] = m;
+		variance[ state ] = sum2 / ( to - from );
+	}
+
+	/**
+	 * One Baum-Welch iteration over all the tracks, with scaled forward and
+	 * backward variables. The statistics of each track are computed in
+	 * parallel, and summed in the track order, so that the result does not
+	 * depend on the number of threads.
+	 *
+	 * @return the log-likelihood of the dataset before the update.
+	 */
+	private double expectationMaximization( final List< double[] > velocities )
+	{
+		final int nTracks = velocities.size();
+		final Statistics[] statistics = new Statistics[ nTracks ];
+		SharedExecutor.forEach( nTracks, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int i )
+			{
+				statistics[ i ] = expectation( velocities.get( i ) );
+			}
+		} );
+
+		final Statistics total = new Statistics();
+		for ( final Statistics track : statistics )
+		{
+			total.add( track );
+		}
+		maximization( total );
+		return total.logLikelihood;
+	}
+
+	/**
+	 * The expectation step on one track.
+	 */
+	private Statistics expectation( final double[] v )
+	{
+		final Statistics stats = new Statistics();
+		final int n = v.length;
+		if ( n == 0 ) { return stats; }
+
+		final double[][] b = new double[ 2 ][ n ];
+		for ( int t = 0; t < n; t++ )
+		{
+			b[ 0 ][ t ] = density( v[ t ], 0 );
+			b[ 1 ][ t ] = density( v[ t ], 1 );
+		}
+
+		// Forward.
+		final double[][] alpha = new double[ 2 ][ n ];
+		final double[] c = new double[ n ];
+		alpha[ 0 ][ 0 ] = start[ 0 ] * b[ 0 ][ 0 ];
+		alpha[ 1 ][ 0 ] = start[ 1 ] * b[ 1 ][ 0 ];
+		c[ 0 ] = alpha[ 0 ][ 0 ] + alpha[ 1 ][ 0 ];
+		alpha[ 0 ][ 0 ] /= c[ 0 ];
+		alpha[ 1 ][ 0 ] /= c[ 0 ];
+		for ( int t = 1; t < n; t++ )
+		{
+			alpha[ 0 ][ t ] = ( alpha[ 0 ][ t - 1 ] * transition[ 0 ][ 0 ] + alpha[ 1 ][ t - 1 ] * transition[ 1 ][ 0 ] ) * b[ 0 ][ t ];
+			alpha[ 1 ][ t ] = ( alpha[ 0 ][ t - 1 ] * transition[ 0 ][ 1 ] + alpha[ 1 ][ t - 1 ] * transition[ 1 ][ 1 ] ) * b[ 1 ][ t ];
+			c[ t ] = alpha[ 0 ][ t ] + alpha[ 1 ][ t ];
+			alpha[ 0 ][ t ] /= c[ t ];
+			alpha[ 1 ][ t ] /= c[ t ];
+		}
+
+		// Backward.
+		final double[][] beta = new double[ 2 ][ n ];
+		beta[ 0 ][ n - 1 ] = 1;
+		beta[ 1 ][ n - 1 ] = 1;
+		for ( int t = n - 2; t >= 0; t-- )
+		{
+			final double w0 = b[ 0 ][ t + 1 ] * beta[ 0 ][ t + 1 ];
+			final double w1 = b[ 1 ][ t + 1 ] * beta[ 1 ][ t + 1 ];
+			beta[ 0 ][ t ] = ( transition[ 0 ][ 0 ] * w0 + transition[ 0 ][ 1 ] * w1 ) / c[ t + 1 ];
+			beta[ 1 ][ t ] = ( transition[ 1 ][ 0 ] * w0 + transition[ 1 ][ 1 ] * w1 ) / c[ t + 1 ];
+		}
+
+		// Accumulate.
+		for ( int t = 0; t < n; t++ )
+		{
+			stats.logLikelihood += Math.log( c[ t ] );
+			final boolean finite = !Double.isInfinite( v[ t ] ) && !Double.isNaN( v[ t ] );
+			for ( int s = 0; s < 2; s++ )
+			{
+				final double gamma = alpha[ s ][ t ] * beta[ s ][ t ];
+				if ( t == 0 )
+				{
+					stats.startSum[ s ] += gamma;
+				}
+				if ( finite )
+				{
+					stats.addVelocity( s, v[ t ], gamma );
+				}
+				if ( t < n - 1 )
+				{
+					stats.gammaFromSum[ s ] += gamma;
+					for ( int s2 = 0; s2 < 2; s2++ )
+					{
+						stats.xiSum[ s ][ s2 ] += alpha[ s ][ t ] * transition[ s ][ s2 ] * b[ s2 ][ t + 1 ] * beta[ s2 ][ t + 1 ] / c[ t + 1 ];
+					}
+				}
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * The maximization step, from the statistics of all the tracks.
+	 */
+	private void maximization( final Statistics stats )
+	{
+		if ( stats.startSum[ 0 ] + stats.startSum[ 1 ] > 0 )
+		{
+			start[ 0 ] = stats.startSum[ 0 ];
+			start[ 1 ] = stats.startSum[ 1 ];
+			normalize( start );
+		}
+		for ( int s = 0; s < 2; s++ )
+		{
+			if ( stats.gammaSum[ s ] > 0 )
+			{
+				mean[ s ] = stats.gammaMean[ s ];
+				variance[ s ] = Math.max( stats.gammaM2[ s ] / stats.gammaSum[ s ], minVariance );
+			}
+			if ( stats.gammaFromSum[ s ] > 0 )
+			{
+				for ( int s2 = 0; s2 < 2; s2++ )
+				{
+					transition[ s ][ s2 ] = stats.xiSum[ s ][ s2 ] / stats.gammaFromSum[ s ];
+				}
+				normalize( transition[ s ] );
+			}
+		}
+	}
+
+	/**
+	 * Floors the probabilities of a distribution, so that no transition
+	 * becomes impossible, and makes them sum to 1 again.
+	 */
+	private static void normalize( final double[] probabilities )
+	{
+		double sum = 0;
+		for ( int i = 0; i < probabilities.length; i++ )
+		{
+			probabilities[ i ] = Math.max( probabilities[ i ], 1e-12 );
+			sum += probabilities[ i ];
+		}
+		for ( int i = 0; i < probabilities.length; i++ )
+		{
+			probabilities[ i ] /= sum;
+		}
+	}
+
+	private double density( final double v, final int state )
+	{
+		if ( Double.isInfinite( v ) || Double.isNaN( v ) ) { return 1; }
+		final double d = v - mean[ state ];
+		final double p = Math.exp( -d * d / ( 2 * variance[ state ] ) ) / Math.sqrt( 2 * Math.PI * variance[ state ] );
+		return Math.max( p, MIN_DENSITY );
+	}
+
+	private static final void swap( final double[] arr )
+	{
+		final double tmp = arr[ 0 ];
+		arr[ 0 ] = arr[ 1 ];
+		arr[ 1 ] = tmp;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The sufficient statistics of the expectation step, for one track or
+	 * merged over several. The velocity moments of each state are weighted by
+	 * the state probabilities, and accumulated around their running mean, so
+	 * that the variance does not suffer from cancellation when the velocities
+	 * are large compared to their spread.
+	 */
+	private static final class Statistics
+	{
+
+		private final double[] startSum = new double[ 2 ];
+
+		/**
+		 * The sum of the state probabilities over the finite velocities.
+		 */
+		private final double[] gammaSum = new double[ 2 ];
+
+		private final double[] gammaMean = new double[ 2 ];
+
+		/**
+		 * The weighted sum of the squared differences to the mean.
+		 */
+		private final double[] gammaM2 = new double[ 2 ];
+
+		private final double[] gammaFromSum = new double[ 2 ];
+
+		private final double[][] xiSum = new double[ 2 ][ 2 ];
+
+		private double logLikelihood;
+
+		/**
+		 * Adds a velocity to the moments of a state, with the weighted Welford
+		 * update.
+		 */
+		private void addVelocity( final int s, final double v, final double weight )
+		{
+			if ( weight <= 0 ) { return; }
+			gammaSum[ s ] += weight;
+			final double delta = v - gammaMean[ s ];
+			gammaMean[ s ] += delta * weight / gammaSum[ s ];
+			gammaM2[ s ] += weight * delta * ( v - gammaMean[ s ] );
+		}
+
+		/**
+		 * Merges the statistics of other tracks into these ones.
+		 */
+		private void add( final Statistics other )
+		{
+			for ( int s = 0; s < 2; s++ )
+			{
+				startSum[ s ] += other.startSum[ s ];
+				if ( other.gammaSum[ s ] > 0 )
+				{
+					final double total = gammaSum[ s ] + other.gammaSum[ s ];
+					final double delta = other.gammaMean[ s ] - gammaMean[ s ];
+					gammaMean[ s ] += delta * other.gammaSum[ s ] / total;
+					gammaM2[ s ] += other.gammaM2[ s ] + delta * delta * gammaSum[ s ] * other.gammaSum[ s ] / total;
+					gammaSum[ s ] = total;
+				}
+				gammaFromSum[ s ] += other.gammaFromSum[ s ];
+				xiSum[ s ][ 0 ] += other.xiSum[ s ][ 0 ];
+				xiSum[ s ][ 1 ] += other.xiSum[ s ][ 1 ];
+			}
+			logLikelihood += other.logLikelihood;
+		}
+	}
+}
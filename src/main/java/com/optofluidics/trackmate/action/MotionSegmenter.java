@@ -0,0 +1,70 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.List;
+
+/**
+ * Interface for the engines that split tracks in pauses and runs, based on
+ * their smoothed instantaneous velocities.
+ * <p>
+ * A segmenter is first fitted once on all the tracks of a dataset, then used
+ * to segment each track. After fitting, {@link #segment(double[])} must be
+ * safe to call concurrently from several threads.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public interface MotionSegmenter
+{
+
+	/**
+	 * Checks that the segmenter parameters are valid.
+	 *
+	 * @return <code>true</code> if the parameters are valid.
+	 */
+	public boolean checkInput();
+
+	/**
+	 * Returns a meaningful error message if {@link #checkInput()} failed.
+	 *
+	 * @return the error message.
+	 */
+	public String getErrorMessage();
+
+	/**
+	 * Fits the parameters of this segmenter on a dataset.
+	 *
+	 * @param velocities
+	 *            the smoothed velocities of all the tracks of the dataset, one
+	 *            array per track, sorted by time.
+	 * @param rawVelocities
+	 *            the instantaneous velocities of the same tracks, before
+	 *            smoothing, in the same order.
+	 */
+	public void fit( List< double[] > velocities, List< double[] > rawVelocities );
+
+	/**
+	 * Returns whether {@link #fit(List, List)} learns from the dataset. If
+	 * not, tracks can be segmented without fitting on the others first.
+	 *
+	 * @return <code>true</code> if the segmentation of a track depends on the
+	 *         other tracks of the dataset.
+	 */
+	public boolean learnsFromData();
+
+	/**
+	 * Splits a track in pauses and runs.
+	 *
+	 * @param velocities
+	 *            the smoothed velocities of the track edges, sorted by time.
+	 * @return the segmentation of the track.
+	 */
+	public PauseRunSegmentation segment( double[] velocities );
+
+	/**
+	 * Returns a short description of this segmenter and its parameters, for
+	 * logging.
+	 *
+	 * @return a description.
+	 */
+	public String getName();
+
+}
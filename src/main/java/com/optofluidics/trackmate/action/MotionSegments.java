@@ -0,0 +1,258 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer;
+import com.optofluidics.util.QuickSelect;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * The pauses and runs of a single track, stored as a compact list of
+ * segments ordered by time, with their boundaries and a few measurements.
+ * <p>
+ * Unlike the {@link PauseRunSegmentation} they are built from, segments do not
+ * reference edges, and are kept after the velocity analysis, per model, so
+ * that distributions can be computed without going through the edges again.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ * @see SegmentStatistics
+ */
+public final class MotionSegments
+{
+
+	/**
+	 * The track features measured by {@link #measure()}, in the order of the
+	 * returned array.
+	 */
+	static final String[] FEATURES = new String[] {
+			TrackSegmentAnalyzer.RUN_MEAN_DURATION,
+			TrackSegmentAnalyzer.RUN_MEAN_LENGTH,
+			TrackSegmentAnalyzer.PAUSE_DURATION_P10,
+			TrackSegmentAnalyzer.PAUSE_DURATION_P50,
+			TrackSegmentAnalyzer.PAUSE_DURATION_P90,
+			TrackSegmentAnalyzer.RUN_VELOCITY_MEAN,
+			TrackSegmentAnalyzer.RUN_VELOCITY_MEDIAN,
+			TrackSegmentAnalyzer.RUN_VELOCITY_STD
+	};
+
+	private static final Map< Model, Map< Integer, MotionSegments > > STORES = new WeakHashMap< Model, Map< Integer, MotionSegments > >();
+
+	/**
+	 * Whether each segment is a pause.
+	 */
+	public final boolean[] pauses;
+
+	/**
+	 * The frame of the first spot of each segment.
+	 */
+	public final int[] startFrames;
+
+	/**
+	 * The frame of the last spot of each segment.
+	 */
+	public final int[] endFrames;
+
+	/**
+	 * The time separating the first and last spots of each segment.
+	 */
+	public final double[] durations;
+
+	/**
+	 * The mean instantaneous velocity over the edges of each segment.
+	 */
+	public final double[] meanVelocities;
+
+	/**
+	 * The distance between the first and last spots of each segment.
+	 */
+	public final double[] displacements;
+
+	private MotionSegments( final int n )
+	{
+		this.pauses = new boolean[ n ];
+		this.startFrames = new int[ n ];
+		this.endFrames = new int[ n ];
+		this.durations = new double[ n ];
+		this.meanVelocities = new double[ n ];
+		this.displacements = new double[ n ];
+	}
+
+	/**
+	 * Builds the segments of a track from its segmentation.
+	 *
+	 * @param segmentation
+	 *            the pauses and runs of the track.
+	 * @param displacements
+	 *            the track the segmentation was computed on.
+	 * @return a new {@link MotionSegments}.
+	 */
+	public static MotionSegments build( final PauseRunSegmentation segmentation, final TrackDisplacements displacements )
+	{
+		// Merge pauses and runs, ordered by their first edge.
+		final List< List< Integer > > sections = new ArrayList< List< Integer > >( segmentation.nPauses() + segmentation.nRuns() );
+		final List< Boolean > isPause = new ArrayList< Boolean >( segmentation.nPauses() + segmentation.nRuns() );
+		int ig = 0;
+		int ir = 0;
+		while ( ig < segmentation.gaps.size() || ir < segmentation.runs.size() )
+		{
+			final List< Integer > gap = ig < segmentation.gaps.size() ? segmentation.gaps.get( ig ) : null;
+			final List< Integer > run = ir < segmentation.runs.size() ? segmentation.runs.get( ir ) : null;
+			if ( null != gap && gap.isEmpty() )
+			{
+				ig++;
+				continue;
+			}
+			if ( null != run && run.isEmpty() )
+			{
+				ir++;
+				continue;
+			}
+			if ( null == run || ( null != gap && gap.get( 0 ).intValue() < run.get( 0 ).intValue() ) )
+			{
+				sections.add( gap );
+				isPause.add( Boolean.TRUE );
+				ig++;
+			}
+			else
+			{
+				sections.add( run );
+				isPause.add( Boolean.FALSE );
+				ir++;
+			}
+		}
+
+		final SortedTrack track = displacements.track;
+		final MotionSegments segments = new MotionSegments( sections.size() );
+		for ( int s = 0; s < sections.size(); s++ )
+		{
+			final List< Integer > section = sections.get( s );
+			final int first = track.sources[ section.get( 0 ).intValue() ];
+			final int last = track.targets[ section.get( section.size() - 1 ).intValue() ];
+			final double dx = track.x[ last ] - track.x[ first ];
+			final double dy = track.y[ last ] - track.y[ first ];
+			final double dz = track.z[ last ] - track.z[ first ];
+
+			double velocity = 0;
+			for ( final Integer edge : section )
+			{
+				velocity += displacements.velocities[ edge.intValue() ];
+			}
+
+			segments.pauses[ s ] = isPause.get( s ).booleanValue();
+			segments.startFrames[ s ] = track.frames[ first ];
+			segments.endFrames[ s ] = track.frames[ last ];
+			segments.durations[ s ] = track.t[ last ] - track.t[ first ];
+			segments.meanVelocities[ s ] = velocity / section.size();
+			segments.displacements[ s ] = Math.sqrt( dx * dx + dy * dy + dz * dz );
+		}
+		return segments;
+	}
+
+	/**
+	 * Returns the segments of the tracks of the specified model, as stored by
+	 * the last velocity analysis. The returned map is thread-safe, and keyed
+	 * by track ID.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the segments of the model tracks.
+	 */
+	public static synchronized Map< Integer, MotionSegments > of( final Model model )
+	{
+		Map< Integer, MotionSegments > store = STORES.get( model );
+		if ( null == store )
+		{
+			store = new ConcurrentHashMap< Integer, MotionSegments >();
+			STORES.put( model, store );
+		}
+		return store;
+	}
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return the number of segments.
+	 */
+	public int size()
+	{
+		return pauses.length;
+	}
+
+	/**
+	 * Computes the values of the {@link #FEATURES} for these segments.
+	 *
+	 * @return a new <code>double[]</code> array, with one value per feature,
+	 *         ordered as in {@link #FEATURES}.
+	 */
+	double[] measure()
+	{
+		final int n = size();
+		final double[] pauseDurations = new double[ n ];
+		final double[] runVelocities = new double[ n ];
+		int nPauses = 0;
+		int nRuns = 0;
+		double runDuration = 0;
+		double runLength = 0;
+		double velocityMean = 0;
+		double velocityM2 = 0;
+		for ( int s = 0; s < n; s++ )
+		{
+			if ( pauses[ s ] )
+			{
+				pauseDurations[ nPauses++ ] = durations[ s ];
+			}
+			else
+			{
+				final double v = meanVelocities[ s ];
+				runVelocities[ nRuns++ ] = v;
+				runDuration += durations[ s ];
+				runLength += displacements[ s ];
+				final double delta = v - velocityMean;
+				velocityMean += delta / nRuns;
+				velocityM2 += delta * ( v - velocityMean );
+			}
+		}
+
+		final double nan = Double.NaN;
+		return new double[] {
+				nRuns > 0 ? runDuration / nRuns : nan,
+				nRuns > 0 ? runLength / nRuns : nan,
+				percentile( pauseDurations, nPauses, 0.1 ),
+				percentile( pauseDurations, nPauses, 0.5 ),
+				percentile( pauseDurations, nPauses, 0.9 ),
+				nRuns > 0 ? velocityMean : nan,
+				QuickSelect.median( runVelocities, nRuns ),
+				nRuns > 0 ? Math.sqrt( velocityM2 / nRuns ) : nan };
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( int s = 0; s < size(); s++ )
+		{
+			str.append( pauses[ s ] ? "Pause" : "Run" );
+			str.append( " frames " + startFrames[ s ] + "-" + endFrames[ s ] );
+			str.append( ", mean velocity " + meanVelocities[ s ] );
+			str.append( ", displacement " + displacements[ s ] + '\n' );
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Nearest-rank percentile of the first <code>n</code> values. The values
+	 * are partially reordered.
+	 */
+	private static double percentile( final double[] values, final int n, final double p )
+	{
+		if ( n == 0 ) { return Double.NaN; }
+		final int k = Math.min( n - 1, Math.max( 0, ( int ) Math.ceil( p * n ) - 1 ) );
+		return QuickSelect.select( values, 0, n - 1, k );
+	}
+}
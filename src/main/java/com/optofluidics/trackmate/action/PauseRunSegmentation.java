@@ -0,0 +1,301 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+
+/**
+ * The pauses and runs found in a single track, stored as lists of edge indices
+ * in the time-sorted edge list of the track.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ * @see MotionSegmenter
+ */
+public final class PauseRunSegmentation
+{
+
+	/**
+	 * The track features measured by {@link #measure(TrackDisplacements)}, in
+	 * the order of the returned array.
+	 */
+	static final String[] FEATURES = new String[] {
+			TrackPausingAnalyzer.NUMBER_OF_PAUSES,
+			TrackPausingAnalyzer.PAUSE_MEAN_DURATION,
+			TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES,
+			TrackPausingAnalyzer.LINEAR_VELOCITY_NO_PAUSES,
+			TrackPausingAnalyzer.N_SPOTS_IN_RUNS
+	};
+
+	final List< List< Integer > > gaps;
+
+	final List< List< Integer > > runs;
+
+	private PauseRunSegmentation( final List< List< Integer > > gaps, final List< List< Integer > > runs )
+	{
+		this.gaps = gaps;
+		this.runs = runs;
+	}
+
+	/**
+	 * Builds the segmentation of a track from the motion type of each of its
+	 * edges. Each group of consecutive edges with the same motion type is a
+	 * pause or a run.
+	 *
+	 * @param pausing
+	 *            for each edge of the track, sorted by time, whether it is
+	 *            pausing.
+	 * @return a new {@link PauseRunSegmentation}.
+	 */
+	public static PauseRunSegmentation fromMotionTypes( final boolean[] pausing )
+	{
+		final List< List< Integer >> gaps = new ArrayList< List< Integer > >();
+		final List< List< Integer >> runs = new ArrayList< List< Integer > >();
+		List< Integer > section = null;
+		for ( int i = 0; i < pausing.length; i++ )
+		{
+			if ( i == 0 || pausing[ i ] != pausing[ i - 1 ] )
+			{
+				section = new ArrayList< Integer >();
+				if ( pausing[ i ] )
+				{
+					gaps.add( section );
+				}
+				else
+				{
+					runs.add( section );
+				}
+			}
+			section.add( Integer.valueOf( i ) );
+		}
+		return new PauseRunSegmentation( gaps, runs );
+	}
+
+	/**
+	 * Returns the number of pauses in the track.
+	 *
+	 * @return the number of pauses.
+	 */
+	public int nPauses()
+	{
+		return gaps.size();
+	}
+
+	/**
+	 * Returns the number of runs in the track.
+	 *
+	 * @return the number of runs.
+	 */
+	public int nRuns()
+	{
+		return runs.size();
+	}
+
+	/**
+	 * Splits a track in pauses and runs by thresholding its smoothed
+	 * velocities. A section is only considered a new pause or run if it lasts
+	 * more than the specified number of frames.
+	 *
+	 * @param velocities
+	 *            the smoothed velocities of the track edges, sorted by time.
+	 * @param velocityThreshold
+	 *            the velocity below which an edge is pausing.
+	 * @param minConsecutiveFrames
+	 *            the minimal number of consecutive frames to trigger a motion
+	 *            type change.
+	 * @return a new {@link PauseRunSegmentation}.
+	 */
+	static PauseRunSegmentation threshold( final double[] velocities, final double velocityThreshold, final int minConsecutiveFrames )
+	{
+		final List< List< Integer >> gaps = new ArrayList< List< Integer > >();
+		final List< List< Integer >> runs = new ArrayList< List< Integer > >();
+		if ( velocities.length == 0 ) { return new PauseRunSegmentation( gaps, runs ); }
+
+		List< Integer > gap = new ArrayList< Integer >();
+		List< Integer > run = new ArrayList< Integer >();
+
+		boolean inPause = velocities[ 0 ] < velocityThreshold;
+		int nSection = 0;
+
+		for ( int i = 0; i < velocities.length; i++ )
+		{
+			final double v = velocities[ i ];
+			final Integer edge = Integer.valueOf( i );
+
+			if ( v < velocityThreshold )
+			{
+				if ( inPause )
+				{
+					// Already in gap.
+					nSection++;
+				}
+				else
+				{
+					// New gap.
+					inPause = true;
+					// First check if the preceding run was long enough.
+					if ( nSection > minConsecutiveFrames )
+					{
+						// Yes, it was long enough, so we can consider it a
+						// run.
+						if ( !runs.contains( run ) )
+						{
+							runs.add( run );
+						}
+
+						// Start a new gap
+						nSection = 1;
+						gap = new ArrayList< Integer >();
+					}
+					else
+					{
+						// No, not long enough. So we simply add the
+						// previous edges to the current gap.
+						gap.addAll( run );
+						nSection++;
+					}
+
+				}
+
+				gap.add( edge );
+
+			}
+			else
+			{
+
+				if ( inPause )
+				{
+					// Was in a gap, and leaving it.
+					inPause = false;
+					if ( nSection > minConsecutiveFrames )
+					{
+						// Gap was long enough; we can store it.
+						if ( !gaps.contains( gap ) )
+						{
+							gaps.add( gap );
+						}
+						// Start a new run
+						nSection = 1;
+						run = new ArrayList< Integer >();
+					}
+					else
+					{
+						// Gap was not long enough. We add past edges to
+						// the run, and carry on with the run.
+						run.addAll( gap );
+						nSection++;
+					}
+				}
+				else
+				{
+					nSection++;
+				}
+
+				run.add( edge );
+			}
+		}
+
+		// Deal with the last one.
+		if ( nSection <= minConsecutiveFrames )
+		{
+			if ( run.size() > gap.size() )
+			{
+				run.addAll( gap );
+				if ( !runs.contains( run ) )
+				{
+					runs.add( run );
+				}
+			}
+			else
+			{
+				gap.addAll( run );
+				if ( !gaps.contains( gap ) )
+				{
+					gaps.add( gap );
+				}
+			}
+		}
+		else
+		{
+			if ( !gaps.contains( gap ) && !gap.isEmpty() )
+			{
+				gaps.add( gap );
+			}
+			if ( !runs.contains( run ) && !run.isEmpty() )
+			{
+				runs.add( run );
+			}
+		}
+
+		return new PauseRunSegmentation( gaps, runs );
+	}
+
+	/**
+	 * Computes the values of the {@link #FEATURES} for this segmentation.
+	 *
+	 * @param displacements
+	 *            the track this segmentation was computed on.
+	 * @return a new <code>double[]</code> array, with one value per feature,
+	 *         ordered as in {@link #FEATURES}.
+	 */
+	double[] measure( final TrackDisplacements displacements )
+	{
+		// Number of pauses.
+		final int nPauses = gaps.size();
+
+		// Mean duration of pauses.
+		double totalPauseDuration = 0d;
+		for ( final List< Integer > gap : gaps )
+		{
+			if ( gap.size() < 1 )
+			{
+				continue;
+			}
+			final double tf = displacements.times[ gap.get( 0 ).intValue() ];
+			final double tl = displacements.times[ gap.get( gap.size() - 1 ).intValue() ];
+			totalPauseDuration += ( tl - tf );
+		}
+		final double meanPauseDuration = totalPauseDuration / nPauses;
+
+		// Mean velocity and linear velocity without pauses.
+		double totalVelocity = 0d;
+		int nVelocity = 0;
+		double totalDT = 0;
+		double totalDX = 0;
+		int nSpotsInRuns = 0;
+		double linearVelocity = Double.NaN;
+		for ( final List< Integer > run : runs )
+		{
+			if ( run.size() < 1 )
+			{
+				continue;
+			}
+
+			// Linear velocity. Runs are ordered by time.
+			final SortedTrack track = displacements.track;
+			final int first = track.sources[ run.get( 0 ).intValue() ];
+			final int last = track.targets[ run.get( run.size() - 1 ).intValue() ];
+			final double dx = track.x[ last ] - track.x[ first ];
+			final double dy = track.y[ last ] - track.y[ first ];
+			final double dz = track.z[ last ] - track.z[ first ];
+			totalDX += Math.sqrt( dx * dx + dy * dy + dz * dz );
+			totalDT += track.t[ last ] - track.t[ first ];
+			linearVelocity = totalDX / totalDT;
+
+			// Mean velocity & N spots in runs
+			for ( final Integer edge : run )
+			{
+				totalVelocity += displacements.velocities[ edge.intValue() ];
+				nVelocity++;
+				nSpotsInRuns++;
+			}
+			// Then add one
+			nSpotsInRuns++;
+		}
+		final double meanVelocity = totalVelocity / nVelocity;
+
+		return new double[] { nPauses, meanPauseDuration, meanVelocity, linearVelocity, nSpotsInRuns };
+	}
+
+}
@@ -0,0 +1,375 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.optofluidics.util.QuickSelect;
+
+/**
+ * Segments tracks by detecting changes in their mean velocity with the PELT
+ * (Pruned Exact Linear Time) changepoint algorithm, then labels each segment
+ * as a pause or a run from its mean velocity.
+ * <p>
+ * The cost of a segment is its sum of squared deviations to its mean,
+ * normalized by the velocity noise variance. The noise variance is estimated
+ * once per dataset when fitting, from the median absolute difference between
+ * successive raw velocities, before smoothing. Velocities that are not finite
+ * are ignored when fitting, and add no cost when segmenting. Each changepoint
+ * costs a penalty of <code>penaltyFactor &times; log(n)</code>, where
+ * <code>n</code> is the number of edges in the track. If no velocity threshold is given, it is set
+ * when fitting to the midpoint between the two clusters of velocities of the
+ * dataset.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class PeltSegmenter implements MotionSegmenter
+{
+
+	private static final double DEFAULT_PENALTY_FACTOR = 2d;
+
+	private static final int MAX_KMEANS_ITERATIONS = 100;
+
+	private final double penaltyFactor;
+
+	private final int minSegmentLength;
+
+	private final boolean learnThreshold;
+
+	private double velocityThreshold;
+
+	private double noiseVariance = 1d;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a new PELT segmenter.
+	 *
+	 * @param penaltyFactor
+	 *            the penalty factor for adding a changepoint.
+	 * @param minSegmentLength
+	 *            the minimal number of edges in a segment.
+	 * @param velocityThreshold
+	 *            the mean velocity below which a segment is a pause. If
+	 *            <code>NaN</code>, it is learned from the dataset when
+	 *            fitting.
+	 */
+	public PeltSegmenter( final double penaltyFactor, final int minSegmentLength, final double velocityThreshold )
+	{
+		this.penaltyFactor = penaltyFactor;
+		this.minSegmentLength = minSegmentLength;
+		this.velocityThreshold = velocityThreshold;
+		this.learnThreshold = Double.isNaN( velocityThreshold );
+	}
+
+	/**
+	 * Creates a new PELT segmenter with default penalty and segment length,
+	 * and a velocity threshold learned from the dataset.
+	 */
+	public PeltSegmenter()
+	{
+		this( DEFAULT_PENALTY_FACTOR, 1, Double.NaN );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( penaltyFactor < 0 )
+		{
+			errorMessage = "Penalty factor is negative.";
+			return false;
+		}
+		if ( minSegmentLength <= 0 )
+		{
+			errorMessage = "Min segment length is negative or null.";
+			return false;
+		}
+		if ( !learnThreshold && velocityThreshold <= 0 )
+		{
+			errorMessage = "Velocity threshold is negative or null.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void fit( final List< double[] > velocities, final List< double[] > rawVelocities )
+	{
+		/*
+		 * Noise, from the differences of successive raw velocities: smoothing
+		 * correlates successive values, and their differences would
+		 * underestimate it. The difference of two samples has twice the noise
+		 * variance, and the MAD of a normal distribution is 0.6745 sigma.
+		 */
+
+		int nDiffs = 0;
+		for ( final double[] v : rawVelocities )
+		{
+			nDiffs += Math.max( 0, v.length - 1 );
+		}
+		final double[] diffs = new double[ nDiffs ];
+		int kd = 0;
+		for ( final double[] v : rawVelocities )
+		{
+			for ( int i = 1; i < v.length; i++ )
+			{
+				if ( isFinite( v[ i ] ) && isFinite( v[ i - 1 ] ) )
+				{
+					diffs[ kd++ ] = Math.abs( v[ i ] - v[ i - 1 ] );
+				}
+			}
+		}
+		double sigma = 0;
+		if ( kd > 0 )
+		{
+			sigma = QuickSelect.median( diffs, kd ) / ( 0.6745 * Math.sqrt( 2 ) );
+		}
+
+		// Floor the variance, for degenerate datasets.
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( final double[] v : velocities )
+		{
+			for ( final double val : v )
+			{
+				if ( isFinite( val ) )
+				{
+					min = Math.min( min, val );
+					max = Math.max( max, val );
+				}
+			}
+		}
+		final double range = min > max ? 0 : max - min;
+		noiseVariance = Math.max( sigma * sigma, Math.max( 1e-12 * range * range, Double.MIN_NORMAL ) );
+
+		if ( learnThreshold )
+		{
+			velocityThreshold = twoMeansThreshold( velocities );
+		}
+	}
+
+	@Override
+	public boolean learnsFromData()
+	{
+		return true;
+	}
+
+	@Override
+	public PauseRunSegmentation segment( final double[] velocities )
+	{
+		final int n = velocities.length;
+		final boolean[] pausing = new boolean[ n ];
+		if ( n == 0 ) { return PauseRunSegmentation.fromMotionTypes( pausing ); }
+
+		// Cumulative sums for O(1) segment costs. Non-finite velocities take
+		// the value of the previous finite one, so that they add no cost.
+		final double[] s1 = new double[ n + 1 ];
+		final double[] s2 = new double[ n + 1 ];
+		double previous = firstFinite( velocities );
+		for ( int i = 0; i < n; i++ )
+		{
+			final double v = isFinite( velocities[ i ] ) ? velocities[ i ] : previous;
+			previous = v;
+			s1[ i + 1 ] = s1[ i ] + v;
+			s2[ i + 1 ] = s2[ i ] + v * v;
+		}
+
+		final double penalty = penaltyFactor * Math.log( Math.max( n, 2 ) );
+		final int minLength = Math.min( minSegmentLength, n );
+
+		// F[t]: optimal cost of the first t edges. last[t]: last changepoint.
+		final double[] F = new double[ n + 1 ];
+		final int[] last = new int[ n + 1 ];
+		Arrays.fill( F, Double.POSITIVE_INFINITY );
+		F[ 0 ] = -penalty;
+
+		// Candidate changepoints, pruned as we go.
+		int[] candidates = new int[ 16 ];
+		int nCandidates = 0;
+		final double[] costs = new double[ n + 1 ];
+
+		for ( int t = minLength; t <= n; t++ )
+		{
+			// Admit the new candidate that is far enough from t.
+			final int admitted = t - minLength;
+			if ( admitted == 0 || admitted >= minLength )
+			{
+				if ( nCandidates == candidates.length )
+				{
+					candidates = Arrays.copyOf( candidates, 2 * candidates.length );
+				}
+				candidates[ nCandidates++ ] = admitted;
+			}
+
+			double best = Double.POSITIVE_INFINITY;
+			int bestTau = 0;
+			for ( int k = 0; k < nCandidates; k++ )
+			{
+				final int tau = candidates[ k ];
+				final double c = F[ tau ] + cost( s1, s2, tau, t );
+				costs[ k ] = c;
+				if ( c < best )
+				{
+					best = c;
+					bestTau = tau;
+				}
+			}
+			F[ t ] = best + penalty;
+			last[ t ] = bestTau;
+
+			// Prune candidates that can never be optimal again.
+			int kept = 0;
+			for ( int k = 0; k < nCandidates; k++ )
+			{
+				if ( costs[ k ] <= F[ t ] )
+				{
+					candidates[ kept++ ] = candidates[ k ];
+				}
+			}
+			nCandidates = kept;
+		}
+
+		// Backtrack and label segments.
+		int end = n;
+		while ( end > 0 )
+		{
+			final int begin = last[ end ];
+			final double mean = ( s1[ end ] - s1[ begin ] ) / ( end - begin );
+			final boolean isPause = mean < velocityThreshold;
+			for ( int i = begin; i < end; i++ )
+			{
+				pausing[ i ] = isPause;
+			}
+			end = begin;
+		}
+		return PauseRunSegmentation.fromMotionTypes( pausing );
+	}
+
+	@Override
+	public String getName()
+	{
+		return String.format( "PELT segmenter, penalty factor = %.3g, min segment length = %d, noise std = %.3g, velocity threshold = %.3g",
+				penaltyFactor, minSegmentLength, Math.sqrt( noiseVariance ), velocityThreshold );
+	}
+
+	/**
+	 * Returns the velocity threshold used to label segments. If it is learned,
+	 * it is only valid after fitting.
+	 *
+	 * @return the velocity threshold.
+	 */
+	public double getVelocityThreshold()
+	{
+		return velocityThreshold;
+	}
+
+	/**
+	 * Returns the velocity noise variance estimated when fitting.
+	 *
+	 * @return the noise variance.
+	 */
+	public double getNoiseVariance()
+	{
+		return noiseVariance;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Normalized sum of squared deviations of the edges in
+	 * <code>[from, to[</code>.
+	 */
+	private double cost( final double[] s1, final double[] s2, final int from, final int to )
+	{
+		final double sum = s1[ to ] - s1[ from ];
+		final double sse = s2[ to ] - s2[ from ] - sum * sum / ( to - from );
+		return Math.max( sse, 0 ) / noiseVariance;
+	}
+
+	/**
+	 * Returns the midpoint between the two cluster centers found by a 1D
+	 * k-means with 2 clusters, on the finite velocities of all the tracks.
+	 */
+	private static double twoMeansThreshold( final List< double[] > velocities )
+	{
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( final double[] v : velocities )
+		{
+			for ( final double val : v )
+			{
+				if ( isFinite( val ) )
+				{
+					min = Math.min( min, val );
+					max = Math.max( max, val );
+				}
+			}
+		}
+		if ( min > max ) { return Double.NaN; }
+
+		double c0 = min;
+		double c1 = max;
+		for ( int iter = 0; iter < MAX_KMEANS_ITERATIONS; iter++ )
+		{
+			final double mid = 0.5 * ( c0 + c1 );
+			double sum0 = 0;
+			double sum1 = 0;
+			int n0 = 0;
+			int n1 = 0;
+			for ( final double[] v : velocities )
+			{
+				for ( final double val : v )
+				{
+					if ( !isFinite( val ) )
+					{
+						continue;
+					}
+					if ( val < mid )
+					{
+						sum0 += val;
+						n0++;
+					}
+					else
+					{
+						sum1 += val;
+						n1++;
+					}
+				}
+			}
+			final double nc0 = n0 > 0 ? sum0 / n0 : c0;
+			final double nc1 = n1 > 0 ? sum1 / n1 : c1;
+			if ( nc0 == c0 && nc1 == c1 )
+			{
+				break;
+			}
+			c0 = nc0;
+			c1 = nc1;
+		}
+		return 0.5 * ( c0 + c1 );
+	}
+
+	private static double firstFinite( final double[] values )
+	{
+		for ( final double val : values )
+		{
+			if ( isFinite( val ) ) { return val; }
+		}
+		return 0;
+	}
+
+	private static boolean isFinite( final double val )
+	{
+		return !Double.isInfinite( val ) && !Double.isNaN( val );
+	}
+}
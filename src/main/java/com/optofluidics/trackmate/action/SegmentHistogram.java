@@ -0,0 +1,206 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable histogram of non-negative values, with fixed-width bins
+ * starting at 0, that grows as values are added. It also tracks the count,
+ * mean, variance, min and max of the values, so that summaries computed
+ * separately, for instance per track or per movie, can be merged exactly.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class SegmentHistogram
+{
+
+	private final double binWidth;
+
+	private long[] counts;
+
+	private long n;
+
+	private double mean;
+
+	private double m2;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Creates an empty histogram.
+	 *
+	 * @param binWidth
+	 *            the width of the bins. Must be strictly positive.
+	 */
+	public SegmentHistogram( final double binWidth )
+	{
+		if ( !( binWidth > 0 ) ) { throw new IllegalArgumentException( "Bin width must be strictly positive, was " + binWidth + "." ); }
+		this.binWidth = binWidth;
+		this.counts = new long[ 16 ];
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Adds a value to this histogram. <code>NaN</code> values are ignored,
+	 * negative values go in the first bin.
+	 *
+	 * @param value
+	 *            the value to add.
+	 */
+	public void add( final double value )
+	{
+		if ( Double.isNaN( value ) || Double.isInfinite( value ) ) { return; }
+
+		final int bin = Math.max( 0, ( int ) Math.min( Integer.MAX_VALUE - 8, Math.floor( value / binWidth ) ) );
+		ensureBins( bin + 1 );
+		counts[ bin ]++;
+
+		n++;
+		final double delta = value - mean;
+		mean += delta / n;
+		m2 += delta * ( value - mean );
+		min = Math.min( min, value );
+		max = Math.max( max, value );
+	}
+
+	/**
+	 * Adds the content of the specified histogram to this one. Moments are
+	 * merged with the parallel variance formula.
+	 *
+	 * @param other
+	 *            the histogram to merge. Must have the same bin width.
+	 */
+	public void merge( final SegmentHistogram other )
+	{
+		if ( other.binWidth != binWidth ) { throw new IllegalArgumentException( "Cannot merge histograms with different bin widths: " + binWidth + " and " + other.binWidth + "." ); }
+		if ( other.n == 0 ) { return; }
+
+		ensureBins( other.counts.length );
+		for ( int i = 0; i < other.counts.length; i++ )
+		{
+			counts[ i ] += other.counts[ i ];
+		}
+
+		final long total = n + other.n;
+		final double delta = other.mean - mean;
+		m2 += other.m2 + delta * delta * ( ( double ) n * other.n / total );
+		mean += delta * other.n / total;
+		n = total;
+		min = Math.min( min, other.min );
+		max = Math.max( max, other.max );
+	}
+
+	/**
+	 * Returns an approximation of the specified percentile, from the bin
+	 * counts, interpolated linearly within the bin that contains it.
+	 *
+	 * @param p
+	 *            the percentile, in <code>[0, 1]</code>.
+	 * @return the percentile value, or <code>NaN</code> if the histogram is
+	 *         empty.
+	 */
+	public double percentile( final double p )
+	{
+		if ( n == 0 ) { return Double.NaN; }
+		final double rank = p * n;
+		long cumulated = 0;
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			if ( counts[ i ] > 0 && cumulated + counts[ i ] >= rank )
+			{
+				final double fraction = ( rank - cumulated ) / counts[ i ];
+				final double value = ( i + fraction ) * binWidth;
+				return Math.max( min, Math.min( max, value ) );
+			}
+			cumulated += counts[ i ];
+		}
+		return max;
+	}
+
+	public double getBinWidth()
+	{
+		return binWidth;
+	}
+
+	/**
+	 * Returns the number of bins, up to the last non-empty one.
+	 *
+	 * @return the number of bins.
+	 */
+	public int getNBins()
+	{
+		for ( int i = counts.length - 1; i >= 0; i-- )
+		{
+			if ( counts[ i ] > 0 ) { return i + 1; }
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the number of values in the specified bin.
+	 *
+	 * @param bin
+	 *            the bin index.
+	 * @return the bin count.
+	 */
+	public long getBinCount( final int bin )
+	{
+		return bin < counts.length ? counts[ bin ] : 0;
+	}
+
+	/**
+	 * Returns the center of the specified bin.
+	 *
+	 * @param bin
+	 *            the bin index.
+	 * @return the bin center.
+	 */
+	public double getBinCenter( final int bin )
+	{
+		return ( bin + 0.5 ) * binWidth;
+	}
+
+	public long getCount()
+	{
+		return n;
+	}
+
+	public double getMean()
+	{
+		return n > 0 ? mean : Double.NaN;
+	}
+
+	public double getStd()
+	{
+		return n > 0 ? Math.sqrt( m2 / n ) : Double.NaN;
+	}
+
+	public double getMin()
+	{
+		return n > 0 ? min : Double.NaN;
+	}
+
+	public double getMax()
+	{
+		return n > 0 ? max : Double.NaN;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "n = %d, mean = %.3g, std = %.3g, min = %.3g, median = %.3g, max = %.3g",
+				n, getMean(), getStd(), getMin(), percentile( 0.5 ), getMax() );
+	}
+
+	private void ensureBins( final int nBins )
+	{
+		if ( nBins > counts.length )
+		{
+			counts = Arrays.copyOf( counts, Math.max( nBins, 2 * counts.length ) );
+		}
+	}
+}
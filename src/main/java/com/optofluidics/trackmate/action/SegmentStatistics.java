@@ -0,0 +1,212 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+import com.optofluidics.util.QuickSelect;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Dataset-wide distributions of the pauses and runs of tracks, accumulated
+ * from their {@link MotionSegments}. Statistics computed separately, for
+ * instance over several movies, can be merged with
+ * {@link #merge(SegmentStatistics)}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class SegmentStatistics
+{
+
+	/**
+	 * Distribution of pause durations.
+	 */
+	public final SegmentHistogram pauseDurations;
+
+	/**
+	 * Distribution of run durations.
+	 */
+	public final SegmentHistogram runDurations;
+
+	/**
+	 * Distribution of run lengths, measured as the distance between the first
+	 * and last spots of each run.
+	 */
+	public final SegmentHistogram runLengths;
+
+	/**
+	 * Distribution of the mean velocity of each run.
+	 */
+	public final SegmentHistogram runVelocities;
+
+	private int nTracks;
+
+	/**
+	 * Creates empty statistics.
+	 *
+	 * @param timeBin
+	 *            the bin width of the duration histograms.
+	 * @param lengthBin
+	 *            the bin width of the run length histogram.
+	 * @param velocityBin
+	 *            the bin width of the run velocity histogram.
+	 */
+	public SegmentStatistics( final double timeBin, final double lengthBin, final double velocityBin )
+	{
+		this.pauseDurations = new SegmentHistogram( timeBin );
+		this.runDurations = new SegmentHistogram( timeBin );
+		this.runLengths = new SegmentHistogram( lengthBin );
+		this.runVelocities = new SegmentHistogram( velocityBin );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Adds the segments of one track to these statistics.
+	 *
+	 * @param segments
+	 *            the segments to add.
+	 */
+	public void add( final MotionSegments segments )
+	{
+		for ( int s = 0; s < segments.size(); s++ )
+		{
+			if ( segments.pauses[ s ] )
+			{
+				pauseDurations.add( segments.durations[ s ] );
+			}
+			else
+			{
+				runDurations.add( segments.durations[ s ] );
+				runLengths.add( segments.displacements[ s ] );
+				runVelocities.add( segments.meanVelocities[ s ] );
+			}
+		}
+		nTracks++;
+	}
+
+	/**
+	 * Adds the content of the specified statistics to these ones.
+	 *
+	 * @param other
+	 *            the statistics to merge. Must have the same bin widths.
+	 */
+	public void merge( final SegmentStatistics other )
+	{
+		pauseDurations.merge( other.pauseDurations );
+		runDurations.merge( other.runDurations );
+		runLengths.merge( other.runLengths );
+		runVelocities.merge( other.runVelocities );
+		nTracks += other.nTracks;
+	}
+
+	/**
+	 * Returns the number of tracks added to these statistics.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int getNTracks()
+	{
+		return nTracks;
+	}
+
+	/**
+	 * Adds the segments of the visible tracks of the specified model, as
+	 * stored by the last velocity analysis. Tracks that were not analyzed are
+	 * skipped.
+	 *
+	 * @param model
+	 *            the model.
+	 */
+	public void addTracks( final Model model )
+	{
+		final Map< Integer, MotionSegments > store = MotionSegments.of( model );
+		final Collection< Integer > trackIDs = model.getTrackModel().unsortedTrackIDs( true );
+		for ( final Integer id : trackIDs )
+		{
+			final MotionSegments segments = store.get( id );
+			if ( null != segments )
+			{
+				add( segments );
+			}
+		}
+	}
+
+	/**
+	 * Accumulates the statistics of the visible tracks of the specified model,
+	 * from the segments stored by the last velocity analysis. Tracks that were
+	 * not analyzed are skipped.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param timeBin
+	 *            the bin width of the duration histograms.
+	 * @param lengthBin
+	 *            the bin width of the run length histogram.
+	 * @param velocityBin
+	 *            the bin width of the run velocity histogram.
+	 * @return new statistics.
+	 */
+	public static SegmentStatistics aggregate( final Model model, final double timeBin, final double lengthBin, final double velocityBin )
+	{
+		final SegmentStatistics statistics = new SegmentStatistics( timeBin, lengthBin, velocityBin );
+		statistics.addTracks( model );
+		return statistics;
+	}
+
+	/**
+	 * Creates empty statistics whose bin widths suit the tracks of the
+	 * specified model. Durations are binned per frame, velocities per tenth of
+	 * the median linear velocity of the visible tracks, and lengths per
+	 * distance covered at this velocity in one frame. Values that are missing,
+	 * zero or not finite are replaced by 1, so that the bin widths are always
+	 * valid.
+	 *
+	 * @param model
+	 *            the model, whose track linear velocities are computed.
+	 * @param frameInterval
+	 *            the time interval between frames.
+	 * @return new statistics.
+	 */
+	public static SegmentStatistics create( final Model model, final double frameInterval )
+	{
+		final double timeBin = validOrOne( frameInterval );
+
+		final Collection< Integer > trackIDs = model.getTrackModel().unsortedTrackIDs( true );
+		final double[] velocities = new double[ trackIDs.size() ];
+		int n = 0;
+		for ( final Integer id : trackIDs )
+		{
+			final Double velocity = model.getFeatureModel().getTrackFeature( id, TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY );
+			if ( null != velocity && velocity.doubleValue() > 0 && !Double.isInfinite( velocity.doubleValue() ) )
+			{
+				velocities[ n++ ] = velocity.doubleValue();
+			}
+		}
+		final double velocity = validOrOne( QuickSelect.median( velocities, n ) );
+
+		return new SegmentStatistics( timeBin, velocity * timeBin, velocity / 10. );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Segments of " + nTracks + " tracks:\n"
+				+ " - pause durations: " + pauseDurations + '\n'
+				+ " - run durations: " + runDurations + '\n'
+				+ " - run lengths: " + runLengths + '\n'
+				+ " - run velocities: " + runVelocities + '\n';
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static double validOrOne( final double value )
+	{
+		return value > 0 && !Double.isInfinite( value ) ? value : 1.;
+	}
+}
@@ -0,0 +1,646 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
+import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
+import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Detects pauses and runs in tracks while they grow, one edge at a time.
+ * <p>
+ * This is the online counterpart of {@link TrackVelocityThresholder}. Each
+ * growing track keeps a fixed-lag Gaussian smoother, using the same kernel as
+ * the offline analysis, and the hysteresis state of its motion type. An edge
+ * is smoothed as soon as the edges that follow it within the kernel support
+ * are known, and is labeled with a
+ * {@link MotionTypeEdgeAnalyzer#MOVEMENT_TYPE} as soon as it either confirms
+ * the current motion type or belongs to a section of the other motion type
+ * that lasts more than <code>minConsecutiveFrames</code>. The
+ * {@link TrackPausingAnalyzer} features of the track are updated with running
+ * statistics every time edges are labeled.
+ * <p>
+ * The work per edge is constant and does not depend on the track length. The
+ * detector can be fed manually with {@link #addEdge(DefaultWeightedEdge)}, or
+ * registered as a listener to the model, in which case it processes the edges
+ * added to it. Call {@link #checkInput()} before feeding it. Tracks are
+ * followed by their last spot, so a spot with two successors starts a new
+ * branch with its own state. Spots and edges removed from the model are
+ * ignored. Call {@link #flush()} at the end of the acquisition to label the
+ * last edges of all tracks.
+ * <p>
+ * Edges of branching tracks, that split or merge, are labeled branch by
+ * branch. Their track features are not computed: the branches would overwrite
+ * each other's values, so they are set to <code>NaN</code> once a split or a
+ * merge is found. Run the offline analysis on these tracks.
+ * <p>
+ * Short sections of the other motion type are absorbed in the current section
+ * as they are found, whereas the offline analysis absorbs them in the section
+ * that follows. Labels can therefore differ from the offline ones around short
+ * sections.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class StreamingMotionDetector implements ModelChangeListener
+{
+
+	private static final String BASE_ERR_MSG = "[StreamingMotionDetector] ";
+
+	private final Model model;
+
+	private final double velocityThreshold;
+
+	private final int minConsecutiveFrames;
+
+	private final int smoothingWindow;
+
+	private String errorMessage;
+
+	/**
+	 * Normalized half-kernel of the smoothing Gaussian.
+	 */
+	private final double[] kernel;
+
+	/**
+	 * Number of edges a track needs to grow by before an edge can be
+	 * smoothed.
+	 */
+	private final int lag;
+
+	/**
+	 * The state of each growing track, stored against the last spot of the
+	 * track.
+	 */
+	private final Map< Spot, TrackState > tips;
+
+	/**
+	 * Creates a new streaming detector.
+	 *
+	 * @param model
+	 *            the model whose tracks are analyzed. Labels and track
+	 *            features are written in its feature model.
+	 * @param velocityThreshold
+	 *            the velocity below which an edge is pausing.
+	 * @param minConsecutiveFrames
+	 *            the minimal number of consecutive frames to trigger a motion
+	 *            type change.
+	 * @param smoothingWindow
+	 *            the smoothing window, in frames. The Gaussian sigma is half
+	 *            of it.
+	 */
+	public StreamingMotionDetector( final Model model, final double velocityThreshold, final int minConsecutiveFrames, final int smoothingWindow )
+	{
+		this.model = model;
+		this.velocityThreshold = velocityThreshold;
+		this.minConsecutiveFrames = minConsecutiveFrames;
+		this.smoothingWindow = smoothingWindow;
+		this.kernel = halfkernel( smoothingWindow / 2.0d );
+		this.lag = kernel.length - 1;
+		this.tips = new HashMap< Spot, TrackState >();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Checks that the detector parameters are valid. Must be called before
+	 * edges are fed to the detector.
+	 *
+	 * @return <code>true</code> if the parameters are valid.
+	 */
+	public boolean checkInput()
+	{
+		if ( velocityThreshold <= 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Velocity threshold is negative or null.";
+			return false;
+		}
+		if ( minConsecutiveFrames <= 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Min consecutive frame is negative or null.";
+			return false;
+		}
+		if ( smoothingWindow < 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Smoothing window is negative.";
+			return false;
+		}
+		return true;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the number of edges a track needs to grow by before an edge is
+	 * smoothed and can be labeled.
+	 *
+	 * @return the smoother lag, in edges.
+	 */
+	public int getLag()
+	{
+		return lag;
+	}
+
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		if ( event.getEventID() != ModelChangeEvent.MODEL_MODIFIED ) { return; }
+
+		final List< DefaultWeightedEdge > added = new ArrayList< DefaultWeightedEdge >();
+		for ( final DefaultWeightedEdge edge : event.getEdges() )
+		{
+			if ( event.getEdgeFlag( edge ).intValue() == ModelChangeEvent.FLAG_EDGE_ADDED )
+			{
+				added.add( edge );
+			}
+		}
+		if ( added.isEmpty() ) { return; }
+
+		// Several edges of the same track may come in one event.
+		final TrackModel trackModel = model.getTrackModel();
+		Collections.sort( added, new Comparator< DefaultWeightedEdge >()
+		{
+			@Override
+			public int compare( final DefaultWeightedEdge e1, final DefaultWeightedEdge e2 )
+			{
+				final double f1 = Math.min( trackModel.getEdgeSource( e1 ).getFeature( Spot.FRAME ).doubleValue(), trackModel.getEdgeTarget( e1 ).getFeature( Spot.FRAME ).doubleValue() );
+				final double f2 = Math.min( trackModel.getEdgeSource( e2 ).getFeature( Spot.FRAME ).doubleValue(), trackModel.getEdgeTarget( e2 ).getFeature( Spot.FRAME ).doubleValue() );
+				return Double.compare( f1, f2 );
+			}
+		} );
+		for ( final DefaultWeightedEdge edge : added )
+		{
+			addEdge( edge );
+		}
+	}
+
+	/**
+	 * Processes a new edge of the model. The edge must extend a track at its
+	 * end, or start a new track.
+	 *
+	 * @param edge
+	 *            the new edge.
+	 */
+	public synchronized void addEdge( final DefaultWeightedEdge edge )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		Spot source = trackModel.getEdgeSource( edge );
+		Spot target = trackModel.getEdgeTarget( edge );
+		if ( source.diffTo( target, Spot.FRAME ) > 0 )
+		{ // Switch order if needed
+			final Spot tmp = source;
+			source = target;
+			target = tmp;
+		}
+
+		TrackState state = tips.remove( source );
+		if ( null == state )
+		{
+			state = new TrackState();
+		}
+		if ( isSplit( source, trackModel ) || isMerge( target, trackModel ) )
+		{
+			markBranched( state, trackModel.trackIDOf( target ) );
+		}
+		state.tip = target;
+		final TrackState merged = tips.put( target, state );
+		if ( null != merged && merged != state )
+		{
+			// The other branch ends here.
+			merged.flush();
+		}
+
+		state.push( new Sample( edge, source, target ) );
+		state.publish();
+	}
+
+	/**
+	 * Smoothes and labels the last edges of all the tracks, as if the tracks
+	 * had ended, and forgets them.
+	 */
+	public synchronized void flush()
+	{
+		for ( final TrackState state : tips.values() )
+		{
+			state.flush();
+			state.publish();
+		}
+		tips.clear();
+	}
+
+	/**
+	 * Flags the specified state and the states of all the tips of the
+	 * specified track as branched, and clears the track features.
+	 */
+	private void markBranched( final TrackState state, final Integer trackID )
+	{
+		state.branched = true;
+		if ( null == trackID ) { return; }
+
+		final TrackModel trackModel = model.getTrackModel();
+		for ( final TrackState other : tips.values() )
+		{
+			if ( trackID.equals( trackModel.trackIDOf( other.tip ) ) )
+			{
+				other.branched = true;
+			}
+		}
+		final FeatureModel fm = model.getFeatureModel();
+		for ( final String feature : PauseRunSegmentation.FEATURES )
+		{
+			fm.putTrackFeature( trackID, feature, Double.valueOf( Double.NaN ) );
+		}
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns <code>true</code> if the specified spot has more than one
+	 * successor.
+	 */
+	private static boolean isSplit( final Spot spot, final TrackModel trackModel )
+	{
+		return countNeighbors( spot, trackModel, true ) > 1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified spot has more than one
+	 * predecessor.
+	 */
+	private static boolean isMerge( final Spot spot, final TrackModel trackModel )
+	{
+		return countNeighbors( spot, trackModel, false ) > 1;
+	}
+
+	private static int countNeighbors( final Spot spot, final TrackModel trackModel, final boolean successors )
+	{
+		final Set< DefaultWeightedEdge > edges = trackModel.edgesOf( spot );
+		if ( null == edges ) { return 0; }
+		int n = 0;
+		for ( final DefaultWeightedEdge edge : edges )
+		{
+			Spot other = trackModel.getEdgeSource( edge );
+			if ( other == spot )
+			{
+				other = trackModel.getEdgeTarget( edge );
+			}
+			final int diff = ( int ) Math.signum( other.diffTo( spot, Spot.FRAME ) );
+			if ( successors ? diff > 0 : diff < 0 )
+			{
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the normalized half-kernel of a Gaussian, with the same size and
+	 * weights as in {@link net.imglib2.algorithm.gauss3.Gauss3}.
+	 */
+	private static final double[] halfkernel( final double sigma )
+	{
+		final int size = Math.max( 2, ( int ) ( 3 * sigma + 0.5 ) + 1 );
+		final double twoSqSigma = 2 * sigma * sigma;
+		final double[] kernel = new double[ size ];
+		kernel[ 0 ] = 1;
+		for ( int x = 1; x < size; ++x )
+		{
+			kernel[ x ] = Math.exp( -( x * x ) / twoSqSigma );
+		}
+
+		double sum = 0.5;
+		for ( int x = 1; x < size; ++x )
+		{
+			sum += kernel[ x ];
+		}
+		sum *= 2;
+		for ( int x = 0; x < size; ++x )
+		{
+			kernel[ x ] /= sum;
+		}
+		return kernel;
+	}
+
+	/**
+	 * Mirrors an index in an array of the specified length, duplicating the
+	 * border values.
+	 */
+	private static final int mirror( final int index, final int length )
+	{
+		final int period = 2 * length;
+		int i = index % period;
+		if ( i < 0 )
+		{
+			i += period;
+		}
+		return i < length ? i : period - 1 - i;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * An edge of a growing track, with the positions of its two spots.
+	 */
+	private static final class Sample
+	{
+		private final DefaultWeightedEdge edge;
+
+		private final double sx, sy, sz, st;
+
+		private final double tx, ty, tz, tt;
+
+		private final double velocity;
+
+		private double smoothedVelocity;
+
+		private Sample( final DefaultWeightedEdge edge, final Spot source, final Spot target )
+		{
+			this.edge = edge;
+			this.sx = source.getFeature( Spot.POSITION_X ).doubleValue();
+			this.sy = source.getFeature( Spot.POSITION_Y ).doubleValue();
+			this.sz = source.getFeature( Spot.POSITION_Z ).doubleValue();
+			this.st = source.getFeature( Spot.POSITION_T ).doubleValue();
+			this.tx = target.getFeature( Spot.POSITION_X ).doubleValue();
+			this.ty = target.getFeature( Spot.POSITION_Y ).doubleValue();
+			this.tz = target.getFeature( Spot.POSITION_Z ).doubleValue();
+			this.tt = target.getFeature( Spot.POSITION_T ).doubleValue();
+			final double dx = tx - sx;
+			final double dy = ty - sy;
+			final double dz = tz - sz;
+			this.velocity = Math.sqrt( dx * dx + dy * dy + dz * dz ) / Math.abs( tt - st );
+		}
+
+		private double time()
+		{
+			return 0.5d * ( st + tt );
+		}
+	}
+
+	/**
+	 * The smoother, hysteresis and statistics state of a growing track.
+	 */
+	private final class TrackState
+	{
+
+		/*
+		 * Smoother.
+		 */
+
+		/**
+		 * The last 2 &times; lag + 1 edges, indexed by their rank in the track
+		 * modulo the buffer length.
+		 */
+		private final Sample[] buffer = new Sample[ 2 * lag + 1 ];
+
+		/**
+		 * Number of edges received.
+		 */
+		private int nReceived = 0;
+
+		/**
+		 * Number of edges smoothed.
+		 */
+		private int nSmoothed = 0;
+
+		/*
+		 * Hysteresis.
+		 */
+
+		private Double motionType = null;
+
+		/**
+		 * Edges of the other motion type, waiting for the section to be long
+		 * enough to switch motion type.
+		 */
+		private final Sample[] pending = new Sample[ minConsecutiveFrames + 1 ];
+
+		private int nPending = 0;
+
+		/*
+		 * Statistics of the current section.
+		 */
+
+		private Sample sectionFirst;
+
+		private Sample sectionLast;
+
+		private double sectionVelocitySum;
+
+		private int sectionNEdges;
+
+		/*
+		 * Statistics of the closed sections.
+		 */
+
+		private int nPauses = 0;
+
+		private double totalPauseDuration = 0;
+
+		private int nRuns = 0;
+
+		private int nRunEdges = 0;
+
+		private double runVelocitySum = 0;
+
+		private double runDX = 0;
+
+		private double runDT = 0;
+
+		private Spot tip;
+
+		/**
+		 * Whether the track of this state splits or merges.
+		 */
+		private boolean branched = false;
+
+		private void push( final Sample sample )
+		{
+			buffer[ nReceived % buffer.length ] = sample;
+			nReceived++;
+			while ( nReceived - nSmoothed > lag )
+			{
+				smooth( nSmoothed, nReceived );
+			}
+		}
+
+		private void flush()
+		{
+			while ( nSmoothed < nReceived )
+			{
+				smooth( nSmoothed, nReceived );
+			}
+			for ( int i = 0; i < nPending; i++ )
+			{
+				label( pending[ i ] );
+			}
+			nPending = 0;
+		}
+
+		/**
+		 * Smoothes the edge of the specified rank, using the specified track
+		 * length to mirror the ranks outside of the track. All the edges
+		 * within the kernel support must be in the buffer.
+		 */
+		private void smooth( final int rank, final int length )
+		{
+			double sdx = 0;
+			double sdy = 0;
+			double sdz = 0;
+			for ( int k = -lag; k <= lag; k++ )
+			{
+				final Sample s = buffer[ mirror( rank + k, length ) % buffer.length ];
+				final double w = kernel[ Math.abs( k ) ];
+				sdx += w * ( s.tx - s.sx );
+				sdy += w * ( s.ty - s.sy );
+				sdz += w * ( s.tz - s.sz );
+			}
+			final Sample sample = buffer[ rank % buffer.length ];
+			sample.smoothedVelocity = Math.sqrt( sdx * sdx + sdy * sdy + sdz * sdz ) / ( sample.tt - sample.st );
+			model.getFeatureModel().putEdgeFeature( sample.edge, EdgeSmoothedVelocityAnalyzer.SMOOTHED_VELOCITY, Double.valueOf( sample.smoothedVelocity ) );
+			nSmoothed++;
+			classify( sample );
+		}
+
+		private void classify( final Sample sample )
+		{
+			final Double type = sample.smoothedVelocity < velocityThreshold ? MotionTypeEdgeAnalyzer.PAUSING : MotionTypeEdgeAnalyzer.RUNNING;
+			if ( null == motionType )
+			{
+				motionType = type;
+				label( sample );
+				return;
+			}
+
+			if ( type.equals( motionType ) )
+			{
+				// Preceding section of the other type was too short.
+				for ( int i = 0; i < nPending; i++ )
+				{
+					label( pending[ i ] );
+				}
+				nPending = 0;
+				label( sample );
+				return;
+			}
+
+			pending[ nPending++ ] = sample;
+			if ( nPending > minConsecutiveFrames )
+			{
+				// Long enough: switch motion type.
+				closeSection();
+				motionType = type;
+				for ( int i = 0; i < nPending; i++ )
+				{
+					label( pending[ i ] );
+				}
+				nPending = 0;
+			}
+		}
+
+		private void label( final Sample sample )
+		{
+			model.getFeatureModel().putEdgeFeature( sample.edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE, motionType );
+			if ( null == sectionFirst )
+			{
+				sectionFirst = sample;
+			}
+			sectionLast = sample;
+			sectionVelocitySum += sample.velocity;
+			sectionNEdges++;
+		}
+
+		private void closeSection()
+		{
+			if ( null == sectionFirst ) { return; }
+
+			if ( motionType.equals( MotionTypeEdgeAnalyzer.PAUSING ) )
+			{
+				nPauses++;
+				totalPauseDuration += sectionLast.time() - sectionFirst.time();
+			}
+			else
+			{
+				nRuns++;
+				nRunEdges += sectionNEdges;
+				runVelocitySum += sectionVelocitySum;
+				runDX += runDistance();
+				runDT += sectionLast.tt - sectionFirst.st;
+			}
+
+			sectionFirst = null;
+			sectionLast = null;
+			sectionVelocitySum = 0;
+			sectionNEdges = 0;
+		}
+
+		private double runDistance()
+		{
+			final double dx = sectionLast.tx - sectionFirst.sx;
+			final double dy = sectionLast.ty - sectionFirst.sy;
+			final double dz = sectionLast.tz - sectionFirst.sz;
+			return Math.sqrt( dx * dx + dy * dy + dz * dz );
+		}
+
+		/**
+		 * Writes the running {@link TrackPausingAnalyzer} features of the
+		 * track, counting the current section as if it was closed.
+		 */
+		private void publish()
+		{
+			if ( branched || null == sectionFirst ) { return; }
+			final Integer trackID = model.getTrackModel().trackIDOf( tip );
+			if ( null == trackID ) { return; }
+
+			int np = nPauses;
+			double pauseDuration = totalPauseDuration;
+			int nr = nRuns;
+			int nre = nRunEdges;
+			double velocitySum = runVelocitySum;
+			double dx = runDX;
+			double dt = runDT;
+			if ( motionType.equals( MotionTypeEdgeAnalyzer.PAUSING ) )
+			{
+				np++;
+				pauseDuration += sectionLast.time() - sectionFirst.time();
+			}
+			else
+			{
+				nr++;
+				nre += sectionNEdges;
+				velocitySum += sectionVelocitySum;
+				dx += runDistance();
+				dt += sectionLast.tt - sectionFirst.st;
+			}
+
+			final FeatureModel fm = model.getFeatureModel();
+			fm.putTrackFeature( trackID, TrackPausingAnalyzer.NUMBER_OF_PAUSES, Double.valueOf( np ) );
+			fm.putTrackFeature( trackID, TrackPausingAnalyzer.PAUSE_MEAN_DURATION, Double.valueOf( pauseDuration / np ) );
+			fm.putTrackFeature( trackID, TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES, Double.valueOf( velocitySum / nre ) );
+			fm.putTrackFeature( trackID, TrackPausingAnalyzer.LINEAR_VELOCITY_NO_PAUSES, Double.valueOf( nr > 0 ? dx / dt : Double.NaN ) );
+			fm.putTrackFeature( trackID, TrackPausingAnalyzer.N_SPOTS_IN_RUNS, Double.valueOf( nre + nr ) );
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.List;
+
+/**
+ * The historical segmenter: edges are pausing when their smoothed velocity is
+ * below a threshold, and a new pause or run starts only if it lasts more than
+ * a minimal number of frames. There is nothing to fit.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class ThresholdSegmenter implements MotionSegmenter
+{
+
+	private final double velocityThreshold;
+
+	private final int minConsecutiveFrames;
+
+	private String errorMessage;
+
+	public ThresholdSegmenter( final double velocityThreshold, final int minConsecutiveFrames )
+	{
+		this.velocityThreshold = velocityThreshold;
+		this.minConsecutiveFrames = minConsecutiveFrames;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( velocityThreshold <= 0 )
+		{
+			errorMessage = "Velocity threshold is negative or null.";
+			return false;
+		}
+		if ( minConsecutiveFrames <= 0 )
+		{
+			errorMessage = "Min consecutive frame is negative or null.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void fit( final List< double[] > velocities, final List< double[] > rawVelocities )
+	{}
+
+	@Override
+	public boolean learnsFromData()
+	{
+		return false;
+	}
+
+	@Override
+	public PauseRunSegmentation segment( final double[] velocities )
+	{
+		return PauseRunSegmentation.threshold( velocities, velocityThreshold, minConsecutiveFrames );
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Threshold segmenter, velocity threshold = " + velocityThreshold + ", min consecutive frames = " + minConsecutiveFrames;
+	}
+
+	public double getVelocityThreshold()
+	{
+		return velocityThreshold;
+	}
+
+	public int getMinConsecutiveFrames()
+	{
+		return minConsecutiveFrames;
+	}
+
+}
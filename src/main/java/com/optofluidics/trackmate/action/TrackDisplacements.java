@@ -0,0 +1,160 @@
+package com.optofluidics.trackmate.action;
+
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+
+import fiji.plugin.trackmate.features.edges.EdgeTimeLocationAnalyzer;
+
+/**
+ * The edges of a single track, sorted by time, with their displacements
+ * collected once so that they can be smoothed and segmented several times.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public final class TrackDisplacements
+{
+
+	/**
+	 * The sorted track the displacements are computed from. Edge <i>i</i> of
+	 * the displacements is edge <i>i</i> of this track.
+	 */
+	public final SortedTrack track;
+
+	/**
+	 * For each edge, the displacement along X, Y and Z from its source to its
+	 * target, and the time separating them.
+	 */
+	public final double[] dx;
+
+	public final double[] dy;
+
+	public final double[] dz;
+
+	public final double[] dt;
+
+	/**
+	 * For each edge, the mean time of its two spots. Same value than the
+	 * {@link EdgeTimeLocationAnalyzer#TIME} feature.
+	 */
+	public final double[] times;
+
+	/**
+	 * For each edge, the non-smoothed instantaneous velocity.
+	 */
+	public final double[] velocities;
+
+	private TrackDisplacements( final SortedTrack track )
+	{
+		this.track = track;
+		final int n = track.nEdges();
+		this.dx = new double[ n ];
+		this.dy = new double[ n ];
+		this.dz = new double[ n ];
+		this.dt = new double[ n ];
+		this.times = new double[ n ];
+		this.velocities = new double[ n ];
+
+		for ( int i = 0; i < n; i++ )
+		{
+			final int source = track.sources[ i ];
+			final int target = track.targets[ i ];
+
+			dx[ i ] = track.x[ target ] - track.x[ source ];
+			dy[ i ] = track.y[ target ] - track.y[ source ];
+			dz[ i ] = track.z[ target ] - track.z[ source ];
+			dt[ i ] = track.t[ target ] - track.t[ source ];
+
+			times[ i ] = 0.5d * ( track.t[ source ] + track.t[ target ] );
+			velocities[ i ] = Math.sqrt( dx[ i ] * dx[ i ] + dy[ i ] * dy[ i ] + dz[ i ] * dz[ i ] ) / Math.abs( dt[ i ] );
+		}
+	}
+
+	/**
+	 * Collects the displacements of the specified track.
+	 *
+	 * @param trackID
+	 *            the ID of the track to collect.
+	 * @param trackIndex
+	 *            the index of the model the track belongs to.
+	 * @return a new {@link TrackDisplacements}.
+	 */
+	public static TrackDisplacements collect( final Integer trackID, final TrackIndex trackIndex )
+	{
+		return new TrackDisplacements( trackIndex.getTrack( trackID ) );
+	}
+
+	public int size()
+	{
+		return dx.length;
+	}
+
+	/**
+	 * Returns the edge at the specified index.
+	 *
+	 * @param i
+	 *            the edge index.
+	 * @return the edge.
+	 */
+	public DefaultWeightedEdge edge( final int i )
+	{
+		return track.edges[ i ];
+	}
+
+	/**
+	 * Returns the velocities computed from the displacements smoothed with a
+	 * Gaussian filter.
+	 *
+	 * @param smoothingWindow
+	 *            the smoothing window, in frames. The Gaussian sigma is half
+	 *            of it.
+	 * @return a new <code>double[]</code> array.
+	 */
+	public double[] smoothedVelocities( final int smoothingWindow )
+	{
+		final double sigma = smoothingWindow / 2.0d;
+		final double[] sdxs = gaussianSmooth( sigma, dx );
+		final double[] sdys = gaussianSmooth( sigma, dy );
+		final double[] sdzs = gaussianSmooth( sigma, dz );
+
+		final double[] smoothed = new double[ size() ];
+		for ( int i = 0; i < smoothed.length; i++ )
+		{
+			final double sdx = sdxs[ i ];
+			final double sdy = sdys[ i ];
+			final double sdz = sdzs[ i ];
+			smoothed[ i ] = Math.sqrt( sdx * sdx + sdy * sdy + sdz * sdz ) / dt[ i ];
+		}
+		return smoothed;
+	}
+
+	private static final double[] gaussianSmooth( final double sigma, final double[] source )
+	{
+		final ArrayImg< DoubleType, DoubleArray > img = ArrayImgs.doubles( source, new long[] { source.length } );
+		final ExtendedRandomAccessibleInterval< DoubleType, ArrayImg< DoubleType, DoubleArray >> extdImg = Views.extendMirrorDouble( img );
+
+		final double[] target = new double[ source.length ];
+		final ArrayImg< DoubleType, DoubleArray > targetImg = ArrayImgs.doubles( target, new long[] { source.length } );
+
+		try
+		{
+			Gauss3.gauss( sigma, extdImg, targetImg );
+		}
+		catch ( final IncompatibleTypeException e )
+		{
+			e.printStackTrace();
+		}
+
+		return target;
+	}
+}
@@ -0,0 +1,228 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.util.TMUtils;
+
+/**
+ * The columns of a table of track features, resolved once against the
+ * feature model of a model: feature name, units, header and type. Features
+ * that are not declared in the feature model are not turned into columns,
+ * and are reported by {@link #getMissingFeatures()}.
+ * <p>
+ * The same columns are used to build the ImageJ table, the CSV file and the
+ * NumPy columns, so that all outputs agree on names and types.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class TrackFeatureColumns
+{
+
+	private final FeatureModel fm;
+
+	private final List< Column > columns;
+
+	private final List< String > missingFeatures;
+
+	/**
+	 * Resolves the columns for the specified track features.
+	 *
+	 * @param model
+	 *            the model to read feature declarations and units from.
+	 * @param features
+	 *            the track feature keys, in column order.
+	 */
+	public TrackFeatureColumns( final Model model, final Collection< String > features )
+	{
+		this.fm = model.getFeatureModel();
+		this.columns = new ArrayList< Column >( features.size() );
+		this.missingFeatures = new ArrayList< String >();
+		for ( final String feature : features )
+		{
+			final Dimension dimension = fm.getTrackFeatureDimensions().get( feature );
+			if ( null == dimension )
+			{
+				missingFeatures.add( feature );
+				continue;
+			}
+
+			final String name = fm.getTrackFeatureNames().get( feature );
+			final String header;
+			if ( dimension.equals( Dimension.NONE ) )
+			{
+				header = name;
+			}
+			else
+			{
+				header = name + " (" + TMUtils.getUnitsFor( dimension, model.getSpaceUnits(), model.getTimeUnits() ) + ")";
+			}
+			final Boolean isInt = fm.getTrackFeatureIsInt().get( feature );
+			columns.add( new Column( feature, name, header, dimension, null != isInt && isInt.booleanValue() ) );
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the resolved columns, in order.
+	 *
+	 * @return an unmodifiable list of columns.
+	 */
+	public List< Column > getColumns()
+	{
+		return Collections.unmodifiableList( columns );
+	}
+
+	/**
+	 * Returns the requested features that are not declared in the feature
+	 * model, and therefore have no column.
+	 *
+	 * @return an unmodifiable list of feature keys.
+	 */
+	public List< String > getMissingFeatures()
+	{
+		return Collections.unmodifiableList( missingFeatures );
+	}
+
+	public int size()
+	{
+		return columns.size();
+	}
+
+	/**
+	 * Returns the headers of the columns.
+	 *
+	 * @return a new <code>String[]</code> array.
+	 */
+	public String[] getHeaders()
+	{
+		final String[] headers = new String[ columns.size() ];
+		for ( int c = 0; c < headers.length; c++ )
+		{
+			headers[ c ] = columns.get( c ).header;
+		}
+		return headers;
+	}
+
+	/**
+	 * Reads the values of all the columns for the specified tracks. Rows are
+	 * filled in parallel, on the {@link SharedExecutor}.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks, one per row.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new <code>double[column][row]</code> array. Missing values are
+	 *         <code>NaN</code>.
+	 */
+	public double[][] read( final Integer[] trackIDs, final int numThreads )
+	{
+		return read( trackIDs, numThreads, null );
+	}
+
+	/**
+	 * Reads the values of all the columns for the specified tracks, and
+	 * records which are missing, so that they can be told apart from values
+	 * that are <code>NaN</code>. Rows are filled in parallel, on the
+	 * {@link SharedExecutor}.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks, one per row.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param missing
+	 *            a <code>boolean[column][row]</code> array, set to
+	 *            <code>true</code> where the value is missing. Ignored if
+	 *            <code>null</code>.
+	 * @return a new <code>double[column][row]</code> array. Missing values are
+	 *         <code>NaN</code>.
+	 */
+	public double[][] read( final Integer[] trackIDs, final int numThreads, final boolean[][] missing )
+	{
+		final int nColumns = columns.size();
+		final double[][] values = new double[ nColumns ][ trackIDs.length ];
+		final String[] features = new String[ nColumns ];
+		for ( int c = 0; c < nColumns; c++ )
+		{
+			features[ c ] = columns.get( c ).feature;
+		}
+
+		SharedExecutor.forEach( trackIDs.length, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int row )
+			{
+				final Integer id = trackIDs[ row ];
+				for ( int c = 0; c < nColumns; c++ )
+				{
+					final Double val = fm.getTrackFeature( id, features[ c ] );
+					values[ c ][ row ] = null == val ? Double.NaN : val.doubleValue();
+					if ( null != missing )
+					{
+						missing[ c ][ row ] = null == val;
+					}
+				}
+			}
+		} );
+		return values;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A resolved track feature column.
+	 */
+	public static final class Column
+	{
+
+		/**
+		 * The feature key.
+		 */
+		public final String feature;
+
+		/**
+		 * The feature name.
+		 */
+		public final String name;
+
+		/**
+		 * The feature name, followed by its units if it has a dimension.
+		 */
+		public final String header;
+
+		public final Dimension dimension;
+
+		/**
+		 * Whether the values of this column are integers.
+		 */
+		public final boolean isInt;
+
+		private Column( final String feature, final String name, final String header, final Dimension dimension, final boolean isInt )
+		{
+			this.feature = feature;
+			this.name = name;
+			this.header = header;
+			this.dimension = dimension;
+			this.isInt = isInt;
+		}
+
+		@Override
+		public String toString()
+		{
+			return header;
+		}
+	}
+}
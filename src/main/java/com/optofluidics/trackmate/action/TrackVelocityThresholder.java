@@ -1,45 +1,55 @@
 package com.optofluidics.trackmate.action;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.imglib2.algorithm.Algorithm;
-import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.exception.IncompatibleTypeException;
-import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.basictypeaccess.array.DoubleArray;
-import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.view.ExtendedRandomAccessibleInterval;
-import net.imglib2.view.Views;
-
-import org.jgrapht.graph.DefaultWeightedEdge;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
 
+import com.optofluidics.trackmate.features.TrackIndex;
 import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
 import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
-import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
 
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
-import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.TrackModel;
-import fiji.plugin.trackmate.features.edges.EdgeTimeLocationAnalyzer;
-import fiji.plugin.trackmate.features.edges.EdgeVelocityAnalyzer;
 
-public class TrackVelocityThresholder implements Algorithm
+/**
+ * Splits the tracks of a model in pauses and runs, and stores the results in
+ * the {@link MotionTypeEdgeAnalyzer}, {@link EdgeSmoothedVelocityAnalyzer} and
+ * {@link com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer}
+ * features. The pauses and runs of each track are also kept as
+ * {@link MotionSegments}, and summarized in the
+ * {@link com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer}
+ * features.
+ * <p>
+ * The velocities of each track are smoothed, then the segmentation itself is
+ * delegated to a {@link MotionSegmenter}, fitted once on all the tracks. By
+ * default, a {@link ThresholdSegmenter} is used. Tracks are processed in
+ * parallel, on the {@link SharedExecutor}.
+ * <p>
+ * All the visible tracks are processed, unless a subset is specified with
+ * {@link #setTrackIDs(Collection)}, for instance the tracks modified since the
+ * last analysis.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class TrackVelocityThresholder implements Algorithm, MultiThreaded, Benchmark
 {
 
 	private static final String BASE_ERR_MSG = "[TrackVelocityThresholder] ";
 
 	private final Model model;
 
-	private final double velocityThreshold;
-
-	private final int minConsecutiveFrames;
+	private final MotionSegmenter segmenter;
 
 	private final int smoothingWindow;
 
@@ -47,15 +57,26 @@ public class TrackVelocityThresholder implements Algorithm
 
 	private Logger logger = Logger.VOID_LOGGER;
 
-	private final Comparator< ? super DefaultWeightedEdge > edgeTimeComparator;
+	private final TrackIndex trackIndex;
+
+	private Collection< Integer > trackIDs;
+
+	private int numThreads;
+
+	private long processingTime;
 
 	public TrackVelocityThresholder( final Model model, final double velocityThreshold, final int minConsecutiveFrames, final int smoothingWindow )
+	{
+		this( model, new ThresholdSegmenter( velocityThreshold, minConsecutiveFrames ), smoothingWindow );
+	}
+
+	public TrackVelocityThresholder( final Model model, final MotionSegmenter segmenter, final int smoothingWindow )
 	{
 		this.model = model;
-		this.velocityThreshold = velocityThreshold;
-		this.minConsecutiveFrames = minConsecutiveFrames;
+		this.segmenter = segmenter;
 		this.smoothingWindow = smoothingWindow;
-		this.edgeTimeComparator = new EdgeTimeComparator( model.getFeatureModel() );
+		this.trackIndex = TrackIndex.get( model );
+		setNumThreads();
 	}
 
 	public void setLogger( final Logger logger )
@@ -63,17 +84,32 @@ public class TrackVelocityThresholder implements Algorithm
 		this.logger = logger;
 	}
 
+	/**
+	 * Restricts the analysis to the specified tracks. Tracks that are not
+	 * visible or not in the model anymore are skipped. If the segmenter learns
+	 * from the data, it is still fitted on all the visible tracks, so that the
+	 * results do not depend on which tracks are analyzed again.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks to process, or <code>null</code> to
+	 *            process all the visible tracks.
+	 */
+	public void setTrackIDs( final Collection< Integer > trackIDs )
+	{
+		this.trackIDs = trackIDs;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
-		if ( velocityThreshold <= 0 )
+		if ( smoothingWindow < 0 )
 		{
-			errorMessage = BASE_ERR_MSG + "Velocity threshold is negative or null.";
+			errorMessage = BASE_ERR_MSG + "Smoothing window is negative.";
 			return false;
 		}
-		if ( minConsecutiveFrames <= 0 )
+		if ( !segmenter.checkInput() )
 		{
-			errorMessage = BASE_ERR_MSG + "Min consecutive frame is negative or null.";
+			errorMessage = BASE_ERR_MSG + segmenter.getErrorMessage();
 			return false;
 		}
 		return true;
@@ -88,269 +124,158 @@ public class TrackVelocityThresholder implements Algorithm
 	@Override
 	public boolean process()
 	{
+		final long start = System.currentTimeMillis();
+
 		final TrackModel trackModel = model.getTrackModel();
 		final FeatureModel fm = model.getFeatureModel();
 
-		final Set< Integer > trackIDs = trackModel.unsortedTrackIDs( true );
-		// final Integer id = trackIDs.iterator().next();
-		for ( final Integer id : trackIDs )
+		/*
+		 * The tracks to segment come first. The other visible tracks follow,
+		 * only if the segmenter needs them to be fitted.
+		 */
+
+		final Set< Integer > visible = trackModel.unsortedTrackIDs( true );
+		final List< Integer > trackIDs;
+		final int nSegmented;
+		if ( null == this.trackIDs )
+		{
+			trackIDs = new ArrayList< Integer >( visible );
+			nSegmented = trackIDs.size();
+		}
+		else
 		{
-			final Set< DefaultWeightedEdge > edges = trackModel.trackEdges( id );
-			final List< DefaultWeightedEdge > ledges = new ArrayList< DefaultWeightedEdge >( edges );
-			Collections.sort( ledges, edgeTimeComparator );
-
-			// Collect displacements
-			final double[] dxs = new double[ ledges.size() ];
-			final double[] dys = new double[ ledges.size() ];
-			final double[] dzs = new double[ ledges.size() ];
-			final double[] dts = new double[ ledges.size() ];
-			for ( int i = 0; i < ledges.size(); i++ )
+			final Set< Integer > others = new HashSet< Integer >( visible );
+			trackIDs = new ArrayList< Integer >( this.trackIDs.size() );
+			for ( final Integer id : this.trackIDs )
 			{
-				final DefaultWeightedEdge edge = ledges.get( i );
-				Spot source = trackModel.getEdgeSource( edge );
-				Spot target = trackModel.getEdgeTarget( edge );
-
-				if ( source.diffTo( target, Spot.FRAME ) > 0 )
-				{ // Switch order if needed
-					final Spot tmp = source;
-					source = target;
-					target = tmp;
+				if ( others.remove( id ) )
+				{
+					trackIDs.add( id );
 				}
-				final double dx = target.diffTo( source, Spot.POSITION_X );
-				final double dy = target.diffTo( source, Spot.POSITION_Y );
-				final double dz = target.diffTo( source, Spot.POSITION_Z );
-				final double dt = target.diffTo( source, Spot.POSITION_T );
-
-				dxs[ i ] = dx;
-				dys[ i ] = dy;
-				dzs[ i ] = dz;
-				dts[ i ] = dt;
 			}
-
-			// Smooth displacements
-			final double[] sdxs = gaussianSmooth( smoothingWindow / 2.0d, dxs );
-			final double[] sdys = gaussianSmooth( smoothingWindow / 2.0d, dys );
-			final double[] sdzs = gaussianSmooth( smoothingWindow / 2.0d, dzs );
-
-			// Compute and assign smoothed velocities
-			final double[] velocities = new double[ ledges.size() ];
-			for ( int i = 0; i < ledges.size(); i++ )
+			nSegmented = trackIDs.size();
+			if ( segmenter.learnsFromData() )
 			{
-				final double dx = sdxs[ i ];
-				final double dy = sdys[ i ];
-				final double dz = sdzs[ i ];
-				final double dt = dts[ i ];
-				final double v = Math.sqrt( dx * dx + dy * dy + dz * dx ) / dt;
-				velocities[ i ] = v;
-
-				fm.putEdgeFeature( ledges.get( i ), EdgeSmoothedVelocityAnalyzer.SMOOTHED_VELOCITY, Double.valueOf( v ) );
+				trackIDs.addAll( others );
 			}
+		}
+		final int nTracks = trackIDs.size();
+		final TrackDisplacements[] displacements = new TrackDisplacements[ nTracks ];
+		final double[][] velocities = new double[ nTracks ][];
+		final PauseRunSegmentation[] segmentations = new PauseRunSegmentation[ nTracks ];
+		final MotionSegments[] segments = new MotionSegments[ nTracks ];
 
-			// Smooth and threshold
-			final List< List< DefaultWeightedEdge >> gaps = new ArrayList< List< DefaultWeightedEdge > >();
-			final List< List< DefaultWeightedEdge >> runs = new ArrayList< List< DefaultWeightedEdge > >();
-			List< DefaultWeightedEdge > gap = new ArrayList< DefaultWeightedEdge >();
-			List< DefaultWeightedEdge > run = new ArrayList< DefaultWeightedEdge >();
-
-			boolean inPause = velocities[ 0 ] < velocityThreshold;
-			int nSection = 0;
+		/*
+		 * 1. Collect and smooth displacements.
+		 */
 
-			for ( int i = 0; i < velocities.length; i++ )
+		SharedExecutor.forEach( nTracks, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int i )
 			{
-				final double v = velocities[ i ];
-				final DefaultWeightedEdge edge = ledges.get( i );
-
-				if ( v < velocityThreshold )
+				displacements[ i ] = TrackDisplacements.collect( trackIDs.get( i ), trackIndex );
+				if ( displacements[ i ].size() > 0 )
 				{
-					if ( inPause )
-					{
-						// Already in gap.
-						nSection++;
-					}
-					else
-					{
-						// New gap.
-						inPause = true;
-						// First check if the preceding run was long enough.
-						if ( nSection > minConsecutiveFrames )
-						{
-							// Yes, it was long enough, so we can consider it a
-							// run.
-							if ( !runs.contains( run ) )
-							{
-								runs.add( run );
-							}
-
-							// Start a new gap
-							nSection = 1;
-							gap = new ArrayList< DefaultWeightedEdge >();
-						}
-						else
-						{
-							// No, not long enough. So we simply add the
-							// previous edges to the current gap.
-							gap.addAll( run );
-							nSection++;
-						}
-
-					}
-
-					gap.add( edge );
-
-				}
-				else
-				{
-
-					if ( inPause )
-					{
-						// Was in a gap, and leaving it.
-						inPause = false;
-						if ( nSection > minConsecutiveFrames )
-						{
-							// Gap was long enough; we can store it.
-							if ( !gaps.contains( gap ) )
-							{
-								gaps.add( gap );
-							}
-							// Start a new run
-							nSection = 1;
-							run = new ArrayList< DefaultWeightedEdge >();
-						}
-						else
-						{
-							// Gap was not long enough. We add past edges to
-							// the run, and carry on with the run.
-							run.addAll( gap );
-							nSection++;
-						}
-					}
-					else
-					{
-						nSection++;
-					}
-
-					run.add( edge );
+					velocities[ i ] = displacements[ i ].smoothedVelocities( smoothingWindow );
 				}
 			}
+		} );
+
+		/*
+		 * 2. Fit segmenter on the whole dataset.
+		 */
 
-			// Deal with the last one.
-			if ( nSection <= minConsecutiveFrames )
+		final List< double[] > allVelocities = new ArrayList< double[] >( nTracks );
+		final List< double[] > allRawVelocities = new ArrayList< double[] >( nTracks );
+		for ( int i = 0; i < nTracks; i++ )
+		{
+			if ( null != velocities[ i ] )
 			{
-				if ( run.size() > gap.size() )
-				{
-					run.addAll( gap );
-					if ( !runs.contains( run ) )
-					{
-						runs.add( run );
-					}
-				}
-				else
-				{
-					gap.addAll( run );
-					if ( !gaps.contains( gap ) )
-					{
-						gaps.add( gap );
-					}
-				}
+				allVelocities.add( velocities[ i ] );
+				allRawVelocities.add( displacements[ i ].velocities );
 			}
-			else
+		}
+		if ( segmenter instanceof MultiThreaded )
+		{
+			( ( MultiThreaded ) segmenter ).setNumThreads( numThreads );
+		}
+		segmenter.fit( allVelocities, allRawVelocities );
+
+		/*
+		 * 3. Segment.
+		 */
+
+		SharedExecutor.forEach( nSegmented, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int i )
 			{
-				if ( null != gap && !gaps.contains( gap ) && !gap.isEmpty() )
-				{
-					gaps.add( gap );
-				}
-				if ( null != run && !runs.contains( run ) && !run.isEmpty() )
+				if ( null != velocities[ i ] )
 				{
-					runs.add( run );
+					segmentations[ i ] = segmenter.segment( velocities[ i ] );
+					segments[ i ] = MotionSegments.build( segmentations[ i ], displacements[ i ] );
 				}
 			}
+		} );
 
-			/*
-			 * Assign feature values.
-			 */
+		/*
+		 * 4. Assign feature values. The feature model is not thread-safe, so
+		 * we do it in the calling thread.
+		 */
 
-			// Number of pauses.
-			final int nPauses = gaps.size();
-			fm.putTrackFeature( id, TrackPausingAnalyzer.NUMBER_OF_PAUSES, Double.valueOf( nPauses ) );
+		final Map< Integer, MotionSegments > store = MotionSegments.of( model );
 
-			// Mean duration of pauses.
-			double totalPauseDuration = 0d;
-			for ( final List< DefaultWeightedEdge > gap2 : gaps )
+		for ( int t = 0; t < nSegmented; t++ )
+		{
+			if ( null == segmentations[ t ] )
 			{
-				if ( gap2.size() < 1 )
-				{
-					continue;
-				}
-				final DefaultWeightedEdge firstEdge = gap2.get( 0 );
-				final DefaultWeightedEdge lastEdge = gap2.get( gap2.size() - 1 );
-				final double tf = fm.getEdgeFeature( firstEdge, EdgeTimeLocationAnalyzer.TIME );
-				final double tl = fm.getEdgeFeature( lastEdge, EdgeTimeLocationAnalyzer.TIME );
-				totalPauseDuration += ( tl - tf );
-
-				// Movement type = pausing
-				for ( final DefaultWeightedEdge edge : gap2 )
-				{
-					fm.putEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE, MotionTypeEdgeAnalyzer.PAUSING );
-				}
-
+				continue;
 			}
-			final double meanPauseDuration = totalPauseDuration / nPauses;
-			fm.putTrackFeature( id, TrackPausingAnalyzer.PAUSE_MEAN_DURATION, Double.valueOf( meanPauseDuration ) );
-
-			// Mean velocity and linear velocity without pauses.
-			double totalVelocity = 0d;
-			int nVelocity = 0;
-			double totalDT = 0;
-			double totalDX = 0;
-			int nSpotsInRuns = 0;
-			fm.putTrackFeature( id, TrackPausingAnalyzer.LINEAR_VELOCITY_NO_PAUSES, Double.valueOf( Double.NaN ) );
-			for ( final List< DefaultWeightedEdge > run2 : runs )
+			final Integer id = trackIDs.get( t );
+			final TrackDisplacements displacement = displacements[ t ];
+			final PauseRunSegmentation segmentation = segmentations[ t ];
+			final List< List< Integer >> gaps = segmentation.gaps;
+			final List< List< Integer >> runs = segmentation.runs;
+
+			// Smoothed velocities
+			for ( int i = 0; i < velocities[ t ].length; i++ )
 			{
-				if ( run2.size() < 1 )
-				{
-					continue;
-				}
+				fm.putEdgeFeature( displacement.edge( i ), EdgeSmoothedVelocityAnalyzer.SMOOTHED_VELOCITY, Double.valueOf( velocities[ t ][ i ] ) );
+			}
 
-				// Linear velocity
-				// run2 is ordered by time
-				final DefaultWeightedEdge firstEdge = run2.get( 0 );
-				Spot first = model.getTrackModel().getEdgeSource( firstEdge );
-				Spot other = model.getTrackModel().getEdgeTarget( firstEdge );
-				if ( other.diffTo( first, Spot.FRAME ) < 0 )
-				{
-					first = other;
-				}
+			// Track features
+			final double[] values = segmentation.measure( displacement );
+			for ( int i = 0; i < values.length; i++ )
+			{
+				fm.putTrackFeature( id, PauseRunSegmentation.FEATURES[ i ], Double.valueOf( values[ i ] ) );
+			}
+
+			// Segment features
+			store.put( id, segments[ t ] );
+			final double[] segmentValues = segments[ t ].measure();
+			for ( int i = 0; i < segmentValues.length; i++ )
+			{
+				fm.putTrackFeature( id, MotionSegments.FEATURES[ i ], Double.valueOf( segmentValues[ i ] ) );
+			}
 
-				final DefaultWeightedEdge lastEdge = run2.get( run2.size() - 1 );
-				Spot last = model.getTrackModel().getEdgeTarget( lastEdge );
-				other = model.getTrackModel().getEdgeSource( lastEdge );
-				if ( other.diffTo( last, Spot.FRAME ) > 0 )
+			// Movement type = pausing
+			for ( final List< Integer > gap : gaps )
+			{
+				for ( final Integer edge : gap )
 				{
-					last = other;
+					fm.putEdgeFeature( displacement.edge( edge.intValue() ), MotionTypeEdgeAnalyzer.MOVEMENT_TYPE, MotionTypeEdgeAnalyzer.PAUSING );
 				}
-				totalDX += Math.sqrt( last.squareDistanceTo( first ) );
-				totalDT += last.diffTo( first, Spot.POSITION_T );
-				fm.putTrackFeature( id, TrackPausingAnalyzer.LINEAR_VELOCITY_NO_PAUSES, Double.valueOf( totalDX / totalDT ) );
+			}
 
-				// Mean velocity & N spots in runs
-				for ( final DefaultWeightedEdge edge : run2 )
+			// Movement type = running
+			for ( final List< Integer > run : runs )
+			{
+				for ( final Integer edge : run )
 				{
-					final double v = fm.getEdgeFeature( edge, EdgeVelocityAnalyzer.VELOCITY );
-					totalVelocity += v;
-					nVelocity++;
-
-					// Movement type = running
-					fm.putEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE, MotionTypeEdgeAnalyzer.RUNNING );
-
-					// Count edges.
-					nSpotsInRuns++;
+					fm.putEdgeFeature( displacement.edge( edge.intValue() ), MotionTypeEdgeAnalyzer.MOVEMENT_TYPE, MotionTypeEdgeAnalyzer.RUNNING );
 				}
-				// Then add one
-				nSpotsInRuns++;
 			}
-			final double meanVelocity = totalVelocity / nVelocity;
-			fm.putTrackFeature( id, TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES, Double.valueOf( meanVelocity ) );
-			fm.putTrackFeature( id, TrackPausingAnalyzer.N_SPOTS_IN_RUNS, Double.valueOf( nSpotsInRuns ) );
 
 			/*
 			 * Log
@@ -388,53 +313,42 @@ public class TrackVelocityThresholder implements Algorithm
 			logger.log( str );
 		}
 
+		processingTime = System.currentTimeMillis() - start;
 		return true;
 	}
 
-	private static final double[] gaussianSmooth( final double sigma, final double[] source )
+	/**
+	 * Returns the segmenter used by this thresholder.
+	 *
+	 * @return the segmenter.
+	 */
+	public MotionSegmenter getSegmenter()
 	{
-		final ArrayImg< DoubleType, DoubleArray > img = ArrayImgs.doubles( source, new long[] { source.length } );
-		final ExtendedRandomAccessibleInterval< DoubleType, ArrayImg< DoubleType, DoubleArray >> extdImg = Views.extendMirrorDouble( img );
-
-		final double[] target = new double[ source.length ];
-		final ArrayImg< DoubleType, DoubleArray > targetImg = ArrayImgs.doubles( target, new long[] { source.length } );
-
-		try
-		{
-			Gauss3.gauss( sigma, extdImg, targetImg );
-		}
-		catch ( final IncompatibleTypeException e )
-		{
-			e.printStackTrace();
-		}
-
-		return target;
+		return segmenter;
 	}
 
-	/*
-	 * INNER CLASSES
-	 */
-
-	private static final class EdgeTimeComparator implements Comparator< DefaultWeightedEdge >
+	@Override
+	public long getProcessingTime()
 	{
-		private final FeatureModel fm;
-
-		public EdgeTimeComparator( final FeatureModel fm )
-		{
-			this.fm = fm;
-		}
+		return processingTime;
+	}
 
-		@Override
-		public int compare( final DefaultWeightedEdge e1, final DefaultWeightedEdge e2 )
-		{
-			final double t1 = fm.getEdgeFeature( e1, EdgeTimeLocationAnalyzer.TIME ).doubleValue();
-			final double t2 = fm.getEdgeFeature( e2, EdgeTimeLocationAnalyzer.TIME ).doubleValue();
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
 
-			if ( t1 < t2 ) { return -1; }
-			if ( t1 > t2 ) { return 1; }
-			return 0;
-		}
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = SharedExecutor.getParallelism();
+	}
 
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
 	}
 
 }
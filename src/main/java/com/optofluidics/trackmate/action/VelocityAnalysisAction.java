@@ -1,12 +1,15 @@
 package com.optofluidics.trackmate.action;
 
-import static com.optofluidics.Main.OPTOFLUIDICS_ICON;
+import static com.optofluidics.Icons.OPTOFLUIDICS_ICON;
 import static com.optofluidics.Main.OPTOFLUIDICS_LIB_VERSION;
 import ij.ImageJ;
 
 import java.awt.Frame;
 import java.io.File;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.swing.ImageIcon;
 
@@ -14,11 +17,17 @@ import net.imglib2.util.Util;
 
 import org.scijava.plugin.Plugin;
 
+import com.optofluidics.OptofluidicsParameters.SegmenterChoice;
+import com.optofluidics.trackmate.features.TrackChangeTracker;
+import com.optofluidics.trackmate.features.TrackIndex;
 import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
 import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
 import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+import com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackMsdAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackSpotIntensityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer;
 
 import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.LoadTrackMatePlugIn_;
@@ -52,6 +61,12 @@ public class VelocityAnalysisAction extends AbstractTMAction
 
 	private static final int DEFAULT_SMOOTHING_WINDOW = 5;
 
+	/**
+	 * The thresholding parameters last used on each model, so that only the
+	 * tracks modified since are thresholded again if they do not change.
+	 */
+	private static final Map< Model, String > LAST_PARAMETERS = new WeakHashMap< Model, String >();
+
 	private final TrackMateGUIController controller;
 
 	private static int smoothingWindow = DEFAULT_SMOOTHING_WINDOW;
@@ -60,6 +75,8 @@ public class VelocityAnalysisAction extends AbstractTMAction
 
 	private static double velocityThreshold = DEFAULT_VELOCITY_THRESHOLD;
 
+	private static SegmenterChoice segmenterChoice = SegmenterChoice.THRESHOLD;
+
 	public VelocityAnalysisAction( final TrackMateGUIController controller )
 	{
 		this.controller = controller;
@@ -73,6 +90,72 @@ public class VelocityAnalysisAction extends AbstractTMAction
 		final Model model = trackmate.getModel();
 		final String velocityUnits = TMUtils.getUnitsFor( Dimension.VELOCITY, model.getSpaceUnits(), model.getTimeUnits() );
 
+		/*
+		 * Bring features up to date, for the tracks modified since last time.
+		 */
+
+		TrackIndex.get( model );
+		final TrackChangeTracker changeTracker = TrackChangeTracker.get( model );
+		final Collection< Integer > modified = changeTracker.computeFeatures( trackmate.getSettings() );
+		logger.log( "Updated the features of " + modified.size() + " modified tracks.\n" );
+
+		/*
+		 * Segment distributions. The bin widths are derived from the tracks
+		 * before thresholding, so that they do not depend on the threshold
+		 * entered.
+		 */
+
+		final SegmentStatistics statistics = SegmentStatistics.create( model, trackmate.getSettings().dt );
+
+		/*
+		 * Threshold. If it does not complete, the modified tracks are marked
+		 * again, so that the next analysis does not miss them.
+		 */
+
+		boolean thresholded = false;
+		try
+		{
+			thresholded = threshold( model, modified, velocityUnits );
+		}
+		finally
+		{
+			if ( !thresholded )
+			{
+				changeTracker.markTouched( modified );
+			}
+		}
+		if ( !thresholded ) { return; }
+
+		logger.log( "Velocity thresholding done.\n" );
+
+		statistics.addTracks( model );
+		logger.log( statistics.toString() );
+
+		/*
+		 * Export
+		 */
+
+		final VelocityAnalysisExporter exporter = new VelocityAnalysisExporter( model, controller.getSelectionModel() );
+		exporter.setLogger( logger );
+		exporter.exportToImageJTable();
+
+		logger.log( "Created results table.\n" );
+
+		logger.log( "Done.\n" );
+
+	}
+
+	/**
+	 * Asks for the thresholding parameters and thresholds the tracks. Only the
+	 * specified modified tracks are thresholded if the parameters are the same
+	 * as for the previous analysis of the model.
+	 *
+	 * @return <code>true</code> if the tracks were thresholded,
+	 *         <code>false</code> if the dialog was canceled or thresholding
+	 *         failed.
+	 */
+	private boolean threshold( final Model model, final Collection< Integer > modified, final String velocityUnits )
+	{
 		/*
 		 * Determine best threshold.
 		 */
@@ -104,55 +187,49 @@ public class VelocityAnalysisAction extends AbstractTMAction
 			frame = controller.getGUI();
 		}
 
-		final VelocityThresholdDialog dialog = new VelocityThresholdDialog( frame, velocityThreshold, minConsecutiveFrames, smoothingWindow, velocityUnits );
+		final VelocityThresholdDialog dialog = new VelocityThresholdDialog( frame, velocityThreshold, minConsecutiveFrames, smoothingWindow, segmenterChoice, velocityUnits );
 		dialog.setVisible( true );
 
 		if ( dialog.wasCanceled() )
 		{
 			logger.log( "Canceled.\n" );
-			return;
+			return false;
 		}
 
 		velocityThreshold = dialog.getVelocityThreshold();
 		minConsecutiveFrames = dialog.getMinFrames();
 		smoothingWindow = dialog.getSmoothWindow();
+		segmenterChoice = dialog.getSegmenterChoice();
 
 		/*
 		 * Threshold
 		 */
 
-		logger.log( "Tresholding tracks by instantaneous velocity above " + velocityThreshold + " " + velocityUnits + " for at least " + minConsecutiveFrames + " frames, with a smoothing window of " + smoothingWindow + " frames.\n" );
+		logger.log( "Tresholding tracks by instantaneous velocity above " + velocityThreshold + " " + velocityUnits + " for at least " + minConsecutiveFrames + " frames, with a smoothing window of " + smoothingWindow + " frames, using the " + segmenterChoice + " segmenter.\n" );
 
-		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, velocityThreshold, minConsecutiveFrames, smoothingWindow );
+		final MotionSegmenter segmenter = segmenterChoice.createSegmenter( velocityThreshold, minConsecutiveFrames );
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, segmenter, smoothingWindow );
 		thresholder.setLogger( logger );
+		final String parameters = velocityThreshold + " " + minConsecutiveFrames + " " + smoothingWindow + " " + segmenterChoice;
+		synchronized ( LAST_PARAMETERS )
+		{
+			if ( parameters.equals( LAST_PARAMETERS.get( model ) ) )
+			{
+				logger.log( "Same parameters as the previous analysis: only thresholding the modified tracks.\n" );
+				thresholder.setTrackIDs( modified );
+			}
+		}
 		if ( !thresholder.checkInput() || !thresholder.process() )
 		{
 			logger.error( thresholder.getErrorMessage() );
-			return;
+			return false;
+		}
+		synchronized ( LAST_PARAMETERS )
+		{
+			LAST_PARAMETERS.put( model, parameters );
 		}
 
-		logger.log( "Velocity thresholding done.\n" );
-
-		/*
-		 * Recalculate features
-		 */
-
-		logger.log( "Recalculating features.\n" );
-		controller.getPlugin().computeEdgeFeatures( true );
-		controller.getPlugin().computeTrackFeatures( true );
-		logger.log( "Recalculating features done.\n" );
-
-		/*
-		 * Export
-		 */
-
-		final VelocityAnalysisExporter exporter = new VelocityAnalysisExporter( model, controller.getSelectionModel() );
-		exporter.exportToImageJTable();
-
-		logger.log( "Created results table.\n" );
-
-		logger.log( "Done.\n" );
-
+		return true;
 	}
 
 	@Plugin( type = TrackMateActionFactory.class )
@@ -229,10 +306,14 @@ public class VelocityAnalysisAction extends AbstractTMAction
 			@Override
 			protected void postRead( final TrackMate trackmate )
 			{
+				TrackIndex.get( trackmate.getModel() );
 				final Settings settings = trackmate.getSettings();
 				settings.addTrackAnalyzer( new TrackLinearVelocityAnalyzer() );
+				settings.addTrackAnalyzer( new TrackMsdAnalyzer() );
+				settings.addTrackAnalyzer( new TrackVelocitySpectrumAnalyzer() );
 				settings.addTrackAnalyzer( new TrackSpotIntensityAnalyzer() );
 				settings.addTrackAnalyzer( new TrackPausingAnalyzer() );
+				settings.addTrackAnalyzer( new TrackSegmentAnalyzer() );
 				new TrackFeatureCalculator( trackmate.getModel(), settings ).process();
 
 				settings.addEdgeAnalyzer( new MotionTypeEdgeAnalyzer() );
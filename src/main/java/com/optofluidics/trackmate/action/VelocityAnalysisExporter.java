@@ -7,18 +7,25 @@ import ij.text.TextWindow;
 
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import org.jgrapht.graph.DefaultWeightedEdge;
 
+import com.optofluidics.trackmate.action.TrackFeatureColumns.Column;
 import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+import com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackMsdAnalyzer;
 import com.optofluidics.trackmate.features.track.TrackSpotIntensityAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer;
+import com.optofluidics.util.CsvWriter;
+import com.optofluidics.util.SharedExecutor;
 
-import fiji.plugin.trackmate.Dimension;
-import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Spot;
@@ -26,7 +33,6 @@ import fiji.plugin.trackmate.features.track.TrackBranchingAnalyzer;
 import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
 import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
 import fiji.plugin.trackmate.features.track.TrackSpeedStatisticsAnalyzer;
-import fiji.plugin.trackmate.util.TMUtils;
 
 public class VelocityAnalysisExporter
 {
@@ -39,6 +45,10 @@ public class VelocityAnalysisExporter
 
 	private final SelectionModel selectionModel;
 
+	private Logger logger = Logger.IJ_LOGGER;
+
+	private int numThreads = SharedExecutor.getParallelism();
+
 	public VelocityAnalysisExporter( final Model model, final SelectionModel selectionModel )
 	{
 		this.model = model;
@@ -63,6 +73,12 @@ public class VelocityAnalysisExporter
 
 		list.add( TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY );
 
+		list.add( TrackMsdAnalyzer.TRACK_DIFFUSION_COEFFICIENT );
+		list.add( TrackMsdAnalyzer.TRACK_ANOMALOUS_EXPONENT );
+
+		list.add( TrackVelocitySpectrumAnalyzer.TRACK_VACF_CORRELATION_TIME );
+		list.add( TrackVelocitySpectrumAnalyzer.TRACK_DOMINANT_FREQUENCY );
+
 		list.add( TrackSpotIntensityAnalyzer.TRACK_MEAN_INTENSITY );
 		list.add( TrackSpotIntensityAnalyzer.TRACK_MEDIAN_INTENSITY );
 		list.add( TrackSpotIntensityAnalyzer.TRACK_STD_INTENSITY );
@@ -73,6 +89,15 @@ public class VelocityAnalysisExporter
 		list.add( TrackPausingAnalyzer.NUMBER_OF_PAUSES );
 		list.add( TrackPausingAnalyzer.PAUSE_MEAN_DURATION );
 
+		list.add( TrackSegmentAnalyzer.RUN_MEAN_DURATION );
+		list.add( TrackSegmentAnalyzer.RUN_MEAN_LENGTH );
+		list.add( TrackSegmentAnalyzer.PAUSE_DURATION_P10 );
+		list.add( TrackSegmentAnalyzer.PAUSE_DURATION_P50 );
+		list.add( TrackSegmentAnalyzer.PAUSE_DURATION_P90 );
+		list.add( TrackSegmentAnalyzer.RUN_VELOCITY_MEAN );
+		list.add( TrackSegmentAnalyzer.RUN_VELOCITY_MEDIAN );
+		list.add( TrackSegmentAnalyzer.RUN_VELOCITY_STD );
+
 		list.add( TrackIndexAnalyzer.TRACK_ID );
 
 		return list;
@@ -81,14 +106,7 @@ public class VelocityAnalysisExporter
 	public void exportToImageJTable()
 	{
 		final ResultsTable trackTable = getTable();
-
-		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
-		final Integer[] ids = new Integer[ trackIDs.size() ];
-		int idIndex = 0;
-		for ( final Integer trackID : trackIDs )
-		{
-			ids[ idIndex++ ] = trackID;
-		}
+		final Integer[] ids = getTrackIDs();
 
 		// Show tables
 		trackTable.show( TABLE_NAME );
@@ -124,58 +142,137 @@ public class VelocityAnalysisExporter
 		}
 	}
 
+	/**
+	 * Resolves the table columns against the current feature model. Features
+	 * that are not declared are skipped, with a warning.
+	 *
+	 * @return the table columns.
+	 */
+	public TrackFeatureColumns getColumns()
+	{
+		final TrackFeatureColumns columns = new TrackFeatureColumns( model, trackFeatures );
+		for ( final String feature : columns.getMissingFeatures() )
+		{
+			logger.log( "Feature " + feature + " is not declared in the model, skipping it.\n", Logger.ERROR_COLOR );
+		}
+		return columns;
+	}
+
 	public ResultsTable getTable()
 	{
-		final FeatureModel fm = model.getFeatureModel();
-		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
+		final Integer[] ids = getTrackIDs();
+		final TrackFeatureColumns columns = getColumns();
+		final boolean[][] missing = new boolean[ columns.size() ][ ids.length ];
+		final double[][] values = columns.read( ids, numThreads, missing );
+		final List< Column > cols = columns.getColumns();
 
 		// Create table
 		final ResultsTable trackTable = new ResultsTable();
+		final int[] indices = new int[ cols.size() ];
+		for ( int c = 0; c < indices.length; c++ )
+		{
+			indices[ c ] = trackTable.getFreeColumn( cols.get( c ).header );
+			if ( indices[ c ] == ResultsTable.COLUMN_IN_USE )
+			{
+				indices[ c ] = trackTable.getColumnIndex( cols.get( c ).header );
+			}
+			if ( cols.get( c ).isInt )
+			{
+				trackTable.setDecimalPlaces( indices[ c ], 0 );
+			}
+		}
 
 		// Sort by track
-		for ( final Integer trackID : trackIDs )
+		for ( int row = 0; row < ids.length; row++ )
 		{
 			trackTable.incrementCounter();
-			trackTable.addLabel( model.getTrackModel().name( trackID ) );
-			for ( final String feature : trackFeatures )
+			trackTable.setLabel( model.getTrackModel().name( ids[ row ] ), row );
+			for ( int c = 0; c < indices.length; c++ )
 			{
-				final Dimension dimension = fm.getTrackFeatureDimensions().get( feature );
-
-				if ( null == dimension )
-				{
-					System.out.println( "Missing feature " + feature );// DEBUG
-				}
-
-				final String dimStr;
-				if ( dimension.equals( Dimension.NONE ) )
+				if ( missing[ c ][ row ] )
 				{
-					dimStr = "";
+					trackTable.setValue( indices[ c ], row, "" );
 				}
 				else
 				{
-					dimStr = " (" + TMUtils.getUnitsFor( fm.getTrackFeatureDimensions().get( feature ), model.getSpaceUnits(), model.getTimeUnits() ) + ")";
+					trackTable.setValue( indices[ c ], row, values[ c ][ row ] );
 				}
-				final String featureStr = fm.getTrackFeatureNames().get( feature ) + dimStr;
+			}
+		}
+		return trackTable;
+	}
 
-				final Double val = fm.getTrackFeature( trackID, feature );
-				if ( null == val )
-				{
-					trackTable.addValue( featureStr, "None" );
-				}
-				else
+	/**
+	 * Writes the table to a CSV file, with the same columns as
+	 * {@link #getTable()}. Rows are streamed to the file. Missing values are
+	 * written as empty cells, <code>NaN</code> values as <code>NaN</code>.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void exportToCsv( final File file ) throws IOException
+	{
+		final Integer[] ids = getTrackIDs();
+		final TrackFeatureColumns columns = getColumns();
+		final boolean[][] missing = new boolean[ columns.size() ][ ids.length ];
+		final double[][] values = columns.read( ids, numThreads, missing );
+		final boolean[] isInt = new boolean[ columns.size() ];
+		final String[] headers = new String[ columns.size() + 1 ];
+		headers[ 0 ] = "Label";
+		for ( int c = 0; c < isInt.length; c++ )
+		{
+			isInt[ c ] = columns.getColumns().get( c ).isInt;
+			headers[ c + 1 ] = columns.getColumns().get( c ).header;
+		}
+
+		final CsvWriter csv = new CsvWriter( file );
+		try
+		{
+			csv.header( headers );
+			for ( int row = 0; row < ids.length; row++ )
+			{
+				csv.value( model.getTrackModel().name( ids[ row ] ) );
+				for ( int c = 0; c < isInt.length; c++ )
 				{
-					if ( fm.getTrackFeatureIsInt().get( feature ).booleanValue() )
+					final double val = values[ c ][ row ];
+					if ( missing[ c ][ row ] )
+					{
+						csv.empty();
+					}
+					else if ( isInt[ c ] && !Double.isNaN( val ) )
 					{
-						trackTable.addValue( featureStr, "" + val.intValue() );
+						csv.value( ( long ) val );
 					}
 					else
 					{
-						trackTable.addValue( featureStr, val.doubleValue() );
+						csv.value( val );
 					}
 				}
+				csv.endRow();
 			}
 		}
-		return trackTable;
+		finally
+		{
+			csv.close();
+		}
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	private Integer[] getTrackIDs()
+	{
+		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
+		return trackIDs.toArray( new Integer[ trackIDs.size() ] );
 	}
 
 }
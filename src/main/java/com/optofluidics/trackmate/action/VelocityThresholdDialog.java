@@ -12,11 +12,14 @@ import java.awt.event.WindowAdapter;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.LayoutStyle.ComponentPlacement;
 import javax.swing.SwingConstants;
 
+import com.optofluidics.OptofluidicsParameters.SegmenterChoice;
+
 import fiji.plugin.trackmate.gui.panels.components.JNumericTextField;
 
 public class VelocityThresholdDialog extends JDialog
@@ -31,12 +34,14 @@ public class VelocityThresholdDialog extends JDialog
 
 	private final JNumericTextField tfSmoothWindow;
 
+	private final JComboBox< SegmenterChoice > cbSegmenter;
+
 	private boolean wasCanceled;
 
-	public VelocityThresholdDialog( final Frame frame, final double velocityThreshold, final int minConsecutiveFrames, final int smoothingWindow, final String velocityUnits )
+	public VelocityThresholdDialog( final Frame frame, final double velocityThreshold, final int minConsecutiveFrames, final int smoothingWindow, final SegmenterChoice segmenterChoice, final String velocityUnits )
 	{
 		super( frame, DIALOG_TITLE, true );
-		setSize( new Dimension( 250, 260 ) );
+		setSize( new Dimension( 250, 300 ) );
 		setResizable( false );
 		super.setLocationRelativeTo( frame );
 
@@ -111,9 +116,16 @@ public class VelocityThresholdDialog extends JDialog
 		final JLabel lblFrames1 = new JLabel( "frames" );
 		lblFrames1.setFont( font );
 
+		final JLabel lblSegmenter = new JLabel( "Segmenter:" );
+		lblSegmenter.setFont( font );
+
+		cbSegmenter = new JComboBox< SegmenterChoice >( SegmenterChoice.values() );
+		cbSegmenter.setFont( font );
+		cbSegmenter.setSelectedItem( segmenterChoice );
+
 		final GroupLayout groupLayout = new GroupLayout( getContentPane() );
-		groupLayout.setHorizontalGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( groupLayout.createSequentialGroup().addContainerGap().addGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addComponent( lblThresholdTracksAbove, GroupLayout.DEFAULT_SIZE, 273, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfVelocityThreshold, GroupLayout.DEFAULT_SIZE, 128, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( label, GroupLayout.PREFERRED_SIZE, 135, GroupLayout.PREFERRED_SIZE ) ).addGroup( groupLayout.createSequentialGroup().addComponent( btnCancel, GroupLayout.PREFERRED_SIZE, 109, GroupLayout.PREFERRED_SIZE ).addPreferredGap( ComponentPlacement.RELATED, 50, Short.MAX_VALUE ).addComponent( btnOk, GroupLayout.PREFERRED_SIZE, 91, GroupLayout.PREFERRED_SIZE ).addGap( 23 ) ) ).addGap( 1 ) ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.TRAILING ).addComponent( lblMinConsecutiveFrames, GroupLayout.DEFAULT_SIZE, 273, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfMinFrames, GroupLayout.DEFAULT_SIZE, 89, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( lblFrames ).addGap( 135 ) ) ).addGap( 1 ) ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.TRAILING ).addComponent( lblSmoothingWindow, GroupLayout.DEFAULT_SIZE, 264, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfSmoothWindow, GroupLayout.DEFAULT_SIZE, 87, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( lblFrames1, GroupLayout.PREFERRED_SIZE, 161, GroupLayout.PREFERRED_SIZE ).addGap( 6 ) ) ).addContainerGap() ) ) ) );
-		groupLayout.setVerticalGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( groupLayout.createSequentialGroup().addGap( 23 ).addComponent( lblThresholdTracksAbove ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfVelocityThreshold, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( label ) ).addGap( 18 ).addComponent( lblMinConsecutiveFrames ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfMinFrames, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( lblFrames ) ).addGap( 18 ).addComponent( lblSmoothingWindow ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfSmoothWindow, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( lblFrames1 ) ).addPreferredGap( ComponentPlacement.RELATED, 20, Short.MAX_VALUE ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( btnCancel ).addComponent( btnOk ) ).addContainerGap() ) );
+		groupLayout.setHorizontalGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( groupLayout.createSequentialGroup().addContainerGap().addGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addComponent( lblThresholdTracksAbove, GroupLayout.DEFAULT_SIZE, 273, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfVelocityThreshold, GroupLayout.DEFAULT_SIZE, 128, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( label, GroupLayout.PREFERRED_SIZE, 135, GroupLayout.PREFERRED_SIZE ) ).addGroup( groupLayout.createSequentialGroup().addComponent( btnCancel, GroupLayout.PREFERRED_SIZE, 109, GroupLayout.PREFERRED_SIZE ).addPreferredGap( ComponentPlacement.RELATED, 50, Short.MAX_VALUE ).addComponent( btnOk, GroupLayout.PREFERRED_SIZE, 91, GroupLayout.PREFERRED_SIZE ).addGap( 23 ) ) ).addGap( 1 ) ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.TRAILING ).addComponent( lblMinConsecutiveFrames, GroupLayout.DEFAULT_SIZE, 273, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfMinFrames, GroupLayout.DEFAULT_SIZE, 89, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( lblFrames ).addGap( 135 ) ) ).addGap( 1 ) ).addGroup( Alignment.TRAILING, groupLayout.createSequentialGroup().addGroup( groupLayout.createParallelGroup( Alignment.TRAILING ).addComponent( lblSmoothingWindow, GroupLayout.DEFAULT_SIZE, 264, Short.MAX_VALUE ).addGroup( groupLayout.createSequentialGroup().addComponent( tfSmoothWindow, GroupLayout.DEFAULT_SIZE, 87, Short.MAX_VALUE ).addPreferredGap( ComponentPlacement.UNRELATED ).addComponent( lblFrames1, GroupLayout.PREFERRED_SIZE, 161, GroupLayout.PREFERRED_SIZE ).addGap( 6 ) ) ).addContainerGap() ).addGroup( groupLayout.createSequentialGroup().addComponent( lblSegmenter ).addPreferredGap( ComponentPlacement.RELATED ).addComponent( cbSegmenter, 0, 150, Short.MAX_VALUE ).addContainerGap() ) ) ) );
+		groupLayout.setVerticalGroup( groupLayout.createParallelGroup( Alignment.LEADING ).addGroup( groupLayout.createSequentialGroup().addGap( 23 ).addComponent( lblThresholdTracksAbove ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfVelocityThreshold, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( label ) ).addGap( 18 ).addComponent( lblMinConsecutiveFrames ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfMinFrames, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( lblFrames ) ).addGap( 18 ).addComponent( lblSmoothingWindow ).addPreferredGap( ComponentPlacement.RELATED ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( tfSmoothWindow, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ).addComponent( lblFrames1 ) ).addGap( 18 ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( lblSegmenter ).addComponent( cbSegmenter, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE ) ).addPreferredGap( ComponentPlacement.RELATED, 20, Short.MAX_VALUE ).addGroup( groupLayout.createParallelGroup( Alignment.BASELINE ).addComponent( btnCancel ).addComponent( btnOk ) ).addContainerGap() ) );
 		getContentPane().setLayout( groupLayout );
 	}
 
@@ -137,6 +149,11 @@ public class VelocityThresholdDialog extends JDialog
 		return tfVelocityThreshold.getValue();
 	}
 
+	public SegmenterChoice getSegmenterChoice()
+	{
+		return ( SegmenterChoice ) cbSegmenter.getSelectedItem();
+	}
+
 	public boolean wasCanceled()
 	{
 		return wasCanceled;
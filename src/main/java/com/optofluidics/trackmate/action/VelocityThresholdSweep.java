@@ -0,0 +1,395 @@
+package com.optofluidics.trackmate.action;
+
+import ij.measure.ResultsTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.algorithm.Algorithm;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Runs the velocity analysis of {@link TrackVelocityThresholder} over a grid of
+ * parameter values, without modifying the model.
+ * <p>
+ * Intermediate results are shared between grid points: the displacements of
+ * each track are collected once from the {@link TrackIndex}, they are smoothed
+ * once per distinct smoothing window, and the smoothed velocities are then
+ * segmented for every velocity threshold and min consecutive frames pair.
+ * <p>
+ * For each grid point and each track, the values of the
+ * {@link com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer}
+ * features are stored in a compact table, that can be retrieved with
+ * {@link #getValue(int, int, String)} or summarized with {@link #getTable()}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class VelocityThresholdSweep implements Algorithm, MultiThreaded, Benchmark
+{
+
+	private static final String BASE_ERR_MSG = "[VelocityThresholdSweep] ";
+
+	private final Model model;
+
+	private final double[] velocityThresholds;
+
+	private final int[] minConsecutiveFrames;
+
+	private final int[] smoothingWindows;
+
+	private final TrackIndex trackIndex;
+
+	private String errorMessage;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private int numThreads;
+
+	private long processingTime;
+
+	private List< Integer > trackIDs;
+
+	/**
+	 * The results, one array per feature. Each array is indexed by
+	 * <code>gridIndex * nTracks + trackIndex</code>.
+	 */
+	private double[][] values;
+
+	/**
+	 * Creates a new sweep. Duplicate values in the specified arrays are
+	 * ignored, and the values are sorted.
+	 *
+	 * @param model
+	 *            the model to analyze. Its tracks must have been computed.
+	 * @param velocityThresholds
+	 *            the velocity thresholds to test.
+	 * @param minConsecutiveFrames
+	 *            the min consecutive frames to test.
+	 * @param smoothingWindows
+	 *            the smoothing windows to test.
+	 */
+	public VelocityThresholdSweep( final Model model, final double[] velocityThresholds, final int[] minConsecutiveFrames, final int[] smoothingWindows )
+	{
+		this.model = model;
+		this.velocityThresholds = unique( velocityThresholds );
+		this.minConsecutiveFrames = unique( minConsecutiveFrames );
+		this.smoothingWindows = unique( smoothingWindows );
+		this.trackIndex = TrackIndex.get( model );
+		setNumThreads();
+	}
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( velocityThresholds.length == 0 || minConsecutiveFrames.length == 0 || smoothingWindows.length == 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Parameter grid is empty.";
+			return false;
+		}
+		if ( velocityThresholds[ 0 ] <= 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Velocity threshold is negative or null.";
+			return false;
+		}
+		if ( minConsecutiveFrames[ 0 ] <= 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Min consecutive frame is negative or null.";
+			return false;
+		}
+		if ( smoothingWindows[ 0 ] < 0 )
+		{
+			errorMessage = BASE_ERR_MSG + "Smoothing window is negative.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final TrackModel trackModel = model.getTrackModel();
+		trackIDs = new ArrayList< Integer >( trackModel.unsortedTrackIDs( true ) );
+		final int nTracks = trackIDs.size();
+		final int nGrid = getGridSize();
+		final int nFeatures = PauseRunSegmentation.FEATURES.length;
+
+		values = new double[ nFeatures ][ nGrid * nTracks ];
+		if ( nTracks == 0 )
+		{
+			processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		final AtomicInteger progress = new AtomicInteger( 0 );
+		SharedExecutor.forEach( nTracks, numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int ti )
+			{
+				final TrackDisplacements displacements = TrackDisplacements.collect( trackIDs.get( ti ), trackIndex );
+				if ( displacements.size() == 0 )
+				{
+					for ( int g = 0; g < nGrid; g++ )
+					{
+						for ( int f = 0; f < nFeatures; f++ )
+						{
+							values[ f ][ g * nTracks + ti ] = Double.NaN;
+						}
+					}
+					return;
+				}
+
+				for ( int iw = 0; iw < smoothingWindows.length; iw++ )
+				{
+					final double[] velocities = displacements.smoothedVelocities( smoothingWindows[ iw ] );
+					for ( int it = 0; it < velocityThresholds.length; it++ )
+					{
+						for ( int im = 0; im < minConsecutiveFrames.length; im++ )
+						{
+							final PauseRunSegmentation segmentation = PauseRunSegmentation.threshold( velocities, velocityThresholds[ it ], minConsecutiveFrames[ im ] );
+							final double[] vals = segmentation.measure( displacements );
+							final int g = gridIndex( it, im, iw );
+							for ( int f = 0; f < nFeatures; f++ )
+							{
+								values[ f ][ g * nTracks + ti ] = vals[ f ];
+							}
+						}
+					}
+				}
+				logger.setProgress( ( double ) progress.incrementAndGet() / nTracks );
+			}
+		} );
+		logger.setProgress( 0d );
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/*
+	 * RESULTS
+	 */
+
+	/**
+	 * Returns the number of parameter sets in the grid.
+	 *
+	 * @return the grid size.
+	 */
+	public int getGridSize()
+	{
+		return velocityThresholds.length * minConsecutiveFrames.length * smoothingWindows.length;
+	}
+
+	/**
+	 * Returns the index in the grid of the specified parameter indices.
+	 *
+	 * @param thresholdIndex
+	 *            the index of the velocity threshold in
+	 *            {@link #getVelocityThresholds()}.
+	 * @param minFramesIndex
+	 *            the index of the min consecutive frames in
+	 *            {@link #getMinConsecutiveFrames()}.
+	 * @param windowIndex
+	 *            the index of the smoothing window in
+	 *            {@link #getSmoothingWindows()}.
+	 * @return the grid index.
+	 */
+	public int gridIndex( final int thresholdIndex, final int minFramesIndex, final int windowIndex )
+	{
+		return ( windowIndex * velocityThresholds.length + thresholdIndex ) * minConsecutiveFrames.length + minFramesIndex;
+	}
+
+	public double getVelocityThreshold( final int gridIndex )
+	{
+		return velocityThresholds[ ( gridIndex / minConsecutiveFrames.length ) % velocityThresholds.length ];
+	}
+
+	public int getMinConsecutiveFrames( final int gridIndex )
+	{
+		return minConsecutiveFrames[ gridIndex % minConsecutiveFrames.length ];
+	}
+
+	public int getSmoothingWindow( final int gridIndex )
+	{
+		return smoothingWindows[ gridIndex / ( minConsecutiveFrames.length * velocityThresholds.length ) ];
+	}
+
+	public double[] getVelocityThresholds()
+	{
+		return velocityThresholds;
+	}
+
+	public int[] getMinConsecutiveFrames()
+	{
+		return minConsecutiveFrames;
+	}
+
+	public int[] getSmoothingWindows()
+	{
+		return smoothingWindows;
+	}
+
+	/**
+	 * Returns the IDs of the tracks analyzed, in the order of the track
+	 * indices of the result table.
+	 *
+	 * @return the list of track IDs.
+	 */
+	public List< Integer > getTrackIDs()
+	{
+		return trackIDs;
+	}
+
+	/**
+	 * Returns the value of a track feature for the specified grid point.
+	 *
+	 * @param gridIndex
+	 *            the grid index, as returned by
+	 *            {@link #gridIndex(int, int, int)}.
+	 * @param trackIndex
+	 *            the index of the track in {@link #getTrackIDs()}.
+	 * @param feature
+	 *            one of the
+	 *            {@link com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer}
+	 *            features.
+	 * @return the feature value.
+	 */
+	public double getValue( final int gridIndex, final int trackIndex, final String feature )
+	{
+		final int f = featureIndex( feature );
+		if ( f < 0 ) { throw new IllegalArgumentException( BASE_ERR_MSG + "Unknown feature: " + feature ); }
+		return values[ f ][ gridIndex * trackIDs.size() + trackIndex ];
+	}
+
+	/**
+	 * Returns a table with one row per grid point, giving the parameter values
+	 * and the mean over all tracks of each feature. <code>NaN</code> values are
+	 * ignored in the mean.
+	 *
+	 * @return a new {@link ResultsTable}.
+	 */
+	public ResultsTable getTable()
+	{
+		final ResultsTable table = new ResultsTable();
+		final int nTracks = trackIDs.size();
+		for ( int g = 0; g < getGridSize(); g++ )
+		{
+			table.incrementCounter();
+			table.addValue( "VELOCITY_THRESHOLD", getVelocityThreshold( g ) );
+			table.addValue( "MIN_CONSECUTIVE_FRAMES", getMinConsecutiveFrames( g ) );
+			table.addValue( "SMOOTHING_WINDOW", getSmoothingWindow( g ) );
+			for ( int f = 0; f < PauseRunSegmentation.FEATURES.length; f++ )
+			{
+				double sum = 0d;
+				int n = 0;
+				for ( int t = 0; t < nTracks; t++ )
+				{
+					final double val = values[ f ][ g * nTracks + t ];
+					if ( Double.isNaN( val ) )
+					{
+						continue;
+					}
+					sum += val;
+					n++;
+				}
+				table.addValue( PauseRunSegmentation.FEATURES[ f ], sum / n );
+			}
+		}
+		return table;
+	}
+
+	/*
+	 * MULTITHREADED & BENCHMARK
+	 */
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = SharedExecutor.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/*
+	 * STATIC UTILS
+	 */
+
+	private static int featureIndex( final String feature )
+	{
+		for ( int f = 0; f < PauseRunSegmentation.FEATURES.length; f++ )
+		{
+			if ( PauseRunSegmentation.FEATURES[ f ].equals( feature ) ) { return f; }
+		}
+		return -1;
+	}
+
+	private static double[] unique( final double[] arr )
+	{
+		final double[] sorted = Arrays.copyOf( arr, arr.length );
+		Arrays.sort( sorted );
+		int n = 0;
+		for ( int i = 0; i < sorted.length; i++ )
+		{
+			if ( n == 0 || sorted[ i ] != sorted[ n - 1 ] )
+			{
+				sorted[ n++ ] = sorted[ i ];
+			}
+		}
+		return Arrays.copyOf( sorted, n );
+	}
+
+	private static int[] unique( final int[] arr )
+	{
+		final int[] sorted = Arrays.copyOf( arr, arr.length );
+		Arrays.sort( sorted );
+		int n = 0;
+		for ( int i = 0; i < sorted.length; i++ )
+		{
+			if ( n == 0 || sorted[ i ] != sorted[ n - 1 ] )
+			{
+				sorted[ n++ ] = sorted[ i ];
+			}
+		}
+		return Arrays.copyOf( sorted, n );
+	}
+}
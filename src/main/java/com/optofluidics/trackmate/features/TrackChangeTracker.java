@@ -0,0 +1,314 @@
+package com.optofluidics.trackmate.features;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * Records which tracks of a model were touched since the features were last
+ * computed, so that edge and track features can be recomputed for these tracks
+ * only.
+ * <p>
+ * A manual edit, like adding a link in TrackScheme, only marks the tracks it
+ * modifies. Recomputing the features afterwards with
+ * {@link #computeFeatures(Settings)} then costs in the size of these tracks,
+ * instead of the size of the model. Events that change the model en masse,
+ * like a new tracking or track filtering, mark all the tracks.
+ * <p>
+ * A newly created tracker marks all the tracks, since it does not know what
+ * happened before.
+ * <p>
+ * Trackers are kept in a weak map keyed by their model. They must therefore
+ * not hold their model strongly, otherwise no model would ever be collected.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class TrackChangeTracker implements ModelChangeListener
+{
+
+	private static final Map< Model, TrackChangeTracker > TRACKERS = new WeakHashMap< Model, TrackChangeTracker >();
+
+	private final WeakReference< Model > model;
+
+	private final TrackModel trackModel;
+
+	private final Set< Integer > touched;
+
+	private boolean allTouched;
+
+	private TrackChangeTracker( final Model model )
+	{
+		this.model = new WeakReference< Model >( model );
+		this.trackModel = model.getTrackModel();
+		this.touched = new HashSet< Integer >();
+		this.allTouched = true;
+	}
+
+	/**
+	 * Returns the change tracker of the specified model, creating it if needed.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the change tracker of the model.
+	 */
+	public static synchronized TrackChangeTracker get( final Model model )
+	{
+		TrackChangeTracker tracker = TRACKERS.get( model );
+		if ( null == tracker )
+		{
+			tracker = new TrackChangeTracker( model );
+			model.addModelChangeListener( tracker );
+			TRACKERS.put( model, tracker );
+		}
+		return tracker;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public synchronized void modelChanged( final ModelChangeEvent event )
+	{
+		switch ( event.getEventID() )
+		{
+		case ModelChangeEvent.TRACKS_VISIBILITY_CHANGED:
+			// Does not change features.
+			return;
+
+		case ModelChangeEvent.MODEL_MODIFIED:
+			touched.addAll( touchedTracks( event, trackModel ) );
+			return;
+
+		default:
+			allTouched = true;
+			touched.clear();
+			return;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if there are touched tracks.
+	 *
+	 * @return whether some features are out of date.
+	 */
+	public synchronized boolean hasChanges()
+	{
+		return allTouched || !touched.isEmpty();
+	}
+
+	/**
+	 * Returns the IDs of the visible tracks touched since the last call to this
+	 * method, and forgets them.
+	 *
+	 * @return a new collection of track IDs.
+	 */
+	public synchronized Collection< Integer > pollTouchedTracks()
+	{
+		final List< Integer > trackIDs;
+		if ( allTouched )
+		{
+			trackIDs = new ArrayList< Integer >( trackModel.unsortedTrackIDs( true ) );
+		}
+		else
+		{
+			final Set< Integer > visible = trackModel.unsortedTrackIDs( true );
+			trackIDs = new ArrayList< Integer >( touched.size() );
+			for ( final Integer trackID : touched )
+			{
+				// Tracks might have been merged or removed since.
+				if ( visible.contains( trackID ) )
+				{
+					trackIDs.add( trackID );
+				}
+			}
+		}
+		touched.clear();
+		allTouched = false;
+		return trackIDs;
+	}
+
+	/**
+	 * Marks the specified tracks as touched again, so that the next call to
+	 * {@link #pollTouchedTracks()} returns them. For analyses that polled
+	 * tracks but did not complete.
+	 *
+	 * @param trackIDs
+	 *            the IDs of the tracks to mark.
+	 */
+	public synchronized void markTouched( final Collection< Integer > trackIDs )
+	{
+		touched.addAll( trackIDs );
+	}
+
+	/**
+	 * Computes the edge and track features of the touched tracks, with the
+	 * analyzers of the specified settings, and forgets these tracks.
+	 * <p>
+	 * Non-local analyzers are run on all the visible tracks, since their
+	 * values depend on other tracks.
+	 *
+	 * @param settings
+	 *            the settings that hold the analyzers.
+	 * @return the IDs of the tracks whose features were recomputed.
+	 */
+	public Collection< Integer > computeFeatures( final Settings settings )
+	{
+		final Model m = model.get();
+		if ( null == m ) { return Collections.emptyList(); }
+		final Collection< Integer > trackIDs = pollTouchedTracks();
+		computeFeatures( m, settings, trackIDs );
+		return trackIDs;
+	}
+
+	/**
+	 * Computes the edge and track features of the specified tracks, with the
+	 * analyzers of the specified settings. Features are declared in the
+	 * feature model if needed.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param settings
+	 *            the settings that hold the analyzers.
+	 * @param trackIDs
+	 *            the IDs of the tracks to process.
+	 */
+	public static void computeFeatures( final Model model, final Settings settings, final Collection< Integer > trackIDs )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackModel trackModel = model.getTrackModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
+
+		final List< DefaultWeightedEdge > edges = new ArrayList< DefaultWeightedEdge >();
+		for ( final Integer trackID : trackIDs )
+		{
+			final TrackIndex.SortedTrack track = trackIndex.getTrack( trackID );
+			if ( null != track )
+			{
+				for ( final DefaultWeightedEdge edge : track.edges )
+				{
+					edges.add( edge );
+				}
+			}
+		}
+		List< DefaultWeightedEdge > allEdges = null;
+		List< Integer > allTracks = null;
+
+		for ( final EdgeAnalyzer analyzer : settings.getEdgeAnalyzers() )
+		{
+			fm.declareEdgeFeatures( analyzer.getFeatures(), analyzer.getFeatureNames(), analyzer.getFeatureShortNames(), analyzer.getFeatureDimensions(), analyzer.getIsIntFeature() );
+			if ( analyzer.isManualFeature() )
+			{
+				continue;
+			}
+			if ( analyzer.isLocal() )
+			{
+				analyzer.process( edges, model );
+			}
+			else
+			{
+				if ( null == allEdges )
+				{
+					allEdges = new ArrayList< DefaultWeightedEdge >( trackModel.edgeSet() );
+				}
+				analyzer.process( allEdges, model );
+			}
+		}
+
+		for ( final TrackAnalyzer analyzer : settings.getTrackAnalyzers() )
+		{
+			fm.declareTrackFeatures( analyzer.getFeatures(), analyzer.getFeatureNames(), analyzer.getFeatureShortNames(), analyzer.getFeatureDimensions(), analyzer.getIsIntFeature() );
+			if ( analyzer.isManualFeature() )
+			{
+				continue;
+			}
+			if ( analyzer.isLocal() )
+			{
+				analyzer.process( trackIDs, model );
+			}
+			else
+			{
+				if ( null == allTracks )
+				{
+					allTracks = new ArrayList< Integer >( trackModel.unsortedTrackIDs( true ) );
+				}
+				analyzer.process( allTracks, model );
+			}
+		}
+	}
+
+	/**
+	 * Returns the IDs of the tracks that contain the spots and edges of the
+	 * specified event, after the change.
+	 *
+	 * @param event
+	 *            a {@link ModelChangeEvent#MODEL_MODIFIED} event.
+	 * @param trackModel
+	 *            the track model of the model that fired the event.
+	 * @return a new set of track IDs.
+	 */
+	public static Set< Integer > touchedTracks( final ModelChangeEvent event, final TrackModel trackModel )
+	{
+		final Set< Integer > trackIDs = new HashSet< Integer >();
+		if ( null != event.getTrackUpdated() )
+		{
+			trackIDs.addAll( event.getTrackUpdated() );
+		}
+		for ( final Spot spot : event.getSpots() )
+		{
+			final Integer trackID = trackModel.trackIDOf( spot );
+			if ( null != trackID )
+			{
+				trackIDs.add( trackID );
+			}
+		}
+		for ( final DefaultWeightedEdge edge : event.getEdges() )
+		{
+			final Integer trackID = trackModel.trackIDOf( edge );
+			if ( null != trackID )
+			{
+				trackIDs.add( trackID );
+			}
+			else if ( event.getEdgeFlag( edge ).intValue() == ModelChangeEvent.FLAG_EDGE_REMOVED )
+			{
+				/*
+				 * The edge is gone, but its spots might still be in tracks,
+				 * that are now shorter.
+				 */
+				final Spot source = trackModel.getEdgeSource( edge );
+				final Spot target = trackModel.getEdgeTarget( edge );
+				addTrackOf( source, trackModel, trackIDs );
+				addTrackOf( target, trackModel, trackIDs );
+			}
+		}
+		return trackIDs;
+	}
+
+	private static void addTrackOf( final Spot spot, final TrackModel trackModel, final Set< Integer > trackIDs )
+	{
+		if ( null == spot ) { return; }
+		final Integer trackID = trackModel.trackIDOf( spot );
+		if ( null != trackID )
+		{
+			trackIDs.add( trackID );
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.optofluidics.trackmate.features;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * A per-model cache of the tracks, with their spots and edges sorted by frame
+ * and their coordinates stored in primitive arrays.
+ * <p>
+ * Sorting the edges of a track with a comparator on the edge time feature
+ * costs two feature map lookups per comparison, and reading spot coordinates
+ * costs one map lookup per coordinate. This index does it once per track,
+ * sorting on the spot frames, and shares the result between all the analyses
+ * that need time-ordered tracks.
+ * <p>
+ * The index listens to the model it was created for, and is emptied on every
+ * change of the model. Call {@link #get(Model)} right after creating or
+ * loading a model, before other listeners are registered, so that tracks are
+ * invalidated before features are recomputed on model changes.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class TrackIndex implements ModelChangeListener
+{
+
+	private static final Map< Model, TrackIndex > INDICES = new WeakHashMap< Model, TrackIndex >();
+
+	private final TrackModel trackModel;
+
+	private final ConcurrentHashMap< Integer, SortedTrack > tracks;
+
+	private TrackIndex( final TrackModel trackModel )
+	{
+		this.trackModel = trackModel;
+		this.tracks = new ConcurrentHashMap< Integer, SortedTrack >();
+	}
+
+	/**
+	 * Returns the track index of the specified model, creating it if needed.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the track index of the model.
+	 */
+	public static synchronized TrackIndex get( final Model model )
+	{
+		TrackIndex index = INDICES.get( model );
+		if ( null == index )
+		{
+			index = new TrackIndex( model.getTrackModel() );
+			model.addModelChangeListener( index );
+			INDICES.put( model, index );
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the sorted version of the specified track, building it if it is
+	 * not in the index yet. This method can be called concurrently.
+	 *
+	 * @param trackID
+	 *            the ID of the track.
+	 * @return the sorted track, or <code>null</code> if there is no track with
+	 *         this ID in the model.
+	 */
+	public SortedTrack getTrack( final Integer trackID )
+	{
+		final SortedTrack track = tracks.get( trackID );
+		if ( null != track && isValid( track, trackID ) ) { return track; }
+
+		final Set< Spot > spots = trackModel.trackSpots( trackID );
+		final Set< DefaultWeightedEdge > edges = trackModel.trackEdges( trackID );
+		if ( null == spots || null == edges ) { return null; }
+
+		final SortedTrack built = new SortedTrack( spots, edges, trackModel );
+		tracks.put( trackID, built );
+		return built;
+	}
+
+	/**
+	 * Removes the specified track from the index.
+	 *
+	 * @param trackID
+	 *            the ID of the track to remove.
+	 */
+	public void invalidate( final Integer trackID )
+	{
+		tracks.remove( trackID );
+	}
+
+	/**
+	 * Removes all the tracks from the index.
+	 */
+	public void clear()
+	{
+		tracks.clear();
+	}
+
+	/**
+	 * Drops all the tracks on every model change. Events do not always say
+	 * which tracks they touch: a spot moved or relinked within its track keeps
+	 * the track sizes, and only the event tells that its cached coordinates
+	 * are stale. Tracks are rebuilt lazily, when they are next requested.
+	 */
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		clear();
+	}
+
+	/**
+	 * Cheap sanity check against a track modified without notifying the
+	 * listeners. It only catches spots or edges added or removed; the index
+	 * relies on model change events for everything else.
+	 */
+	private boolean isValid( final SortedTrack track, final Integer trackID )
+	{
+		final Set< Spot > spots = trackModel.trackSpots( trackID );
+		final Set< DefaultWeightedEdge > edges = trackModel.trackEdges( trackID );
+		return null != spots && null != edges && spots.size() == track.nSpots() && edges.size() == track.nEdges();
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A track with its spots and edges sorted by frame. The arrays of this
+	 * class are shared and must not be modified.
+	 */
+	public static final class SortedTrack
+	{
+
+		/**
+		 * The spots of the track, sorted by frame.
+		 */
+		public final Spot[] spots;
+
+		/**
+		 * The frame of each spot.
+		 */
+		public final int[] frames;
+
+		/**
+		 * The {@link Spot#POSITION_T} of each spot.
+		 */
+		public final double[] t;
+
+		/**
+		 * The {@link Spot#POSITION_X} of each spot.
+		 */
+		public final double[] x;
+
+		/**
+		 * The {@link Spot#POSITION_Y} of each spot.
+		 */
+		public final double[] y;
+
+		/**
+		 * The {@link Spot#POSITION_Z} of each spot.
+		 */
+		public final double[] z;
+
+		/**
+		 * The edges of the track, sorted by the frame of their first spot.
+		 */
+		public final DefaultWeightedEdge[] edges;
+
+		/**
+		 * For each edge, the index in {@link #spots} of its spot with the
+		 * lowest frame.
+		 */
+		public final int[] sources;
+
+		/**
+		 * For each edge, the index in {@link #spots} of its spot with the
+		 * highest frame.
+		 */
+		public final int[] targets;
+
+		private SortedTrack( final Set< Spot > spotSet, final Set< DefaultWeightedEdge > edgeSet, final TrackModel trackModel )
+		{
+			/*
+			 * Sort spots by frame.
+			 */
+
+			final int nSpots = spotSet.size();
+			final Spot[] unsorted = spotSet.toArray( new Spot[ nSpots ] );
+			final long[] keys = new long[ nSpots ];
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				final int frame = unsorted[ i ].getFeature( Spot.FRAME ).intValue();
+				keys[ i ] = ( ( long ) frame << 32 ) | i;
+			}
+			Arrays.sort( keys );
+
+			this.spots = new Spot[ nSpots ];
+			this.frames = new int[ nSpots ];
+			this.t = new double[ nSpots ];
+			this.x = new double[ nSpots ];
+			this.y = new double[ nSpots ];
+			this.z = new double[ nSpots ];
+			final Map< Spot, Integer > spotIndices = new HashMap< Spot, Integer >( 2 * nSpots );
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				final Spot spot = unsorted[ ( int ) keys[ i ] ];
+				spots[ i ] = spot;
+				frames[ i ] = ( int ) ( keys[ i ] >>> 32 );
+				t[ i ] = spot.getFeature( Spot.POSITION_T ).doubleValue();
+				x[ i ] = spot.getFeature( Spot.POSITION_X ).doubleValue();
+				y[ i ] = spot.getFeature( Spot.POSITION_Y ).doubleValue();
+				z[ i ] = spot.getFeature( Spot.POSITION_Z ).doubleValue();
+				spotIndices.put( spot, Integer.valueOf( i ) );
+			}
+
+			/*
+			 * Sort edges by the frame of their first spot.
+			 */
+
+			final int nEdges = edgeSet.size();
+			final DefaultWeightedEdge[] unsortedEdges = edgeSet.toArray( new DefaultWeightedEdge[ nEdges ] );
+			final int[] unsortedSources = new int[ nEdges ];
+			final int[] unsortedTargets = new int[ nEdges ];
+			final long[] edgeKeys = new long[ nEdges ];
+			for ( int i = 0; i < nEdges; i++ )
+			{
+				int source = spotIndices.get( trackModel.getEdgeSource( unsortedEdges[ i ] ) ).intValue();
+				int target = spotIndices.get( trackModel.getEdgeTarget( unsortedEdges[ i ] ) ).intValue();
+				if ( source > target )
+				{ // Switch order if needed
+					final int tmp = source;
+					source = target;
+					target = tmp;
+				}
+				unsortedSources[ i ] = source;
+				unsortedTargets[ i ] = target;
+				edgeKeys[ i ] = ( ( long ) source << 32 ) | i;
+			}
+			Arrays.sort( edgeKeys );
+
+			this.edges = new DefaultWeightedEdge[ nEdges ];
+			this.sources = new int[ nEdges ];
+			this.targets = new int[ nEdges ];
+			for ( int i = 0; i < nEdges; i++ )
+			{
+				final int e = ( int ) edgeKeys[ i ];
+				edges[ i ] = unsortedEdges[ e ];
+				sources[ i ] = unsortedSources[ e ];
+				targets[ i ] = unsortedTargets[ e ];
+			}
+		}
+
+		public int nSpots()
+		{
+			return spots.length;
+		}
+
+		public int nEdges()
+		{
+			return edges.length;
+		}
+	}
+}
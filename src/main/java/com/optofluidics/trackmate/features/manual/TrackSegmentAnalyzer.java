@@ -0,0 +1,203 @@
+package com.optofluidics.trackmate.features.manual;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * Defines and stores statistics on the pause and run segments of tracks:
+ * mean run duration and length, pause duration percentiles and the
+ * distribution of run velocities. Like for the {@link TrackPausingAnalyzer},
+ * the calculation is done by the velocity analysis, from the
+ * {@link com.optofluidics.trackmate.action.MotionSegments} of each track.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+@Plugin( type = TrackAnalyzer.class )
+public class TrackSegmentAnalyzer implements TrackAnalyzer
+{
+
+	public static final String RUN_MEAN_DURATION = "RUN_MEAN_DURATION";
+
+	public static final String RUN_MEAN_LENGTH = "RUN_MEAN_LENGTH";
+
+	public static final String PAUSE_DURATION_P10 = "PAUSE_DURATION_P10";
+
+	public static final String PAUSE_DURATION_P50 = "PAUSE_DURATION_P50";
+
+	public static final String PAUSE_DURATION_P90 = "PAUSE_DURATION_P90";
+
+	public static final String RUN_VELOCITY_MEAN = "RUN_VELOCITY_MEAN";
+
+	public static final String RUN_VELOCITY_MEDIAN = "RUN_VELOCITY_MEDIAN";
+
+	public static final String RUN_VELOCITY_STD = "RUN_VELOCITY_STD";
+
+	private static final List< String > FEATURES;
+
+	private static final Map< String, String > FEATURE_NAMES;
+
+	private static final Map< String, String > FEATURE_SHORT_NAMES;
+
+	private static final Map< String, Dimension > FEATURE_DIMENSIONS;
+
+	private static final Map< String, Boolean > IS_INT;
+
+	private static final String INFO_TEXT = "<html>Defines and stores the statistics of the pause and run segments within a track. Calculation is done elsewhere.</html>";
+
+	private static final String KEY = "TRACK_SEGMENT_ANALYZER";
+
+	private static final String NAME = "Track segment analyzer";
+
+	static
+	{
+		FEATURES = new ArrayList< String >( 8 );
+		FEATURES.add( RUN_MEAN_DURATION );
+		FEATURES.add( RUN_MEAN_LENGTH );
+		FEATURES.add( PAUSE_DURATION_P10 );
+		FEATURES.add( PAUSE_DURATION_P50 );
+		FEATURES.add( PAUSE_DURATION_P90 );
+		FEATURES.add( RUN_VELOCITY_MEAN );
+		FEATURES.add( RUN_VELOCITY_MEDIAN );
+		FEATURES.add( RUN_VELOCITY_STD );
+
+		FEATURE_NAMES = new HashMap< String, String >( 8 );
+		FEATURE_NAMES.put( RUN_MEAN_DURATION, "Mean run duration" );
+		FEATURE_NAMES.put( RUN_MEAN_LENGTH, "Mean run length" );
+		FEATURE_NAMES.put( PAUSE_DURATION_P10, "Pause duration 10th percentile" );
+		FEATURE_NAMES.put( PAUSE_DURATION_P50, "Median pause duration" );
+		FEATURE_NAMES.put( PAUSE_DURATION_P90, "Pause duration 90th percentile" );
+		FEATURE_NAMES.put( RUN_VELOCITY_MEAN, "Mean run velocity" );
+		FEATURE_NAMES.put( RUN_VELOCITY_MEDIAN, "Median run velocity" );
+		FEATURE_NAMES.put( RUN_VELOCITY_STD, "Run velocity std" );
+
+		FEATURE_SHORT_NAMES = new HashMap< String, String >( 8 );
+		FEATURE_SHORT_NAMES.put( RUN_MEAN_DURATION, "Run duration" );
+		FEATURE_SHORT_NAMES.put( RUN_MEAN_LENGTH, "Run length" );
+		FEATURE_SHORT_NAMES.put( PAUSE_DURATION_P10, "Pause P10" );
+		FEATURE_SHORT_NAMES.put( PAUSE_DURATION_P50, "Pause P50" );
+		FEATURE_SHORT_NAMES.put( PAUSE_DURATION_P90, "Pause P90" );
+		FEATURE_SHORT_NAMES.put( RUN_VELOCITY_MEAN, "Mean run V." );
+		FEATURE_SHORT_NAMES.put( RUN_VELOCITY_MEDIAN, "Median run V." );
+		FEATURE_SHORT_NAMES.put( RUN_VELOCITY_STD, "Run V. std" );
+
+		FEATURE_DIMENSIONS = new HashMap< String, Dimension >( 8 );
+		FEATURE_DIMENSIONS.put( RUN_MEAN_DURATION, Dimension.TIME );
+		FEATURE_DIMENSIONS.put( RUN_MEAN_LENGTH, Dimension.LENGTH );
+		FEATURE_DIMENSIONS.put( PAUSE_DURATION_P10, Dimension.TIME );
+		FEATURE_DIMENSIONS.put( PAUSE_DURATION_P50, Dimension.TIME );
+		FEATURE_DIMENSIONS.put( PAUSE_DURATION_P90, Dimension.TIME );
+		FEATURE_DIMENSIONS.put( RUN_VELOCITY_MEAN, Dimension.VELOCITY );
+		FEATURE_DIMENSIONS.put( RUN_VELOCITY_MEDIAN, Dimension.VELOCITY );
+		FEATURE_DIMENSIONS.put( RUN_VELOCITY_STD, Dimension.VELOCITY );
+
+		IS_INT = new HashMap< String, Boolean >( 8 );
+		for ( final String feature : FEATURES )
+		{
+			IS_INT.put( feature, Boolean.FALSE );
+		}
+	}
+
+	private long processingTime;
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return FEATURES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return FEATURE_SHORT_NAMES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return FEATURE_NAMES;
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return FEATURE_DIMENSIONS;
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return IS_INT;
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return true;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public void setNumThreads()
+	{}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{}
+
+	@Override
+	public int getNumThreads()
+	{
+		return 1;
+	}
+
+	@Override
+	public void process( final Collection< Integer > trackIDs, final Model model )
+	{}
+
+	@Override
+	public boolean isLocal()
+	{
+		return true;
+	}
+
+}
@@ -5,20 +5,21 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.swing.ImageIcon;
 
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.multithreading.SimpleMultiThreading;
 
 import org.scijava.plugin.Plugin;
 
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
 import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
-import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.track.TrackAnalyzer;
 
 @Plugin( type = TrackAnalyzer.class )
@@ -75,53 +76,28 @@ public class TrackLinearVelocityAnalyzer implements TrackAnalyzer, MultiThreaded
 
 		if ( trackIDs.isEmpty() ) { return; }
 
-		final ArrayBlockingQueue< Integer > queue = new ArrayBlockingQueue< Integer >( trackIDs.size(), false, trackIDs );
+		final List< Integer > ids = new ArrayList< Integer >( trackIDs );
 		final FeatureModel fm = model.getFeatureModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
 
-		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-		for ( int i = 0; i < threads.length; i++ )
+		final long start = System.currentTimeMillis();
+		SharedExecutor.forEach( ids.size(), numThreads, new IndexTask()
 		{
-			threads[ i ] = new Thread( "TrackDurationAnalyzer thread " + i )
+			@Override
+			public void process( final int index )
 			{
-				@Override
-				public void run()
-				{
-					Integer trackID;
-					while ( ( trackID = queue.poll() ) != null )
-					{
-
-						// I love brute force.
-						final Set< Spot > track = model.getTrackModel().trackSpots( trackID );
-						double minT = Double.POSITIVE_INFINITY;
-						double maxT = Double.NEGATIVE_INFINITY;
-						Double t;
-						Spot startSpot = null;
-						Spot endSpot = null;
-						for ( final Spot spot : track )
-						{
-							t = spot.getFeature( Spot.POSITION_T );
-							if ( t < minT )
-							{
-								minT = t;
-								startSpot = spot;
-							}
-							if ( t > maxT )
-							{
-								maxT = t;
-								endSpot = spot;
-							}
-						}
-
-						final double dt = maxT - minT;
-						final double linVel = Math.sqrt( endSpot.squareDistanceTo( startSpot ) ) / dt;
-						fm.putTrackFeature( trackID, TRACK_LINEAR_VELOCITY, linVel );
-					}
-				}
-			};
-		}
-
-		final long start = System.currentTimeMillis();
-		SimpleMultiThreading.startAndJoin( threads );
+				final Integer trackID = ids.get( index );
+				// Spots are sorted by frame in the index.
+				final SortedTrack track = trackIndex.getTrack( trackID );
+				final int last = track.nSpots() - 1;
+				final double dx = track.x[ last ] - track.x[ 0 ];
+				final double dy = track.y[ last ] - track.y[ 0 ];
+				final double dz = track.z[ last ] - track.z[ 0 ];
+				final double dt = track.t[ last ] - track.t[ 0 ];
+				final double linVel = Math.sqrt( dx * dx + dy * dy + dz * dz ) / dt;
+				fm.putTrackFeature( trackID, TRACK_LINEAR_VELOCITY, linVel );
+			}
+		} );
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 	}
@@ -135,7 +111,7 @@ public class TrackLinearVelocityAnalyzer implements TrackAnalyzer, MultiThreaded
 	@Override
 	public void setNumThreads()
 	{
-		this.numThreads = Runtime.getRuntime().availableProcessors();
+		this.numThreads = SharedExecutor.getParallelism();
 	}
 
 	@Override
@@ -0,0 +1,452 @@
+package com.optofluidics.trackmate.features.track;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+
+import org.scijava.plugin.Plugin;
+
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.util.FFT;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * Computes the mean-squared displacement (MSD) curve of each track over all
+ * lags, and fits it with <code>MSD(&tau;) = 2 d D &tau;<sup>&alpha;</sup></code>,
+ * where <code>d</code> is the number of dimensions of the track.
+ * <p>
+ * The exponent &alpha; tells confined motion (&alpha; &lt; 1) from free
+ * diffusion (&alpha; = 1) and directed motion (&alpha; &gt; 1). The diffusion
+ * coefficient D is given in squared space units per time unit.
+ * <p>
+ * The naive MSD over all lags is quadratic in the track length. Here it is
+ * computed from autocorrelations, obtained by FFT in <code>O(n log n)</code>.
+ * Frames missing in a track, because of gap-closing, are handled by masking:
+ * each lag is averaged only over the pairs of frames where the track has a
+ * spot. The fit is a linear regression in log-log scale, over lags spaced
+ * logarithmically up to a quarter of the track duration.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+@Plugin( type = TrackAnalyzer.class )
+public class TrackMsdAnalyzer implements TrackAnalyzer, MultiThreaded, Benchmark
+{
+
+	/*
+	 * CONSTANTS
+	 */
+
+	public static final String KEY = "TRACK_MSD";
+
+	public static final String TRACK_DIFFUSION_COEFFICIENT = "TRACK_DIFFUSION_COEFFICIENT";
+
+	public static final String TRACK_ANOMALOUS_EXPONENT = "TRACK_ANOMALOUS_EXPONENT";
+
+	public static final List< String > FEATURES = new ArrayList< String >( 2 );
+
+	public static final Map< String, String > FEATURE_NAMES = new HashMap< String, String >( 2 );
+
+	public static final Map< String, String > FEATURE_SHORT_NAMES = new HashMap< String, String >( 2 );
+
+	public static final Map< String, Dimension > FEATURE_DIMENSIONS = new HashMap< String, Dimension >( 2 );
+
+	public static final Map< String, Boolean > IS_INT = new HashMap< String, Boolean >( 2 );
+
+	private static final String INFO_TEXT = "<html>Computes the mean-squared displacement curve of tracks, and fits it "
+			+ "with a power law to get the diffusion coefficient and the anomalous exponent. "
+			+ "<p>The diffusion coefficient is in squared space units per time unit.</html>";
+
+	/**
+	 * Fit lags up to this fraction of the track duration. Longer lags have
+	 * too few pairs to be reliable.
+	 */
+	private static final double MAX_LAG_FRACTION = 0.25;
+
+	/**
+	 * Minimal number of lags in the fit.
+	 */
+	private static final int MIN_FIT_LAGS = 4;
+
+	/**
+	 * Number of fitted lags per decade.
+	 */
+	private static final int LAGS_PER_DECADE = 10;
+
+	static
+	{
+		FEATURES.add( TRACK_DIFFUSION_COEFFICIENT );
+		FEATURES.add( TRACK_ANOMALOUS_EXPONENT );
+
+		FEATURE_NAMES.put( TRACK_DIFFUSION_COEFFICIENT, "Diffusion coefficient" );
+		FEATURE_NAMES.put( TRACK_ANOMALOUS_EXPONENT, "Anomalous exponent" );
+
+		FEATURE_SHORT_NAMES.put( TRACK_DIFFUSION_COEFFICIENT, "D" );
+		FEATURE_SHORT_NAMES.put( TRACK_ANOMALOUS_EXPONENT, "alpha" );
+
+		// There is no dimension for squared length per time.
+		FEATURE_DIMENSIONS.put( TRACK_DIFFUSION_COEFFICIENT, Dimension.NONE );
+		FEATURE_DIMENSIONS.put( TRACK_ANOMALOUS_EXPONENT, Dimension.NONE );
+
+		IS_INT.put( TRACK_DIFFUSION_COEFFICIENT, Boolean.FALSE );
+		IS_INT.put( TRACK_ANOMALOUS_EXPONENT, Boolean.FALSE );
+	}
+
+	private int numThreads;
+
+	private long processingTime;
+
+	public TrackMsdAnalyzer()
+	{
+		setNumThreads();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean isLocal()
+	{
+		return true;
+	}
+
+	@Override
+	public void process( final Collection< Integer > trackIDs, final Model model )
+	{
+		if ( trackIDs.isEmpty() ) { return; }
+
+		final List< Integer > ids = new ArrayList< Integer >( trackIDs );
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
+
+		final long start = System.currentTimeMillis();
+		SharedExecutor.forEach( ids.size(), numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int index )
+			{
+				final Integer trackID = ids.get( index );
+				final SortedTrack track = trackIndex.getTrack( trackID );
+				final int last = track.nSpots() - 1;
+				final int nFrames = track.frames[ last ] - track.frames[ 0 ];
+
+				double D = Double.NaN;
+				double alpha = Double.NaN;
+				if ( nFrames > 0 )
+				{
+					final double frameInterval = ( track.t[ last ] - track.t[ 0 ] ) / nFrames;
+					final double[] msd = msd( track.frames, track.x, track.y, track.z );
+					final double[] fit = fit( msd, frameInterval, nDimensions( track.z ) );
+					D = fit[ 0 ];
+					alpha = fit[ 1 ];
+				}
+				fm.putTrackFeature( trackID, TRACK_DIFFUSION_COEFFICIENT, Double.valueOf( D ) );
+				fm.putTrackFeature( trackID, TRACK_ANOMALOUS_EXPONENT, Double.valueOf( alpha ) );
+			}
+		} );
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+	}
+
+	/**
+	 * Computes the MSD curve of a track, for all lags in frames.
+	 * <p>
+	 * With <code>m</code> the mask of frames where the track has a spot, the
+	 * sum of squared displacements at lag <code>&tau;</code> expands into
+	 * correlations:
+	 *
+	 * <pre>
+	 * sum_t m(t) m(t+&tau;) (r(t+&tau;) - r(t))^2
+	 *   = corr(m, m r^2)(&tau;) + corr(m r^2, m)(&tau;) - 2 corr(m r, m r)(&tau;)
+	 * </pre>
+	 *
+	 * and the number of pairs is <code>corr(m, m)(&tau;)</code>. All of them
+	 * are obtained with two forward and two inverse FFTs, by packing pairs of
+	 * real signals in complex arrays. Positions are centered first, to limit
+	 * round-off errors.
+	 *
+	 * @param frames
+	 *            the frame of each spot, sorted. If several spots are in the
+	 *            same frame, only the first one is used.
+	 * @param x
+	 *            the X position of each spot.
+	 * @param y
+	 *            the Y position of each spot.
+	 * @param z
+	 *            the Z position of each spot.
+	 * @return the MSD for each lag in frames, from 0 to the track duration.
+	 *         Lags with no pairs of spots are <code>NaN</code>.
+	 */
+	public static double[] msd( final int[] frames, final double[] x, final double[] y, final double[] z )
+	{
+		final int nSpots = frames.length;
+		final int nFrames = frames[ nSpots - 1 ] - frames[ 0 ] + 1;
+		final boolean is3D = nDimensions( z ) == 3;
+
+		double cx = 0;
+		double cy = 0;
+		double cz = 0;
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			cx += x[ i ];
+			cy += y[ i ];
+			cz += z[ i ];
+		}
+		cx /= nSpots;
+		cy /= nSpots;
+		cz /= nSpots;
+
+		// Zero-padding to at least twice the length avoids circular wrapping.
+		final int size = FFT.nextPowerOfTwo( 2 * nFrames );
+		final double[] maskRe = new double[ size ];
+		final double[] maskIm = new double[ size ];
+		final double[] xyRe = new double[ size ];
+		final double[] xyIm = new double[ size ];
+		final double[] zRe = is3D ? new double[ size ] : null;
+		final double[] zIm = is3D ? new double[ size ] : null;
+
+		// Mask in real part, mask * r^2 in imaginary part.
+		int previous = -1;
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			final int t = frames[ i ] - frames[ 0 ];
+			if ( t == previous )
+			{
+				continue;
+			}
+			previous = t;
+			final double dx = x[ i ] - cx;
+			final double dy = y[ i ] - cy;
+			final double dz = z[ i ] - cz;
+			maskRe[ t ] = 1;
+			maskIm[ t ] = dx * dx + dy * dy + dz * dz;
+			xyRe[ t ] = dx;
+			xyIm[ t ] = dy;
+			if ( is3D )
+			{
+				zRe[ t ] = dz;
+			}
+		}
+
+		FFT.transform( maskRe, maskIm, false );
+		FFT.transform( xyRe, xyIm, false );
+		if ( is3D )
+		{
+			FFT.transform( zRe, zIm, false );
+		}
+
+		/*
+		 * Unpack the spectra. For a packed signal W = F + iG of two real
+		 * signals: F(k) = (W(k) + conj(W(-k))) / 2 and G(k) = (W(k) -
+		 * conj(W(-k))) / 2i. The power spectra and the cross-spectrum are
+		 * real, so the count and the mask-r^2 correlations are packed again
+		 * in the same inverse transform.
+		 */
+		final double[] pairsRe = new double[ size ];
+		final double[] pairsIm = new double[ size ];
+		final double[] autoRe = new double[ size ];
+		final double[] autoIm = new double[ size ];
+		for ( int k = 0; k < size; k++ )
+		{
+			final int j = ( size - k ) & ( size - 1 );
+
+			final double mr = 0.5 * ( maskRe[ k ] + maskRe[ j ] );
+			final double mi = 0.5 * ( maskIm[ k ] - maskIm[ j ] );
+			final double ar = 0.5 * ( maskIm[ k ] + maskIm[ j ] );
+			final double ai = -0.5 * ( maskRe[ k ] - maskRe[ j ] );
+			pairsRe[ k ] = mr * mr + mi * mi;
+			pairsIm[ k ] = 2 * ( mr * ar + mi * ai );
+
+			double power = 0.5 * ( xyRe[ k ] * xyRe[ k ] + xyIm[ k ] * xyIm[ k ] + xyRe[ j ] * xyRe[ j ] + xyIm[ j ] * xyIm[ j ] );
+			if ( is3D )
+			{
+				power += zRe[ k ] * zRe[ k ] + zIm[ k ] * zIm[ k ];
+			}
+			autoRe[ k ] = power;
+		}
+
+		FFT.transform( pairsRe, pairsIm, true );
+		FFT.transform( autoRe, autoIm, true );
+
+		final double[] msd = new double[ nFrames ];
+		for ( int tau = 0; tau < nFrames; tau++ )
+		{
+			final double count = Math.rint( pairsRe[ tau ] / size );
+			if ( count < 1 )
+			{
+				msd[ tau ] = Double.NaN;
+				continue;
+			}
+			final double sum = ( pairsIm[ tau ] - 2 * autoRe[ tau ] ) / size;
+			msd[ tau ] = Math.max( 0, sum / count );
+		}
+		return msd;
+	}
+
+	/**
+	 * Fits an MSD curve with <code>MSD(&tau;) = 2 d D &tau;<sup>&alpha;</sup></code>.
+	 *
+	 * @param msd
+	 *            the MSD for each lag in frames.
+	 * @param frameInterval
+	 *            the time interval between two frames.
+	 * @param nDims
+	 *            the number of dimensions <code>d</code>.
+	 * @return a new <code>double[] { D, alpha }</code> array. Values are
+	 *         <code>NaN</code> if there are not enough lags to fit.
+	 */
+	public static double[] fit( final double[] msd, final double frameInterval, final int nDims )
+	{
+		final int maxLag = Math.min( msd.length - 1, Math.max( MIN_FIT_LAGS, ( int ) ( MAX_LAG_FRACTION * msd.length ) ) );
+
+		// Linear regression of log MSD against log tau.
+		double sx = 0;
+		double sy = 0;
+		double sxx = 0;
+		double sxy = 0;
+		int n = 0;
+		int previous = 0;
+		for ( int k = 0;; k++ )
+		{
+			final int lag = ( int ) Math.round( Math.pow( 10, ( double ) k / LAGS_PER_DECADE ) );
+			if ( lag > maxLag )
+			{
+				break;
+			}
+			if ( lag == previous )
+			{
+				continue;
+			}
+			previous = lag;
+			final double val = msd[ lag ];
+			if ( Double.isNaN( val ) || val <= 0 )
+			{
+				continue;
+			}
+			final double lx = Math.log( lag * frameInterval );
+			final double ly = Math.log( val );
+			sx += lx;
+			sy += ly;
+			sxx += lx * lx;
+			sxy += lx * ly;
+			n++;
+		}
+
+		final double det = n * sxx - sx * sx;
+		if ( n < 2 || det <= 0 ) { return new double[] { Double.NaN, Double.NaN }; }
+		final double alpha = ( n * sxy - sx * sy ) / det;
+		final double intercept = ( sy - alpha * sx ) / n;
+		final double D = Math.exp( intercept ) / ( 2 * nDims );
+		return new double[] { D, alpha };
+	}
+
+	/**
+	 * Returns 3 if the track moves in Z, 2 otherwise.
+	 */
+	private static int nDimensions( final double[] z )
+	{
+		for ( int i = 1; i < z.length; i++ )
+		{
+			if ( z[ i ] != z[ 0 ] ) { return 3; }
+		}
+		return 2;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = SharedExecutor.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return FEATURES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return FEATURE_SHORT_NAMES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return FEATURE_NAMES;
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return FEATURE_DIMENSIONS;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return KEY;
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return IS_INT;
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return false;
+	}
+}
@@ -1,22 +1,24 @@
 package com.optofluidics.trackmate.features.track;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.swing.ImageIcon;
 
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.multithreading.SimpleMultiThreading;
-import net.imglib2.util.Util;
 
 import org.scijava.plugin.Plugin;
 
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.util.QuickSelect;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
 import fiji.plugin.trackmate.Dimension;
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
@@ -24,6 +26,23 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
 import fiji.plugin.trackmate.features.track.TrackAnalyzer;
 
+/**
+ * Computes the mean, median and standard deviation of spot features over each
+ * track.
+ * <p>
+ * By default, only the spot {@link SpotIntensityAnalyzerFactory#TOTAL_INTENSITY}
+ * is used. Several spot features can be specified: they are all computed in
+ * the same pass over the track spots. The first one feeds the
+ * {@link #TRACK_MEAN_INTENSITY}, {@link #TRACK_MEDIAN_INTENSITY} and
+ * {@link #TRACK_STD_INTENSITY} features. The others get features named
+ * <code>TRACK_MEAN_</code>, <code>TRACK_MEDIAN_</code> and
+ * <code>TRACK_STD_</code> followed by the spot feature key.
+ * <p>
+ * Moments are accumulated with Welford's algorithm, and the median is found by
+ * selection instead of sorting.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
 @Plugin( type = TrackAnalyzer.class )
 public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded, Benchmark
 {
@@ -49,7 +68,9 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 
 	public static final Map< String, Boolean > IS_INT = new HashMap< String, Boolean >( 3 );
 
-	private static final String INFO_TEXT = "<html>This track analyzer computes track intensity statistics based on averaging the track spots total intensity feature values.</html>";
+	public static final String DEFAULT_SPOT_FEATURE = SpotIntensityAnalyzerFactory.TOTAL_INTENSITY;
+
+	private static final String INFO_TEXT = "<html>This track analyzer computes track intensity statistics based on the track spots intensity feature values. By default, the spot total intensity is used.</html>";
 
 	static
 	{
@@ -74,12 +95,73 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 		IS_INT.put( TRACK_STD_INTENSITY, Boolean.FALSE );
 	}
 
+	private final String[] spotFeatures;
+
+	private final List< String > features;
+
+	private final Map< String, String > featureNames;
+
+	private final Map< String, String > featureShortNames;
+
+	private final Map< String, Dimension > featureDimensions;
+
+	private final Map< String, Boolean > isInt;
+
+	/**
+	 * Per-thread buffers for the spot feature values, one row per spot
+	 * feature. Reused across tracks and grown when needed.
+	 */
+	private final ThreadLocal< double[][] > buffers = new ThreadLocal< double[][] >();
+
 	private int numThreads;
 
 	private long processingTime;
 
 	public TrackSpotIntensityAnalyzer()
 	{
+		this( DEFAULT_SPOT_FEATURE );
+	}
+
+	/**
+	 * Creates an analyzer for the specified spot features.
+	 *
+	 * @param spotFeatures
+	 *            the keys of the spot features to average over tracks. The
+	 *            first one feeds the legacy track intensity features.
+	 */
+	public TrackSpotIntensityAnalyzer( final String... spotFeatures )
+	{
+		if ( spotFeatures.length == 0 ) { throw new IllegalArgumentException( "At least one spot feature must be specified." ); }
+		this.spotFeatures = spotFeatures.clone();
+
+		final int nFeatures = 3 * spotFeatures.length;
+		this.features = new ArrayList< String >( nFeatures );
+		this.featureNames = new HashMap< String, String >( nFeatures );
+		this.featureShortNames = new HashMap< String, String >( nFeatures );
+		this.featureDimensions = new HashMap< String, Dimension >( nFeatures );
+		this.isInt = new HashMap< String, Boolean >( nFeatures );
+
+		features.addAll( FEATURES );
+		featureNames.putAll( FEATURE_NAMES );
+		featureShortNames.putAll( FEATURE_SHORT_NAMES );
+		featureDimensions.putAll( FEATURE_DIMENSIONS );
+		isInt.putAll( IS_INT );
+		for ( int j = 1; j < spotFeatures.length; j++ )
+		{
+			final String spotFeature = spotFeatures[ j ];
+			final String[] keys = trackFeatures( j );
+			final String[] names = new String[] { "Track mean ", "Track median ", "Track std " };
+			final String[] shortNames = new String[] { "Mean ", "Median ", "Std " };
+			for ( int k = 0; k < keys.length; k++ )
+			{
+				features.add( keys[ k ] );
+				featureNames.put( keys[ k ], names[ k ] + spotFeature );
+				featureShortNames.put( keys[ k ], shortNames[ k ] + spotFeature );
+				featureDimensions.put( keys[ k ], Dimension.INTENSITY );
+				isInt.put( keys[ k ], Boolean.FALSE );
+			}
+		}
+
 		setNumThreads();
 	}
 
@@ -96,65 +178,101 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 	@Override
 	public void process( final Collection< Integer > trackIDs, final Model model )
 	{
-		final String spotFeature = SpotIntensityAnalyzerFactory.TOTAL_INTENSITY; // MEAN_INTENSITY;
-
 		if ( trackIDs.isEmpty() ) { return; }
 
-		final ArrayBlockingQueue< Integer > queue = new ArrayBlockingQueue< Integer >( trackIDs.size(), false, trackIDs );
+		final List< Integer > ids = new ArrayList< Integer >( trackIDs );
 		final FeatureModel fm = model.getFeatureModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
+		final int nSpotFeatures = spotFeatures.length;
+		final String[][] keys = new String[ nSpotFeatures ][];
+		for ( int j = 0; j < nSpotFeatures; j++ )
+		{
+			keys[ j ] = trackFeatures( j );
+		}
 
-		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-		for ( int i = 0; i < threads.length; i++ )
+		final long start = System.currentTimeMillis();
+		SharedExecutor.forEach( ids.size(), numThreads, new IndexTask()
 		{
-			threads[ i ] = new Thread( "TrackSpotFeatureAnalyzer thread " + i )
+			@Override
+			public void process( final int index )
 			{
-
-				@Override
-				public void run()
+				final Integer trackID = ids.get( index );
+				final Spot[] track = trackIndex.getTrack( trackID ).spots;
+				final double[][] values = getBuffer( nSpotFeatures, track.length );
+
+				// Welford's online mean and variance, for all features at once.
+				final int[] n = new int[ nSpotFeatures ];
+				final double[] mean = new double[ nSpotFeatures ];
+				final double[] m2 = new double[ nSpotFeatures ];
+				for ( final Spot spot : track )
 				{
-					Integer trackID;
-					while ( ( trackID = queue.poll() ) != null )
+					for ( int j = 0; j < nSpotFeatures; j++ )
 					{
-
-						final Set< Spot > track = model.getTrackModel().trackSpots( trackID );
-						double sum = 0, sum2 = 0;
-						// Others
-						final double[] values = new double[ track.size() ];
-						int n = 0;
-
-						for ( final Spot spot : track )
+						final Double feature = spot.getFeature( spotFeatures[ j ] );
+						if ( null == feature )
 						{
-							final double val = spot.getFeature( spotFeature );
-
-							// For median
-							values[ n++ ] = val;
-							// For variance and mean
-							sum += val;
-							sum2 += val * val;
+							continue;
 						}
-
-						Util.quicksort( values, 0, track.size() - 1 );
-						final double median = values[ track.size() / 2 ];
-						final double mean = sum / track.size();
-						final double mean2 = sum2 / track.size();
-						final double variance = mean2 - mean * mean;
-
-						fm.putTrackFeature( trackID, TRACK_MEDIAN_INTENSITY, median );
-						fm.putTrackFeature( trackID, TRACK_MEAN_INTENSITY, mean );
-						fm.putTrackFeature( trackID, TRACK_STD_INTENSITY, Math.sqrt( variance ) );
-
+						final double val = feature.doubleValue();
+						if ( Double.isNaN( val ) )
+						{
+							continue;
+						}
+						values[ j ][ n[ j ] ] = val;
+						n[ j ]++;
+						final double delta = val - mean[ j ];
+						mean[ j ] += delta / n[ j ];
+						m2[ j ] += delta * ( val - mean[ j ] );
 					}
-
 				}
-			};
-		}
 
-		final long start = System.currentTimeMillis();
-		SimpleMultiThreading.startAndJoin( threads );
+				for ( int j = 0; j < nSpotFeatures; j++ )
+				{
+					final double median = QuickSelect.median( values[ j ], n[ j ] );
+					final double avg = n[ j ] > 0 ? mean[ j ] : Double.NaN;
+					final double std = n[ j ] > 0 ? Math.sqrt( m2[ j ] / n[ j ] ) : Double.NaN;
+					fm.putTrackFeature( trackID, keys[ j ][ 0 ], Double.valueOf( avg ) );
+					fm.putTrackFeature( trackID, keys[ j ][ 1 ], Double.valueOf( median ) );
+					fm.putTrackFeature( trackID, keys[ j ][ 2 ], Double.valueOf( std ) );
+				}
+			}
+		} );
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 	}
 
+	/**
+	 * Returns the keys of the spot features averaged by this analyzer.
+	 *
+	 * @return the spot feature keys.
+	 */
+	public List< String > getSpotFeatures()
+	{
+		return Arrays.asList( spotFeatures );
+	}
+
+	/**
+	 * Returns the keys of the mean, median and std track features computed for
+	 * the spot feature at the specified index.
+	 */
+	private String[] trackFeatures( final int spotFeatureIndex )
+	{
+		if ( spotFeatureIndex == 0 ) { return new String[] { TRACK_MEAN_INTENSITY, TRACK_MEDIAN_INTENSITY, TRACK_STD_INTENSITY }; }
+		final String spotFeature = spotFeatures[ spotFeatureIndex ];
+		return new String[] { "TRACK_MEAN_" + spotFeature, "TRACK_MEDIAN_" + spotFeature, "TRACK_STD_" + spotFeature };
+	}
+
+	private double[][] getBuffer( final int nRows, final int length )
+	{
+		double[][] buffer = buffers.get();
+		if ( null == buffer || buffer.length < nRows || buffer[ 0 ].length < length )
+		{
+			buffer = new double[ nRows ][ length ];
+			buffers.set( buffer );
+		}
+		return buffer;
+	}
+
 	@Override
 	public int getNumThreads()
 	{
@@ -164,7 +282,7 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 	@Override
 	public void setNumThreads()
 	{
-		this.numThreads = Runtime.getRuntime().availableProcessors();
+		this.numThreads = SharedExecutor.getParallelism();
 	}
 
 	@Override
@@ -189,25 +307,25 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 	@Override
 	public List< String > getFeatures()
 	{
-		return FEATURES;
+		return features;
 	}
 
 	@Override
 	public Map< String, String > getFeatureShortNames()
 	{
-		return FEATURE_SHORT_NAMES;
+		return featureShortNames;
 	}
 
 	@Override
 	public Map< String, String > getFeatureNames()
 	{
-		return FEATURE_NAMES;
+		return featureNames;
 	}
 
 	@Override
 	public Map< String, Dimension > getFeatureDimensions()
 	{
-		return FEATURE_DIMENSIONS;
+		return featureDimensions;
 	}
 
 	@Override
@@ -231,7 +349,7 @@ public class TrackSpotIntensityAnalyzer implements TrackAnalyzer, MultiThreaded,
 	@Override
 	public Map< String, Boolean > getIsIntFeature()
 	{
-		return IS_INT;
+		return isInt;
 	}
 
 	@Override
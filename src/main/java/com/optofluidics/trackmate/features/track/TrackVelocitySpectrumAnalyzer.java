@@ -0,0 +1,468 @@
+package com.optofluidics.trackmate.features.track;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.ImageIcon;
+
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
+
+import org.scijava.plugin.Plugin;
+
+import com.optofluidics.trackmate.action.TrackDisplacements;
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+import com.optofluidics.util.FFT;
+import com.optofluidics.util.SharedExecutor;
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+
+/**
+ * Computes the velocity autocorrelation function (VACF) and the velocity
+ * power spectral density (PSD) of each track, to study the oscillatory motion
+ * of trapped particles.
+ * <p>
+ * The velocity vectors are taken from the time-sorted edge displacements of
+ * the velocity analysis. Each edge velocity is placed at the frame of its
+ * source spot, and frames without an edge, because of gap-closing, are
+ * masked out of the correlation. Both curves are obtained from the same FFT of
+ * the mean-subtracted velocities, in <code>O(n log n)</code>.
+ * <p>
+ * Two summary features are stored in the feature model: the correlation time,
+ * where the normalized VACF first drops below <code>1/e</code>, and the
+ * frequency of the PSD maximum, excluding the zero frequency. The full curves
+ * can be obtained with {@link #spectrum(Integer, Model)}.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+@Plugin( type = TrackAnalyzer.class )
+public class TrackVelocitySpectrumAnalyzer implements TrackAnalyzer, MultiThreaded, Benchmark
+{
+
+	/*
+	 * CONSTANTS
+	 */
+
+	public static final String KEY = "TRACK_VELOCITY_SPECTRUM";
+
+	public static final String TRACK_VACF_CORRELATION_TIME = "TRACK_VACF_CORRELATION_TIME";
+
+	public static final String TRACK_DOMINANT_FREQUENCY = "TRACK_DOMINANT_FREQUENCY";
+
+	public static final List< String > FEATURES = new ArrayList< String >( 2 );
+
+	public static final Map< String, String > FEATURE_NAMES = new HashMap< String, String >( 2 );
+
+	public static final Map< String, String > FEATURE_SHORT_NAMES = new HashMap< String, String >( 2 );
+
+	public static final Map< String, Dimension > FEATURE_DIMENSIONS = new HashMap< String, Dimension >( 2 );
+
+	public static final Map< String, Boolean > IS_INT = new HashMap< String, Boolean >( 2 );
+
+	private static final String INFO_TEXT = "<html>Computes the velocity autocorrelation function and the velocity power "
+			+ "spectrum of tracks. Stores the VACF correlation time and the dominant frequency of the spectrum.</html>";
+
+	static
+	{
+		FEATURES.add( TRACK_VACF_CORRELATION_TIME );
+		FEATURES.add( TRACK_DOMINANT_FREQUENCY );
+
+		FEATURE_NAMES.put( TRACK_VACF_CORRELATION_TIME, "VACF correlation time" );
+		FEATURE_NAMES.put( TRACK_DOMINANT_FREQUENCY, "Dominant velocity frequency" );
+
+		FEATURE_SHORT_NAMES.put( TRACK_VACF_CORRELATION_TIME, "VACF time" );
+		FEATURE_SHORT_NAMES.put( TRACK_DOMINANT_FREQUENCY, "Dom. freq." );
+
+		FEATURE_DIMENSIONS.put( TRACK_VACF_CORRELATION_TIME, Dimension.TIME );
+		FEATURE_DIMENSIONS.put( TRACK_DOMINANT_FREQUENCY, Dimension.RATE );
+
+		IS_INT.put( TRACK_VACF_CORRELATION_TIME, Boolean.FALSE );
+		IS_INT.put( TRACK_DOMINANT_FREQUENCY, Boolean.FALSE );
+	}
+
+	private int numThreads;
+
+	private long processingTime;
+
+	public TrackVelocitySpectrumAnalyzer()
+	{
+		setNumThreads();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean isLocal()
+	{
+		return true;
+	}
+
+	@Override
+	public void process( final Collection< Integer > trackIDs, final Model model )
+	{
+		if ( trackIDs.isEmpty() ) { return; }
+
+		final List< Integer > ids = new ArrayList< Integer >( trackIDs );
+		final FeatureModel fm = model.getFeatureModel();
+		final TrackIndex trackIndex = TrackIndex.get( model );
+
+		final long start = System.currentTimeMillis();
+		SharedExecutor.forEach( ids.size(), numThreads, new IndexTask()
+		{
+			@Override
+			public void process( final int index )
+			{
+				final Integer trackID = ids.get( index );
+				final VelocitySpectrum spectrum = compute( TrackDisplacements.collect( trackID, trackIndex ) );
+				final double correlationTime = null == spectrum ? Double.NaN : spectrum.correlationTime();
+				final double dominantFrequency = null == spectrum ? Double.NaN : spectrum.dominantFrequency();
+				fm.putTrackFeature( trackID, TRACK_VACF_CORRELATION_TIME, Double.valueOf( correlationTime ) );
+				fm.putTrackFeature( trackID, TRACK_DOMINANT_FREQUENCY, Double.valueOf( dominantFrequency ) );
+			}
+		} );
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+	}
+
+	/**
+	 * Computes the full VACF and PSD curves of the specified track.
+	 *
+	 * @param trackID
+	 *            the ID of the track.
+	 * @param model
+	 *            the model the track belongs to.
+	 * @return a new {@link VelocitySpectrum}, or <code>null</code> if the
+	 *         track has less than 2 edges.
+	 */
+	public static VelocitySpectrum spectrum( final Integer trackID, final Model model )
+	{
+		return compute( TrackDisplacements.collect( trackID, TrackIndex.get( model ) ) );
+	}
+
+	/**
+	 * Computes the VACF and PSD of the specified displacements.
+	 *
+	 * @param displacements
+	 *            the time-sorted displacements of a track.
+	 * @return a new {@link VelocitySpectrum}, or <code>null</code> if the
+	 *         track has less than 2 edges.
+	 */
+	public static VelocitySpectrum compute( final TrackDisplacements displacements )
+	{
+		final int nEdges = displacements.size();
+		if ( nEdges < 2 ) { return null; }
+
+		final SortedTrack track = displacements.track;
+		final int lastSpot = track.nSpots() - 1;
+		final double frameInterval = ( track.t[ lastSpot ] - track.t[ 0 ] ) / ( track.frames[ lastSpot ] - track.frames[ 0 ] );
+
+		final int[] frames = new int[ nEdges ];
+		final double[] vx = new double[ nEdges ];
+		final double[] vy = new double[ nEdges ];
+		final double[] vz = new double[ nEdges ];
+		for ( int i = 0; i < nEdges; i++ )
+		{
+			final double dt = displacements.dt[ i ];
+			frames[ i ] = track.frames[ track.sources[ i ] ];
+			vx[ i ] = displacements.dx[ i ] / dt;
+			vy[ i ] = displacements.dy[ i ] / dt;
+			vz[ i ] = displacements.dz[ i ] / dt;
+		}
+		return compute( frames, vx, vy, vz, frameInterval );
+	}
+
+	/**
+	 * Computes the VACF and PSD of the specified velocity samples.
+	 * <p>
+	 * The mean-subtracted velocity components and the presence mask are
+	 * packed by pairs in two complex forward FFTs. The velocity power spectrum
+	 * gives the PSD, and its inverse FFT gives the velocity autocorrelation.
+	 * The number of pairs at each lag is the autocorrelation of the mask, and
+	 * is packed in the same inverse FFT.
+	 *
+	 * @param frames
+	 *            the frame of each velocity sample, sorted. If several samples
+	 *            are in the same frame, only the first one is used.
+	 * @param vx
+	 *            the X component of each velocity sample.
+	 * @param vy
+	 *            the Y component of each velocity sample.
+	 * @param vz
+	 *            the Z component of each velocity sample.
+	 * @param frameInterval
+	 *            the time interval between two frames.
+	 * @return a new {@link VelocitySpectrum}.
+	 */
+	public static VelocitySpectrum compute( final int[] frames, final double[] vx, final double[] vy, final double[] vz, final double frameInterval )
+	{
+		final int nEdges = frames.length;
+		final int first = frames[ 0 ];
+		final int nFrames = frames[ nEdges - 1 ] - first + 1;
+
+		double mx = 0;
+		double my = 0;
+		double mz = 0;
+		for ( int i = 0; i < nEdges; i++ )
+		{
+			mx += vx[ i ];
+			my += vy[ i ];
+			mz += vz[ i ];
+		}
+		mx /= nEdges;
+		my /= nEdges;
+		mz /= nEdges;
+
+		// Zero-padding to at least twice the length avoids circular wrapping.
+		final int size = FFT.nextPowerOfTwo( 2 * nFrames );
+		final double[] xyRe = new double[ size ];
+		final double[] xyIm = new double[ size ];
+		final double[] zmRe = new double[ size ];
+		final double[] zmIm = new double[ size ];
+		int previous = -1;
+		int nSamples = 0;
+		for ( int i = 0; i < nEdges; i++ )
+		{
+			final int t = frames[ i ] - first;
+			if ( t == previous )
+			{
+				// Branching: keep only one edge per frame.
+				continue;
+			}
+			previous = t;
+			xyRe[ t ] = vx[ i ] - mx;
+			xyIm[ t ] = vy[ i ] - my;
+			zmRe[ t ] = vz[ i ] - mz;
+			zmIm[ t ] = 1;
+			nSamples++;
+		}
+
+		FFT.transform( xyRe, xyIm, false );
+		FFT.transform( zmRe, zmIm, false );
+
+		/*
+		 * Unpack. For a packed signal W = F + iG of two real signals: F(k) =
+		 * (W(k) + conj(W(-k))) / 2 and G(k) = (W(k) - conj(W(-k))) / 2i. The
+		 * power spectra are real and even, so the velocity one and the mask
+		 * one are packed again in a single inverse transform.
+		 */
+		final double[] corrRe = new double[ size ];
+		final double[] corrIm = new double[ size ];
+		for ( int k = 0; k < size; k++ )
+		{
+			final int j = ( size - k ) & ( size - 1 );
+			final double zr = 0.5 * ( zmRe[ k ] + zmRe[ j ] );
+			final double zi = 0.5 * ( zmIm[ k ] - zmIm[ j ] );
+			final double mr = 0.5 * ( zmIm[ k ] + zmIm[ j ] );
+			final double mi = -0.5 * ( zmRe[ k ] - zmRe[ j ] );
+			corrRe[ k ] = 0.5 * ( xyRe[ k ] * xyRe[ k ] + xyIm[ k ] * xyIm[ k ] + xyRe[ j ] * xyRe[ j ] + xyIm[ j ] * xyIm[ j ] ) + zr * zr + zi * zi;
+			corrIm[ k ] = mr * mr + mi * mi;
+		}
+
+		// One-sided PSD, normalized by the number of samples.
+		final int nFrequencies = size / 2 + 1;
+		final double[] frequencies = new double[ nFrequencies ];
+		final double[] psd = new double[ nFrequencies ];
+		for ( int k = 0; k < nFrequencies; k++ )
+		{
+			frequencies[ k ] = k / ( size * frameInterval );
+			final double factor = ( k == 0 || k == size / 2 ) ? 1 : 2;
+			psd[ k ] = factor * corrRe[ k ] * frameInterval / nSamples;
+		}
+
+		FFT.transform( corrRe, corrIm, true );
+
+		final double[] lags = new double[ nFrames ];
+		final double[] vacf = new double[ nFrames ];
+		for ( int tau = 0; tau < nFrames; tau++ )
+		{
+			lags[ tau ] = tau * frameInterval;
+			final double count = Math.rint( corrIm[ tau ] / size );
+			vacf[ tau ] = count < 1 ? Double.NaN : corrRe[ tau ] / size / count;
+		}
+
+		return new VelocitySpectrum( lags, vacf, frequencies, psd );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = SharedExecutor.getParallelism();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public String getKey()
+	{
+		return KEY;
+	}
+
+	@Override
+	public List< String > getFeatures()
+	{
+		return FEATURES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureShortNames()
+	{
+		return FEATURE_SHORT_NAMES;
+	}
+
+	@Override
+	public Map< String, String > getFeatureNames()
+	{
+		return FEATURE_NAMES;
+	}
+
+	@Override
+	public Map< String, Dimension > getFeatureDimensions()
+	{
+		return FEATURE_DIMENSIONS;
+	}
+
+	@Override
+	public String getInfoText()
+	{
+		return INFO_TEXT;
+	}
+
+	@Override
+	public ImageIcon getIcon()
+	{
+		return null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return KEY;
+	}
+
+	@Override
+	public Map< String, Boolean > getIsIntFeature()
+	{
+		return IS_INT;
+	}
+
+	@Override
+	public boolean isManualFeature()
+	{
+		return false;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The velocity autocorrelation and power spectrum of a track.
+	 */
+	public static final class VelocitySpectrum
+	{
+
+		/**
+		 * The time lags of the VACF, one per frame, starting at 0.
+		 */
+		public final double[] lags;
+
+		/**
+		 * The velocity autocorrelation, not normalized, for each lag.
+		 * <code>NaN</code> for lags with no pair of edges.
+		 */
+		public final double[] vacf;
+
+		/**
+		 * The frequencies of the PSD, from 0 to the Nyquist frequency.
+		 */
+		public final double[] frequencies;
+
+		/**
+		 * The one-sided power spectral density of the velocity, for each
+		 * frequency.
+		 */
+		public final double[] psd;
+
+		private VelocitySpectrum( final double[] lags, final double[] vacf, final double[] frequencies, final double[] psd )
+		{
+			this.lags = lags;
+			this.vacf = vacf;
+			this.frequencies = frequencies;
+			this.psd = psd;
+		}
+
+		/**
+		 * Returns the lag at which the normalized VACF first drops below
+		 * <code>1/e</code>, interpolated linearly between frames.
+		 *
+		 * @return the correlation time, or <code>NaN</code> if the VACF never
+		 *         drops below <code>1/e</code>.
+		 */
+		public double correlationTime()
+		{
+			final double threshold = vacf[ 0 ] / Math.E;
+			if ( !( vacf[ 0 ] > 0 ) ) { return Double.NaN; }
+			int previous = 0;
+			for ( int tau = 1; tau < vacf.length; tau++ )
+			{
+				if ( Double.isNaN( vacf[ tau ] ) )
+				{
+					continue;
+				}
+				if ( vacf[ tau ] < threshold )
+				{
+					final double a = vacf[ previous ];
+					final double b = vacf[ tau ];
+					return lags[ previous ] + ( a - threshold ) / ( a - b ) * ( lags[ tau ] - lags[ previous ] );
+				}
+				previous = tau;
+			}
+			return Double.NaN;
+		}
+
+		/**
+		 * Returns the frequency of the PSD maximum, excluding the zero
+		 * frequency.
+		 *
+		 * @return the dominant frequency.
+		 */
+		public double dominantFrequency()
+		{
+			int best = 1;
+			for ( int k = 2; k < psd.length; k++ )
+			{
+				if ( psd[ k ] > psd[ best ] )
+				{
+					best = k;
+				}
+			}
+			return best < psd.length ? frequencies[ best ] : Double.NaN;
+		}
+	}
+}
@@ -15,6 +15,7 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -34,7 +35,10 @@ import org.jfree.data.Range;
 import org.jfree.data.xy.DefaultXYDataset;
 import org.jfree.data.xy.XYDataset;
 
-import com.optofluidics.Main;
+import com.optofluidics.Icons;
+import com.optofluidics.io.LazyXmlReader;
+import com.optofluidics.io.SnapshotReader;
+import com.optofluidics.io.SnapshotWriter;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.ModelChangeEvent;
@@ -45,7 +49,6 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
 import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
 import fiji.plugin.trackmate.gui.GuiUtils;
-import fiji.plugin.trackmate.io.TmXmlReader;
 import fiji.plugin.trackmate.visualization.AbstractTrackMateModelView;
 import fiji.plugin.trackmate.visualization.PerTrackFeatureColorGenerator;
 import fiji.plugin.trackmate.visualization.SpotColorGenerator;
@@ -296,7 +299,7 @@ public class ProfileView extends AbstractTrackMateModelView
 		 */
 
 		final JFrame frame = new JFrame( TITLE );
-		frame.setIconImage( Main.OPTOFLUIDICS_ICON.getImage() );
+		frame.setIconImage( Icons.OPTOFLUIDICS_ICON.getImage() );
 		frame.addMouseWheelListener( mlListener );
 		frame.setContentPane( panel );
 		frame.pack();
@@ -415,7 +418,7 @@ public class ProfileView extends AbstractTrackMateModelView
 	 * MAIN method
 	 */
 
-	public static void main( final String[] args ) throws ImgIOException
+	public static void main( final String[] args ) throws ImgIOException, IOException
 	{
 		try
 		{
@@ -446,16 +449,29 @@ public class ProfileView extends AbstractTrackMateModelView
 		// final Model model = new Model();
 
 		final File file = new File( "samples/Data/101.0-2015-02-13 163957_ColumnSum.xml" );
-		final TmXmlReader reader = new TmXmlReader( file );
-		if ( !reader.isReadingOk() )
+		final Model model;
+		final Settings settings;
+		if ( file.getName().endsWith( SnapshotWriter.EXTENSION ) )
 		{
-			System.err.println( reader.getErrorMessage() );
-			return;
+			final SnapshotReader reader = new SnapshotReader( file );
+			try
+			{
+				model = reader.readModel();
+				settings = reader.readSettings();
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		else
+		{
+			// Only the visible tracks are loaded.
+			final LazyXmlReader reader = new LazyXmlReader( file );
+			final Settings stored = reader.readSettings();
+			settings = null == stored ? new Settings() : stored;
+			model = reader.readTracks( reader.getVisibleTrackIDs() );
 		}
-
-		final Model model = reader.getModel();
-		final Settings settings = new Settings();
-		reader.readSettings( settings, null, null, null, null, null );
 		final SelectionModel selectionModel = new SelectionModel( model );
 
 		final ProfileView profiler = new ProfileView( model, selectionModel, settings.imp, ProfileViewOrientation.HORIZONTAL );
@@ -35,7 +35,7 @@ public class ProfileViewHorizontalFactory extends ProfileViewFactory
 
 	private static final String NAME = "Profile viewer - horizontal";
 
-	private static final String KEY = ProfileView.KEY + "_HORIZONTAL";
+	public static final String KEY = ProfileView.KEY + "_HORIZONTAL";
 
 	@Override
 	public String getInfoText()
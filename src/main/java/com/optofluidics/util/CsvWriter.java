@@ -0,0 +1,367 @@
+package com.optofluidics.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal CSV writer that streams rows to a buffered file channel as they are
+ * added, instead of holding a whole table in memory like the ImageJ
+ * {@link ij.measure.ResultsTable} does.
+ * <p>
+ * Numbers are formatted directly in a reused character buffer, without
+ * creating boxed values or strings. Doubles are written with a fixed number
+ * of decimals, trailing zeros removed. Very large or very small values fall
+ * back on {@link Double#toString(double)}.
+ * <p>
+ * Typical use:
+ *
+ * <pre>
+ * final CsvWriter csv = new CsvWriter( file );
+ * try
+ * {
+ * 	csv.header( &quot;ID&quot;, &quot;X&quot; );
+ * 	csv.value( 1 ).value( 2.5 ).endRow();
+ * }
+ * finally
+ * {
+ * 	csv.close();
+ * }
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class CsvWriter implements Closeable
+{
+
+	public static final int DEFAULT_DECIMALS = 6;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final char SEPARATOR = ',';
+
+	private static final char[] NAN = "NaN".toCharArray();
+
+	private static final long[] POWERS_OF_TEN = new long[ 10 ];
+	static
+	{
+		POWERS_OF_TEN[ 0 ] = 1;
+		for ( int i = 1; i < POWERS_OF_TEN.length; i++ )
+		{
+			POWERS_OF_TEN[ i ] = 10 * POWERS_OF_TEN[ i - 1 ];
+		}
+	}
+
+	private final Writer writer;
+
+	private final int decimals;
+
+	private final double maxFixed;
+
+	private final double minFixed;
+
+	private final char[] buffer = new char[ 32 ];
+
+	private boolean firstInRow = true;
+
+	private long nRows;
+
+	/**
+	 * Creates a CSV writer on the specified file, with the default number of
+	 * decimals. The file is overwritten.
+	 *
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be opened for writing.
+	 */
+	public CsvWriter( final File file ) throws IOException
+	{
+		this( file, DEFAULT_DECIMALS );
+	}
+
+	/**
+	 * Creates a CSV writer on the specified file. The file is overwritten.
+	 *
+	 * @param file
+	 *            the file to write to.
+	 * @param decimals
+	 *            the number of decimals to write doubles with, from 0 to 9.
+	 * @throws IOException
+	 *             if the file cannot be opened for writing.
+	 */
+	@SuppressWarnings( "resource" )
+	public CsvWriter( final File file, final int decimals ) throws IOException
+	{
+		this( Channels.newWriter( new FileOutputStream( file ).getChannel(), Charset.forName( "UTF-8" ).newEncoder(), BUFFER_SIZE ), decimals );
+	}
+
+	/**
+	 * Creates a CSV writer on the specified channel.
+	 *
+	 * @param channel
+	 *            the channel to write to. It is closed with this writer.
+	 * @param decimals
+	 *            the number of decimals to write doubles with, from 0 to 9.
+	 */
+	public CsvWriter( final FileChannel channel, final int decimals )
+	{
+		this( Channels.newWriter( channel, Charset.forName( "UTF-8" ).newEncoder(), BUFFER_SIZE ), decimals );
+	}
+
+	/**
+	 * Creates a CSV writer on the specified writer. It is wrapped in a
+	 * {@link BufferedWriter}.
+	 *
+	 * @param writer
+	 *            the writer to write to. It is closed with this writer.
+	 * @param decimals
+	 *            the number of decimals to write doubles with, from 0 to 9.
+	 */
+	public CsvWriter( final Writer writer, final int decimals )
+	{
+		if ( decimals < 0 || decimals >= POWERS_OF_TEN.length ) { throw new IllegalArgumentException( "Number of decimals must be between 0 and " + ( POWERS_OF_TEN.length - 1 ) + ", was " + decimals + "." ); }
+		this.writer = new BufferedWriter( writer, BUFFER_SIZE );
+		this.decimals = decimals;
+		// Keep the scaled value exactly representable in a long.
+		this.maxFixed = 1e15 / POWERS_OF_TEN[ decimals ];
+		// Below this, fixed notation loses too many significant digits.
+		this.minFixed = 1e3 / POWERS_OF_TEN[ decimals ];
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes a header row.
+	 *
+	 * @param columns
+	 *            the column names.
+	 * @return this writer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CsvWriter header( final String... columns ) throws IOException
+	{
+		for ( final String column : columns )
+		{
+			value( column );
+		}
+		endRow();
+		nRows = 0;
+		return this;
+	}
+
+	/**
+	 * Writes a text value. Values that contain a separator, a quote or a line
+	 * break are quoted.
+	 *
+	 * @param str
+	 *            the value. <code>null</code> values are written as empty
+	 *            cells.
+	 * @return this writer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CsvWriter value( final String str ) throws IOException
+	{
+		separate();
+		if ( null == str ) { return this; }
+
+		boolean quote = false;
+		for ( int i = 0; i < str.length() && !quote; i++ )
+		{
+			final char c = str.charAt( i );
+			quote = c == SEPARATOR || c == '"' || c == '\n' || c == '\r';
+		}
+		if ( !quote )
+		{
+			writer.write( str );
+			return this;
+		}
+
+		writer.write( '"' );
+		for ( int i = 0; i < str.length(); i++ )
+		{
+			final char c = str.charAt( i );
+			if ( c == '"' )
+			{
+				writer.write( '"' );
+			}
+			writer.write( c );
+		}
+		writer.write( '"' );
+		return this;
+	}
+
+	/**
+	 * Writes an integer value.
+	 *
+	 * @param val
+	 *            the value.
+	 * @return this writer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CsvWriter value( final long val ) throws IOException
+	{
+		separate();
+		final int start = formatLong( val, buffer.length );
+		writer.write( buffer, start, buffer.length - start );
+		return this;
+	}
+
+	/**
+	 * Writes a floating-point value.
+	 *
+	 * @param val
+	 *            the value.
+	 * @return this writer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CsvWriter value( final double val ) throws IOException
+	{
+		separate();
+		if ( Double.isNaN( val ) )
+		{
+			writer.write( NAN );
+			return this;
+		}
+
+		final double abs = Math.abs( val );
+		if ( abs >= maxFixed || ( abs < minFixed && abs != 0 ) )
+		{
+			writer.write( Double.toString( val ) );
+			return this;
+		}
+
+		final long scale = POWERS_OF_TEN[ decimals ];
+		final long scaled = Math.round( abs * scale );
+		long integer = scaled / scale;
+		long fraction = scaled % scale;
+
+		// Fraction, without trailing zeros.
+		int nDecimals = decimals;
+		while ( nDecimals > 0 && fraction % 10 == 0 )
+		{
+			fraction /= 10;
+			nDecimals--;
+		}
+		int pos = buffer.length;
+		if ( nDecimals > 0 )
+		{
+			for ( int i = 0; i < nDecimals; i++ )
+			{
+				buffer[ --pos ] = ( char ) ( '0' + fraction % 10 );
+				fraction /= 10;
+			}
+			buffer[ --pos ] = '.';
+		}
+
+		// Integer part.
+		if ( integer == 0 )
+		{
+			buffer[ --pos ] = '0';
+		}
+		while ( integer > 0 )
+		{
+			buffer[ --pos ] = ( char ) ( '0' + integer % 10 );
+			integer /= 10;
+		}
+		if ( val < 0 && scaled != 0 )
+		{
+			buffer[ --pos ] = '-';
+		}
+		writer.write( buffer, pos, buffer.length - pos );
+		return this;
+	}
+
+	/**
+	 * Writes an empty cell.
+	 *
+	 * @return this writer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public CsvWriter empty() throws IOException
+	{
+		separate();
+		return this;
+	}
+
+	/**
+	 * Ends the current row.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void endRow() throws IOException
+	{
+		writer.write( '\n' );
+		firstInRow = true;
+		nRows++;
+	}
+
+	/**
+	 * Returns the number of rows written so far, header excluded.
+	 *
+	 * @return the number of rows.
+	 */
+	public long getNRows()
+	{
+		return nRows;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		writer.close();
+	}
+
+	private void separate() throws IOException
+	{
+		if ( firstInRow )
+		{
+			firstInRow = false;
+		}
+		else
+		{
+			writer.write( SEPARATOR );
+		}
+	}
+
+	/**
+	 * Formats a long at the end of the buffer, and returns the index of its
+	 * first character.
+	 */
+	private int formatLong( final long val, final int end )
+	{
+		int pos = end;
+		if ( val == Long.MIN_VALUE )
+		{
+			final String str = Long.toString( val );
+			str.getChars( 0, str.length(), buffer, end - str.length() );
+			return end - str.length();
+		}
+		long abs = Math.abs( val );
+		do
+		{
+			buffer[ --pos ] = ( char ) ( '0' + abs % 10 );
+			abs /= 10;
+		}
+		while ( abs > 0 );
+		if ( val < 0 )
+		{
+			buffer[ --pos ] = '-';
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,104 @@
+package com.optofluidics.util;
+
+/**
+ * A minimal in-place radix-2 complex Fast Fourier Transform, for the
+ * correlations computed by the track analyzers.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class FFT
+{
+
+	private FFT()
+	{}
+
+	/**
+	 * Returns the smallest power of 2 larger than or equal to the specified
+	 * number.
+	 *
+	 * @param n
+	 *            a strictly positive number, smaller than or equal to
+	 *            <code>2^30</code>.
+	 * @return a power of 2.
+	 */
+	public static int nextPowerOfTwo( final int n )
+	{
+		int size = 1;
+		while ( size < n )
+		{
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Computes the discrete Fourier transform of the specified complex array,
+	 * in place. The inverse transform is not normalized: the result must be
+	 * divided by the array length to get the original signal back.
+	 *
+	 * @param re
+	 *            the real part of the array. Its length must be a power of 2.
+	 * @param im
+	 *            the imaginary part of the array, of same length.
+	 * @param inverse
+	 *            if <code>true</code>, the inverse transform is computed.
+	 */
+	public static void transform( final double[] re, final double[] im, final boolean inverse )
+	{
+		final int n = re.length;
+		if ( n != im.length ) { throw new IllegalArgumentException( "Real and imaginary parts must have the same length." ); }
+		if ( Integer.bitCount( n ) != 1 ) { throw new IllegalArgumentException( "Length must be a power of 2, was " + n + "." ); }
+		if ( n == 1 ) { return; }
+
+		// Bit-reversal permutation.
+		final int shift = 32 - Integer.numberOfTrailingZeros( n );
+		for ( int i = 0; i < n; i++ )
+		{
+			final int j = Integer.reverse( i ) >>> shift;
+			if ( j > i )
+			{
+				double tmp = re[ i ];
+				re[ i ] = re[ j ];
+				re[ j ] = tmp;
+				tmp = im[ i ];
+				im[ i ] = im[ j ];
+				im[ j ] = tmp;
+			}
+		}
+
+		// Twiddle factors for the largest butterfly, reused by the others.
+		final int half = n / 2;
+		final double[] cos = new double[ half ];
+		final double[] sin = new double[ half ];
+		final double sign = inverse ? 1 : -1;
+		for ( int k = 0; k < half; k++ )
+		{
+			final double angle = 2 * Math.PI * k / n;
+			cos[ k ] = Math.cos( angle );
+			sin[ k ] = sign * Math.sin( angle );
+		}
+
+		// Butterflies.
+		for ( int size = 2; size <= n; size <<= 1 )
+		{
+			final int halfSize = size / 2;
+			final int step = n / size;
+			for ( int start = 0; start < n; start += size )
+			{
+				for ( int k = 0; k < halfSize; k++ )
+				{
+					final int i = start + k;
+					final int j = i + halfSize;
+					final double wr = cos[ k * step ];
+					final double wi = sin[ k * step ];
+					final double tr = wr * re[ j ] - wi * im[ j ];
+					final double ti = wr * im[ j ] + wi * re[ j ];
+					re[ j ] = re[ i ] - tr;
+					im[ j ] = im[ i ] - ti;
+					re[ i ] += tr;
+					im[ i ] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.optofluidics.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a one-dimensional array to a NumPy <code>.npy</code> file, version
+ * 1.0, little-endian. Values are streamed to a {@link FileChannel} through a
+ * direct buffer, so the array never has to be held in memory. The number of
+ * values must be known when the file is created, and exactly that many values
+ * must be written before it is closed.
+ * <p>
+ * The files can be read in Python with <code>numpy.load</code>, or memory-mapped
+ * with <code>numpy.load( path, mmap_mode = 'r' )</code>.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class NpyWriter implements Closeable
+{
+
+	private static final byte[] MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 };
+
+	/**
+	 * The data starts at a multiple of this, so that it can be memory-mapped
+	 * and read aligned.
+	 */
+	private static final int ALIGNMENT = 64;
+
+	private static final int BUFFER_SIZE = 1 << 15;
+
+	/**
+	 * The supported data types.
+	 */
+	public static enum DType
+	{
+		INT32( "<i4", 4 ),
+		INT64( "<i8", 8 ),
+		FLOAT64( "<f8", 8 );
+
+		private final String descr;
+
+		private final int size;
+
+		private DType( final String descr, final int size )
+		{
+			this.descr = descr;
+			this.size = size;
+		}
+
+		public String descr()
+		{
+			return descr;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+	}
+
+	private final FileChannel channel;
+
+	private final DType dtype;
+
+	private final long length;
+
+	private final ByteBuffer buffer;
+
+	private long written;
+
+	/**
+	 * Creates a new <code>.npy</code> file and writes its header. The file is
+	 * overwritten.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param dtype
+	 *            the data type of the values.
+	 * @param length
+	 *            the number of values that will be written.
+	 * @throws IOException
+	 *             if the file cannot be opened or written.
+	 */
+	@SuppressWarnings( "resource" )
+	public NpyWriter( final File file, final DType dtype, final long length ) throws IOException
+	{
+		this( new FileOutputStream( file ).getChannel(), dtype, length );
+	}
+
+	/**
+	 * Writes a <code>.npy</code> header to the specified channel, at its
+	 * current position.
+	 *
+	 * @param channel
+	 *            the channel to write to. It is closed with this writer.
+	 * @param dtype
+	 *            the data type of the values.
+	 * @param length
+	 *            the number of values that will be written.
+	 * @throws IOException
+	 *             if the header cannot be written.
+	 */
+	public NpyWriter( final FileChannel channel, final DType dtype, final long length ) throws IOException
+	{
+		this.channel = channel;
+		this.dtype = dtype;
+		this.length = length;
+		this.buffer = ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		writeHeader();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the next value, converted to the data type of this file.
+	 *
+	 * @param val
+	 *            the value.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void write( final double val ) throws IOException
+	{
+		prepare();
+		switch ( dtype )
+		{
+		case INT32:
+			buffer.putInt( ( int ) val );
+			break;
+		case INT64:
+			buffer.putLong( ( long ) val );
+			break;
+		default:
+		case FLOAT64:
+			buffer.putDouble( val );
+			break;
+		}
+	}
+
+	/**
+	 * Writes the next value, converted to the data type of this file.
+	 *
+	 * @param val
+	 *            the value.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void write( final long val ) throws IOException
+	{
+		prepare();
+		switch ( dtype )
+		{
+		case INT32:
+			buffer.putInt( ( int ) val );
+			break;
+		case INT64:
+			buffer.putLong( val );
+			break;
+		default:
+		case FLOAT64:
+			buffer.putDouble( val );
+			break;
+		}
+	}
+
+	/**
+	 * Flushes the remaining values and closes the file.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the number of values written
+	 *             does not match the length declared in the header.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+		if ( written != length ) { throw new IOException( "Expected " + length + " values in .npy file, but " + written + " were written." ); }
+	}
+
+	private void prepare() throws IOException
+	{
+		if ( written >= length ) { throw new IOException( "Cannot write more than the " + length + " values declared in the .npy header." ); }
+		if ( buffer.remaining() < dtype.size() )
+		{
+			flush();
+		}
+		written++;
+	}
+
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while ( buffer.hasRemaining() )
+		{
+			channel.write( buffer );
+		}
+		buffer.clear();
+	}
+
+	private void writeHeader() throws IOException
+	{
+		final StringBuilder header = new StringBuilder();
+		header.append( "{'descr': '" ).append( dtype.descr() ).append( "', 'fortran_order': False, 'shape': (" ).append( length ).append( ",), }" );
+		// Pad with spaces and end with a newline so that the data is aligned.
+		final int headerStart = MAGIC.length + 2;
+		while ( ( headerStart + header.length() + 1 ) % ALIGNMENT != 0 )
+		{
+			header.append( ' ' );
+		}
+		header.append( '\n' );
+
+		final byte[] bytes = header.toString().getBytes( Charset.forName( "US-ASCII" ) );
+		buffer.put( MAGIC );
+		buffer.putShort( ( short ) bytes.length );
+		buffer.put( bytes );
+		flush();
+	}
+}
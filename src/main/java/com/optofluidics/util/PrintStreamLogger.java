@@ -0,0 +1,44 @@
+package com.optofluidics.util;
+
+import java.awt.Color;
+import java.io.PrintStream;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * A logger that prints messages to a stream, such as the standard error of
+ * the command-line runner. Progress and status are ignored.
+ */
+public class PrintStreamLogger extends Logger
+{
+
+	private final PrintStream out;
+
+	public PrintStreamLogger( final PrintStream out )
+	{
+		this.out = out;
+	}
+
+	@Override
+	public void log( final String message, final Color color )
+	{
+		out.print( message );
+		out.flush();
+	}
+
+	@Override
+	public void error( final String message )
+	{
+		out.print( message );
+		out.flush();
+	}
+
+	@Override
+	public void setProgress( final double val )
+	{}
+
+	@Override
+	public void setStatus( final String status )
+	{}
+
+}
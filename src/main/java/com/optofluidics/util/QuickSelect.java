@@ -0,0 +1,114 @@
+package com.optofluidics.util;
+
+/**
+ * Selection of order statistics in linear expected time, without fully sorting
+ * the array.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class QuickSelect
+{
+
+	private QuickSelect()
+	{}
+
+	/**
+	 * Returns the median of the first <code>n</code> elements of the specified
+	 * array. For an even number of elements, the upper median is returned,
+	 * that is the element at index <code>n/2</code> of the sorted array. The
+	 * array is partially reordered.
+	 *
+	 * @param values
+	 *            the array. Its first <code>n</code> elements are reordered.
+	 * @param n
+	 *            the number of elements to consider.
+	 * @return the median, or <code>NaN</code> if <code>n</code> is 0.
+	 */
+	public static double median( final double[] values, final int n )
+	{
+		if ( n <= 0 ) { return Double.NaN; }
+		return select( values, 0, n - 1, n / 2 );
+	}
+
+	/**
+	 * Returns the element that would be at index <code>k</code> if the range
+	 * <code>[from, to]</code> of the specified array was sorted. After the call,
+	 * this element is at index <code>k</code>, elements before it are not
+	 * larger and elements after it are not smaller.
+	 *
+	 * @param values
+	 *            the array.
+	 * @param from
+	 *            the first index of the range, inclusive.
+	 * @param to
+	 *            the last index of the range, inclusive.
+	 * @param k
+	 *            the index of the element to select, in <code>[from, to]</code>.
+	 * @return the selected element.
+	 */
+	public static double select( final double[] values, final int from, final int to, final int k )
+	{
+		int left = from;
+		int right = to;
+		while ( right > left )
+		{
+			final double pivot = medianOfThree( values[ left ], values[ ( left + right ) >>> 1 ], values[ right ] );
+
+			/*
+			 * Three-way partition, so that ranges with many equal values, like
+			 * saturated intensities, are not quadratic. After it, [left, lt[ <
+			 * pivot, [lt, gt] == pivot and ]gt, right] > pivot.
+			 */
+			int lt = left;
+			int gt = right;
+			int i = left;
+			while ( i <= gt )
+			{
+				if ( values[ i ] < pivot )
+				{
+					swap( values, lt++, i++ );
+				}
+				else if ( values[ i ] > pivot )
+				{
+					swap( values, i, gt-- );
+				}
+				else
+				{
+					i++;
+				}
+			}
+
+			if ( k < lt )
+			{
+				right = lt - 1;
+			}
+			else if ( k > gt )
+			{
+				left = gt + 1;
+			}
+			else
+			{
+				return pivot;
+			}
+		}
+		return values[ k ];
+	}
+
+	private static final double medianOfThree( final double a, final double b, final double c )
+	{
+		if ( a < b )
+		{
+			if ( b < c ) { return b; }
+			return a < c ? c : a;
+		}
+		if ( a < c ) { return a; }
+		return b < c ? c : b;
+	}
+
+	private static final void swap( final double[] values, final int i, final int j )
+	{
+		final double tmp = values[ i ];
+		values[ i ] = values[ j ];
+		values[ j ] = tmp;
+	}
+}
@@ -0,0 +1,208 @@
+package com.optofluidics.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single work-stealing thread pool shared by all the Optofluidics analyzers
+ * and algorithms, so that feature calculations do not spawn new threads on
+ * every call, and so that concurrent analyses do not oversubscribe the CPU.
+ * <p>
+ * The pool is created lazily. Its size defaults to the number of available
+ * processors, and can be set once at startup with {@link #setParallelism(int)},
+ * for instance from the <code>num_threads</code> Optofluidics parameter. Once
+ * the pool exists its size is fixed, so that callers running concurrently
+ * never see it shut down under them.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+public class SharedExecutor
+{
+
+	/**
+	 * How many chunks to split the work in, per thread. More chunks give a
+	 * better load balancing when tasks have uneven costs, like tracks of
+	 * different lengths.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static ForkJoinPool pool;
+
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+	private SharedExecutor()
+	{}
+
+	/**
+	 * Returns the shared pool, creating it if needed.
+	 *
+	 * @return the shared pool.
+	 */
+	public static synchronized ForkJoinPool getPool()
+	{
+		if ( null == pool )
+		{
+			pool = new ForkJoinPool( parallelism );
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the number of threads of the shared pool.
+	 *
+	 * @return the number of threads.
+	 */
+	public static synchronized int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Sets the number of threads of the shared pool. This must be called at
+	 * startup, before the pool is first used. Once the pool exists, its size
+	 * does not change anymore.
+	 *
+	 * @param numThreads
+	 *            the number of threads. If 0 or negative, the number of
+	 *            available processors is used.
+	 * @return <code>false</code> if the pool already exists with a different
+	 *         size, which is then kept.
+	 */
+	public static synchronized boolean setParallelism( final int numThreads )
+	{
+		final int n = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		if ( n == parallelism ) { return true; }
+		if ( null != pool ) { return false; }
+		parallelism = n;
+		return true;
+	}
+
+	/**
+	 * Processes all the indices in <code>[0, n[</code> on the shared pool, and
+	 * returns when they are all done. Indices are split in contiguous chunks,
+	 * taken in turn by at most <code>numThreads</code> workers, so that
+	 * callers running concurrently can each be given a share of the pool. The
+	 * calling thread takes part in the work.
+	 *
+	 * @param n
+	 *            the number of indices to process.
+	 * @param numThreads
+	 *            the maximal number of threads processing the indices at
+	 *            once. If 1, the indices are all processed in the calling
+	 *            thread.
+	 * @param task
+	 *            the task to run for each index.
+	 */
+	public static void forEach( final int n, final int numThreads, final IndexTask task )
+	{
+		if ( n <= 0 ) { return; }
+
+		final int nThreads = Math.min( Math.max( 1, numThreads ), getParallelism() );
+		if ( nThreads == 1 || n == 1 )
+		{
+			for ( int i = 0; i < n; i++ )
+			{
+				task.process( i );
+			}
+			return;
+		}
+
+		final int nChunks = Math.min( n, nThreads * CHUNKS_PER_THREAD );
+		final int grain = ( n + nChunks - 1 ) / nChunks;
+		getPool().invoke( new WorkersAction( n, grain, Math.min( nThreads, nChunks ), task ) );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A task to run on one index.
+	 */
+	public static interface IndexTask
+	{
+		public void process( int index );
+	}
+
+	/**
+	 * Forks the workers of one {@link SharedExecutor#forEach(int, int, IndexTask)}
+	 * call, and waits for them. Each worker runs in one thread at a time, so
+	 * that the number of workers bounds the number of threads used by the
+	 * call.
+	 */
+	private static final class WorkersAction extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final int n;
+
+		private final int grain;
+
+		private final int nWorkers;
+
+		private final IndexTask task;
+
+		private WorkersAction( final int n, final int grain, final int nWorkers, final IndexTask task )
+		{
+			this.n = n;
+			this.grain = grain;
+			this.nWorkers = nWorkers;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final AtomicInteger next = new AtomicInteger( 0 );
+			final List< ChunkAction > workers = new ArrayList< ChunkAction >( nWorkers );
+			for ( int i = 0; i < nWorkers; i++ )
+			{
+				workers.add( new ChunkAction( next, n, grain, task ) );
+			}
+			invokeAll( workers );
+		}
+	}
+
+	/**
+	 * Processes chunks of indices until there are none left.
+	 */
+	private static final class ChunkAction extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final AtomicInteger next;
+
+		private final int n;
+
+		private final int grain;
+
+		private final IndexTask task;
+
+		private ChunkAction( final AtomicInteger next, final int n, final int grain, final IndexTask task )
+		{
+			this.next = next;
+			this.n = n;
+			this.grain = grain;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int from;
+			while ( ( from = next.getAndAdd( grain ) ) < n )
+			{
+				final int to = Math.min( n, from + grain );
+				for ( int i = from; i < to; i++ )
+				{
+					task.process( i );
+				}
+			}
+		}
+	}
+}
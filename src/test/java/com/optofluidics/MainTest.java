@@ -0,0 +1,120 @@
+package com.optofluidics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.optofluidics.app.BatchJob;
+
+import fiji.plugin.trackmate.Logger;
+
+public class MainTest
+{
+
+	private PrintStream out;
+
+	private PrintStream err;
+
+	private ByteArrayOutputStream stdout;
+
+	private ByteArrayOutputStream stderr;
+
+	@Before
+	public void captureOutput()
+	{
+		out = System.out;
+		err = System.err;
+		stdout = new ByteArrayOutputStream();
+		System.setOut( new PrintStream( stdout, true ) );
+		stderr = new ByteArrayOutputStream();
+		System.setErr( new PrintStream( stderr, true ) );
+	}
+
+	@After
+	public void restoreOutput()
+	{
+		System.setOut( out );
+		System.setErr( err );
+	}
+
+	@Test
+	public void testUsage()
+	{
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[ 0 ] ) );
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[] { "unknown" } ) );
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[] { "batch" } ) );
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[] { "batch", "data", "more data" } ) );
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[] { "batch", "data", "--unknown" } ) );
+		// An option without its value.
+		assertEquals( Main.EXIT_USAGE, Main.run( new String[] { "batch", "data", "--output" } ) );
+		assertEquals( "Usage errors go to the standard error.", 0, stdout.size() );
+	}
+
+	@Test
+	public void testInvalidNumbers()
+	{
+		final String[][] commands = new String[][] {
+				{ "serve", "--port", "abc" },
+				{ "serve", "--port", "0" },
+				{ "submit", "data", "--port", "70000" },
+				{ "stop", "--port", "" },
+				{ "watch", "data", "--settle", "soon" },
+				{ "watch", "data", "--settle", "-1" },
+				{ "watch", "data", "--settle", "NaN" } };
+		for ( final String[] command : commands )
+		{
+			stderr.reset();
+			assertEquals( "Unexpected exit code for " + Arrays.toString( command ), Main.EXIT_USAGE, Main.run( command ) );
+			assertTrue( "The usage should be printed for " + Arrays.toString( command ), stderr.toString().contains( "Usage:" ) );
+		}
+		assertEquals( 0, stdout.size() );
+	}
+
+	@Test
+	public void testVersion()
+	{
+		assertEquals( Main.EXIT_OK, Main.run( new String[] { "version" } ) );
+		assertEquals( Main.OPTOFLUIDICS_LIB_VERSION, stdout.toString().trim() );
+	}
+
+	@Test
+	public void testBatchError() throws IOException
+	{
+		final File folder = File.createTempFile( "MainTest", "" );
+		folder.delete();
+		assertEquals( Main.EXIT_ERROR, Main.run( new String[] { "batch", folder.getAbsolutePath(), "--quiet" } ) );
+
+		// No acquisition in the folder.
+		folder.mkdirs();
+		folder.deleteOnExit();
+		assertEquals( Main.EXIT_ERROR, Main.run( new String[] { "batch", folder.getAbsolutePath(), "--quiet" } ) );
+		assertEquals( "No event should be printed for a batch that did not start.", 0, stdout.size() );
+	}
+
+	@Test
+	public void testExitCode()
+	{
+		final List< BatchJob > jobs = new ArrayList< BatchJob >();
+		assertEquals( Main.EXIT_OK, Main.exitCode( jobs ) );
+
+		jobs.add( new BatchJob( new File( "a.tif" ), Logger.VOID_LOGGER ) );
+		assertEquals( Main.EXIT_OK, Main.exitCode( jobs ) );
+
+		final BatchJob failed = new BatchJob( new File( "b.tif" ), Logger.VOID_LOGGER );
+		failed.fail( "loading", new RuntimeException( "Expected failure." ) );
+		assertEquals( Main.EXIT_FAILED_FILES, Main.exitCode( Arrays.asList( jobs.get( 0 ), failed ) ) );
+
+		assertEquals( Main.EXIT_ERROR, Main.exitCode( null ) );
+	}
+}
@@ -0,0 +1,277 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.optofluidics.OptofluidicsParameters;
+import com.optofluidics.app.BatchCheckpoint.Stage;
+import com.optofluidics.io.MappedTiffStack;
+import com.optofluidics.plugin.StillSubtractor_.Method;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.TrackMate;
+
+public class BatchCheckpointTest
+{
+
+	private static final String HASH = "hash";
+
+	private static final String VERSION = "1.0";
+
+	private static final int WIDTH = 64;
+
+	private static final int N_PARTICLES = 4;
+
+	private static final int N_FRAMES = 20;
+
+	@Test
+	public void testOtherParameters() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = writeImage( folder );
+		final BatchCheckpoint checkpoint = new BatchCheckpoint( folder, input, HASH, VERSION );
+		checkpoint.saveSubtraction( createImage() );
+		assertEquals( Stage.SUBTRACTION, new BatchCheckpoint( folder, input, HASH, VERSION ).load() );
+
+		assertEquals( Stage.NONE, new BatchCheckpoint( folder, input, "other hash", VERSION ).load() );
+		assertFalse( "A checkpoint made with other parameters should be cleared.", new File( new File( folder, BatchCheckpoint.FOLDER_NAME ), BatchLeases.uniqueName( input ) ).exists() );
+	}
+
+	@Test
+	public void testSameName() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File first = new File( folder, "first" );
+		final File second = new File( folder, "second" );
+		first.mkdirs();
+		second.mkdirs();
+		first.deleteOnExit();
+		second.deleteOnExit();
+		final File firstInput = writeImage( first );
+		final File secondInput = writeImage( second );
+
+		new BatchCheckpoint( folder, firstInput, HASH, VERSION ).saveSubtraction( createImage() );
+		assertEquals( "Inputs with the same name in different folders should not share a checkpoint.", Stage.NONE, new BatchCheckpoint( folder, secondInput, HASH, VERSION ).load() );
+		assertEquals( Stage.SUBTRACTION, new BatchCheckpoint( folder, firstInput, HASH, VERSION ).load() );
+	}
+
+	@Test
+	public void testRestoreSubtractionIntoMappedImage() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = writeImage( folder );
+		final ImagePlus subtracted = createImage();
+		for ( int i = 1; i <= subtracted.getStackSize(); i++ )
+		{
+			subtracted.getStack().getProcessor( i ).invert();
+		}
+		new BatchCheckpoint( folder, input, HASH, VERSION ).saveSubtraction( subtracted );
+
+		final ImagePlus imp = MappedTiffStack.open( input ).createImage( true );
+		final BatchCheckpoint checkpoint = new BatchCheckpoint( folder, input, HASH, VERSION );
+		assertEquals( Stage.SUBTRACTION, checkpoint.load() );
+		checkpoint.restoreSubtraction( imp );
+
+		assertEquals( N_FRAMES, imp.getNFrames() );
+		for ( int i = 1; i <= imp.getStackSize(); i++ )
+		{
+			assertArrayEquals( "Unexpected pixels in plane " + i, ( short[] ) subtracted.getStack().getPixels( i ), ( short[] ) imp.getStack().getPixels( i ) );
+		}
+	}
+
+	@Test
+	public void testResumeAfterSubtraction() throws IOException
+	{
+		checkResume( Method.MEDIAN, Stage.SUBTRACTION );
+	}
+
+	@Test
+	public void testResumeAfterDetection() throws IOException
+	{
+		checkResume( Method.MEDIAN, Stage.DETECTION );
+	}
+
+	@Test
+	public void testNoSubtractionCheckpoint() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = writeImage( folder );
+		final OptofluidicsParameters parameters = createParameters( Method.NONE );
+		final BatchCheckpoint checkpoint = new BatchCheckpoint( folder, input, HASH, VERSION );
+		checkpoint.load();
+		run( MappedTiffStack.open( input ).createImage( true ), parameters, checkpoint, Stage.NONE );
+
+		assertEquals( Stage.NONE, new BatchCheckpoint( folder, input, HASH, VERSION ).load() );
+		final String[] saved = new File( new File( folder, BatchCheckpoint.FOLDER_NAME ), BatchLeases.uniqueName( input ) ).list();
+		assertTrue( "Nothing should be saved without subtraction.", null == saved || saved.length == 0 );
+	}
+
+	/**
+	 * Interrupts a run after the specified stage, resumes it from its
+	 * checkpoint with a new image mapped from the input, as after a crash,
+	 * and compares the result to a run that was not interrupted.
+	 */
+	private static void checkResume( final Method method, final Stage interruptAfter ) throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = writeImage( folder );
+		final OptofluidicsParameters parameters = createParameters( method );
+
+		final Model expected = run( createImage(), parameters, null, null );
+		assertTrue( "The synthetic image should yield tracks.", expected.getTrackModel().nTracks( true ) > 0 );
+
+		final BatchCheckpoint first = new BatchCheckpoint( folder, input, HASH, VERSION );
+		first.load();
+		run( createImage(), parameters, first, interruptAfter );
+
+		final BatchCheckpoint second = new BatchCheckpoint( folder, input, HASH, VERSION );
+		assertEquals( interruptAfter, second.load() );
+		final Model resumed = run( MappedTiffStack.open( input ).createImage( true ), parameters, second, null );
+		assertEquals( Stage.TRACKING, second.getStage() );
+
+		assertEquals( expected.getSpots().getNSpots( false ), resumed.getSpots().getNSpots( false ) );
+		assertEquals( expected.getTrackModel().nTracks( true ), resumed.getTrackModel().nTracks( true ) );
+		assertEquals( expected.getTrackModel().edgeSet().size(), resumed.getTrackModel().edgeSet().size() );
+	}
+
+	/**
+	 * Runs the tracker process. If a stage is specified, the run is
+	 * interrupted after it. Stages already in the checkpoint must not run
+	 * again.
+	 *
+	 * @return the model, or <code>null</code> if the run was interrupted.
+	 */
+	private static Model run( final ImagePlus imp, final OptofluidicsParameters parameters, final BatchCheckpoint checkpoint, final Stage interruptAfter )
+	{
+		final Stage restored = null == checkpoint ? Stage.NONE : checkpoint.getStage();
+		final OptofluidicsTrackerProcess process = new OptofluidicsTrackerProcess( imp, parameters, Logger.VOID_LOGGER )
+		{
+			@Override
+			protected TrackMate createTrackMate()
+			{
+				super.createTrackMate();
+				final TrackMate trackmate = new TrackMate( getModel(), getSettings() )
+				{
+					@Override
+					public boolean execDetection()
+					{
+						if ( restored.isDone( Stage.DETECTION ) )
+						{
+							fail( "Detection should not run again." );
+						}
+						if ( interruptAfter == Stage.SUBTRACTION || interruptAfter == Stage.NONE ) { throw new Interrupted(); }
+						return super.execDetection();
+					}
+
+					@Override
+					public boolean execTracking()
+					{
+						if ( interruptAfter == Stage.DETECTION ) { throw new Interrupted(); }
+						return super.execTracking();
+					}
+				};
+				trackmate.setNumThreads( 1 );
+				return trackmate;
+			}
+		};
+		process.setNumThreads( 1 );
+		process.setCheckpoint( checkpoint );
+		try
+		{
+			if ( !process.process() )
+			{
+				fail( process.getErrorMessage() );
+			}
+		}
+		catch ( final Interrupted e )
+		{
+			return null;
+		}
+		assertTrue( "The run should have been interrupted.", null == interruptAfter );
+		return process.getModel();
+	}
+
+	private static OptofluidicsParameters createParameters( final Method method )
+	{
+		final OptofluidicsParameters parameters = new OptofluidicsParameters( Logger.VOID_LOGGER, "none.properties" );
+		parameters.setStillSubtractionMethod( method );
+		parameters.setParticleDiameter( 4 );
+		parameters.setQualityThreshold( 5 );
+		parameters.setTrackInitRadius( 4 );
+		parameters.setTrackSearchRadius( 4 );
+		parameters.setMaxFrameGap( 2 );
+		parameters.setFilterMinNSpots( 5 );
+		parameters.setFilterTrackDisplacement( 1 );
+		return parameters;
+	}
+
+	/**
+	 * A 16-bit image of particles moving along x by 2 pixels per frame, on a
+	 * static background, one frame per plane.
+	 */
+	private static ImagePlus createImage()
+	{
+		final ImageStack stack = new ImageStack( WIDTH, WIDTH );
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			final ShortProcessor ip = new ShortProcessor( WIDTH, WIDTH );
+			for ( int y = 0; y < WIDTH; y++ )
+			{
+				for ( int x = 0; x < WIDTH; x++ )
+				{
+					double value = 100 + 50 * ( ( x / 8 + y / 8 ) % 2 );
+					for ( int p = 0; p < N_PARTICLES; p++ )
+					{
+						final double dx = x - ( 10 + 2 * t );
+						final double dy = y - ( 8 + p * 15 );
+						value += 1000 * Math.exp( -( dx * dx + dy * dy ) / 8 );
+					}
+					ip.set( x, y, ( int ) value );
+				}
+			}
+			stack.addSlice( ip );
+		}
+		final ImagePlus imp = new ImagePlus( "particles.tif", stack );
+		imp.setDimensions( 1, 1, N_FRAMES );
+		imp.getCalibration().frameInterval = 1;
+		return imp;
+	}
+
+	private static File writeImage( final File folder ) throws IOException
+	{
+		final File file = new File( folder, "particles.tif" );
+		if ( !new FileSaver( createImage() ).saveAsTiffStack( file.getAbsolutePath() ) ) { throw new IOException( "Could not save " + file + "." ); }
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchCheckpointTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/**
+	 * Thrown to simulate a crash.
+	 */
+	private static final class Interrupted extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+}
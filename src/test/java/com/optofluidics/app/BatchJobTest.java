@@ -0,0 +1,127 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+public class BatchJobTest
+{
+
+	private static final String DOUBLE_FEATURE = "DOUBLE_FEATURE";
+
+	private static final String INT_FEATURE = "INT_FEATURE";
+
+	@Test
+	public void testSpotsMissingValues() throws IOException
+	{
+		final Spot[] spots = new Spot[ 3 ];
+		final Model model = createModel( spots );
+		spots[ 0 ].putFeature( DOUBLE_FEATURE, Double.valueOf( 1.5 ) );
+		spots[ 0 ].putFeature( INT_FEATURE, Double.valueOf( 3 ) );
+		spots[ 1 ].putFeature( DOUBLE_FEATURE, Double.valueOf( Double.NaN ) );
+		spots[ 1 ].putFeature( INT_FEATURE, Double.valueOf( Double.NaN ) );
+		// The third spot has neither feature.
+
+		final File file = new File( createTempFolder(), "spots.csv" );
+		file.deleteOnExit();
+		assertEquals( 3, BatchJob.writeSpotsInTracksStatistics( model, file ) );
+
+		final List< String[] > rows = read( file );
+		assertEquals( 4, rows.size() );
+		final List< String > header = Arrays.asList( rows.get( 0 ) );
+		final int d = header.indexOf( DOUBLE_FEATURE );
+		final int i = header.indexOf( INT_FEATURE );
+		assertEquals( "1.5", rows.get( 1 )[ d ] );
+		assertEquals( "3", rows.get( 1 )[ i ] );
+		assertEquals( "NaN", rows.get( 2 )[ d ] );
+		assertEquals( "NaN", rows.get( 2 )[ i ] );
+		assertEquals( "Missing values should be written as empty cells.", "", rows.get( 3 )[ d ] );
+		assertEquals( "Missing values should be written as empty cells.", "", rows.get( 3 )[ i ] );
+	}
+
+	/**
+	 * Reads the cells of a CSV file without quoted values, keeping the
+	 * trailing empty cells.
+	 */
+	private static List< String[] > read( final File file ) throws IOException
+	{
+		final List< String[] > rows = new ArrayList< String[] >();
+		final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+		try
+		{
+			String line;
+			while ( null != ( line = reader.readLine() ) )
+			{
+				rows.add( line.split( ",", -1 ) );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * A single track linking the specified spots, one per frame, with the
+	 * test spot features declared.
+	 */
+	private static Model createModel( final Spot[] spots )
+	{
+		final Model model = new Model();
+		final List< String > features = Arrays.asList( DOUBLE_FEATURE, INT_FEATURE );
+		final Map< String, String > names = new HashMap< String, String >();
+		final Map< String, Dimension > dimensions = new HashMap< String, Dimension >();
+		final Map< String, Boolean > isInt = new HashMap< String, Boolean >();
+		for ( final String feature : features )
+		{
+			names.put( feature, feature );
+			dimensions.put( feature, Dimension.NONE );
+			isInt.put( feature, Boolean.valueOf( feature.equals( INT_FEATURE ) ) );
+		}
+		model.getFeatureModel().declareSpotFeatures( features, names, names, dimensions, isInt );
+
+		model.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < spots.length; t++ )
+			{
+				spots[ t ] = new Spot( t, 0, 0, 1, 1 );
+				spots[ t ].putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+				model.addSpotTo( spots[ t ], Integer.valueOf( t ) );
+				if ( t > 0 )
+				{
+					model.addEdge( spots[ t - 1 ], spots[ t ], 1 );
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return model;
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchJobTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+}
@@ -0,0 +1,139 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+
+public class BatchLeasesTest
+{
+
+	/**
+	 * Long enough for held leases not to be touched during a test.
+	 */
+	private static final long NO_HEARTBEAT = 36000000;
+
+	private static final long TIMEOUT = 200;
+
+	@Test
+	public void testClaimAndRelease() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = new File( folder, "input.tif" );
+		final BatchLeases a = new BatchLeases( folder, Logger.VOID_LOGGER );
+		final BatchLeases b = new BatchLeases( folder, Logger.VOID_LOGGER );
+		try
+		{
+			assertTrue( a.claim( input ) );
+			assertFalse( "A held lease cannot be claimed by another process.", b.claim( input ) );
+			assertFalse( "A held lease cannot be claimed twice.", a.claim( input ) );
+
+			// Releasing a lease held by another process does nothing.
+			b.release( input );
+			assertFalse( b.claim( input ) );
+
+			a.release( input );
+			assertEquals( 0, listLeases( folder ).length );
+			assertTrue( "A released lease can be claimed again.", b.claim( input ) );
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+		assertEquals( "Closing should release the leases held.", 0, listLeases( folder ).length );
+	}
+
+	@Test
+	public void testSameName() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File first = new File( new File( folder, "first" ), "input.tif" );
+		final File second = new File( new File( folder, "second" ), "input.tif" );
+		final BatchLeases a = new BatchLeases( folder, Logger.VOID_LOGGER );
+		final BatchLeases b = new BatchLeases( folder, Logger.VOID_LOGGER );
+		try
+		{
+			assertTrue( a.claim( first ) );
+			assertTrue( "Inputs with the same name in different folders should not share a lease.", b.claim( second ) );
+			assertEquals( 2, listLeases( folder ).length );
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test
+	public void testStaleRecovery() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = new File( folder, "input.tif" );
+		final BatchLeases a = new BatchLeases( folder, Logger.VOID_LOGGER, NO_HEARTBEAT, TIMEOUT );
+		final BatchLeases b = new BatchLeases( folder, Logger.VOID_LOGGER, NO_HEARTBEAT, TIMEOUT );
+		try
+		{
+			assertTrue( a.claim( input ) );
+			assertFalse( "A lease touched recently is not stale.", b.claim( input ) );
+
+			// The holder dies.
+			final File lease = listLeases( folder )[ 0 ];
+			lease.setLastModified( System.currentTimeMillis() - 10 * TIMEOUT );
+			assertTrue( "A stale lease should be recovered.", b.claim( input ) );
+			assertEquals( "Recovering a lease should leave no other file.", 1, listLeases( folder ).length );
+
+			// The recovered lease is not released by its former holder.
+			a.release( input );
+			assertEquals( 1, listLeases( folder ).length );
+			assertFalse( a.claim( input ) );
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+		assertEquals( 0, listLeases( folder ).length );
+	}
+
+	@Test
+	public void testHeartbeat() throws IOException, InterruptedException
+	{
+		final File folder = createTempFolder();
+		final File input = new File( folder, "input.tif" );
+		final BatchLeases a = new BatchLeases( folder, Logger.VOID_LOGGER, 50, 1000 );
+		final BatchLeases b = new BatchLeases( folder, Logger.VOID_LOGGER, 50, 1000 );
+		try
+		{
+			assertTrue( a.claim( input ) );
+			Thread.sleep( 2000 );
+			assertFalse( "A lease touched by its holder should not become stale.", b.claim( input ) );
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+	}
+
+	private static File[] listLeases( final File folder )
+	{
+		final File[] leases = new File( folder, BatchLeases.FOLDER_NAME ).listFiles();
+		return null == leases ? new File[ 0 ] : leases;
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchLeasesTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+}
@@ -0,0 +1,181 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+
+public class BatchManifestTest
+{
+
+	private static final String HASH = "hash";
+
+	private static final String VERSION = "1.0";
+
+	@Test
+	public void testUpToDate() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+
+		final BatchManifest manifest = load( folder, HASH, VERSION );
+		assertTrue( "A recorded input should be skipped.", manifest.filter( Collections.singletonList( input ) ).isEmpty() );
+		assertTrue( manifest.isUpToDate( input ) );
+	}
+
+	@Test
+	public void testNewInput() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		final File other = createFile( folder, "other.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+
+		final BatchManifest manifest = load( folder, HASH, VERSION );
+		assertEquals( Collections.singletonList( other ), manifest.filter( Arrays.asList( input, other ) ) );
+	}
+
+	@Test
+	public void testChangedFingerprint() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+
+		// Same date, other size.
+		final long lastModified = input.lastModified();
+		createFile( folder, "input.tif", "more pixels" );
+		input.setLastModified( lastModified );
+		assertEquals( Collections.singletonList( input ), load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ) );
+
+		// Same size, other date.
+		record( folder, input, HASH, VERSION );
+		input.setLastModified( lastModified - 10000 );
+		assertEquals( Collections.singletonList( input ), load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ) );
+	}
+
+	@Test
+	public void testChangedFolder() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = new File( folder, "acquisition" );
+		input.mkdirs();
+		createFile( input, "frame-000.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+		assertTrue( load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ).isEmpty() );
+
+		// Files that are not tifs do not count.
+		createFile( input, "notes.txt", "notes" );
+		assertTrue( load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ).isEmpty() );
+
+		createFile( input, "frame-001.tif", "pixels" );
+		assertEquals( Collections.singletonList( input ), load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ) );
+	}
+
+	@Test
+	public void testChangedParameters() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+
+		assertEquals( Collections.singletonList( input ), load( folder, "other hash", VERSION ).filter( Collections.singletonList( input ) ) );
+		assertEquals( Collections.singletonList( input ), load( folder, HASH, "2.0" ).filter( Collections.singletonList( input ) ) );
+	}
+
+	@Test
+	public void testMissingOutput() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		final File output = record( folder, input, HASH, VERSION );
+		assertTrue( load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ).isEmpty() );
+
+		output.delete();
+		assertEquals( Collections.singletonList( input ), load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ) );
+	}
+
+	@Test
+	public void testMergesRecords() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File first = createFile( folder, "first.tif", "pixels" );
+		final File second = createFile( folder, "second.tif", "pixels" );
+
+		// Two processes sharing the output folder.
+		final BatchManifest a = load( folder, HASH, VERSION );
+		final BatchManifest b = load( folder, HASH, VERSION );
+		a.record( createJob( folder, first ) );
+		b.record( createJob( folder, second ) );
+
+		assertTrue( load( folder, HASH, VERSION ).filter( Arrays.asList( first, second ) ).isEmpty() );
+	}
+
+	@Test
+	public void testMalformedLines() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File input = createFile( folder, "input.tif", "pixels" );
+		record( folder, input, HASH, VERSION );
+
+		final FileWriter writer = new FileWriter( new File( folder, BatchManifest.FILE_NAME ), true );
+		writer.write( "truncated\tline\n\n" );
+		writer.close();
+		assertTrue( load( folder, HASH, VERSION ).filter( Collections.singletonList( input ) ).isEmpty() );
+	}
+
+	/**
+	 * Records an input as processed, with one result file, and returns the
+	 * result file.
+	 */
+	private static File record( final File folder, final File input, final String hash, final String version ) throws IOException
+	{
+		final BatchJob job = createJob( folder, input );
+		final BatchManifest manifest = load( folder, hash, version );
+		manifest.filter( Collections.singletonList( input ) );
+		manifest.record( job );
+		return job.getOutputs().get( 0 );
+	}
+
+	private static BatchJob createJob( final File folder, final File input ) throws IOException
+	{
+		final BatchJob job = new BatchJob( input, Logger.VOID_LOGGER );
+		job.getOutputs().add( createFile( folder, input.getName() + "-statistics.txt", "results" ) );
+		return job;
+	}
+
+	private static BatchManifest load( final File folder, final String hash, final String version ) throws IOException
+	{
+		final BatchManifest manifest = new BatchManifest( folder, hash, version );
+		manifest.load();
+		return manifest;
+	}
+
+	private static File createFile( final File folder, final String name, final String content ) throws IOException
+	{
+		final File file = new File( folder, name );
+		final FileWriter writer = new FileWriter( file );
+		writer.write( content );
+		writer.close();
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchManifestTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+}
@@ -0,0 +1,205 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.optofluidics.OptofluidicsParameters;
+
+import fiji.plugin.trackmate.Logger;
+
+public class BatchPipelineTest
+{
+
+	/**
+	 * The inputs of the test batch, named after the stage their job fails at,
+	 * and whether the job must be failed once the batch is done. Listener
+	 * errors do not fail jobs.
+	 */
+	private static final String[] NAMES = new String[] { "ok", "create", "loading", "tracking", "writing", "finishing", "manifest", "release", "started", "stage", "done" };
+
+	private static final boolean[] FAILED = new boolean[] { false, true, true, true, true, true, true, true, false, false, false };
+
+	@Test( timeout = 20000 )
+	public void testFailureAtEachStage() throws IOException
+	{
+		final File folder = createTempFolder();
+		final File outputFolder = new File( folder, "output" );
+		outputFolder.mkdirs();
+		final List< File > files = new ArrayList< File >();
+		for ( final String name : NAMES )
+		{
+			final File file = new File( folder, name );
+			final FileWriter writer = new FileWriter( file );
+			writer.write( name );
+			writer.close();
+			files.add( file );
+		}
+
+		final OptofluidicsParameters parameters = new OptofluidicsParameters( Logger.VOID_LOGGER, "none.properties" );
+		parameters.setCheckpoints( false );
+		final BatchPipeline pipeline = new BatchPipeline( outputFolder, parameters, null, Logger.VOID_LOGGER )
+		{
+			@Override
+			BatchJob createJob( final File file )
+			{
+				if ( file.getName().equals( "create" ) ) { throw new IllegalStateException( "create" ); }
+				return new FailingJob( file );
+			}
+		};
+		pipeline.setStageThreads( 2, 2, 1 );
+		pipeline.setQueueSize( 1 );
+		pipeline.setManifest( new BatchManifest( outputFolder, "hash", "version" )
+		{
+			@Override
+			public synchronized void record( final BatchJob job ) throws IOException
+			{
+				failAt( job, "manifest" );
+				super.record( job );
+			}
+		} );
+		final BatchLeases leases = new BatchLeases( outputFolder, Logger.VOID_LOGGER )
+		{
+			@Override
+			public synchronized void release( final File input )
+			{
+				super.release( input );
+				if ( input.getName().equals( "release" ) ) { throw new IllegalStateException( "release" ); }
+			}
+		};
+		pipeline.setLeases( leases );
+		pipeline.setListener( new FailingListener() );
+
+		final List< BatchJob > jobs = pipeline.run( files );
+		leases.close();
+
+		assertEquals( "All the jobs should be done.", NAMES.length, jobs.size() );
+		final Map< String, BatchJob > byName = new HashMap< String, BatchJob >();
+		for ( final BatchJob job : jobs )
+		{
+			byName.put( job.getFile().getName(), job );
+		}
+		for ( int i = 0; i < NAMES.length; i++ )
+		{
+			assertEquals( "Unexpected state for job " + NAMES[ i ], FAILED[ i ], byName.get( NAMES[ i ] ).isFailed() );
+		}
+
+		// Leases are released even when a later step fails.
+		final File[] remaining = new File( outputFolder, BatchLeases.FOLDER_NAME ).listFiles();
+		assertEquals( 0, null == remaining ? 0 : remaining.length );
+
+		// Only the jobs that succeeded are recorded.
+		final BatchManifest manifest = new BatchManifest( outputFolder, "hash", "version" );
+		manifest.load();
+		for ( int i = 0; i < NAMES.length; i++ )
+		{
+			final boolean upToDate = manifest.isUpToDate( files.get( i ) );
+			if ( NAMES[ i ].equals( "finishing" ) || NAMES[ i ].equals( "release" ) )
+			{
+				// Recorded before failing.
+				assertTrue( upToDate );
+			}
+			else
+			{
+				assertEquals( "Unexpected record for job " + NAMES[ i ], !FAILED[ i ], upToDate );
+			}
+		}
+	}
+
+	private static void failAt( final BatchJob job, final String stage )
+	{
+		if ( job.getFile().getName().equals( stage ) ) { throw new IllegalStateException( stage ); }
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchPipelineTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A job that does no processing, and throws at the stage its input is
+	 * named after.
+	 */
+	private static final class FailingJob extends BatchJob
+	{
+
+		public FailingJob( final File file )
+		{
+			super( file, Logger.VOID_LOGGER );
+		}
+
+		@Override
+		public boolean load( final File outputFolder, final OptofluidicsParameters parameters )
+		{
+			failAt( this, "loading" );
+			return true;
+		}
+
+		@Override
+		public boolean compute( final OptofluidicsParameters parameters, final int numThreads )
+		{
+			failAt( this, "tracking" );
+			return true;
+		}
+
+		@Override
+		public void write( final File outputFolder, final OptofluidicsParameters parameters, final String viewKey )
+		{
+			failAt( this, "writing" );
+		}
+
+		@Override
+		public void finish()
+		{
+			super.finish();
+			failAt( this, "finishing" );
+		}
+	}
+
+	private static final class FailingListener implements BatchListener
+	{
+
+		@Override
+		public void batchStarted( final List< File > toProcess, final int nSkipped )
+		{}
+
+		@Override
+		public void jobStarted( final BatchJob job )
+		{
+			failAt( job, "started" );
+		}
+
+		@Override
+		public void stageDone( final BatchJob job, final String stage, final double seconds )
+		{
+			failAt( job, "stage" );
+		}
+
+		@Override
+		public void jobDone( final BatchJob job )
+		{
+			failAt( job, "done" );
+		}
+
+		@Override
+		public void batchDone( final List< BatchJob > jobs )
+		{}
+	}
+}
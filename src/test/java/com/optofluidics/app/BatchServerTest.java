@@ -0,0 +1,113 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.optofluidics.Main;
+
+import fiji.plugin.trackmate.Logger;
+
+public class BatchServerTest
+{
+
+	@Test( timeout = 30000 )
+	public void testHandshake() throws Exception
+	{
+		final int port = freePort();
+		final BatchServer server = new BatchServer( port, Logger.VOID_LOGGER );
+		final Exception[] error = new Exception[ 1 ];
+		final Thread serving = new Thread( "Batch server test" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					server.serve();
+				}
+				catch ( final IOException e )
+				{
+					error[ 0 ] = e;
+				}
+			}
+		};
+		serving.start();
+		waitForServer( port );
+
+		// A batch that cannot run.
+		final File missing = File.createTempFile( "BatchServerTest", "" );
+		missing.delete();
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		assertEquals( Main.EXIT_ERROR, BatchServer.send( port, Arrays.asList( BatchServer.REQUEST_BATCH, missing.getAbsolutePath() ), new PrintStream( answer, true ) ) );
+		String[] lines = answer.toString().trim().split( "\n" );
+		assertTrue( lines[ lines.length - 1 ], lines[ lines.length - 1 ].startsWith( "{\"event\":\"job\",\"exit\":" + Main.EXIT_ERROR + ",\"wait_s\":" ) );
+
+		// Invalid requests.
+		answer = new ByteArrayOutputStream();
+		assertEquals( Main.EXIT_USAGE, BatchServer.send( port, Collections.singletonList( "unknown" ), new PrintStream( answer, true ) ) );
+		assertEquals( Main.EXIT_USAGE, BatchServer.send( port, Arrays.asList( BatchServer.REQUEST_BATCH, missing.getAbsolutePath(), BatchServer.KEY_OUTPUT ), new PrintStream( answer, true ) ) );
+		lines = answer.toString().trim().split( "\n" );
+		assertEquals( 2, lines.length );
+
+		// Shutdown.
+		answer = new ByteArrayOutputStream();
+		assertEquals( Main.EXIT_OK, BatchServer.send( port, Collections.singletonList( BatchServer.REQUEST_SHUTDOWN ), new PrintStream( answer, true ) ) );
+		serving.join( 10000 );
+		assertFalse( "The server should stop once asked to.", serving.isAlive() );
+		if ( null != error[ 0 ] ) { throw error[ 0 ]; }
+
+		try
+		{
+			BatchServer.send( port, Collections.singletonList( BatchServer.REQUEST_SHUTDOWN ), new PrintStream( new ByteArrayOutputStream() ) );
+			fail( "The server should not accept requests once stopped." );
+		}
+		catch ( final IOException e )
+		{
+			// Expected.
+		}
+	}
+
+	private static int freePort() throws IOException
+	{
+		final ServerSocket socket = new ServerSocket( 0 );
+		try
+		{
+			return socket.getLocalPort();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Waits until the server accepts connections, with a request it rejects.
+	 */
+	private static void waitForServer( final int port ) throws InterruptedException
+	{
+		while ( true )
+		{
+			try
+			{
+				BatchServer.send( port, Collections.singletonList( "ping" ), new PrintStream( new ByteArrayOutputStream() ) );
+				return;
+			}
+			catch ( final IOException e )
+			{
+				Thread.sleep( 50 );
+			}
+		}
+	}
+}
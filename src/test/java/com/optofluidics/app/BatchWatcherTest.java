@@ -0,0 +1,166 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+
+public class BatchWatcherTest
+{
+
+	/**
+	 * How long to wait for an acquisition that must not be processed, in
+	 * milliseconds: more than two polls of the watcher.
+	 */
+	private static final long QUIET_TIME = 2500;
+
+	/**
+	 * How long to wait for an acquisition that must be processed, in seconds.
+	 */
+	private static final long TIMEOUT = 10;
+
+	@Test( timeout = 60000 )
+	public void testMarker() throws Exception
+	{
+		final File folder = createTempFolder();
+		final RecordingWatcher watcher = new RecordingWatcher( folder );
+		// Only markers make acquisitions complete.
+		watcher.setSettleTime( 0 );
+		final Thread thread = watcher.start();
+
+		final File tif = new File( folder, "run01.tif" );
+		append( tif );
+		assertNull( "An acquisition without marker should not be processed.", watcher.processed.poll( QUIET_TIME, TimeUnit.MILLISECONDS ) );
+		append( new File( folder, "run01.tif" + BatchWatcher.DEFAULT_MARKER_EXTENSION ) );
+		assertEquals( tif, watcher.processed.poll( TIMEOUT, TimeUnit.SECONDS ) );
+
+		// A folder of tif files, with its marker next to it.
+		final File acquisition = new File( folder, "run02" );
+		acquisition.mkdirs();
+		append( new File( acquisition, "frame-000.tif" ) );
+		append( new File( acquisition, "frame-001.tif" ) );
+		append( new File( folder, "run02" + BatchWatcher.DEFAULT_MARKER_EXTENSION ) );
+		assertEquals( acquisition, watcher.processed.poll( TIMEOUT, TimeUnit.SECONDS ) );
+
+		// Marked files that are not acquisitions are ignored, and acquisitions
+		// are processed once.
+		append( new File( folder, "notes.txt" ) );
+		append( new File( folder, "notes.txt" + BatchWatcher.DEFAULT_MARKER_EXTENSION ) );
+		assertNull( watcher.processed.poll( QUIET_TIME, TimeUnit.MILLISECONDS ) );
+
+		watcher.stop();
+		thread.join();
+		assertTrue( watcher.ok );
+	}
+
+	@Test( timeout = 60000 )
+	public void testSettleTime() throws Exception
+	{
+		final File folder = createTempFolder();
+		final File existing = new File( folder, "existing.tif" );
+		append( existing );
+
+		final RecordingWatcher watcher = new RecordingWatcher( folder );
+		watcher.setSettleTime( 1.5 );
+		final Thread thread = watcher.start();
+
+		// Acquisitions already there are processed once settled.
+		assertEquals( existing, watcher.processed.poll( TIMEOUT, TimeUnit.SECONDS ) );
+
+		// An acquisition still written is not processed.
+		final File tif = new File( folder, "run01.tif" );
+		for ( int i = 0; i < 8; i++ )
+		{
+			append( tif );
+			assertNull( "An acquisition still written should not be processed.", watcher.processed.poll( 400, TimeUnit.MILLISECONDS ) );
+		}
+		append( tif );
+		final long lastWrite = System.currentTimeMillis();
+		assertEquals( tif, watcher.processed.poll( TIMEOUT, TimeUnit.SECONDS ) );
+		assertTrue( "An acquisition should be processed once unchanged for the settle time.", System.currentTimeMillis() - lastWrite >= 1500 );
+		assertNull( "Each acquisition should be processed once.", watcher.processed.poll( QUIET_TIME, TimeUnit.MILLISECONDS ) );
+
+		watcher.stop();
+		thread.join();
+		assertTrue( watcher.ok );
+	}
+
+	private static void append( final File file ) throws IOException
+	{
+		final FileWriter writer = new FileWriter( file, true );
+		writer.write( "data\n" );
+		writer.close();
+		file.deleteOnExit();
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "BatchWatcherTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/**
+	 * A watcher that records the acquisitions it would process instead of
+	 * processing them.
+	 */
+	private static final class RecordingWatcher extends BatchWatcher
+	{
+
+		private final BlockingQueue< File > processed = new LinkedBlockingQueue< File >();
+
+		private volatile boolean ok;
+
+		public RecordingWatcher( final File folder )
+		{
+			super( folder, folder, null, Logger.VOID_LOGGER );
+		}
+
+		@Override
+		List< BatchJob > processRound( final List< File > ready )
+		{
+			final List< BatchJob > jobs = new ArrayList< BatchJob >( ready.size() );
+			for ( final File file : ready )
+			{
+				processed.add( file );
+				jobs.add( new BatchJob( file, Logger.VOID_LOGGER ) );
+			}
+			return jobs;
+		}
+
+		private Thread start()
+		{
+			final Thread thread = new Thread( "Batch watcher test" )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						ok = watch();
+					}
+					catch ( final IOException e )
+					{
+						ok = false;
+					}
+				}
+			};
+			thread.start();
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+
+public class JsonProgressTest
+{
+
+	/**
+	 * A flat JSON object with string, number or null values.
+	 */
+	private static final String OBJECT = "\\{\"event\":\"[a-z]+\"(,\"[a-z_]+\":(\"([^\"\\\\]|\\\\.)*\"|-?[0-9]+(\\.[0-9]+)?|null))*\\}";
+
+	@Test
+	public void testEvents() throws UnsupportedEncodingException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final JsonProgress progress = new JsonProgress( new PrintStream( bytes, true, "UTF-8" ) );
+
+		final BatchJob a = new TestJob( "a \"quoted\"\tname.tif" );
+		final BatchJob b = new TestJob( "b.tif" );
+		progress.batchStarted( Arrays.asList( a.getFile(), b.getFile() ), 1 );
+		progress.jobStarted( a );
+		progress.stageDone( a, "loading", 0 );
+		progress.jobStarted( b );
+		progress.stageDone( b, "tracking", 2 );
+		a.fail( "tracking", new RuntimeException( "Expected failure." ) );
+		progress.jobDone( b );
+		progress.jobDone( a );
+		progress.batchDone( Arrays.asList( b, a ) );
+
+		final String[] lines = bytes.toString( "UTF-8" ).split( "\n" );
+		assertEquals( 8, lines.length );
+		for ( final String line : lines )
+		{
+			assertTrue( "Not a JSON object: " + line, line.matches( OBJECT ) );
+		}
+		assertEquals( "{\"event\":\"start\",\"files\":2,\"skipped\":1}", lines[ 0 ] );
+		assertEquals( "{\"event\":\"started\",\"file\":\"a \\\"quoted\\\"\\tname.tif\"}", lines[ 1 ] );
+		// No time elapsed: no throughput.
+		assertEquals( "{\"event\":\"stage\",\"file\":\"a \\\"quoted\\\"\\tname.tif\",\"stage\":\"loading\",\"seconds\":0.000,\"frames\":100,\"frames_per_s\":null}", lines[ 2 ] );
+		assertEquals( "{\"event\":\"stage\",\"file\":\"b.tif\",\"stage\":\"tracking\",\"seconds\":2.000,\"frames\":100,\"frames_per_s\":50.000}", lines[ 4 ] );
+		assertTrue( lines[ 5 ], lines[ 5 ].startsWith( "{\"event\":\"file\",\"file\":\"b.tif\",\"status\":\"done\",\"done\":1,\"failed\":0,\"total\":2," ) );
+		assertTrue( lines[ 6 ], lines[ 6 ].startsWith( "{\"event\":\"file\",\"file\":\"a \\\"quoted\\\"\\tname.tif\",\"status\":\"failed\",\"done\":2,\"failed\":1,\"total\":2," ) );
+		assertTrue( lines[ 6 ], lines[ 6 ].endsWith( ",\"eta_s\":0.000}" ) );
+		assertTrue( lines[ 7 ], lines[ 7 ].startsWith( "{\"event\":\"end\",\"files\":2,\"failed\":1,\"seconds\":" ) );
+	}
+
+	@Test
+	public void testReused() throws UnsupportedEncodingException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final JsonProgress progress = new JsonProgress( new PrintStream( bytes, true, "UTF-8" ) );
+		final BatchJob job = new TestJob( "a.tif" );
+		job.fail( "loading", new RuntimeException( "Expected failure." ) );
+		progress.batchStarted( Collections.singletonList( job.getFile() ), 0 );
+		progress.jobDone( job );
+		progress.batchDone( Collections.singletonList( job ) );
+
+		// Counts start over with the next batch.
+		final BatchJob other = new TestJob( "b.tif" );
+		progress.batchStarted( Collections.singletonList( other.getFile() ), 0 );
+		progress.jobDone( other );
+		progress.batchDone( Collections.singletonList( other ) );
+
+		final String[] lines = bytes.toString( "UTF-8" ).split( "\n" );
+		assertEquals( 6, lines.length );
+		assertTrue( lines[ 4 ], lines[ 4 ].startsWith( "{\"event\":\"file\",\"file\":\"b.tif\",\"status\":\"done\",\"done\":1,\"failed\":0,\"total\":1," ) );
+		assertTrue( lines[ 5 ], lines[ 5 ].startsWith( "{\"event\":\"end\",\"files\":1,\"failed\":0," ) );
+	}
+
+	/**
+	 * A job of 100 frames, that is not processed.
+	 */
+	private static final class TestJob extends BatchJob
+	{
+		public TestJob( final String name )
+		{
+			super( new File( name ), Logger.VOID_LOGGER );
+		}
+
+		@Override
+		public int getNFrames()
+		{
+			return 100;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.optofluidics.app;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest
+{
+
+	@Test( timeout = 10000 )
+	public void testBlocksUntilReleased() throws InterruptedException
+	{
+		final MemoryBudget budget = new MemoryBudget( 100 );
+		budget.acquire( 60 );
+		budget.acquire( 40 );
+
+		final CountDownLatch admitted = new CountDownLatch( 1 );
+		final Thread waiter = acquireLater( budget, 30, admitted );
+		assertFalse( "A job that does not fit should wait.", admitted.await( 200, TimeUnit.MILLISECONDS ) );
+
+		// Not enough room yet.
+		budget.release( 20 );
+		assertFalse( "A job that does not fit should wait.", admitted.await( 200, TimeUnit.MILLISECONDS ) );
+
+		budget.release( 60 );
+		assertTrue( "A job that fits should be admitted once memory is released.", admitted.await( 5, TimeUnit.SECONDS ) );
+		waiter.join();
+	}
+
+	@Test( timeout = 10000 )
+	public void testLargerThanBudget() throws InterruptedException
+	{
+		final MemoryBudget budget = new MemoryBudget( 100 );
+
+		// Admitted alone, so that the batch cannot stall.
+		budget.acquire( 500 );
+
+		// Other jobs wait for it.
+		final CountDownLatch admitted = new CountDownLatch( 1 );
+		final Thread waiter = acquireLater( budget, 10, admitted );
+		assertFalse( admitted.await( 200, TimeUnit.MILLISECONDS ) );
+		budget.release( 500 );
+		assertTrue( admitted.await( 5, TimeUnit.SECONDS ) );
+		waiter.join();
+
+		// And it waits for the jobs in flight.
+		final CountDownLatch largeAdmitted = new CountDownLatch( 1 );
+		final Thread largeWaiter = acquireLater( budget, 500, largeAdmitted );
+		assertFalse( largeAdmitted.await( 200, TimeUnit.MILLISECONDS ) );
+		budget.release( 10 );
+		assertTrue( largeAdmitted.await( 5, TimeUnit.SECONDS ) );
+		largeWaiter.join();
+	}
+
+	@Test( timeout = 10000 )
+	public void testInterrupted() throws InterruptedException
+	{
+		final MemoryBudget budget = new MemoryBudget( 100 );
+		budget.acquire( 100 );
+		final boolean[] interrupted = new boolean[ 1 ];
+		final Thread waiter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					budget.acquire( 10 );
+				}
+				catch ( final InterruptedException e )
+				{
+					interrupted[ 0 ] = true;
+				}
+			}
+		};
+		waiter.start();
+		waiter.interrupt();
+		waiter.join();
+		assertTrue( interrupted[ 0 ] );
+
+		// The interrupted job took nothing: a full-size job fits again.
+		budget.release( 100 );
+		final CountDownLatch admitted = new CountDownLatch( 1 );
+		acquireLater( budget, 100, admitted ).join();
+		assertTrue( admitted.await( 0, TimeUnit.MILLISECONDS ) );
+	}
+
+	/**
+	 * Acquires the specified footprint in a new thread, and counts down the
+	 * latch once it is admitted.
+	 */
+	private static Thread acquireLater( final MemoryBudget budget, final long footprint, final CountDownLatch admitted )
+	{
+		final Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					budget.acquire( footprint );
+					admitted.countDown();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,131 @@
+package com.optofluidics.io;
+
+import static com.optofluidics.io.TestTiffs.assertStackEquals;
+import static com.optofluidics.io.TestTiffs.createStack;
+import static com.optofluidics.io.TestTiffs.createTempFolder;
+import static com.optofluidics.io.TestTiffs.writeStack;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class MappedTiffStackTest
+{
+
+	private static final int WIDTH = 24;
+
+	private static final int HEIGHT = 16;
+
+	private static final int N_FRAMES = 12;
+
+	@Test
+	public void test16bitBigEndian() throws IOException
+	{
+		checkOpen( ByteOrder.BIG_ENDIAN );
+	}
+
+	@Test
+	public void test16bitLittleEndian() throws IOException
+	{
+		checkOpen( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	@Test
+	public void testImageJStack() throws IOException
+	{
+		final ImageStack source = createStack( 16, WIDTH, HEIGHT, N_FRAMES );
+		final ImagePlus saved = new ImagePlus( "stack.tif", source );
+		saved.setDimensions( 1, 1, N_FRAMES );
+		saved.getCalibration().frameInterval = 0.5;
+		final File file = new File( createTempFolder( "MappedTiffStackTest" ), "stack.tif" );
+		assertTrue( new FileSaver( saved ).saveAsTiffStack( file.getAbsolutePath() ) );
+		file.deleteOnExit();
+
+		final MappedTiffStack stack = MappedTiffStack.open( file );
+		assertNotNull( "An ImageJ stack should be mapped.", stack );
+		assertStackEquals( source, stack );
+		assertEquals( "plane-3", stack.getSliceLabel( 4 ) );
+
+		final ImagePlus imp = stack.createImage( true );
+		assertEquals( N_FRAMES, imp.getNFrames() );
+		assertEquals( 0.5, imp.getCalibration().frameInterval, 0 );
+	}
+
+	@Test
+	public void test8bit() throws IOException
+	{
+		final File folder = createTempFolder( "MappedTiffStackTest" );
+		final ImageStack source = createStack( 8, WIDTH, HEIGHT, N_FRAMES );
+		assertNull( "8-bit files should not be mapped.", MappedTiffStack.open( writeStack( new File( folder, "big.tif" ), ByteOrder.BIG_ENDIAN, source ) ) );
+		assertNull( "8-bit files should not be mapped.", MappedTiffStack.open( writeStack( new File( folder, "little.tif" ), ByteOrder.LITTLE_ENDIAN, source ) ) );
+	}
+
+	@Test
+	public void testMismatchedDimensions() throws IOException
+	{
+		final File folder = createTempFolder( "MappedTiffStackTest" );
+		final ImageStack source = createStack( 16, WIDTH, HEIGHT, N_FRAMES );
+
+		final File last = writeStack( new File( folder, "last.tif" ), ByteOrder.BIG_ENDIAN, source, createStack( 16, WIDTH, HEIGHT + 1, 1 ) );
+		assertNull( "Files whose planes differ in size should not be mapped.", MappedTiffStack.open( last ) );
+
+		final File middle = writeStack( new File( folder, "middle.tif" ), ByteOrder.BIG_ENDIAN, createStack( 16, WIDTH, HEIGHT, 2 ), createStack( 16, WIDTH + 1, HEIGHT, 1 ), source );
+		assertNull( "Files whose planes differ in size should not be mapped.", MappedTiffStack.open( middle ) );
+
+		final File types = writeStack( new File( folder, "types.tif" ), ByteOrder.BIG_ENDIAN, source, createStack( 8, WIDTH, HEIGHT, 1 ) );
+		assertNull( "Files whose planes differ in type should not be mapped.", MappedTiffStack.open( types ) );
+	}
+
+	@Test
+	public void testTruncated() throws IOException
+	{
+		final File file = writeStack( new File( createTempFolder( "MappedTiffStackTest" ), "truncated.tif" ), ByteOrder.BIG_ENDIAN, createStack( 16, WIDTH, HEIGHT, 1 ) );
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try
+		{
+			raf.setLength( 8 + WIDTH * HEIGHT );
+		}
+		finally
+		{
+			raf.close();
+		}
+		assertNull( "Files shorter than their planes should not be mapped.", MappedTiffStack.open( file ) );
+	}
+
+	/**
+	 * Maps a 16-bit file written in the specified byte order, and compares it
+	 * plane by plane to the planes written, and to the stack opened by
+	 * ImageJ.
+	 */
+	private static void checkOpen( final ByteOrder order ) throws IOException
+	{
+		final ImageStack source = createStack( 16, WIDTH, HEIGHT, N_FRAMES );
+		final File file = writeStack( new File( createTempFolder( "MappedTiffStackTest" ), "stack.tif" ), order, source );
+
+		final MappedTiffStack stack = MappedTiffStack.open( file );
+		assertNotNull( "An uncompressed 16-bit file should be mapped.", stack );
+		assertStackEquals( source, stack );
+		assertStackEquals( new ImagePlus( file.getAbsolutePath() ).getStack(), stack );
+
+		final short[] pixels = new short[ WIDTH * HEIGHT ];
+		for ( int i = 1; i <= N_FRAMES; i++ )
+		{
+			stack.readPlane( i, pixels );
+			assertArrayEquals( "Unexpected pixels in plane " + i, ( short[] ) source.getPixels( i ), pixels );
+		}
+
+		assertStackEquals( source, stack.toHeap( 4 ) );
+		assertStackEquals( source, stack.createImage( false ).getStack() );
+	}
+}
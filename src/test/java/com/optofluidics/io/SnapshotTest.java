@@ -0,0 +1,100 @@
+package com.optofluidics.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+public class SnapshotTest
+{
+
+	@Test
+	public void testRoundTripCompressed() throws IOException
+	{
+		checkRoundTrip( true );
+	}
+
+	@Test
+	public void testRoundTripUncompressed() throws IOException
+	{
+		checkRoundTrip( false );
+	}
+
+	@Test( timeout = 10000 )
+	public void testTruncatedBlock() throws IOException
+	{
+		final File file = File.createTempFile( "SnapshotTest", SnapshotWriter.EXTENSION );
+		file.deleteOnExit();
+		new SnapshotWriter( file ).write( TestModels.createModel(), null, "log" );
+
+		// Declare a raw length larger than what the header block inflates to.
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try
+		{
+			final long rawLengthOffset = SnapshotFormat.FILE_HEADER_LENGTH + 4;
+			raf.seek( rawLengthOffset );
+			final int rawLength = raf.readInt();
+			raf.seek( rawLengthOffset );
+			raf.writeInt( rawLength + 100 );
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		try
+		{
+			new SnapshotReader( file ).close();
+			fail( "Reading a truncated block should fail." );
+		}
+		catch ( final IOException e )
+		{
+			// Expected.
+		}
+	}
+
+	private static void checkRoundTrip( final boolean compress ) throws IOException
+	{
+		final Model source = TestModels.createModel();
+		final File file = File.createTempFile( "SnapshotTest", SnapshotWriter.EXTENSION );
+		file.deleteOnExit();
+		final SnapshotWriter writer = new SnapshotWriter( file );
+		writer.setCompress( compress );
+		writer.write( source, null, "log" );
+
+		final SnapshotReader reader = new SnapshotReader( file );
+		final Model target;
+		try
+		{
+			assertEquals( "log", reader.getLog() );
+			target = reader.readModel();
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		TestModels.assertSameModel( source, target );
+
+		// All the spot features, including undeclared ones.
+		for ( final Spot spot : source.getSpots().iterable( false ) )
+		{
+			Spot read = null;
+			for ( final Spot candidate : target.getSpots().iterable( false ) )
+			{
+				if ( candidate.ID() == spot.ID() )
+				{
+					read = candidate;
+				}
+			}
+			assertEquals( "Unexpected features for spot " + spot.ID(), spot.getFeatures(), read.getFeatures() );
+		}
+	}
+}
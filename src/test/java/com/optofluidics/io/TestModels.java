@@ -0,0 +1,247 @@
+package com.optofluidics.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+/**
+ * Small models to write and read back, and comparisons between them.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+class TestModels
+{
+
+	static final String SPOT_FEATURE = "SPOT_FEATURE";
+
+	static final String EDGE_FEATURE = "EDGE_FEATURE";
+
+	static final String TRACK_FEATURE = "TRACK_FEATURE";
+
+	/**
+	 * A track feature declared without a dimension.
+	 */
+	static final String NO_DIMENSION_FEATURE = "NO_DIMENSION_FEATURE";
+
+	private static final int N_TRACKS = 5;
+
+	private static final int N_FRAMES = 20;
+
+	private TestModels()
+	{}
+
+	/**
+	 * Tracks of 20 spots, and one spot not in a track. Feature values cycle
+	 * between a number, <code>NaN</code> and missing. The track IDs and the
+	 * edge source, target and cost are stored as features, as TrackMate's
+	 * writer needs them.
+	 */
+	static Model createModel()
+	{
+		final Model model = new Model();
+		model.setPhysicalUnits( "um", "s" );
+		final FeatureModel fm = model.getFeatureModel();
+		declare( fm );
+
+		model.beginUpdate();
+		try
+		{
+			int n = 0;
+			for ( int k = 0; k < N_TRACKS; k++ )
+			{
+				Spot previous = null;
+				for ( int t = 0; t < N_FRAMES; t++ )
+				{
+					final Spot spot = new Spot( t, k, 0, 1, 1 );
+					spot.putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+					final Double val = valueFor( n++ );
+					if ( null != val )
+					{
+						spot.putFeature( SPOT_FEATURE, val );
+					}
+					model.addSpotTo( spot, Integer.valueOf( t ) );
+					if ( null != previous )
+					{
+						model.addEdge( previous, spot, 0.5 * t );
+					}
+					previous = spot;
+				}
+			}
+			final Spot lone = new Spot( 0, -1, 0, 1, 1 );
+			lone.putFeature( Spot.POSITION_T, Double.valueOf( 3 ) );
+			lone.putFeature( SPOT_FEATURE, Double.valueOf( Double.NaN ) );
+			model.addSpotTo( lone, Integer.valueOf( 3 ) );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final TrackModel trackModel = model.getTrackModel();
+		int n = 0;
+		for ( final DefaultWeightedEdge edge : trackModel.edgeSet() )
+		{
+			fm.putEdgeFeature( edge, EdgeTargetAnalyzer.SPOT_SOURCE_ID, Double.valueOf( trackModel.getEdgeSource( edge ).ID() ) );
+			fm.putEdgeFeature( edge, EdgeTargetAnalyzer.SPOT_TARGET_ID, Double.valueOf( trackModel.getEdgeTarget( edge ).ID() ) );
+			fm.putEdgeFeature( edge, EdgeTargetAnalyzer.EDGE_COST, Double.valueOf( trackModel.getEdgeWeight( edge ) ) );
+			final Double val = valueFor( n++ );
+			if ( null != val )
+			{
+				fm.putEdgeFeature( edge, EDGE_FEATURE, val );
+			}
+		}
+		n = 0;
+		for ( final Integer id : trackModel.trackIDs( false ) )
+		{
+			fm.putTrackFeature( id, TrackIndexAnalyzer.TRACK_ID, Double.valueOf( id.doubleValue() ) );
+			fm.putTrackFeature( id, TrackIndexAnalyzer.TRACK_INDEX, Double.valueOf( n ) );
+			fm.putTrackFeature( id, NO_DIMENSION_FEATURE, Double.valueOf( n ) );
+			final Double val = valueFor( n++ );
+			if ( null != val )
+			{
+				fm.putTrackFeature( id, TRACK_FEATURE, val );
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Checks that two models have the same spots, edges and tracks, and the
+	 * same values for the test features. Spots, edges and tracks are matched
+	 * by ID.
+	 */
+	static void assertSameModel( final Model expected, final Model actual )
+	{
+		assertEquals( expected.getSpaceUnits(), actual.getSpaceUnits() );
+		assertEquals( expected.getTimeUnits(), actual.getTimeUnits() );
+
+		// Spots.
+		final Map< Integer, Spot > expectedSpots = spotsByID( expected );
+		final Map< Integer, Spot > actualSpots = spotsByID( actual );
+		assertEquals( expectedSpots.keySet(), actualSpots.keySet() );
+		for ( final Integer id : expectedSpots.keySet() )
+		{
+			final Spot e = expectedSpots.get( id );
+			final Spot a = actualSpots.get( id );
+			assertEquals( e.getName(), a.getName() );
+			for ( final String feature : Arrays.asList( Spot.POSITION_X, Spot.POSITION_Y, Spot.FRAME, Spot.QUALITY, SPOT_FEATURE ) )
+			{
+				assertEquals( "Unexpected " + feature + " for spot " + id, e.getFeature( feature ), a.getFeature( feature ) );
+			}
+		}
+
+		// Edges.
+		final FeatureModel efm = expected.getFeatureModel();
+		final FeatureModel afm = actual.getFeatureModel();
+		final Map< String, DefaultWeightedEdge > expectedEdges = edgesByKey( expected );
+		final Map< String, DefaultWeightedEdge > actualEdges = edgesByKey( actual );
+		assertEquals( expectedEdges.keySet(), actualEdges.keySet() );
+		for ( final String key : expectedEdges.keySet() )
+		{
+			final DefaultWeightedEdge e = expectedEdges.get( key );
+			final DefaultWeightedEdge a = actualEdges.get( key );
+			assertEquals( expected.getTrackModel().getEdgeWeight( e ), actual.getTrackModel().getEdgeWeight( a ), 0 );
+			assertEquals( "Unexpected feature for edge " + key, efm.getEdgeFeature( e, EDGE_FEATURE ), afm.getEdgeFeature( a, EDGE_FEATURE ) );
+		}
+
+		// Tracks.
+		final TrackModel etm = expected.getTrackModel();
+		final TrackModel atm = actual.getTrackModel();
+		assertEquals( etm.trackIDs( false ), atm.trackIDs( false ) );
+		assertEquals( etm.trackIDs( true ), atm.trackIDs( true ) );
+		for ( final Integer id : etm.trackIDs( false ) )
+		{
+			assertEquals( etm.name( id ), atm.name( id ) );
+			assertEquals( spotIDs( etm.trackSpots( id ) ), spotIDs( atm.trackSpots( id ) ) );
+			for ( final String feature : Arrays.asList( TRACK_FEATURE, NO_DIMENSION_FEATURE ) )
+			{
+				assertEquals( "Unexpected " + feature + " for track " + id, efm.getTrackFeature( id, feature ), afm.getTrackFeature( id, feature ) );
+			}
+		}
+		assertEquals( Dimension.TIME, afm.getTrackFeatureDimensions().get( TRACK_FEATURE ) );
+	}
+
+	private static Double valueFor( final int n )
+	{
+		switch ( n % 3 )
+		{
+		case 0:
+			return Double.valueOf( n );
+		case 1:
+			return Double.valueOf( Double.NaN );
+		default:
+			return null;
+		}
+	}
+
+	private static void declare( final FeatureModel fm )
+	{
+		fm.declareSpotFeatures( Arrays.asList( SPOT_FEATURE ), map( SPOT_FEATURE, "Spot feature" ), map( SPOT_FEATURE, "Spot" ), map( SPOT_FEATURE, Dimension.NONE ), map( SPOT_FEATURE, Boolean.FALSE ) );
+		fm.declareEdgeFeatures( EdgeTargetAnalyzer.FEATURES, EdgeTargetAnalyzer.FEATURE_NAMES, EdgeTargetAnalyzer.FEATURE_SHORT_NAMES, EdgeTargetAnalyzer.FEATURE_DIMENSIONS, EdgeTargetAnalyzer.IS_INT );
+		fm.declareEdgeFeatures( Arrays.asList( EDGE_FEATURE ), map( EDGE_FEATURE, "Edge feature" ), map( EDGE_FEATURE, "Edge" ), map( EDGE_FEATURE, Dimension.VELOCITY ), map( EDGE_FEATURE, Boolean.FALSE ) );
+		fm.declareTrackFeatures( TrackIndexAnalyzer.FEATURES, TrackIndexAnalyzer.FEATURE_NAMES, TrackIndexAnalyzer.FEATURE_SHORT_NAMES, TrackIndexAnalyzer.FEATURE_DIMENSIONS, TrackIndexAnalyzer.IS_INT );
+		fm.declareTrackFeatures( Arrays.asList( TRACK_FEATURE ), map( TRACK_FEATURE, "Track feature" ), map( TRACK_FEATURE, "Track" ), map( TRACK_FEATURE, Dimension.TIME ), map( TRACK_FEATURE, Boolean.FALSE ) );
+		fm.declareTrackFeatures( Arrays.asList( NO_DIMENSION_FEATURE ), map( NO_DIMENSION_FEATURE, "No dimension" ), map( NO_DIMENSION_FEATURE, "No dim." ), new HashMap< String, Dimension >(), map( NO_DIMENSION_FEATURE, Boolean.FALSE ) );
+	}
+
+	private static < T > Map< String, T > map( final String key, final T val )
+	{
+		final Map< String, T > map = new HashMap< String, T >( 1 );
+		map.put( key, val );
+		return map;
+	}
+
+	private static Map< Integer, Spot > spotsByID( final Model model )
+	{
+		final Map< Integer, Spot > spots = new HashMap< Integer, Spot >();
+		for ( final Spot spot : model.getSpots().iterable( false ) )
+		{
+			assertNull( "Duplicate spot ID " + spot.ID(), spots.put( Integer.valueOf( spot.ID() ), spot ) );
+		}
+		assertFalse( spots.isEmpty() );
+		return spots;
+	}
+
+	/**
+	 * Maps edges to "<i>lower spot ID</i>-<i>higher spot ID</i>" keys, since
+	 * the graph is not directed.
+	 */
+	private static Map< String, DefaultWeightedEdge > edgesByKey( final Model model )
+	{
+		final Map< String, DefaultWeightedEdge > edges = new HashMap< String, DefaultWeightedEdge >();
+		final TrackModel trackModel = model.getTrackModel();
+		for ( final DefaultWeightedEdge edge : trackModel.edgeSet() )
+		{
+			final int a = trackModel.getEdgeSource( edge ).ID();
+			final int b = trackModel.getEdgeTarget( edge ).ID();
+			edges.put( Math.min( a, b ) + "-" + Math.max( a, b ), edge );
+		}
+		return edges;
+	}
+
+	private static Set< Integer > spotIDs( final Set< Spot > spots )
+	{
+		final Set< Integer > ids = new HashSet< Integer >( spots.size() );
+		for ( final Spot spot : spots )
+		{
+			ids.add( Integer.valueOf( spot.ID() ) );
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,221 @@
+package com.optofluidics.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Small tif files to read back, and comparisons between stacks.
+ * <p>
+ * The files are written here rather than with the ImageJ encoder, which
+ * always uses the same byte order: they hold one directory per plane, after
+ * the pixels of all the planes, in the byte order specified.
+ *
+ * @author Jean-Yves Tinevez - 2015
+ */
+class TestTiffs
+{
+
+	private static final short SHORT = 3;
+
+	private static final short LONG = 4;
+
+	private TestTiffs()
+	{}
+
+	/**
+	 * A stack whose pixel values span the whole range of the type, so that
+	 * reading them in the wrong byte order cannot go unnoticed.
+	 *
+	 * @param bitDepth
+	 *            8 or 16.
+	 */
+	static ImageStack createStack( final int bitDepth, final int width, final int height, final int nPlanes )
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		final int max = bitDepth == 8 ? 0xff : 0xffff;
+		for ( int z = 0; z < nPlanes; z++ )
+		{
+			final ImageProcessor ip = bitDepth == 8 ? new ByteProcessor( width, height ) : new ShortProcessor( width, height );
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					ip.set( x, y, ( x * 7919 + y * 104729 + z * 1299709 ) % ( max + 1 ) );
+				}
+			}
+			stack.addSlice( "plane-" + z, ip );
+		}
+		return stack;
+	}
+
+	/**
+	 * Writes the planes of one or several stacks to a single tif file. The
+	 * stacks may differ in size and type.
+	 */
+	static File writeStack( final File file, final ByteOrder order, final ImageStack... stacks ) throws IOException
+	{
+		final List< ImageProcessor > planes = new ArrayList< ImageProcessor >();
+		for ( final ImageStack stack : stacks )
+		{
+			for ( int i = 1; i <= stack.getSize(); i++ )
+			{
+				planes.add( stack.getProcessor( i ) );
+			}
+		}
+		write( file, planes, order );
+		return file;
+	}
+
+	/**
+	 * Writes each plane of a stack to its own tif file in a folder, named
+	 * after its 1-based index without leading zeros.
+	 */
+	static File writeFolder( final File folder, final ImageStack stack, final ByteOrder order ) throws IOException
+	{
+		for ( int i = 1; i <= stack.getSize(); i++ )
+		{
+			write( new File( folder, "frame_" + i + ".tif" ), Collections.singletonList( stack.getProcessor( i ) ), order );
+		}
+		return folder;
+	}
+
+	/**
+	 * Checks that two stacks have the same size, type and pixels, plane by
+	 * plane.
+	 */
+	static void assertStackEquals( final ImageStack expected, final ImageStack actual )
+	{
+		assertEquals( "Unexpected width.", expected.getWidth(), actual.getWidth() );
+		assertEquals( "Unexpected height.", expected.getHeight(), actual.getHeight() );
+		assertEquals( "Unexpected number of planes.", expected.getSize(), actual.getSize() );
+		assertEquals( "Unexpected bit depth.", expected.getBitDepth(), actual.getBitDepth() );
+		for ( int i = 1; i <= expected.getSize(); i++ )
+		{
+			final Object e = expected.getPixels( i );
+			final Object a = actual.getPixels( i );
+			if ( e instanceof byte[] )
+			{
+				assertArrayEquals( "Unexpected pixels in plane " + i, ( byte[] ) e, ( byte[] ) a );
+			}
+			else
+			{
+				assertArrayEquals( "Unexpected pixels in plane " + i, ( short[] ) e, ( short[] ) a );
+			}
+		}
+	}
+
+	static File createTempFolder( final String prefix ) throws IOException
+	{
+		final File folder = File.createTempFile( prefix, "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static void write( final File file, final List< ImageProcessor > planes, final ByteOrder order ) throws IOException
+	{
+		final int nEntries = 9;
+		final int ifdSize = 2 + 12 * nEntries + 4;
+		int dataSize = 0;
+		for ( final ImageProcessor ip : planes )
+		{
+			dataSize += planeSize( ip );
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 8 + dataSize + planes.size() * ifdSize );
+		buffer.order( order );
+		buffer.put( ( byte ) ( order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M' ) );
+		buffer.put( ( byte ) ( order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M' ) );
+		buffer.putShort( ( short ) 42 );
+		buffer.putInt( 8 + dataSize );
+
+		for ( final ImageProcessor ip : planes )
+		{
+			final Object pixels = ip.getPixels();
+			if ( pixels instanceof byte[] )
+			{
+				buffer.put( ( byte[] ) pixels );
+			}
+			else
+			{
+				for ( final short s : ( short[] ) pixels )
+				{
+					buffer.putShort( s );
+				}
+			}
+		}
+
+		int offset = 8;
+		for ( int i = 0; i < planes.size(); i++ )
+		{
+			final ImageProcessor ip = planes.get( i );
+			final int ifd = buffer.position();
+			buffer.putShort( ( short ) nEntries );
+			putEntry( buffer, 256, LONG, ip.getWidth() ); // Image width.
+			putEntry( buffer, 257, LONG, ip.getHeight() ); // Image length.
+			putEntry( buffer, 258, SHORT, ip.getBitDepth() ); // Bits per sample.
+			putEntry( buffer, 259, SHORT, 1 ); // No compression.
+			putEntry( buffer, 262, SHORT, 1 ); // Black is zero.
+			putEntry( buffer, 273, LONG, offset ); // Strip offset.
+			putEntry( buffer, 277, SHORT, 1 ); // Samples per pixel.
+			putEntry( buffer, 278, LONG, ip.getHeight() ); // Rows per strip.
+			putEntry( buffer, 279, LONG, planeSize( ip ) ); // Strip byte count.
+			buffer.putInt( i == planes.size() - 1 ? 0 : ifd + ifdSize );
+			offset += planeSize( ip );
+		}
+
+		final FileOutputStream out = new FileOutputStream( file );
+		try
+		{
+			out.write( buffer.array() );
+		}
+		finally
+		{
+			out.close();
+		}
+		file.deleteOnExit();
+	}
+
+	private static int planeSize( final ImageProcessor ip )
+	{
+		return ip.getWidth() * ip.getHeight() * ip.getBitDepth() / 8;
+	}
+
+	/**
+	 * Writes a directory entry holding a single value.
+	 */
+	private static void putEntry( final ByteBuffer buffer, final int tag, final short type, final int value )
+	{
+		buffer.putShort( ( short ) tag );
+		buffer.putShort( type );
+		buffer.putInt( 1 );
+		if ( type == SHORT )
+		{
+			// Left-justified in the value field.
+			buffer.putShort( ( short ) value );
+			buffer.putShort( ( short ) 0 );
+		}
+		else
+		{
+			buffer.putInt( value );
+		}
+	}
+}
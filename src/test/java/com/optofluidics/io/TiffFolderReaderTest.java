@@ -0,0 +1,137 @@
+package com.optofluidics.io;
+
+import static com.optofluidics.io.TestTiffs.assertStackEquals;
+import static com.optofluidics.io.TestTiffs.createStack;
+import static com.optofluidics.io.TestTiffs.createTempFolder;
+import static com.optofluidics.io.TestTiffs.writeFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class TiffFolderReaderTest
+{
+
+	private static final int WIDTH = 24;
+
+	private static final int HEIGHT = 16;
+
+	/**
+	 * More than 10, so that the numeric order of the file names matters.
+	 */
+	private static final int N_FRAMES = 12;
+
+	@Test
+	public void test8bitBigEndian() throws IOException
+	{
+		checkRead( 8, ByteOrder.BIG_ENDIAN );
+	}
+
+	@Test
+	public void test8bitLittleEndian() throws IOException
+	{
+		checkRead( 8, ByteOrder.LITTLE_ENDIAN );
+	}
+
+	@Test
+	public void test16bitBigEndian() throws IOException
+	{
+		checkRead( 16, ByteOrder.BIG_ENDIAN );
+	}
+
+	@Test
+	public void test16bitLittleEndian() throws IOException
+	{
+		checkRead( 16, ByteOrder.LITTLE_ENDIAN );
+	}
+
+	@Test
+	public void testColumnSum() throws IOException
+	{
+		final ImageStack source = createStack( 16, WIDTH, HEIGHT, N_FRAMES );
+		final File folder = writeFolder( createTempFolder( "TiffFolderReaderTest" ), source, ByteOrder.LITTLE_ENDIAN );
+		final TiffFolderReader reader = new TiffFolderReader( folder );
+		reader.setColumnSum( true );
+		final ImageStack stack = reader.read().getStack();
+
+		assertEquals( WIDTH, stack.getWidth() );
+		assertEquals( 1, stack.getHeight() );
+		assertEquals( N_FRAMES, stack.getSize() );
+		for ( int i = 1; i <= N_FRAMES; i++ )
+		{
+			final float[] expected = new float[ WIDTH ];
+			for ( int y = 0; y < HEIGHT; y++ )
+			{
+				for ( int x = 0; x < WIDTH; x++ )
+				{
+					expected[ x ] += source.getProcessor( i ).get( x, y );
+				}
+			}
+			assertArrayEquals( "Unexpected sums in plane " + i, expected, ( float[] ) stack.getPixels( i ), 0f );
+		}
+	}
+
+	@Test
+	public void testMismatchedDimensions() throws IOException
+	{
+		final File folder = writeFolder( createTempFolder( "TiffFolderReaderTest" ), createStack( 16, WIDTH, HEIGHT, N_FRAMES ), ByteOrder.BIG_ENDIAN );
+		final File other = writeFolder( createTempFolder( "TiffFolderReaderTest" ), createStack( 16, WIDTH, HEIGHT + 1, 1 ), ByteOrder.BIG_ENDIAN );
+		new File( other, "frame_1.tif" ).renameTo( new File( folder, "frame_13.tif" ) );
+		checkFails( folder );
+	}
+
+	@Test
+	public void testMismatchedTypes() throws IOException
+	{
+		final File folder = writeFolder( createTempFolder( "TiffFolderReaderTest" ), createStack( 16, WIDTH, HEIGHT, N_FRAMES ), ByteOrder.BIG_ENDIAN );
+		final File other = writeFolder( createTempFolder( "TiffFolderReaderTest" ), createStack( 8, WIDTH, HEIGHT, 1 ), ByteOrder.BIG_ENDIAN );
+		new File( other, "frame_1.tif" ).renameTo( new File( folder, "frame_13.tif" ) );
+		checkFails( folder );
+	}
+
+	/**
+	 * Reads a folder written in the specified type and byte order, and
+	 * compares it plane by plane to the frames written, and to the frames
+	 * opened by ImageJ.
+	 */
+	private static void checkRead( final int bitDepth, final ByteOrder order ) throws IOException
+	{
+		final ImageStack source = createStack( bitDepth, WIDTH, HEIGHT, N_FRAMES );
+		final File folder = writeFolder( createTempFolder( "TiffFolderReaderTest" ), source, order );
+
+		final TiffFolderReader reader = new TiffFolderReader( folder );
+		reader.setNumThreads( 4 );
+		final ImagePlus imp = reader.read();
+		assertEquals( folder.getName(), imp.getTitle() );
+		assertStackEquals( source, imp.getStack() );
+
+		final ImageStack opened = new ImageStack( WIDTH, HEIGHT );
+		for ( int i = 1; i <= N_FRAMES; i++ )
+		{
+			final File file = new File( folder, "frame_" + i + ".tif" );
+			opened.addSlice( file.getName(), new ImagePlus( file.getAbsolutePath() ).getProcessor() );
+			assertEquals( "Frames should be sorted by number.", file.getName(), imp.getStack().getSliceLabel( i ) );
+		}
+		assertStackEquals( opened, imp.getStack() );
+	}
+
+	private static void checkFails( final File folder )
+	{
+		try
+		{
+			new TiffFolderReader( folder ).read();
+			fail( "Reading a folder of frames that do not match should fail." );
+		}
+		catch ( final IOException e )
+		{
+			// Expected: the caller falls back on the ImageJ folder opener.
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.optofluidics.io;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+
+public class TrackMateXmlTest
+{
+
+	@Test
+	public void testStreamingWriterReadByTrackMate() throws IOException
+	{
+		final Model source = TestModels.createModel();
+		final File file = createTempFile();
+		final StreamingXmlWriter writer = new StreamingXmlWriter( file, Logger.VOID_LOGGER );
+		writer.write( source, null, "log" );
+
+		final TmXmlReader reader = new TmXmlReader( file );
+		assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+		final Model target = reader.getModel();
+		assertTrue( reader.getErrorMessage(), reader.isReadingOk() );
+		TestModels.assertSameModel( source, target );
+	}
+
+	@Test
+	public void testTrackMateWriterReadByLazyReader() throws IOException
+	{
+		final Model source = TestModels.createModel();
+		final File file = createTempFile();
+		final TmXmlWriter writer = new TmXmlWriter( file, Logger.VOID_LOGGER );
+		writer.appendModel( source );
+		writer.writeToFile();
+
+		final Model target = new LazyXmlReader( file ).readModel();
+		TestModels.assertSameModel( source, target );
+	}
+
+	@Test
+	public void testCompressed() throws IOException
+	{
+		final Model source = TestModels.createModel();
+		final File file = createTempFile();
+		final StreamingXmlWriter writer = new StreamingXmlWriter( file, Logger.VOID_LOGGER );
+		writer.setCompress( true );
+		writer.write( source, null, null );
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			assertTrue( "The file should be compressed.", ( raf.read() | raf.read() << 8 ) == GZIPInputStream.GZIP_MAGIC );
+		}
+		finally
+		{
+			raf.close();
+		}
+		TestModels.assertSameModel( source, new LazyXmlReader( file ).readModel() );
+	}
+
+	private static File createTempFile() throws IOException
+	{
+		final File file = File.createTempFile( "TrackMateXmlTest", StreamingXmlWriter.EXTENSION );
+		file.deleteOnExit();
+		return file;
+	}
+}
@@ -0,0 +1,145 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer;
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer.VelocitySpectrum;
+
+import fiji.plugin.trackmate.Model;
+
+public class ColumnarExporterTest
+{
+
+	@Test
+	public void testSpectra() throws IOException
+	{
+		final Random ran = new Random( 6l );
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 5; k++ )
+		{
+			final double[] v = new double[ 10 + ran.nextInt( 40 ) ];
+			for ( int i = 0; i < v.length; i++ )
+			{
+				v[ i ] = Math.sin( 0.3 * i ) + 0.1 * ran.nextGaussian();
+			}
+			velocities.add( v );
+		}
+		// A track too short for a spectrum.
+		velocities.add( new double[] { 1. } );
+
+		final Model model = SyntheticModels.fromVelocities( velocities );
+		final TrackVelocitySpectrumAnalyzer analyzer = new TrackVelocitySpectrumAnalyzer();
+		model.getFeatureModel().declareTrackFeatures( analyzer.getFeatures(), analyzer.getFeatureNames(), analyzer.getFeatureShortNames(), analyzer.getFeatureDimensions(), analyzer.getIsIntFeature() );
+		analyzer.process( model.getTrackModel().trackIDs( true ), model );
+
+		final File folder = createTempFolder();
+		new ColumnarExporter( model ).export( folder );
+
+		final long[] ids = readLongs( new File( folder, ColumnarExporter.TRACK_PREFIX + ColumnarExporter.ID + ColumnarExporter.EXTENSION ), 4 );
+		final long[] vacfOffsets = readLongs( new File( folder, ColumnarExporter.TRACK_PREFIX + ColumnarExporter.VACF_OFFSET + ColumnarExporter.EXTENSION ), 8 );
+		final long[] psdOffsets = readLongs( new File( folder, ColumnarExporter.TRACK_PREFIX + ColumnarExporter.PSD_OFFSET + ColumnarExporter.EXTENSION ), 8 );
+		final double[] lags = readDoubles( new File( folder, ColumnarExporter.VACF_PREFIX + ColumnarExporter.LAG + ColumnarExporter.EXTENSION ) );
+		final double[] vacf = readDoubles( new File( folder, ColumnarExporter.VACF_PREFIX + ColumnarExporter.VALUE + ColumnarExporter.EXTENSION ) );
+		final double[] frequencies = readDoubles( new File( folder, ColumnarExporter.PSD_PREFIX + ColumnarExporter.FREQUENCY + ColumnarExporter.EXTENSION ) );
+		final double[] psd = readDoubles( new File( folder, ColumnarExporter.PSD_PREFIX + ColumnarExporter.VALUE + ColumnarExporter.EXTENSION ) );
+
+		assertEquals( velocities.size(), ids.length );
+		assertEquals( ids.length + 1, vacfOffsets.length );
+		assertEquals( lags.length, vacfOffsets[ ids.length ] );
+		assertEquals( frequencies.length, psdOffsets[ ids.length ] );
+		boolean foundEmpty = false;
+		for ( int t = 0; t < ids.length; t++ )
+		{
+			final VelocitySpectrum spectrum = TrackVelocitySpectrumAnalyzer.spectrum( Integer.valueOf( ( int ) ids[ t ] ), model );
+			if ( null == spectrum )
+			{
+				assertEquals( vacfOffsets[ t ], vacfOffsets[ t + 1 ] );
+				assertEquals( psdOffsets[ t ], psdOffsets[ t + 1 ] );
+				foundEmpty = true;
+				continue;
+			}
+			assertEquals( spectrum.lags.length, vacfOffsets[ t + 1 ] - vacfOffsets[ t ] );
+			for ( int i = 0; i < spectrum.lags.length; i++ )
+			{
+				assertEquals( spectrum.lags[ i ], lags[ ( int ) vacfOffsets[ t ] + i ], 0 );
+				assertEquals( spectrum.vacf[ i ], vacf[ ( int ) vacfOffsets[ t ] + i ], 0 );
+			}
+			assertEquals( spectrum.frequencies.length, psdOffsets[ t + 1 ] - psdOffsets[ t ] );
+			for ( int i = 0; i < spectrum.frequencies.length; i++ )
+			{
+				assertEquals( spectrum.frequencies[ i ], frequencies[ ( int ) psdOffsets[ t ] + i ], 0 );
+				assertEquals( spectrum.psd[ i ], psd[ ( int ) psdOffsets[ t ] + i ], 0 );
+			}
+		}
+		assertTrue( "The short track should have empty curves.", foundEmpty );
+	}
+
+	@Test
+	public void testNoSpectraWithoutFeatures() throws IOException
+	{
+		final List< double[] > velocities = new ArrayList< double[] >();
+		velocities.add( new double[] { 1., 2., 3. } );
+		final Model model = SyntheticModels.fromVelocities( velocities );
+
+		final File folder = createTempFolder();
+		new ColumnarExporter( model ).export( folder );
+		assertFalse( new File( folder, ColumnarExporter.VACF_PREFIX + ColumnarExporter.VALUE + ColumnarExporter.EXTENSION ).exists() );
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		final File folder = File.createTempFile( "ColumnarExporterTest", "" );
+		folder.delete();
+		folder.mkdirs();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	/**
+	 * Returns the data of a 1D <code>.npy</code> file, after its header.
+	 */
+	private static ByteBuffer readData( final File file ) throws IOException
+	{
+		file.deleteOnExit();
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		final byte[] bytes = new byte[ ( int ) raf.length() ];
+		raf.readFully( bytes );
+		raf.close();
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+		final int headerLength = buffer.getShort( 8 );
+		buffer.position( 10 + headerLength );
+		return buffer.slice().order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	private static double[] readDoubles( final File file ) throws IOException
+	{
+		final ByteBuffer buffer = readData( file );
+		final double[] values = new double[ buffer.remaining() / 8 ];
+		buffer.asDoubleBuffer().get( values );
+		return values;
+	}
+
+	private static long[] readLongs( final File file, final int bytesPerValue ) throws IOException
+	{
+		final ByteBuffer buffer = readData( file );
+		final long[] values = new long[ buffer.remaining() / bytesPerValue ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			values[ i ] = bytesPerValue == 4 ? buffer.getInt() : buffer.getLong();
+		}
+		return values;
+	}
+}
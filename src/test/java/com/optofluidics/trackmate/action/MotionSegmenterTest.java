@@ -0,0 +1,340 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+public class MotionSegmenterTest
+{
+
+	private static final double PAUSE_VELOCITY = 0.05;
+
+	private static final double PAUSE_NOISE = 0.02;
+
+	private static final double RUN_VELOCITY = 1.0;
+
+	private static final double RUN_NOISE = 0.1;
+
+	@Test
+	public void testFromMotionTypes()
+	{
+		final PauseRunSegmentation segmentation = PauseRunSegmentation.fromMotionTypes( new boolean[] { true, true, false, true, false, false } );
+		assertEquals( 2, segmentation.nPauses() );
+		assertEquals( 2, segmentation.nRuns() );
+		assertEquals( 2, segmentation.gaps.get( 0 ).size() );
+		assertEquals( 2, segmentation.runs.get( 1 ).size() );
+		assertEquals( Integer.valueOf( 3 ), segmentation.gaps.get( 1 ).get( 0 ) );
+	}
+
+	@Test
+	public void testHmm()
+	{
+		checkSegmenter( new HmmSegmenter() );
+	}
+
+	@Test
+	public void testPelt()
+	{
+		checkSegmenter( new PeltSegmenter() );
+	}
+
+	@Test
+	public void testHmmLargeOffset()
+	{
+		// Velocities large compared to their spread.
+		final double offset = 1e8;
+		final Random ran = new Random( 1l );
+		final List< boolean[] > truths = new ArrayList< boolean[] >();
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 20; k++ )
+		{
+			final boolean[] truth = randomMotionTypes( ran, 100 );
+			final double[] v = randomVelocities( ran, truth );
+			for ( int i = 0; i < v.length; i++ )
+			{
+				v[ i ] += offset;
+			}
+			truths.add( truth );
+			velocities.add( v );
+		}
+
+		final HmmSegmenter segmenter = new HmmSegmenter();
+		segmenter.fit( velocities, velocities );
+		assertEquals( PAUSE_NOISE * PAUSE_NOISE, segmenter.getVariance( 0 ), 0.2 * PAUSE_NOISE * PAUSE_NOISE );
+		assertEquals( RUN_NOISE * RUN_NOISE, segmenter.getVariance( 1 ), 0.2 * RUN_NOISE * RUN_NOISE );
+		for ( int state = 0; state < 2; state++ )
+		{
+			assertEquals( 1, segmenter.getTransitionProbability( state, 0 ) + segmenter.getTransitionProbability( state, 1 ), 1e-12 );
+		}
+		for ( int k = 0; k < truths.size(); k++ )
+		{
+			final PauseRunSegmentation segmentation = segmenter.segment( velocities.get( k ) );
+			assertArrayEquals( "Unexpected segmentation for track " + k, truths.get( k ), toMotionTypes( segmentation, truths.get( k ).length ) );
+		}
+	}
+
+	@Test
+	public void testPeltNonFinite()
+	{
+		final Random ran = new Random( 4l );
+		final List< boolean[] > truths = new ArrayList< boolean[] >();
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 20; k++ )
+		{
+			final boolean[] truth = randomMotionTypes( ran, 100 );
+			final double[] v = randomVelocities( ran, truth );
+			// Non-finite values inside sections, never at their first edge.
+			for ( int i = 1; i < v.length; i++ )
+			{
+				if ( truth[ i ] == truth[ i - 1 ] && ran.nextInt( 10 ) == 0 )
+				{
+					v[ i ] = ran.nextBoolean() ? Double.NaN : Double.POSITIVE_INFINITY;
+				}
+			}
+			truths.add( truth );
+			velocities.add( v );
+		}
+
+		final PeltSegmenter segmenter = new PeltSegmenter();
+		segmenter.fit( velocities, velocities );
+		assertFalse( Double.isNaN( segmenter.getVelocityThreshold() ) || Double.isInfinite( segmenter.getVelocityThreshold() ) );
+		assertFalse( Double.isNaN( segmenter.getNoiseVariance() ) || Double.isInfinite( segmenter.getNoiseVariance() ) );
+		for ( int k = 0; k < truths.size(); k++ )
+		{
+			final PauseRunSegmentation segmentation = segmenter.segment( velocities.get( k ) );
+			assertArrayEquals( "Unexpected segmentation for track " + k, truths.get( k ), toMotionTypes( segmentation, truths.get( k ).length ) );
+		}
+	}
+
+	@Test
+	public void testThresholderWithSegmenter()
+	{
+		final Random ran = new Random( 2l );
+		final List< boolean[] > truths = new ArrayList< boolean[] >();
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 10; k++ )
+		{
+			final boolean[] truth = randomMotionTypes( ran, 60 );
+			truths.add( truth );
+			velocities.add( randomVelocities( ran, truth ) );
+		}
+		final Model model = SyntheticModels.fromVelocities( velocities );
+
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, new HmmSegmenter(), 0 );
+		if ( !thresholder.checkInput() || !thresholder.process() )
+		{
+			fail( thresholder.getErrorMessage() );
+		}
+
+		for ( final DefaultWeightedEdge edge : model.getTrackModel().edgeSet() )
+		{
+			final Spot source = model.getTrackModel().getEdgeSource( edge );
+			final int k = ( int ) source.getFeature( Spot.POSITION_Y ).doubleValue();
+			final int i = source.getFeature( Spot.FRAME ).intValue();
+			final Double expected = truths.get( k )[ i ] ? MotionTypeEdgeAnalyzer.PAUSING : MotionTypeEdgeAnalyzer.RUNNING;
+			assertEquals( "Unexpected motion type for edge " + i + " of track " + k, expected, model.getFeatureModel().getEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE ) );
+		}
+	}
+
+	@Test
+	public void testSubsetFittedOnAllTracks()
+	{
+		final Random ran = new Random( 5l );
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 10; k++ )
+		{
+			velocities.add( randomVelocities( ran, randomMotionTypes( ran, 60 ) ) );
+		}
+
+		final Model all = SyntheticModels.fromVelocities( velocities );
+		final TrackVelocityThresholder allThresholder = new TrackVelocityThresholder( all, new HmmSegmenter(), 0 );
+		if ( !allThresholder.checkInput() || !allThresholder.process() )
+		{
+			fail( allThresholder.getErrorMessage() );
+		}
+
+		// Only segment the first track.
+		final Model subset = SyntheticModels.fromVelocities( velocities );
+		Integer firstID = null;
+		for ( final Integer id : subset.getTrackModel().trackIDs( true ) )
+		{
+			final Spot spot = subset.getTrackModel().trackSpots( id ).iterator().next();
+			if ( spot.getFeature( Spot.POSITION_Y ).doubleValue() == 0 )
+			{
+				firstID = id;
+			}
+		}
+		final TrackVelocityThresholder subsetThresholder = new TrackVelocityThresholder( subset, new HmmSegmenter(), 0 );
+		subsetThresholder.setTrackIDs( Collections.singleton( firstID ) );
+		if ( !subsetThresholder.checkInput() || !subsetThresholder.process() )
+		{
+			fail( subsetThresholder.getErrorMessage() );
+		}
+
+		final HmmSegmenter allSegmenter = ( HmmSegmenter ) allThresholder.getSegmenter();
+		final HmmSegmenter subsetSegmenter = ( HmmSegmenter ) subsetThresholder.getSegmenter();
+		for ( int state = 0; state < 2; state++ )
+		{
+			assertEquals( "The segmenter should be fitted on all the tracks.", allSegmenter.getMean( state ), subsetSegmenter.getMean( state ), 1e-9 );
+			assertEquals( "The segmenter should be fitted on all the tracks.", allSegmenter.getVariance( state ), subsetSegmenter.getVariance( state ), 1e-9 );
+		}
+
+		for ( final DefaultWeightedEdge edge : subset.getTrackModel().edgeSet() )
+		{
+			final Spot source = subset.getTrackModel().getEdgeSource( edge );
+			final Double type = subset.getFeatureModel().getEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE );
+			if ( subset.getTrackModel().trackIDOf( edge ).equals( firstID ) )
+			{
+				assertNotNull( "Edges of the subset should be segmented.", type );
+			}
+			else
+			{
+				assertNull( "Edges outside of the subset should not be segmented, in track at Y = " + source.getFeature( Spot.POSITION_Y ), type );
+			}
+		}
+	}
+
+	private static void checkSegmenter( final MotionSegmenter segmenter )
+	{
+		if ( !segmenter.checkInput() )
+		{
+			fail( segmenter.getErrorMessage() );
+		}
+
+		final Random ran = new Random( 1l );
+		final List< boolean[] > truths = new ArrayList< boolean[] >();
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 20; k++ )
+		{
+			final boolean[] truth = randomMotionTypes( ran, 100 );
+			truths.add( truth );
+			velocities.add( randomVelocities( ran, truth ) );
+		}
+
+		segmenter.fit( velocities, velocities );
+		for ( int k = 0; k < truths.size(); k++ )
+		{
+			final PauseRunSegmentation segmentation = segmenter.segment( velocities.get( k ) );
+			assertArrayEquals( "Unexpected segmentation for track " + k + " with " + segmenter.getName(), truths.get( k ), toMotionTypes( segmentation, truths.get( k ).length ) );
+		}
+	}
+
+	private static boolean[] toMotionTypes( final PauseRunSegmentation segmentation, final int n )
+	{
+		final boolean[] pausing = new boolean[ n ];
+		for ( final List< Integer > gap : segmentation.gaps )
+		{
+			for ( final Integer edge : gap )
+			{
+				pausing[ edge.intValue() ] = true;
+			}
+		}
+		return pausing;
+	}
+
+	/**
+	 * Sections of 10 to 30 edges, alternating pauses and runs.
+	 */
+	private static boolean[] randomMotionTypes( final Random ran, final int n )
+	{
+		final boolean[] pausing = new boolean[ n ];
+		boolean pause = ran.nextBoolean();
+		int i = 0;
+		while ( i < n )
+		{
+			final int length = 10 + ran.nextInt( 21 );
+			for ( int j = 0; j < length && i < n; j++ )
+			{
+				pausing[ i++ ] = pause;
+			}
+			pause = !pause;
+		}
+		return pausing;
+	}
+
+	private static double[] randomVelocities( final Random ran, final boolean[] pausing )
+	{
+		final double[] velocities = new double[ pausing.length ];
+		for ( int i = 0; i < velocities.length; i++ )
+		{
+			velocities[ i ] = pausing[ i ] ? PAUSE_VELOCITY + PAUSE_NOISE * ran.nextGaussian() : RUN_VELOCITY + RUN_NOISE * ran.nextGaussian();
+		}
+		return velocities;
+	}
+
+	/*
+	 * BENCHMARK
+	 */
+
+	/**
+	 * Compares the processing time and the accuracy of the HMM and PELT
+	 * segmenters with the threshold segmenter, on a large synthetic model.
+	 * Each segmenter runs once to warm up, then is timed.
+	 */
+	public static void main( final String[] args )
+	{
+		final int nTracks = 2000;
+		final int nEdges = 500;
+		final Random ran = new Random( 1l );
+		final List< boolean[] > truths = new ArrayList< boolean[] >( nTracks );
+		final List< double[] > velocities = new ArrayList< double[] >( nTracks );
+		for ( int k = 0; k < nTracks; k++ )
+		{
+			final boolean[] truth = randomMotionTypes( ran, nEdges );
+			truths.add( truth );
+			velocities.add( randomVelocities( ran, truth ) );
+		}
+		final Model model = SyntheticModels.fromVelocities( velocities );
+
+		final MotionSegmenter[] segmenters = new MotionSegmenter[] {
+				new ThresholdSegmenter( 0.5 * ( PAUSE_VELOCITY + RUN_VELOCITY ), 3 ),
+				new HmmSegmenter(),
+				new PeltSegmenter() };
+
+		System.out.println( "Segmenting " + nTracks + " tracks of " + nEdges + " edges." );
+		for ( final MotionSegmenter segmenter : segmenters )
+		{
+			long time = 0;
+			for ( int run = 0; run < 2; run++ )
+			{
+				final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, segmenter, 0 );
+				if ( !thresholder.checkInput() || !thresholder.process() )
+				{
+					System.err.println( thresholder.getErrorMessage() );
+					return;
+				}
+				time = thresholder.getProcessingTime();
+			}
+
+			int nCorrect = 0;
+			for ( final DefaultWeightedEdge edge : model.getTrackModel().edgeSet() )
+			{
+				final Spot source = model.getTrackModel().getEdgeSource( edge );
+				final int k = ( int ) source.getFeature( Spot.POSITION_Y ).doubleValue();
+				final int i = source.getFeature( Spot.FRAME ).intValue();
+				final Double expected = truths.get( k )[ i ] ? MotionTypeEdgeAnalyzer.PAUSING : MotionTypeEdgeAnalyzer.RUNNING;
+				if ( expected.equals( model.getFeatureModel().getEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE ) ) )
+				{
+					nCorrect++;
+				}
+			}
+			System.out.println( String.format( "%s: %d ms, %.2f %% of the edges correctly segmented.", segmenter.getName(), time, 100. * nCorrect / ( nTracks * nEdges ) ) );
+		}
+	}
+}
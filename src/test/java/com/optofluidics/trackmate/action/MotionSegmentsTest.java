@@ -0,0 +1,121 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.TrackIndex;
+import com.optofluidics.trackmate.features.manual.TrackSegmentAnalyzer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+
+public class MotionSegmentsTest
+{
+
+	/**
+	 * Pauses of 1, 3, 2 and 5 frames, separated by runs of 2 frames at
+	 * velocity 2, 1 frame at velocity 4 and 3 frames at velocity 1.
+	 */
+	private static final double[] VELOCITIES = new double[] { 0, 2, 2, 0, 0, 0, 4, 0, 0, 1, 1, 1, 0, 0, 0, 0, 0 };
+
+	/**
+	 * The values of {@link MotionSegments#FEATURES} for {@link #VELOCITIES},
+	 * computed by hand. Pause percentiles are nearest-rank over the sorted
+	 * durations { 1, 2, 3, 5 }, the median run velocity is the upper median of
+	 * { 1, 2, 4 }, and the standard deviation is that of the population.
+	 */
+	private static final double[] EXPECTED_FEATURES = new double[] {
+			2., // Mean run duration: ( 2 + 1 + 3 ) / 3.
+			11. / 3., // Mean run length: ( 4 + 4 + 3 ) / 3.
+			1., // P10: rank ceil( 0.4 ) = 1.
+			2., // P50: rank ceil( 2 ) = 2.
+			5., // P90: rank ceil( 3.6 ) = 4.
+			7. / 3., // Mean run velocity.
+			2., // Median run velocity.
+			Math.sqrt( 14. ) / 3. // Deviations -1/3, -4/3 and 5/3.
+	};
+
+	@Test
+	public void testBuild()
+	{
+		final MotionSegments segments = build( VELOCITIES );
+		assertEquals( 7, segments.size() );
+		for ( int s = 0; s < segments.size(); s++ )
+		{
+			assertEquals( "Segments should alternate, starting with a pause.", s % 2 == 0, segments.pauses[ s ] );
+		}
+		assertArrayEquals( new int[] { 0, 1, 3, 6, 7, 9, 12 }, segments.startFrames );
+		assertArrayEquals( new int[] { 1, 3, 6, 7, 9, 12, 17 }, segments.endFrames );
+		assertArrayEquals( new double[] { 1, 2, 3, 1, 2, 3, 5 }, segments.durations, 1e-12 );
+		assertArrayEquals( new double[] { 0, 2, 0, 4, 0, 1, 0 }, segments.meanVelocities, 1e-12 );
+		assertArrayEquals( new double[] { 0, 4, 0, 4, 0, 3, 0 }, segments.displacements, 1e-12 );
+	}
+
+	@Test
+	public void testMeasure()
+	{
+		assertArrayEquals( EXPECTED_FEATURES, build( VELOCITIES ).measure(), 1e-12 );
+	}
+
+	@Test
+	public void testMeasureWithoutPause()
+	{
+		final double[] values = build( new double[] { 1, 3 } ).measure();
+		assertEquals( 2., values[ 0 ], 1e-12 );
+		assertEquals( 4., values[ 1 ], 1e-12 );
+		for ( int i = 2; i < 5; i++ )
+		{
+			assertTrue( "Pause percentiles of a track without pause should be NaN.", Double.isNaN( values[ i ] ) );
+		}
+		assertEquals( 2., values[ 5 ], 1e-12 );
+		assertEquals( 2., values[ 6 ], 1e-12 );
+		assertEquals( 0., values[ 7 ], 1e-12 );
+	}
+
+	@Test
+	public void testFeatures()
+	{
+		assertEquals( "The features measured should be the ones declared by the analyzer.", new TrackSegmentAnalyzer().getFeatures(), Arrays.asList( MotionSegments.FEATURES ) );
+
+		final Model model = SyntheticModels.fromVelocities( Collections.singletonList( VELOCITIES ) );
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, 0.5, 0, 0 );
+		if ( !thresholder.checkInput() || !thresholder.process() )
+		{
+			fail( thresholder.getErrorMessage() );
+		}
+
+		final Integer trackID = model.getTrackModel().trackIDs( true ).iterator().next();
+		assertNotNull( "Segments should be stored by the velocity analysis.", MotionSegments.of( model ).get( trackID ) );
+		final FeatureModel fm = model.getFeatureModel();
+		for ( int i = 0; i < EXPECTED_FEATURES.length; i++ )
+		{
+			final String feature = MotionSegments.FEATURES[ i ];
+			assertEquals( "Unexpected value for " + feature, EXPECTED_FEATURES[ i ], fm.getTrackFeature( trackID, feature ).doubleValue(), 1e-12 );
+		}
+	}
+
+	/**
+	 * Builds the segments of a single synthetic track, whose edges are
+	 * pausing when their velocity is 0.
+	 */
+	static MotionSegments build( final double[] velocities )
+	{
+		final Model model = SyntheticModels.fromVelocities( Collections.singletonList( velocities ) );
+		final Integer trackID = model.getTrackModel().trackIDs( true ).iterator().next();
+		final boolean[] pausing = new boolean[ velocities.length ];
+		for ( int i = 0; i < pausing.length; i++ )
+		{
+			pausing[ i ] = velocities[ i ] == 0;
+		}
+		final TrackDisplacements displacements = TrackDisplacements.collect( trackID, TrackIndex.get( model ) );
+		return MotionSegments.build( PauseRunSegmentation.fromMotionTypes( pausing ), displacements );
+	}
+}
@@ -0,0 +1,155 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class SegmentHistogramTest
+{
+
+	private static final double[] VALUES = new double[] { 0.5, 1.5, 1.5, 2.5 };
+
+	@Test
+	public void testPercentiles()
+	{
+		final SegmentHistogram histogram = create( 1., VALUES );
+		assertEquals( 3, histogram.getNBins() );
+		assertEquals( 1, histogram.getBinCount( 0 ) );
+		assertEquals( 2, histogram.getBinCount( 1 ) );
+		assertEquals( 1, histogram.getBinCount( 2 ) );
+		assertEquals( 0, histogram.getBinCount( 100 ) );
+		assertEquals( 1.5, histogram.getBinCenter( 1 ), 0 );
+
+		// Linear interpolation within the bin holding the rank p * n.
+		assertEquals( 1., histogram.percentile( 0.25 ), 1e-12 );
+		assertEquals( 1.5, histogram.percentile( 0.5 ), 1e-12 );
+		assertEquals( 2., histogram.percentile( 0.75 ), 1e-12 );
+
+		// Clamped to the values added.
+		assertEquals( 0.5, histogram.percentile( 0. ), 0 );
+		assertEquals( 2.5, histogram.percentile( 1. ), 0 );
+	}
+
+	@Test
+	public void testMoments()
+	{
+		final SegmentHistogram histogram = create( 1., VALUES );
+		assertEquals( 4, histogram.getCount() );
+		assertEquals( 1.5, histogram.getMean(), 1e-12 );
+		assertEquals( Math.sqrt( 0.5 ), histogram.getStd(), 1e-12 );
+		assertEquals( 0.5, histogram.getMin(), 0 );
+		assertEquals( 2.5, histogram.getMax(), 0 );
+	}
+
+	@Test
+	public void testSpecialValues()
+	{
+		final SegmentHistogram histogram = create( 2., Double.NaN, Double.POSITIVE_INFINITY, -1., 3. );
+		assertEquals( "Values that are not finite should be ignored.", 2, histogram.getCount() );
+		assertEquals( "Negative values should go to the first bin.", 1, histogram.getBinCount( 0 ) );
+		assertEquals( 1, histogram.getBinCount( 1 ) );
+		assertEquals( -1., histogram.getMin(), 0 );
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final SegmentHistogram histogram = new SegmentHistogram( 1. );
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getNBins() );
+		assertTrue( Double.isNaN( histogram.percentile( 0.5 ) ) );
+		assertTrue( Double.isNaN( histogram.getMean() ) );
+		assertTrue( Double.isNaN( histogram.getStd() ) );
+		assertTrue( Double.isNaN( histogram.getMin() ) );
+		assertTrue( Double.isNaN( histogram.getMax() ) );
+	}
+
+	@Test
+	public void testMerge()
+	{
+		final double[] all = new double[ 200 ];
+		final SegmentHistogram first = new SegmentHistogram( 0.25 );
+		final SegmentHistogram second = new SegmentHistogram( 0.25 );
+		for ( int i = 0; i < all.length; i++ )
+		{
+			// Both halves with different ranges, so that bins are added.
+			all[ i ] = i < 150 ? 1e3 + Math.sin( i ) : 1e3 + 20 + Math.cos( i );
+			( i < 150 ? first : second ).add( all[ i ] );
+		}
+		final SegmentHistogram expected = create( 0.25, all );
+
+		first.merge( second );
+		assertHistogramEquals( expected, first );
+
+		// Merging an empty histogram changes nothing.
+		first.merge( new SegmentHistogram( 0.25 ) );
+		assertHistogramEquals( expected, first );
+
+		// Merging into an empty histogram copies.
+		final SegmentHistogram empty = new SegmentHistogram( 0.25 );
+		empty.merge( expected );
+		assertHistogramEquals( expected, empty );
+	}
+
+	@Test
+	public void testMergeDifferentBins()
+	{
+		try
+		{
+			new SegmentHistogram( 1. ).merge( new SegmentHistogram( 2. ) );
+			fail( "Merging histograms with different bin widths should fail." );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testInvalidBinWidth()
+	{
+		for ( final double binWidth : new double[] { 0., -1., Double.NaN } )
+		{
+			try
+			{
+				new SegmentHistogram( binWidth );
+				fail( "A bin width of " + binWidth + " should be rejected." );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				// Expected.
+			}
+		}
+	}
+
+	static void assertHistogramEquals( final SegmentHistogram expected, final SegmentHistogram actual )
+	{
+		assertEquals( expected.getBinWidth(), actual.getBinWidth(), 0 );
+		assertEquals( expected.getNBins(), actual.getNBins() );
+		for ( int i = 0; i < expected.getNBins(); i++ )
+		{
+			assertEquals( "Unexpected count in bin " + i, expected.getBinCount( i ), actual.getBinCount( i ) );
+		}
+		assertEquals( expected.getCount(), actual.getCount() );
+		assertEquals( expected.getMean(), actual.getMean(), 1e-9 );
+		assertEquals( expected.getStd(), actual.getStd(), 1e-9 );
+		assertEquals( expected.getMin(), actual.getMin(), 0 );
+		assertEquals( expected.getMax(), actual.getMax(), 0 );
+		for ( final double p : new double[] { 0.1, 0.5, 0.9 } )
+		{
+			assertEquals( expected.percentile( p ), actual.percentile( p ), 1e-12 );
+		}
+	}
+
+	private static SegmentHistogram create( final double binWidth, final double... values )
+	{
+		final SegmentHistogram histogram = new SegmentHistogram( binWidth );
+		for ( final double value : values )
+		{
+			histogram.add( value );
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,143 @@
+package com.optofluidics.trackmate.action;
+
+import static com.optofluidics.trackmate.action.SegmentHistogramTest.assertHistogramEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+
+import fiji.plugin.trackmate.Model;
+
+public class SegmentStatisticsTest
+{
+
+	/**
+	 * Pauses of 1, 3, 2 and 5 frames, and runs of 2, 1 and 3 frames with
+	 * lengths 4, 4 and 3.
+	 */
+	private static final double[] FIRST = new double[] { 0, 2, 2, 0, 0, 0, 4, 0, 0, 1, 1, 1, 0, 0, 0, 0, 0 };
+
+	/**
+	 * Runs of 3 and 2 frames with lengths 9 and 2, around a pause of 4 frames.
+	 */
+	private static final double[] SECOND = new double[] { 3, 3, 3, 0, 0, 0, 0, 1, 1 };
+
+	@Test
+	public void testAdd()
+	{
+		final SegmentStatistics statistics = new SegmentStatistics( 1., 1., 0.5 );
+		statistics.add( MotionSegmentsTest.build( FIRST ) );
+		assertEquals( 1, statistics.getNTracks() );
+
+		assertEquals( 4, statistics.pauseDurations.getCount() );
+		assertEquals( 11. / 4., statistics.pauseDurations.getMean(), 1e-12 );
+		assertEquals( 1., statistics.pauseDurations.getMin(), 0 );
+		assertEquals( 5., statistics.pauseDurations.getMax(), 0 );
+		// One pause per bin 1, 2, 3 and 5: the rank 2 is at the end of bin 2.
+		assertEquals( 3., statistics.pauseDurations.percentile( 0.5 ), 1e-12 );
+		assertEquals( 1, statistics.pauseDurations.getBinCount( 1 ) );
+		assertEquals( 0, statistics.pauseDurations.getBinCount( 4 ) );
+
+		assertEquals( 3, statistics.runDurations.getCount() );
+		assertEquals( 2., statistics.runDurations.getMean(), 1e-12 );
+		assertEquals( 3, statistics.runLengths.getCount() );
+		assertEquals( 11. / 3., statistics.runLengths.getMean(), 1e-12 );
+		assertEquals( 2, statistics.runLengths.getBinCount( 4 ) );
+		assertEquals( 3, statistics.runVelocities.getCount() );
+		assertEquals( 7. / 3., statistics.runVelocities.getMean(), 1e-12 );
+		assertEquals( 1., statistics.runVelocities.getMin(), 0 );
+		assertEquals( 4., statistics.runVelocities.getMax(), 0 );
+	}
+
+	@Test
+	public void testMerge()
+	{
+		final MotionSegments first = MotionSegmentsTest.build( FIRST );
+		final MotionSegments second = MotionSegmentsTest.build( SECOND );
+
+		final SegmentStatistics all = new SegmentStatistics( 1., 1., 0.5 );
+		all.add( first );
+		all.add( second );
+
+		final SegmentStatistics merged = new SegmentStatistics( 1., 1., 0.5 );
+		merged.add( first );
+		final SegmentStatistics other = new SegmentStatistics( 1., 1., 0.5 );
+		other.add( second );
+		merged.merge( other );
+
+		assertEquals( 2, merged.getNTracks() );
+		assertHistogramEquals( all.pauseDurations, merged.pauseDurations );
+		assertHistogramEquals( all.runDurations, merged.runDurations );
+		assertHistogramEquals( all.runLengths, merged.runLengths );
+		assertHistogramEquals( all.runVelocities, merged.runVelocities );
+		assertEquals( 5, merged.runDurations.getCount() );
+		assertEquals( 5., merged.pauseDurations.getMax(), 0 );
+		assertEquals( 9., merged.runLengths.getMax(), 0 );
+	}
+
+	@Test
+	public void testAddTracks()
+	{
+		final Model model = SyntheticModels.fromVelocities( Arrays.asList( FIRST, SECOND ) );
+		final List< Integer > trackIDs = new ArrayList< Integer >( model.getTrackModel().trackIDs( true ) );
+
+		// Only the first track is analyzed.
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, 0.5, 0, 0 );
+		thresholder.setTrackIDs( Collections.singleton( trackIDs.get( 0 ) ) );
+		if ( !thresholder.checkInput() || !thresholder.process() )
+		{
+			fail( thresholder.getErrorMessage() );
+		}
+
+		final SegmentStatistics statistics = new SegmentStatistics( 1., 1., 0.5 );
+		statistics.addTracks( model );
+		assertEquals( "Tracks that were not analyzed should be skipped.", 1, statistics.getNTracks() );
+
+		final SegmentStatistics expected = new SegmentStatistics( 1., 1., 0.5 );
+		expected.add( MotionSegments.of( model ).get( trackIDs.get( 0 ) ) );
+		assertHistogramEquals( expected.pauseDurations, statistics.pauseDurations );
+		assertHistogramEquals( expected.runVelocities, statistics.runVelocities );
+	}
+
+	@Test
+	public void testCreate()
+	{
+		final Model model = SyntheticModels.fromVelocities( Arrays.asList( new double[] { 2, 2 }, new double[] { 4, 4 }, new double[] { 6, 6 } ) );
+		new TrackLinearVelocityAnalyzer().process( model.getTrackModel().trackIDs( true ), model );
+
+		// Median linear velocity of 4.
+		final SegmentStatistics statistics = SegmentStatistics.create( model, 0.5 );
+		assertEquals( 0.5, statistics.pauseDurations.getBinWidth(), 0 );
+		assertEquals( 0.5, statistics.runDurations.getBinWidth(), 0 );
+		assertEquals( 2., statistics.runLengths.getBinWidth(), 1e-12 );
+		assertEquals( 0.4, statistics.runVelocities.getBinWidth(), 1e-12 );
+	}
+
+	@Test
+	public void testCreateDefaults()
+	{
+		// Stationary tracks, and no frame interval.
+		final Model stationary = SyntheticModels.fromVelocities( Arrays.asList( new double[] { 0, 0 }, new double[] { 0, 0, 0 } ) );
+		new TrackLinearVelocityAnalyzer().process( stationary.getTrackModel().trackIDs( true ), stationary );
+		checkDefaults( SegmentStatistics.create( stationary, 0. ) );
+		checkDefaults( SegmentStatistics.create( stationary, Double.NaN ) );
+
+		// Empty model.
+		checkDefaults( SegmentStatistics.create( new Model(), Double.POSITIVE_INFINITY ) );
+	}
+
+	private static void checkDefaults( final SegmentStatistics statistics )
+	{
+		assertEquals( 1., statistics.pauseDurations.getBinWidth(), 0 );
+		assertEquals( 1., statistics.runDurations.getBinWidth(), 0 );
+		assertEquals( 1., statistics.runLengths.getBinWidth(), 0 );
+		assertEquals( 0.1, statistics.runVelocities.getBinWidth(), 0 );
+	}
+}
@@ -0,0 +1,253 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
+import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
+import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+public class StreamingMotionDetectorTest
+{
+
+	private static final double VELOCITY_THRESHOLD = 0.5;
+
+	private static final int MIN_CONSECUTIVE_FRAMES = 2;
+
+	private static final String[] TRACK_FEATURES = new String[] {
+			TrackPausingAnalyzer.NUMBER_OF_PAUSES,
+			TrackPausingAnalyzer.PAUSE_MEAN_DURATION,
+			TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES,
+			TrackPausingAnalyzer.N_SPOTS_IN_RUNS };
+
+	@Test
+	public void testCheckInput()
+	{
+		final Model model = new Model();
+		assertTrue( new StreamingMotionDetector( model, VELOCITY_THRESHOLD, MIN_CONSECUTIVE_FRAMES, 2 ).checkInput() );
+		assertFalse( new StreamingMotionDetector( model, VELOCITY_THRESHOLD, -1, 2 ).checkInput() );
+		assertFalse( new StreamingMotionDetector( model, VELOCITY_THRESHOLD, 0, 2 ).checkInput() );
+		assertFalse( new StreamingMotionDetector( model, -1, MIN_CONSECUTIVE_FRAMES, 2 ).checkInput() );
+		assertFalse( new StreamingMotionDetector( model, VELOCITY_THRESHOLD, MIN_CONSECUTIVE_FRAMES, -1 ).checkInput() );
+	}
+
+	@Test
+	public void testSameAsOfflineNoSmoothing()
+	{
+		checkSameAsOffline( 0 );
+	}
+
+	@Test
+	public void testSameAsOfflineWithSmoothing()
+	{
+		checkSameAsOffline( 4 );
+	}
+
+	@Test
+	public void testBranchingTrack()
+	{
+		final Model model = new Model();
+		SyntheticModels.declareEdgeFeatures( model );
+		final StreamingMotionDetector detector = new StreamingMotionDetector( model, VELOCITY_THRESHOLD, MIN_CONSECUTIVE_FRAMES, 0 );
+		if ( !detector.checkInput() )
+		{
+			fail( detector.getErrorMessage() );
+		}
+		model.addModelChangeListener( detector );
+
+		// A track that splits in two branches at frame 5.
+		Spot a = addSpot( model, 0, 0, 0, null );
+		for ( int t = 1; t <= 5; t++ )
+		{
+			a = addSpot( model, t, 0, t, a );
+		}
+		Spot b = a;
+		for ( int t = 6; t <= 15; t++ )
+		{
+			a = addSpot( model, a.getFeature( Spot.POSITION_X ).doubleValue() + 1, 0, t, a );
+			b = addSpot( model, b.getFeature( Spot.POSITION_X ).doubleValue() + 0.1, 1, t, b );
+		}
+		detector.flush();
+
+		assertEquals( 1, model.getTrackModel().nTracks( false ) );
+		final Integer trackID = model.getTrackModel().trackIDOf( a );
+		for ( final DefaultWeightedEdge edge : model.getTrackModel().trackEdges( trackID ) )
+		{
+			assertNotNull( "Edge " + edge + " should be labeled.", model.getFeatureModel().getEdgeFeature( edge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE ) );
+		}
+		for ( final String feature : TRACK_FEATURES )
+		{
+			assertTrue( "Feature " + feature + " of a branching track should be NaN.", Double.isNaN( model.getFeatureModel().getTrackFeature( trackID, feature ).doubleValue() ) );
+		}
+	}
+
+	/**
+	 * Feeds the same tracks, frame by frame, to a streaming detector, and to
+	 * the offline thresholder once complete. Sections are long enough for the
+	 * two to agree on every edge.
+	 */
+	private static void checkSameAsOffline( final int smoothingWindow )
+	{
+		final Random ran = new Random( 3l );
+		final List< double[] > velocities = new ArrayList< double[] >();
+		for ( int k = 0; k < 10; k++ )
+		{
+			velocities.add( randomVelocities( ran, 80 ) );
+		}
+
+		final Model offline = SyntheticModels.fromVelocities( velocities );
+		final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( offline, VELOCITY_THRESHOLD, MIN_CONSECUTIVE_FRAMES, smoothingWindow );
+		if ( !thresholder.checkInput() || !thresholder.process() )
+		{
+			fail( thresholder.getErrorMessage() );
+		}
+
+		final Model online = new Model();
+		SyntheticModels.declareEdgeFeatures( online );
+		final StreamingMotionDetector detector = new StreamingMotionDetector( online, VELOCITY_THRESHOLD, MIN_CONSECUTIVE_FRAMES, smoothingWindow );
+		if ( !detector.checkInput() )
+		{
+			fail( detector.getErrorMessage() );
+		}
+		online.addModelChangeListener( detector );
+		final Spot[] tips = new Spot[ velocities.size() ];
+		for ( int k = 0; k < tips.length; k++ )
+		{
+			tips[ k ] = addSpot( online, 0, k, 0, null );
+		}
+		for ( int t = 1; t <= 80; t++ )
+		{
+			online.beginUpdate();
+			try
+			{
+				for ( int k = 0; k < tips.length; k++ )
+				{
+					final double x = tips[ k ].getFeature( Spot.POSITION_X ).doubleValue() + velocities.get( k )[ t - 1 ];
+					final Spot spot = createSpot( x, k, t );
+					online.addSpotTo( spot, Integer.valueOf( t ) );
+					online.addEdge( tips[ k ], spot, 1 );
+					tips[ k ] = spot;
+				}
+			}
+			finally
+			{
+				online.endUpdate();
+			}
+		}
+		detector.flush();
+
+		final Map< String, DefaultWeightedEdge > onlineEdges = edgesByPosition( online );
+		final Map< String, DefaultWeightedEdge > offlineEdges = edgesByPosition( offline );
+		assertEquals( offlineEdges.size(), onlineEdges.size() );
+		for ( final String key : offlineEdges.keySet() )
+		{
+			final DefaultWeightedEdge offlineEdge = offlineEdges.get( key );
+			final DefaultWeightedEdge onlineEdge = onlineEdges.get( key );
+			assertEquals( "Unexpected smoothed velocity for edge " + key, offline.getFeatureModel().getEdgeFeature( offlineEdge, EdgeSmoothedVelocityAnalyzer.SMOOTHED_VELOCITY ).doubleValue(),
+					online.getFeatureModel().getEdgeFeature( onlineEdge, EdgeSmoothedVelocityAnalyzer.SMOOTHED_VELOCITY ).doubleValue(), 1e-9 );
+			assertEquals( "Unexpected motion type for edge " + key, offline.getFeatureModel().getEdgeFeature( offlineEdge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE ),
+					online.getFeatureModel().getEdgeFeature( onlineEdge, MotionTypeEdgeAnalyzer.MOVEMENT_TYPE ) );
+		}
+
+		for ( int k = 0; k < tips.length; k++ )
+		{
+			final Integer onlineID = online.getTrackModel().trackIDOf( tips[ k ] );
+			final Integer offlineID = offline.getTrackModel().trackIDOf( offlineEdges.get( k + " 0" ) );
+			for ( final String feature : TRACK_FEATURES )
+			{
+				assertEquals( "Unexpected " + feature + " for track " + k, offline.getFeatureModel().getTrackFeature( offlineID, feature ).doubleValue(),
+						online.getFeatureModel().getTrackFeature( onlineID, feature ).doubleValue(), 1e-9 );
+			}
+		}
+	}
+
+	/**
+	 * Maps the edges of a model built with one track per Y position to
+	 * "<i>track</i> <i>frame</i>" keys, using the Y position and frame of their
+	 * first spot.
+	 */
+	private static Map< String, DefaultWeightedEdge > edgesByPosition( final Model model )
+	{
+		final Map< String, DefaultWeightedEdge > edges = new HashMap< String, DefaultWeightedEdge >();
+		for ( final DefaultWeightedEdge edge : model.getTrackModel().edgeSet() )
+		{
+			Spot source = model.getTrackModel().getEdgeSource( edge );
+			final Spot target = model.getTrackModel().getEdgeTarget( edge );
+			if ( source.diffTo( target, Spot.FRAME ) > 0 )
+			{
+				source = target;
+			}
+			final int k = ( int ) source.getFeature( Spot.POSITION_Y ).doubleValue();
+			final int t = source.getFeature( Spot.FRAME ).intValue();
+			edges.put( k + " " + t, edge );
+		}
+		return edges;
+	}
+
+	/**
+	 * Sections of 6 to 15 edges, alternating pauses at 0.1 and runs at 1. The
+	 * last section is not cut short.
+	 */
+	private static double[] randomVelocities( final Random ran, final int n )
+	{
+		final double[] velocities = new double[ n ];
+		boolean pause = ran.nextBoolean();
+		int i = 0;
+		while ( i < n )
+		{
+			final int remaining = n - i;
+			final int length = remaining < 12 ? remaining : 6 + ran.nextInt( Math.min( 10, remaining - 11 ) );
+			for ( int j = 0; j < length; j++ )
+			{
+				velocities[ i++ ] = pause ? 0.1 : 1;
+			}
+			pause = !pause;
+		}
+		return velocities;
+	}
+
+	private static Spot createSpot( final double x, final double y, final int t )
+	{
+		final Spot spot = new Spot( x, y, 0, 1, 1 );
+		spot.putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+		return spot;
+	}
+
+	/**
+	 * Adds a spot, and an edge from the specified previous spot if it is not
+	 * <code>null</code>, in a single model update.
+	 */
+	private static Spot addSpot( final Model model, final double x, final double y, final int t, final Spot previous )
+	{
+		final Spot spot = createSpot( x, y, t );
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( spot, Integer.valueOf( t ) );
+			if ( null != previous )
+			{
+				model.addEdge( previous, spot, 1 );
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return spot;
+	}
+}
@@ -0,0 +1,143 @@
+package com.optofluidics.trackmate.action;
+
+import java.util.List;
+
+import com.optofluidics.trackmate.features.manual.EdgeSmoothedVelocityAnalyzer;
+import com.optofluidics.trackmate.features.manual.MotionTypeEdgeAnalyzer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.edges.EdgeTimeLocationAnalyzer;
+import fiji.plugin.trackmate.features.edges.EdgeVelocityAnalyzer;
+
+/**
+ * Builds small models of linear tracks with known velocities, shared by the
+ * velocity analysis tests.
+ * <p>
+ * Each track moves along X only, one frame per spot, and lies at a Y position
+ * equal to its index, so that the instantaneous velocity of an edge is exactly
+ * the velocity it was created with.
+ */
+final class SyntheticModels
+{
+
+	private SyntheticModels()
+	{}
+
+	/**
+	 * Creates a model with one track per velocity array. Track <i>k</i> has
+	 * <code>velocities[k].length + 1</code> spots, starting at frame 0, and
+	 * edge <i>i</i> moves by <code>velocities[k][i]</code>.
+	 *
+	 * @param velocities
+	 *            the edge velocities of each track.
+	 * @return a new model, with the edge features declared and the time and
+	 *         velocity edge features computed.
+	 */
+	static Model fromVelocities( final List< double[] > velocities )
+	{
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int k = 0; k < velocities.size(); k++ )
+			{
+				final double[] v = velocities.get( k );
+				double x = 0;
+				Spot previous = addSpot( model, x, k, 0 );
+				for ( int t = 1; t <= v.length; t++ )
+				{
+					x += v[ t - 1 ];
+					final Spot spot = addSpot( model, x, k, t );
+					model.addEdge( previous, spot, 1 );
+					previous = spot;
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		computeEdgeFeatures( model );
+		return model;
+	}
+
+	/**
+	 * Creates a model with one track per row of sections. Section <i>i</i> of
+	 * track <i>k</i> has <code>sectionLengths[k][i]</code> spots, each reached
+	 * from the previous spot with the velocity
+	 * <code>sectionVelocities[k][i]</code>. Tracks follow each other in time.
+	 *
+	 * @param sectionLengths
+	 *            the number of spots in each section.
+	 * @param sectionVelocities
+	 *            the velocity of each section.
+	 * @return a new model, with the edge features declared and the time and
+	 *         velocity edge features computed.
+	 */
+	static Model fromSections( final int[][] sectionLengths, final double[][] sectionVelocities )
+	{
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			int t = 0;
+			for ( int k = 0; k < sectionLengths.length; k++ )
+			{
+				Spot previous = null;
+				double x = 0;
+				for ( int i = 0; i < sectionLengths[ k ].length; i++ )
+				{
+					for ( int j = 0; j < sectionLengths[ k ][ i ]; j++ )
+					{
+						x += sectionVelocities[ k ][ i ];
+						final Spot spot = addSpot( model, x, k, t );
+						if ( previous != null )
+						{
+							model.addEdge( previous, spot, 1 );
+						}
+						previous = spot;
+						t++;
+					}
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		computeEdgeFeatures( model );
+		return model;
+	}
+
+	/**
+	 * Declares the edge features used by the velocity analysis.
+	 *
+	 * @param model
+	 *            the model to declare the features in.
+	 */
+	static void declareEdgeFeatures( final Model model )
+	{
+		final FeatureModel fm = model.getFeatureModel();
+		fm.declareEdgeFeatures( EdgeTimeLocationAnalyzer.FEATURES, EdgeTimeLocationAnalyzer.FEATURE_NAMES, EdgeTimeLocationAnalyzer.FEATURE_SHORT_NAMES, EdgeTimeLocationAnalyzer.FEATURE_DIMENSIONS, EdgeTimeLocationAnalyzer.IS_INT );
+		fm.declareEdgeFeatures( EdgeVelocityAnalyzer.FEATURES, EdgeVelocityAnalyzer.FEATURE_NAMES, EdgeVelocityAnalyzer.FEATURE_SHORT_NAMES, EdgeVelocityAnalyzer.FEATURE_DIMENSIONS, EdgeVelocityAnalyzer.IS_INT );
+		fm.declareEdgeFeatures( MotionTypeEdgeAnalyzer.FEATURES, MotionTypeEdgeAnalyzer.FEATURE_NAMES, MotionTypeEdgeAnalyzer.FEATURE_SHORT_NAMES, MotionTypeEdgeAnalyzer.FEATURE_DIMENSIONS, MotionTypeEdgeAnalyzer.IS_INT );
+		fm.declareEdgeFeatures( EdgeSmoothedVelocityAnalyzer.FEATURES, EdgeSmoothedVelocityAnalyzer.FEATURE_NAMES, EdgeSmoothedVelocityAnalyzer.FEATURE_SHORT_NAMES, EdgeSmoothedVelocityAnalyzer.FEATURE_DIMENSIONS, EdgeSmoothedVelocityAnalyzer.IS_INT );
+	}
+
+	private static void computeEdgeFeatures( final Model model )
+	{
+		declareEdgeFeatures( model );
+		new EdgeTimeLocationAnalyzer().process( model.getTrackModel().edgeSet(), model );
+		new EdgeVelocityAnalyzer().process( model.getTrackModel().edgeSet(), model );
+	}
+
+	private static Spot addSpot( final Model model, final double x, final double y, final int t )
+	{
+		final Spot spot = new Spot( x, y, 0, 1, 1 );
+		spot.putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+		model.addSpotTo( spot, t );
+		return spot;
+	}
+}
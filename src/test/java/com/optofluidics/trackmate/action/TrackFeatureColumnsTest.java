@@ -0,0 +1,108 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+public class TrackFeatureColumnsTest
+{
+
+	private static final String UNDECLARED = "UNDECLARED_FEATURE";
+
+	@Test
+	public void testResolve()
+	{
+		final Model model = createModel( 3 );
+		final TrackFeatureColumns columns = new TrackFeatureColumns( model, Arrays.asList( TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY, UNDECLARED, TrackIndexAnalyzer.TRACK_ID ) );
+		assertEquals( 2, columns.size() );
+		assertEquals( Arrays.asList( UNDECLARED ), columns.getMissingFeatures() );
+		assertEquals( TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY, columns.getColumns().get( 0 ).feature );
+		assertEquals( false, columns.getColumns().get( 0 ).isInt );
+		assertEquals( true, columns.getColumns().get( 1 ).isInt );
+	}
+
+	@Test
+	public void testParallelRead()
+	{
+		final int nTracks = 500;
+		final Model model = createModel( nTracks );
+		final Set< Integer > trackIDs = model.getTrackModel().trackIDs( true );
+		final Integer[] ids = trackIDs.toArray( new Integer[ trackIDs.size() ] );
+		final TrackFeatureColumns columns = new TrackFeatureColumns( model, Arrays.asList( TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY, TrackIndexAnalyzer.TRACK_ID ) );
+
+		final boolean[][] serialMissing = new boolean[ columns.size() ][ ids.length ];
+		final double[][] serial = columns.read( ids, 1, serialMissing );
+		final boolean[][] parallelMissing = new boolean[ columns.size() ][ ids.length ];
+		final double[][] parallel = columns.read( ids, 8, parallelMissing );
+
+		for ( int c = 0; c < columns.size(); c++ )
+		{
+			assertArrayEquals( serial[ c ], parallel[ c ], 0 );
+			assertTrue( Arrays.equals( serialMissing[ c ], parallelMissing[ c ] ) );
+		}
+
+		final FeatureModel fm = model.getFeatureModel();
+		for ( int row = 0; row < ids.length; row++ )
+		{
+			final Double expected = fm.getTrackFeature( ids[ row ], TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY );
+			assertEquals( null == expected, parallelMissing[ 0 ][ row ] );
+			if ( null != expected )
+			{
+				assertEquals( expected.doubleValue(), parallel[ 0 ][ row ], 0 );
+			}
+			else
+			{
+				assertTrue( Double.isNaN( parallel[ 0 ][ row ] ) );
+			}
+			assertEquals( ids[ row ].doubleValue(), parallel[ 1 ][ row ], 0 );
+		}
+	}
+
+	/**
+	 * Creates a model with the specified number of tracks. The linear velocity
+	 * of one track in 3 is a number, of one in 3 is <code>NaN</code>, and of
+	 * the others is missing.
+	 */
+	static Model createModel( final int nTracks )
+	{
+		final List< double[] > velocities = new ArrayList< double[] >( nTracks );
+		for ( int k = 0; k < nTracks; k++ )
+		{
+			velocities.add( new double[] { 1., 2. } );
+		}
+		final Model model = SyntheticModels.fromVelocities( velocities );
+		final FeatureModel fm = model.getFeatureModel();
+		fm.declareTrackFeatures( TrackLinearVelocityAnalyzer.FEATURES, TrackLinearVelocityAnalyzer.FEATURE_NAMES, TrackLinearVelocityAnalyzer.FEATURE_SHORT_NAMES, TrackLinearVelocityAnalyzer.FEATURE_DIMENSIONS, TrackLinearVelocityAnalyzer.IS_INT );
+		fm.declareTrackFeatures( TrackIndexAnalyzer.FEATURES, TrackIndexAnalyzer.FEATURE_NAMES, TrackIndexAnalyzer.FEATURE_SHORT_NAMES, TrackIndexAnalyzer.FEATURE_DIMENSIONS, TrackIndexAnalyzer.IS_INT );
+		int k = 0;
+		for ( final Integer id : model.getTrackModel().trackIDs( true ) )
+		{
+			fm.putTrackFeature( id, TrackIndexAnalyzer.TRACK_ID, Double.valueOf( id.doubleValue() ) );
+			switch ( k++ % 3 )
+			{
+			case 0:
+				fm.putTrackFeature( id, TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY, Double.valueOf( 0.5 * k ) );
+				break;
+			case 1:
+				fm.putTrackFeature( id, TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY, Double.valueOf( Double.NaN ) );
+				break;
+			default:
+				break;
+			}
+		}
+		return model;
+	}
+}
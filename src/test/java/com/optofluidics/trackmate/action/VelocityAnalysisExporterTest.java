@@ -0,0 +1,89 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+public class VelocityAnalysisExporterTest
+{
+
+	@Test
+	public void testExportToCsv() throws IOException
+	{
+		final Model model = TrackFeatureColumnsTest.createModel( 30 );
+		final VelocityAnalysisExporter exporter = new VelocityAnalysisExporter( model, null );
+		exporter.setLogger( Logger.VOID_LOGGER );
+		exporter.setNumThreads( 4 );
+
+		final File file = File.createTempFile( "VelocityAnalysisExporterTest", ".csv" );
+		file.deleteOnExit();
+		exporter.exportToCsv( file );
+
+		final List< String > lines = new ArrayList< String >();
+		final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+		try
+		{
+			String line;
+			while ( null != ( line = reader.readLine() ) )
+			{
+				lines.add( line );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		final String[] headers = lines.get( 0 ).split( ",", -1 );
+		int velocityColumn = -1;
+		int idColumn = -1;
+		for ( int c = 0; c < headers.length; c++ )
+		{
+			if ( headers[ c ].startsWith( TrackLinearVelocityAnalyzer.FEATURE_NAMES.get( TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY ) ) )
+			{
+				velocityColumn = c;
+			}
+			else if ( headers[ c ].startsWith( TrackIndexAnalyzer.FEATURE_NAMES.get( TrackIndexAnalyzer.TRACK_ID ) ) )
+			{
+				idColumn = c;
+			}
+		}
+		assertEquals( "Unexpected headers: " + lines.get( 0 ), 3, headers.length );
+		assertEquals( model.getTrackModel().nTracks( true ) + 1, lines.size() );
+
+		final FeatureModel fm = model.getFeatureModel();
+		for ( int row = 1; row < lines.size(); row++ )
+		{
+			final String[] cells = lines.get( row ).split( ",", -1 );
+			final Integer id = Integer.valueOf( cells[ idColumn ] );
+			assertEquals( model.getTrackModel().name( id ), cells[ 0 ] );
+			final Double val = fm.getTrackFeature( id, TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY );
+			if ( null == val )
+			{
+				assertEquals( "Missing values should be empty cells.", "", cells[ velocityColumn ] );
+			}
+			else if ( val.isNaN() )
+			{
+				assertEquals( "NaN values should be written as NaN.", "NaN", cells[ velocityColumn ] );
+			}
+			else
+			{
+				assertEquals( val.doubleValue(), Double.parseDouble( cells[ velocityColumn ] ), 1e-6 );
+			}
+		}
+	}
+}
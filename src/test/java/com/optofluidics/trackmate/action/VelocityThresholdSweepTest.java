@@ -0,0 +1,196 @@
+package com.optofluidics.trackmate.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.manual.TrackPausingAnalyzer;
+
+import fiji.plugin.trackmate.Model;
+
+public class VelocityThresholdSweepTest
+{
+
+	private static final String[] FEATURES = new String[] {
+			TrackPausingAnalyzer.NUMBER_OF_PAUSES,
+			TrackPausingAnalyzer.PAUSE_MEAN_DURATION,
+			TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES,
+			TrackPausingAnalyzer.LINEAR_VELOCITY_NO_PAUSES,
+			TrackPausingAnalyzer.N_SPOTS_IN_RUNS
+	};
+
+	@Test
+	public void testGrid()
+	{
+		final Model model = createModel();
+		final VelocityThresholdSweep sweep = new VelocityThresholdSweep( model, new double[] { 0.8, 0.2, 0.8 }, new int[] { 3, 1 }, new int[] { 4, 0, 2 } );
+		if ( !sweep.checkInput() || !sweep.process() )
+		{
+			fail( sweep.getErrorMessage() );
+		}
+
+		assertEquals( 2 * 2 * 3, sweep.getGridSize() );
+		for ( int g = 0; g < sweep.getGridSize(); g++ )
+		{
+			final int it = indexOf( sweep.getVelocityThresholds(), sweep.getVelocityThreshold( g ) );
+			final int im = indexOf( sweep.getMinConsecutiveFrames(), sweep.getMinConsecutiveFrames( g ) );
+			final int iw = indexOf( sweep.getSmoothingWindows(), sweep.getSmoothingWindow( g ) );
+			assertEquals( g, sweep.gridIndex( it, im, iw ) );
+		}
+	}
+
+	/**
+	 * Checks the sweep against pauses and runs counted by hand on the first
+	 * three tracks of the model, without smoothing. The first edge of a track
+	 * goes to the spot starting its second frame, so the first section of a
+	 * track has one edge less than it has spots.
+	 */
+	@Test
+	public void testHandComputedValues()
+	{
+		final Model model = createModel();
+		final VelocityThresholdSweep sweep = new VelocityThresholdSweep( model, new double[] { 0.05, 0.5 }, new int[] { 1 }, new int[] { 0 } );
+		if ( !sweep.checkInput() || !sweep.process() )
+		{
+			fail( sweep.getErrorMessage() );
+		}
+
+		/*
+		 * Keyed by number of edges, which is different for each track. For
+		 * each threshold: number of pauses, mean pause duration, mean velocity
+		 * without pauses and number of spots in runs.
+		 */
+		final Map< Integer, double[][] > expected = new HashMap< Integer, double[][] >();
+		// Edges: 4 x 1, 4 x 0, 2 x 1, 5 x 0, 5 x 1, 2 x 0.1, 5 x 1.
+		expected.put( Integer.valueOf( 27 ), new double[][] {
+				{ 2, 3.5, 16.2 / 18, 21 },
+				{ 3, 8d / 3, 1, 20 } } );
+		// Edges: 1 x 0.6, 4 x 0, 2 x 1, 5 x 0.3, 5 x 1, 2 x 0, 5 x 0.7.
+		// The first edge is too short to be a run and joins the first pause.
+		expected.put( Integer.valueOf( 24 ), new double[][] {
+				{ 2, 2.5, 12d / 17, 19 },
+				{ 3, 3, 10.5 / 12, 15 } } );
+		// Edges: 9 x 0.4.
+		expected.put( Integer.valueOf( 9 ), new double[][] {
+				{ 0, Double.NaN, 0.4, 10 },
+				{ 1, 8, Double.NaN, 0 } } );
+
+		final String[] features = new String[] {
+				TrackPausingAnalyzer.NUMBER_OF_PAUSES,
+				TrackPausingAnalyzer.PAUSE_MEAN_DURATION,
+				TrackPausingAnalyzer.MEAN_VELOCITY_NO_PAUSES,
+				TrackPausingAnalyzer.N_SPOTS_IN_RUNS };
+
+		int nChecked = 0;
+		final List< Integer > trackIDs = sweep.getTrackIDs();
+		for ( int t = 0; t < trackIDs.size(); t++ )
+		{
+			final int nEdges = model.getTrackModel().trackEdges( trackIDs.get( t ) ).size();
+			final double[][] values = expected.get( Integer.valueOf( nEdges ) );
+			if ( null == values )
+			{
+				continue;
+			}
+			for ( int it = 0; it < sweep.getVelocityThresholds().length; it++ )
+			{
+				final int g = sweep.gridIndex( it, 0, 0 );
+				for ( int f = 0; f < features.length; f++ )
+				{
+					final String msg = "Unexpected " + features[ f ] + " for the track with " + nEdges + " edges and threshold " + sweep.getVelocityThreshold( g );
+					assertEquals( msg, values[ it ][ f ], sweep.getValue( g, t, features[ f ] ), 1e-9 );
+				}
+			}
+			nChecked++;
+		}
+		assertEquals( 3, nChecked );
+	}
+
+	@Test
+	public void testSameResultsAsThresholder()
+	{
+		final double[] thresholds = new double[] { 0.2, 0.5, 0.8 };
+		final int[] minFrames = new int[] { 1, 3 };
+		final int[] windows = new int[] { 0, 2 };
+
+		final Model model = createModel();
+		final VelocityThresholdSweep sweep = new VelocityThresholdSweep( model, thresholds, minFrames, windows );
+		if ( !sweep.checkInput() || !sweep.process() )
+		{
+			fail( sweep.getErrorMessage() );
+		}
+		final List< Integer > trackIDs = sweep.getTrackIDs();
+		assertEquals( model.getTrackModel().nTracks( true ), trackIDs.size() );
+
+		for ( int it = 0; it < thresholds.length; it++ )
+		{
+			for ( int im = 0; im < minFrames.length; im++ )
+			{
+				for ( int iw = 0; iw < windows.length; iw++ )
+				{
+					final TrackVelocityThresholder thresholder = new TrackVelocityThresholder( model, thresholds[ it ], minFrames[ im ], windows[ iw ] );
+					if ( !thresholder.checkInput() || !thresholder.process() )
+					{
+						fail( thresholder.getErrorMessage() );
+					}
+
+					final int g = sweep.gridIndex( it, im, iw );
+					for ( int t = 0; t < trackIDs.size(); t++ )
+					{
+						for ( final String feature : FEATURES )
+						{
+							final double expected = model.getFeatureModel().getTrackFeature( trackIDs.get( t ), feature ).doubleValue();
+							final double actual = sweep.getValue( g, t, feature );
+							if ( Double.isNaN( expected ) )
+							{
+								assertTrue( "Expected NaN for " + feature + " but got " + actual, Double.isNaN( actual ) );
+							}
+							else
+							{
+								assertEquals( "Unexpected value for " + feature, expected, actual, 1e-9 );
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static int indexOf( final double[] arr, final double val )
+	{
+		for ( int i = 0; i < arr.length; i++ )
+		{
+			if ( arr[ i ] == val ) { return i; }
+		}
+		return -1;
+	}
+
+	private static int indexOf( final int[] arr, final int val )
+	{
+		for ( int i = 0; i < arr.length; i++ )
+		{
+			if ( arr[ i ] == val ) { return i; }
+		}
+		return -1;
+	}
+
+	private static Model createModel()
+	{
+		final int[][] sectionLengths = new int[][] {
+				{ 5, 4, 2, 5, 5, 2, 5 },
+				{ 2, 4, 2, 5, 5, 2, 5 },
+				{ 10 },
+				{ 3, 8, 1, 6 } };
+		final double[][] sectionVelocities = new double[][] {
+				{ 1, 0, 1, 0, 1, 0.1, 1 },
+				{ 0.6, 0, 1, 0.3, 1, 0, 0.7 },
+				{ 0.4 },
+				{ 0, 1, 0, 0.9 } };
+		return SyntheticModels.fromSections( sectionLengths, sectionVelocities );
+	}
+}
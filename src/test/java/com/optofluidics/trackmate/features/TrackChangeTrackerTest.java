@@ -0,0 +1,160 @@
+package com.optofluidics.trackmate.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackLinearVelocityAnalyzer;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+
+public class TrackChangeTrackerTest
+{
+
+	private static final int N_TRACKS = 3;
+
+	private static final int N_FRAMES = 5;
+
+	@Test
+	public void testOnlyEditedTracks()
+	{
+		final Spot[][] spots = new Spot[ N_TRACKS ][ N_FRAMES ];
+		final Model model = createModel( spots );
+		final RecordingAnalyzer analyzer = new RecordingAnalyzer();
+		final Settings settings = new Settings();
+		settings.addTrackAnalyzer( analyzer );
+
+		// A new tracker marks all the tracks.
+		final TrackChangeTracker tracker = TrackChangeTracker.get( model );
+		assertTrue( tracker.hasChanges() );
+		assertEquals( trackIDs( model, spots ), new HashSet< Integer >( tracker.computeFeatures( settings ) ) );
+		assertEquals( trackIDs( model, spots ), new HashSet< Integer >( analyzer.processed ) );
+		assertFalse( tracker.hasChanges() );
+
+		// Extend the second track.
+		analyzer.processed.clear();
+		final Spot extra = new Spot( N_FRAMES, 10, 0, 1, 1 );
+		extra.putFeature( Spot.POSITION_T, Double.valueOf( N_FRAMES ) );
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( extra, Integer.valueOf( N_FRAMES ) );
+			model.addEdge( spots[ 1 ][ N_FRAMES - 1 ], extra, 1 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+
+		final Integer edited = model.getTrackModel().trackIDOf( spots[ 1 ][ 0 ] );
+		assertTrue( tracker.hasChanges() );
+		assertEquals( Collections.singletonList( edited ), new ArrayList< Integer >( tracker.computeFeatures( settings ) ) );
+		assertEquals( "Only the edited track should be analyzed again.", Collections.singletonList( edited ), analyzer.processed );
+		assertEquals( 1d, model.getFeatureModel().getTrackFeature( edited, TrackLinearVelocityAnalyzer.TRACK_LINEAR_VELOCITY ).doubleValue(), 1e-9 );
+
+		// Nothing changed since.
+		analyzer.processed.clear();
+		assertTrue( tracker.computeFeatures( settings ).isEmpty() );
+		assertTrue( analyzer.processed.isEmpty() );
+	}
+
+	@Test
+	public void testMarkTouched()
+	{
+		final Spot[][] spots = new Spot[ N_TRACKS ][ N_FRAMES ];
+		final Model model = createModel( spots );
+		final TrackChangeTracker tracker = TrackChangeTracker.get( model );
+		tracker.pollTouchedTracks();
+
+		final Integer trackID = model.getTrackModel().trackIDOf( spots[ 2 ][ 0 ] );
+		tracker.markTouched( Collections.singleton( trackID ) );
+		assertEquals( Collections.singletonList( trackID ), new ArrayList< Integer >( tracker.pollTouchedTracks() ) );
+		assertFalse( tracker.hasChanges() );
+	}
+
+	@Test( timeout = 20000 )
+	public void testModelCollected() throws InterruptedException
+	{
+		Model model = createModel( new Spot[ N_TRACKS ][ N_FRAMES ] );
+		TrackIndex.get( model );
+		TrackChangeTracker.get( model );
+		final WeakReference< Model > reference = new WeakReference< Model >( model );
+		model = null;
+
+		while ( null != reference.get() )
+		{
+			System.gc();
+			Thread.sleep( 50 );
+		}
+		assertNull( "A model with a change tracker should be garbage collected.", reference.get() );
+	}
+
+	private static HashSet< Integer > trackIDs( final Model model, final Spot[][] spots )
+	{
+		final HashSet< Integer > trackIDs = new HashSet< Integer >();
+		for ( final Spot[] track : spots )
+		{
+			trackIDs.add( model.getTrackModel().trackIDOf( track[ 0 ] ) );
+		}
+		return trackIDs;
+	}
+
+	/**
+	 * Tracks moving along x by 1 per frame, one per row.
+	 */
+	private static Model createModel( final Spot[][] spots )
+	{
+		final Model model = new Model();
+		TrackIndex.get( model );
+		model.beginUpdate();
+		try
+		{
+			for ( int i = 0; i < spots.length; i++ )
+			{
+				for ( int t = 0; t < spots[ i ].length; t++ )
+				{
+					spots[ i ][ t ] = new Spot( t, 10 * i, 0, 1, 1 );
+					spots[ i ][ t ].putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+					model.addSpotTo( spots[ i ][ t ], Integer.valueOf( t ) );
+					if ( t > 0 )
+					{
+						model.addEdge( spots[ i ][ t - 1 ], spots[ i ][ t ], 1 );
+					}
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return model;
+	}
+
+	/**
+	 * Records the tracks it analyzes.
+	 */
+	private static final class RecordingAnalyzer extends TrackLinearVelocityAnalyzer
+	{
+
+		private final List< Integer > processed = new ArrayList< Integer >();
+
+		@Override
+		public void process( final Collection< Integer > trackIDs, final Model model )
+		{
+			processed.addAll( trackIDs );
+			super.process( trackIDs, model );
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.optofluidics.trackmate.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.TrackIndex.SortedTrack;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+public class TrackIndexTest
+{
+
+	@Test
+	public void testSorted()
+	{
+		final Spot[] spots = new Spot[ 5 ];
+		final Model model = createModel( spots );
+		final Integer trackID = model.getTrackModel().trackIDOf( spots[ 0 ] );
+
+		final SortedTrack track = TrackIndex.get( model ).getTrack( trackID );
+		assertEquals( spots.length, track.nSpots() );
+		assertEquals( spots.length - 1, track.nEdges() );
+		for ( int i = 0; i < spots.length; i++ )
+		{
+			assertSame( spots[ i ], track.spots[ i ] );
+			assertEquals( i, track.frames[ i ] );
+			assertEquals( i, track.x[ i ], 0d );
+		}
+		for ( int i = 0; i < track.nEdges(); i++ )
+		{
+			assertEquals( i, track.sources[ i ] );
+			assertEquals( i + 1, track.targets[ i ] );
+		}
+	}
+
+	@Test
+	public void testMovedSpot()
+	{
+		final Spot[] spots = new Spot[ 5 ];
+		final Model model = createModel( spots );
+		final Integer trackID = model.getTrackModel().trackIDOf( spots[ 0 ] );
+		final TrackIndex index = TrackIndex.get( model );
+		assertEquals( 2d, index.getTrack( trackID ).x[ 2 ], 0d );
+
+		// Same spots and edges, only a position changes.
+		model.beginUpdate();
+		try
+		{
+			spots[ 2 ].putFeature( Spot.POSITION_X, Double.valueOf( 10 ) );
+			model.updateFeatures( spots[ 2 ] );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		assertEquals( 10d, index.getTrack( trackID ).x[ 2 ], 0d );
+	}
+
+	@Test
+	public void testRelinkedSameCounts()
+	{
+		final Spot[] spots = new Spot[ 5 ];
+		final Model model = createModel( spots );
+		final Spot extra = new Spot( 3.5, 0, 0, 1, 1 );
+		extra.putFeature( Spot.POSITION_T, Double.valueOf( 3 ) );
+		model.beginUpdate();
+		try
+		{
+			model.addSpotTo( extra, Integer.valueOf( 3 ) );
+			model.addEdge( spots[ 2 ], extra, 1 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		final Integer trackID = model.getTrackModel().trackIDOf( spots[ 0 ] );
+		final TrackIndex index = TrackIndex.get( model );
+		final SortedTrack before = index.getTrack( trackID );
+
+		// Move the branch from spot 3 to the extra spot: same counts.
+		model.beginUpdate();
+		try
+		{
+			final DefaultWeightedEdge edge = model.getTrackModel().getEdge( spots[ 3 ], spots[ 4 ] );
+			model.removeEdge( edge );
+			model.addEdge( extra, spots[ 4 ], 1 );
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		final SortedTrack after = index.getTrack( model.getTrackModel().trackIDOf( spots[ 0 ] ) );
+		assertEquals( before.nSpots(), after.nSpots() );
+		assertEquals( before.nEdges(), after.nEdges() );
+		boolean found = false;
+		for ( int i = 0; i < after.nEdges(); i++ )
+		{
+			found |= after.spots[ after.sources[ i ] ] == extra && after.spots[ after.targets[ i ] ] == spots[ 4 ];
+		}
+		assertEquals( "The relinked edge should be in the index.", true, found );
+	}
+
+	private static Model createModel( final Spot[] spots )
+	{
+		final Model model = new Model();
+		TrackIndex.get( model );
+		model.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < spots.length; t++ )
+			{
+				spots[ t ] = new Spot( t, 0, 0, 1, 1 );
+				spots[ t ].putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+				model.addSpotTo( spots[ t ], Integer.valueOf( t ) );
+				if ( t > 0 )
+				{
+					model.addEdge( spots[ t - 1 ], spots[ t ], 1 );
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return model;
+	}
+}
@@ -0,0 +1,60 @@
+package com.optofluidics.trackmate.features.manual;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+
+public class TrackSegmentAnalyzerTest
+{
+
+	@Test
+	public void testDeclarations()
+	{
+		final TrackSegmentAnalyzer analyzer = new TrackSegmentAnalyzer();
+		assertEquals( 8, analyzer.getFeatures().size() );
+		assertEquals( "Features should not be declared twice.", 8, new HashSet< String >( analyzer.getFeatures() ).size() );
+		for ( final String feature : analyzer.getFeatures() )
+		{
+			assertNotNull( "Missing name for " + feature, analyzer.getFeatureNames().get( feature ) );
+			assertNotNull( "Missing short name for " + feature, analyzer.getFeatureShortNames().get( feature ) );
+			assertNotNull( "Missing dimension for " + feature, analyzer.getFeatureDimensions().get( feature ) );
+			assertEquals( Boolean.FALSE, analyzer.getIsIntFeature().get( feature ) );
+		}
+		assertEquals( 8, analyzer.getFeatureNames().size() );
+		assertEquals( 8, analyzer.getFeatureShortNames().size() );
+		assertEquals( 8, analyzer.getFeatureDimensions().size() );
+
+		for ( final String feature : Arrays.asList( TrackSegmentAnalyzer.RUN_MEAN_DURATION, TrackSegmentAnalyzer.PAUSE_DURATION_P10, TrackSegmentAnalyzer.PAUSE_DURATION_P50, TrackSegmentAnalyzer.PAUSE_DURATION_P90 ) )
+		{
+			assertEquals( Dimension.TIME, analyzer.getFeatureDimensions().get( feature ) );
+		}
+		assertEquals( Dimension.LENGTH, analyzer.getFeatureDimensions().get( TrackSegmentAnalyzer.RUN_MEAN_LENGTH ) );
+		for ( final String feature : Arrays.asList( TrackSegmentAnalyzer.RUN_VELOCITY_MEAN, TrackSegmentAnalyzer.RUN_VELOCITY_MEDIAN, TrackSegmentAnalyzer.RUN_VELOCITY_STD ) )
+		{
+			assertEquals( Dimension.VELOCITY, analyzer.getFeatureDimensions().get( feature ) );
+		}
+	}
+
+	@Test
+	public void testManual()
+	{
+		final TrackSegmentAnalyzer analyzer = new TrackSegmentAnalyzer();
+		assertTrue( "Values are computed by the velocity analysis.", analyzer.isManualFeature() );
+		assertTrue( analyzer.isLocal() );
+
+		// Processing does not touch the model.
+		final Model model = new Model();
+		analyzer.process( Collections.singleton( Integer.valueOf( 0 ) ), model );
+		assertFalse( model.getFeatureModel().getTrackFeatures().contains( TrackSegmentAnalyzer.RUN_MEAN_DURATION ) );
+	}
+}
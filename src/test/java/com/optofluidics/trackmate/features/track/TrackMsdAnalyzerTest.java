@@ -0,0 +1,89 @@
+package com.optofluidics.trackmate.features.track;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TrackMsdAnalyzerTest
+{
+
+	@Test
+	public void testMsdWithGaps()
+	{
+		final Random ran = new Random( 1l );
+		final int nSpots = 300;
+		final int[] frames = new int[ nSpots ];
+		final double[] x = new double[ nSpots ];
+		final double[] y = new double[ nSpots ];
+		final double[] z = new double[ nSpots ];
+		int frame = 10;
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			frames[ i ] = frame;
+			// Some frames are missing, like with gap-closing.
+			frame += 1 + ( ran.nextInt( 5 ) == 0 ? ran.nextInt( 4 ) : 0 );
+			x[ i ] = 1000 + ( i > 0 ? x[ i - 1 ] - 1000 : 0 ) + ran.nextGaussian();
+			y[ i ] = ( i > 0 ? y[ i - 1 ] : 0 ) + ran.nextGaussian();
+			z[ i ] = ( i > 0 ? z[ i - 1 ] : 0 ) + ran.nextGaussian();
+		}
+
+		final double[] msd = TrackMsdAnalyzer.msd( frames, x, y, z );
+		assertEquals( frames[ nSpots - 1 ] - frames[ 0 ] + 1, msd.length );
+
+		// Naive MSD.
+		for ( int lag = 0; lag < msd.length; lag++ )
+		{
+			double sum = 0;
+			int count = 0;
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				for ( int j = i; j < nSpots && frames[ j ] - frames[ i ] <= lag; j++ )
+				{
+					if ( frames[ j ] - frames[ i ] == lag )
+					{
+						final double dx = x[ j ] - x[ i ];
+						final double dy = y[ j ] - y[ i ];
+						final double dz = z[ j ] - z[ i ];
+						sum += dx * dx + dy * dy + dz * dz;
+						count++;
+					}
+				}
+			}
+			if ( count == 0 )
+			{
+				assertTrue( "Expected NaN at lag " + lag, Double.isNaN( msd[ lag ] ) );
+			}
+			else
+			{
+				assertEquals( "Unexpected MSD at lag " + lag, sum / count, msd[ lag ], 1e-6 * ( 1 + sum / count ) );
+			}
+		}
+	}
+
+	@Test
+	public void testFitBrownianMotion()
+	{
+		final Random ran = new Random( 2l );
+		final double D = 0.5;
+		final double dt = 0.1;
+		final double sigma = Math.sqrt( 2 * D * dt );
+		final int nSpots = 20000;
+		final int[] frames = new int[ nSpots ];
+		final double[] x = new double[ nSpots ];
+		final double[] y = new double[ nSpots ];
+		final double[] z = new double[ nSpots ];
+		for ( int i = 1; i < nSpots; i++ )
+		{
+			frames[ i ] = i;
+			x[ i ] = x[ i - 1 ] + sigma * ran.nextGaussian();
+			y[ i ] = y[ i - 1 ] + sigma * ran.nextGaussian();
+		}
+
+		final double[] fit = TrackMsdAnalyzer.fit( TrackMsdAnalyzer.msd( frames, x, y, z ), dt, 2 );
+		assertEquals( "Unexpected diffusion coefficient.", D, fit[ 0 ], 0.2 * D );
+		assertEquals( "Unexpected anomalous exponent.", 1d, fit[ 1 ], 0.1 );
+	}
+}
@@ -0,0 +1,106 @@
+package com.optofluidics.trackmate.features.track;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.spot.SpotIntensityAnalyzerFactory;
+
+public class TrackSpotIntensityAnalyzerTest
+{
+
+	private static final String OTHER_FEATURE = SpotIntensityAnalyzerFactory.MEAN_INTENSITY;
+
+	/**
+	 * Large enough for the variance to be lost in rounding errors if computed
+	 * as the difference between the mean square and the squared mean.
+	 */
+	private static final double OFFSET = 1e9;
+
+	@Test
+	public void testLargeOffset()
+	{
+		final int nSpots = 101;
+		final double[] values = new double[ nSpots ];
+		final Spot[] spots = new Spot[ nSpots ];
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			values[ i ] = ( i * 37 ) % 11 - 5;
+			spots[ i ] = new Spot( i, 0, 0, 1, 1 );
+			spots[ i ].putFeature( SpotIntensityAnalyzerFactory.TOTAL_INTENSITY, Double.valueOf( OFFSET + values[ i ] ) );
+			spots[ i ].putFeature( OTHER_FEATURE, Double.valueOf( values[ i ] ) );
+		}
+		// Missing values are skipped.
+		spots[ 10 ].putFeature( OTHER_FEATURE, Double.valueOf( Double.NaN ) );
+
+		final Model model = createModel( spots );
+		final Integer trackID = model.getTrackModel().trackIDOf( spots[ 0 ] );
+		final TrackSpotIntensityAnalyzer analyzer = new TrackSpotIntensityAnalyzer( SpotIntensityAnalyzerFactory.TOTAL_INTENSITY, OTHER_FEATURE );
+		analyzer.process( Collections.singleton( trackID ), model );
+		final FeatureModel fm = model.getFeatureModel();
+
+		// Two-pass moments around the offset.
+		double sum = 0;
+		for ( final double value : values )
+		{
+			sum += value;
+		}
+		final double mean = sum / nSpots;
+		double m2 = 0;
+		for ( final double value : values )
+		{
+			m2 += ( value - mean ) * ( value - mean );
+		}
+		final double std = Math.sqrt( m2 / nSpots );
+
+		assertEquals( OFFSET + mean, fm.getTrackFeature( trackID, TrackSpotIntensityAnalyzer.TRACK_MEAN_INTENSITY ).doubleValue(), 1e-6 );
+		assertEquals( OFFSET, fm.getTrackFeature( trackID, TrackSpotIntensityAnalyzer.TRACK_MEDIAN_INTENSITY ).doubleValue(), 0 );
+		assertEquals( std, fm.getTrackFeature( trackID, TrackSpotIntensityAnalyzer.TRACK_STD_INTENSITY ).doubleValue(), 1e-6 * std );
+
+		// The second feature, without the NaN value.
+		sum = 0;
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			sum += i == 10 ? 0 : values[ i ];
+		}
+		final double otherMean = sum / ( nSpots - 1 );
+		m2 = 0;
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			m2 += i == 10 ? 0 : ( values[ i ] - otherMean ) * ( values[ i ] - otherMean );
+		}
+		assertEquals( otherMean, fm.getTrackFeature( trackID, "TRACK_MEAN_" + OTHER_FEATURE ).doubleValue(), 1e-12 );
+		assertEquals( Math.sqrt( m2 / ( nSpots - 1 ) ), fm.getTrackFeature( trackID, "TRACK_STD_" + OTHER_FEATURE ).doubleValue(), 1e-12 );
+	}
+
+	/**
+	 * A single track linking the specified spots, one per frame.
+	 */
+	private static Model createModel( final Spot[] spots )
+	{
+		final Model model = new Model();
+		model.beginUpdate();
+		try
+		{
+			for ( int t = 0; t < spots.length; t++ )
+			{
+				spots[ t ].putFeature( Spot.POSITION_T, Double.valueOf( t ) );
+				model.addSpotTo( spots[ t ], Integer.valueOf( t ) );
+				if ( t > 0 )
+				{
+					model.addEdge( spots[ t - 1 ], spots[ t ], 1 );
+				}
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+		return model;
+	}
+}
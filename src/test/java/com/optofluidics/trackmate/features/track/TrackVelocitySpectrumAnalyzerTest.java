@@ -0,0 +1,99 @@
+package com.optofluidics.trackmate.features.track;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.optofluidics.trackmate.features.track.TrackVelocitySpectrumAnalyzer.VelocitySpectrum;
+
+public class TrackVelocitySpectrumAnalyzerTest
+{
+
+	@Test
+	public void testVacfWithGaps()
+	{
+		final Random ran = new Random( 1l );
+		final int n = 400;
+		final int[] frames = new int[ n ];
+		final double[] vx = new double[ n ];
+		final double[] vy = new double[ n ];
+		final double[] vz = new double[ n ];
+		int frame = 3;
+		for ( int i = 0; i < n; i++ )
+		{
+			frames[ i ] = frame;
+			frame += 1 + ( ran.nextInt( 6 ) == 0 ? ran.nextInt( 3 ) : 0 );
+			vx[ i ] = 2 + ran.nextGaussian();
+			vy[ i ] = ran.nextGaussian();
+			vz[ i ] = 0.5 * ran.nextGaussian();
+		}
+
+		final VelocitySpectrum spectrum = TrackVelocitySpectrumAnalyzer.compute( frames, vx, vy, vz, 0.5 );
+		assertEquals( frames[ n - 1 ] - frames[ 0 ] + 1, spectrum.vacf.length );
+
+		double mx = 0, my = 0, mz = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			mx += vx[ i ] / n;
+			my += vy[ i ] / n;
+			mz += vz[ i ] / n;
+		}
+
+		// Naive VACF.
+		for ( int lag = 0; lag < spectrum.vacf.length; lag++ )
+		{
+			double sum = 0;
+			int count = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				for ( int j = i; j < n && frames[ j ] - frames[ i ] <= lag; j++ )
+				{
+					if ( frames[ j ] - frames[ i ] == lag )
+					{
+						sum += ( vx[ i ] - mx ) * ( vx[ j ] - mx ) + ( vy[ i ] - my ) * ( vy[ j ] - my ) + ( vz[ i ] - mz ) * ( vz[ j ] - mz );
+						count++;
+					}
+				}
+			}
+			if ( count == 0 )
+			{
+				assertTrue( "Expected NaN at lag " + lag, Double.isNaN( spectrum.vacf[ lag ] ) );
+			}
+			else
+			{
+				assertEquals( "Unexpected VACF at lag " + lag, sum / count, spectrum.vacf[ lag ], 1e-9 );
+			}
+			assertEquals( lag * 0.5, spectrum.lags[ lag ], 1e-12 );
+		}
+	}
+
+	@Test
+	public void testOscillation()
+	{
+		final Random ran = new Random( 2l );
+		final double frameInterval = 0.01;
+		final double frequency = 7.;
+		final int n = 5000;
+		final int[] frames = new int[ n ];
+		final double[] vx = new double[ n ];
+		final double[] vy = new double[ n ];
+		final double[] vz = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			frames[ i ] = i;
+			vx[ i ] = Math.sin( 2 * Math.PI * frequency * i * frameInterval ) + 0.3 * ran.nextGaussian();
+			vy[ i ] = 0.3 * ran.nextGaussian();
+		}
+
+		final VelocitySpectrum spectrum = TrackVelocitySpectrumAnalyzer.compute( frames, vx, vy, vz, frameInterval );
+		final double resolution = spectrum.frequencies[ 1 ];
+		assertEquals( "Unexpected dominant frequency.", frequency, spectrum.dominantFrequency(), resolution );
+
+		// Quarter period: the VACF of a sine drops to 1/e before it.
+		final double correlationTime = spectrum.correlationTime();
+		assertTrue( "Unexpected correlation time: " + correlationTime, correlationTime > 0 && correlationTime < 0.25 / frequency );
+	}
+}
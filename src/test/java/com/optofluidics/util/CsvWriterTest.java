@@ -0,0 +1,60 @@
+package com.optofluidics.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvWriterTest
+{
+
+	@Test
+	public void testFormatting() throws IOException
+	{
+		final StringWriter out = new StringWriter();
+		final CsvWriter csv = new CsvWriter( out, 3 );
+		csv.header( "Label", "ID", "X" );
+		csv.value( "a,\"b\"" ).value( -12 ).value( 0.1 ).endRow();
+		csv.value( "c" ).value( Long.MIN_VALUE ).value( -2.5e-4 ).endRow();
+		csv.value( "d" ).value( 0 ).value( -0.0001 ).endRow();
+		csv.empty().value( 7 ).value( 1e20 ).endRow();
+		csv.value( "e" ).value( 3 ).value( Double.NaN ).endRow();
+		csv.value( "f" ).value( 4 ).value( 12.0 ).endRow();
+		csv.close();
+
+		assertEquals( 6, csv.getNRows() );
+		assertEquals( "Label,ID,X\n"
+				+ "\"a,\"\"b\"\"\",-12,0.1\n"
+				+ "c,-9223372036854775808,-2.5E-4\n"
+				+ "d,0,-1.0E-4\n"
+				+ ",7,1.0E20\n"
+				+ "e,3,NaN\n"
+				+ "f,4,12\n", out.toString() );
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final Random ran = new Random( 1l );
+		final double[] values = new double[ 1000 ];
+		final StringWriter out = new StringWriter();
+		final CsvWriter csv = new CsvWriter( out, CsvWriter.DEFAULT_DECIMALS );
+		for ( int i = 0; i < values.length; i++ )
+		{
+			values[ i ] = ( ran.nextDouble() - 0.5 ) * Math.pow( 10, ran.nextInt( 12 ) - 3 );
+			csv.value( values[ i ] ).endRow();
+		}
+		csv.close();
+
+		final String[] lines = out.toString().split( "\n" );
+		assertEquals( values.length, lines.length );
+		for ( int i = 0; i < values.length; i++ )
+		{
+			final double parsed = Double.parseDouble( lines[ i ] );
+			assertEquals( "Unexpected value at line " + i, values[ i ], parsed, Math.max( 1e-6, Math.abs( values[ i ] ) * 1e-12 ) );
+		}
+	}
+}
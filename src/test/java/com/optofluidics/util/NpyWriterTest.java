@@ -0,0 +1,79 @@
+package com.optofluidics.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import com.optofluidics.util.NpyWriter.DType;
+
+public class NpyWriterTest
+{
+
+	@Test
+	public void testLayout() throws IOException
+	{
+		final File file = File.createTempFile( "NpyWriterTest", ".npy" );
+		file.deleteOnExit();
+		final int n = 10000;
+		final NpyWriter writer = new NpyWriter( file, DType.FLOAT64, n );
+		for ( int i = 0; i < n; i++ )
+		{
+			writer.write( i * 0.5 );
+		}
+		writer.close();
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		final byte[] bytes = new byte[ ( int ) raf.length() ];
+		raf.readFully( bytes );
+		raf.close();
+
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+		assertEquals( ( byte ) 0x93, buffer.get() );
+		assertEquals( "NUMPY", new String( bytes, 1, 5, Charset.forName( "US-ASCII" ) ) );
+		buffer.position( 6 );
+		assertEquals( 1, buffer.get() );
+		assertEquals( 0, buffer.get() );
+		final int headerLength = buffer.getShort();
+		final int dataStart = 10 + headerLength;
+		assertEquals( "Data is not aligned.", 0, dataStart % 64 );
+
+		final String header = new String( bytes, 10, headerLength, Charset.forName( "US-ASCII" ) );
+		assertTrue( header, header.startsWith( "{'descr': '<f8', 'fortran_order': False, 'shape': (10000,), }" ) );
+		assertTrue( header, header.endsWith( "\n" ) );
+
+		assertEquals( dataStart + 8 * n, bytes.length );
+		buffer.position( dataStart );
+		for ( int i = 0; i < n; i++ )
+		{
+			assertEquals( i * 0.5, buffer.getDouble(), 0 );
+		}
+	}
+
+	@Test
+	public void testLengthMismatch() throws IOException
+	{
+		final File file = File.createTempFile( "NpyWriterTest", ".npy" );
+		file.deleteOnExit();
+		final NpyWriter writer = new NpyWriter( file, DType.INT32, 3 );
+		writer.write( 1l );
+		writer.write( 2l );
+		try
+		{
+			writer.close();
+			fail( "Closing an incomplete file should fail." );
+		}
+		catch ( final IOException e )
+		{
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.optofluidics.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuickSelectTest
+{
+
+	private static final int[] SIZES = new int[] { 1, 2, 3, 10, 11, 100, 101 };
+
+	@Test
+	public void testRandom()
+	{
+		final Random ran = new Random( 1l );
+		for ( final int n : SIZES )
+		{
+			final double[] values = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				values[ i ] = ran.nextGaussian();
+			}
+			checkSelect( values );
+		}
+	}
+
+	@Test
+	public void testAllEqual()
+	{
+		for ( final int n : SIZES )
+		{
+			final double[] values = new double[ n ];
+			Arrays.fill( values, 3.5 );
+			checkSelect( values );
+		}
+	}
+
+	@Test
+	public void testDuplicates()
+	{
+		final Random ran = new Random( 2l );
+		for ( final int n : SIZES )
+		{
+			// Few distinct values, like saturated or quantized intensities.
+			final double[] values = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				values[ i ] = ran.nextInt( 3 );
+			}
+			checkSelect( values );
+
+			// Sorted and reverse sorted.
+			final double[] sorted = values.clone();
+			Arrays.sort( sorted );
+			checkSelect( sorted );
+			final double[] reversed = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				reversed[ i ] = sorted[ n - 1 - i ];
+			}
+			checkSelect( reversed );
+		}
+	}
+
+	@Test
+	public void testMedian()
+	{
+		assertTrue( Double.isNaN( QuickSelect.median( new double[ 0 ], 0 ) ) );
+		assertTrue( Double.isNaN( QuickSelect.median( new double[] { 1. }, 0 ) ) );
+		assertEquals( 4., QuickSelect.median( new double[] { 4. }, 1 ), 0 );
+		// Upper median for an even number of elements.
+		assertEquals( 3., QuickSelect.median( new double[] { 4., 1., 3., 2. }, 4 ), 0 );
+		assertEquals( 3., QuickSelect.median( new double[] { 5., 1., 3., 2., 4. }, 5 ), 0 );
+		// Only the first n elements are considered.
+		assertEquals( 2., QuickSelect.median( new double[] { 2., 1., 100., 100., 100. }, 2 ), 0 );
+	}
+
+	@Test
+	public void testRange()
+	{
+		final double[] values = new double[] { 9., 8., 5., 1., 4., 3., 2., 0., 7. };
+		// Sorted range [1, 7]: 0, 1, 2, 3, 4, 5, 8.
+		assertEquals( 3., QuickSelect.select( values, 1, 7, 4 ), 0 );
+		assertEquals( 9., values[ 0 ], 0 );
+		assertEquals( 7., values[ 8 ], 0 );
+	}
+
+	/**
+	 * Compares the selection of each order statistic, and the median, to the
+	 * sorted array.
+	 */
+	private static void checkSelect( final double[] values )
+	{
+		final int n = values.length;
+		final double[] sorted = values.clone();
+		Arrays.sort( sorted );
+		for ( int k = 0; k < n; k++ )
+		{
+			final double[] copy = values.clone();
+			assertEquals( "Unexpected element " + k + " of " + n, sorted[ k ], QuickSelect.select( copy, 0, n - 1, k ), 0 );
+			assertEquals( sorted[ k ], copy[ k ], 0 );
+			for ( int i = 0; i < n; i++ )
+			{
+				assertTrue( "Array not partitioned around element " + k, i < k ? copy[ i ] <= copy[ k ] : copy[ i ] >= copy[ k ] );
+			}
+
+			// Only reordered.
+			Arrays.sort( copy );
+			assertTrue( Arrays.equals( sorted, copy ) );
+		}
+		assertEquals( sorted[ n / 2 ], QuickSelect.median( values.clone(), n ), 0 );
+	}
+}
@@ -0,0 +1,153 @@
+package com.optofluidics.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.optofluidics.util.SharedExecutor.IndexTask;
+
+public class SharedExecutorTest
+{
+
+	@Test
+	public void testEachIndexOnce()
+	{
+		for ( final int n : new int[] { 0, 1, 7, 1000 } )
+		{
+			for ( final int numThreads : new int[] { 0, 1, 2, SharedExecutor.getParallelism(), 1000 } )
+			{
+				final AtomicIntegerArray visits = new AtomicIntegerArray( n );
+				SharedExecutor.forEach( n, numThreads, new IndexTask()
+				{
+					@Override
+					public void process( final int index )
+					{
+						visits.incrementAndGet( index );
+					}
+				} );
+				for ( int i = 0; i < n; i++ )
+				{
+					assertEquals( "Index " + i + " of " + n + " with " + numThreads + " threads should be visited once.", 1, visits.get( i ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testException()
+	{
+		for ( final int numThreads : new int[] { 1, SharedExecutor.getParallelism() } )
+		{
+			try
+			{
+				SharedExecutor.forEach( 100, numThreads, new IndexTask()
+				{
+					@Override
+					public void process( final int index )
+					{
+						if ( index == 37 ) { throw new IllegalStateException( "index 37" ); }
+					}
+				} );
+				fail( "The exception of a task should be propagated to the caller." );
+			}
+			catch ( final IllegalStateException e )
+			{
+				// Expected. It may be rethrown by another thread.
+				assertTrue( e.toString().contains( "index 37" ) );
+			}
+		}
+	}
+
+	@Test( timeout = 20000 )
+	public void testNested()
+	{
+		final int parallelism = SharedExecutor.getParallelism();
+		final int nOuter = 4 * parallelism;
+		final AtomicLong sum = new AtomicLong();
+		SharedExecutor.forEach( nOuter, parallelism, new IndexTask()
+		{
+			@Override
+			public void process( final int outer )
+			{
+				// Called from the pool threads.
+				SharedExecutor.forEach( 100, parallelism, new IndexTask()
+				{
+					@Override
+					public void process( final int inner )
+					{
+						sum.addAndGet( inner );
+					}
+				} );
+			}
+		} );
+		assertEquals( nOuter * 4950L, sum.get() );
+	}
+
+	@Test
+	public void testSetParallelism()
+	{
+		SharedExecutor.getPool();
+		final int parallelism = SharedExecutor.getParallelism();
+		assertEquals( parallelism, SharedExecutor.getPool().getParallelism() );
+		assertTrue( "Setting the current size should succeed.", SharedExecutor.setParallelism( parallelism ) );
+		assertFalse( "The size of a pool in use should not change.", SharedExecutor.setParallelism( parallelism + 1 ) );
+		assertEquals( parallelism, SharedExecutor.getParallelism() );
+		assertEquals( parallelism, SharedExecutor.getPool().getParallelism() );
+	}
+
+	@Test
+	public void testNumThreadsBound()
+	{
+		final int parallelism = SharedExecutor.getParallelism();
+		for ( final int numThreads : new int[] { 1, 2, parallelism } )
+		{
+			final ConcurrencyTask task = new ConcurrencyTask();
+			SharedExecutor.forEach( 100, numThreads, task );
+			assertTrue( "At most " + numThreads + " threads should process the indices at once, but " + task.max + " did.", task.max.get() <= Math.min( numThreads, parallelism ) );
+			assertEquals( 100, task.count.get() );
+		}
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Records how many threads run it at once.
+	 */
+	private static final class ConcurrencyTask implements IndexTask
+	{
+
+		private final AtomicInteger running = new AtomicInteger();
+
+		private final AtomicInteger max = new AtomicInteger();
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void process( final int index )
+		{
+			final int current = running.incrementAndGet();
+			int previous;
+			while ( current > ( previous = max.get() ) && !max.compareAndSet( previous, current ) )
+			{}
+			try
+			{
+				Thread.sleep( 2 );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			count.incrementAndGet();
+			running.decrementAndGet();
+		}
+	}
+}